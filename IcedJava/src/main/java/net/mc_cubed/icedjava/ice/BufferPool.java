@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded free list of receive buffers.  Buffers are only allocated when the
+ * free list is empty, so a channel whose consumer keeps up settles on a
+ * handful of buffers and stops allocating altogether.  Buffers released while
+ * the free list is full are left to the garbage collector.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+class BufferPool {
+
+    private final BlockingQueue<PooledBuffer> free;
+    private final int bufferSize;
+
+    /**
+     * @param capacity maximum number of idle buffers kept for reuse
+     * @param bufferSize size of each buffer in bytes
+     */
+    BufferPool(int capacity, int bufferSize) {
+        this.free = new ArrayBlockingQueue<PooledBuffer>(capacity);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool, allocating one if none are idle.
+     *
+     * @return an empty buffer holding a single reference
+     */
+    PooledBuffer acquire() {
+        PooledBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = new PooledBuffer(this, bufferSize);
+        }
+        buffer.acquired();
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    int getIdleCount() {
+        return free.size();
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -55,7 +55,32 @@ public abstract class Candidate {
     }
 
     public void computePriority(int localPreference) {
-        setPriority((2 << 23) * getType().getPriority() + (2 << 7) * localPreference + (256 - getComponentId()));
+        int typePreference = getType().getPriority();
+        if (getTransport() == TransportType.TCP) {
+            // Check UDP first, ICE-TCP is the fallback for networks without it
+            typePreference = typePreference / 2;
+            localPreference = (2 << 12) * getDirectionPreference() + (localPreference & 0x1fff);
+        }
+        setPriority((2 << 23) * typePreference + (2 << 7) * localPreference + (256 - getComponentId()));
+    }
+
+    /**
+     * RFC 6544 4.2: Prefer the ICE-TCP connection type most likely to work
+     * for this type of candidate
+     */
+    int getDirectionPreference() {
+        if (getSocketType() == null) {
+            return 0;
+        }
+        boolean direct = getType() == CandidateType.LOCAL || getType() == CandidateType.UDP_TUNNELLED;
+        switch (getSocketType()) {
+            case ACTIVE:
+                return direct ? 6 : 4;
+            case PASSIVE:
+                return direct ? 4 : 2;
+            default:
+                return direct ? 2 : 6;
+        }
     }
 
     @Override
@@ -63,21 +88,12 @@ public abstract class Candidate {
         return getClass().getName() + "[type=" + getType() + ":address=" + getAddress() + ":port=" + getPort() + ":priority=" + getPriority() + ":componentId=" + getComponentId() + ((getBase() != this) ? ":base=" + getBase() : ":base=this") + "]";
     }
 
+    /**
+     * @return the value of the SDP candidate attribute for this candidate
+     * @see CandidateSdp
+     */
     public String toAttributeFormat() {
-        switch (getTransport()) {
-            default:
-                return null;
-            case UDP:
-                return getFoundation() + " " + getComponentId() + " " + getTransport() + " " + getPriority()
-                        + " " + getAddress().getHostAddress() + " " + getPort() + " typ " + getType().netVal()
-                        + ((getType() != getType().LOCAL) ? " raddr " + getBaseAddress().getHostAddress()
-                        + " rport " + getBasePort() : "");
-            case TCP:
-                return getFoundation() + " " + getComponentId() + " " + getTransport() + " " + getPriority()
-                        + " " + getAddress().getHostAddress() + " " + getPort() + " typ " + getType().netVal()
-                        + ((getType() != getType().LOCAL) ? " raddr " + getBaseAddress().getHostAddress()
-                        + " rport " + getBasePort() : "") + " tcptype " + getSocketType().getNetworkString();                
-        }
+        return CandidateSdp.toAttributeValue(this);
     }
 
     abstract protected void setBaseAddress(InetAddress baseAddress);
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.util.List;
+
+/**
+ * The rendered candidate attributes of one media stream.  Rendering only
+ * happens again when the candidate list changes, which it rarely does once
+ * gathering has finished, so repeated session updates reuse the same text.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see CandidateSdp
+ */
+class CandidateLineCache {
+
+    private Candidate[] candidates = new Candidate[0];
+    private long[] priorities = new long[0];
+    private String[] values = new String[0];
+    private String lines = "";
+
+    /**
+     * @param current the candidates of the media stream
+     * @return the candidate attribute values, in candidate order
+     */
+    synchronized String[] getValues(List<? extends Candidate> current) {
+        update(current);
+        return values;
+    }
+
+    /**
+     * @param current the candidates of the media stream
+     * @return a=candidate lines for the candidates, each ending in CRLF
+     */
+    synchronized String getLines(List<? extends Candidate> current) {
+        update(current);
+        return lines;
+    }
+
+    private void update(List<? extends Candidate> current) {
+        if (matches(current)) {
+            return;
+        }
+        int size = current.size();
+        candidates = current.toArray(new Candidate[size]);
+        priorities = new long[size];
+        values = new String[size];
+        StringBuilder sb = new StringBuilder(size * 96);
+        for (int i = 0; i < size; i++) {
+            priorities[i] = candidates[i].getPriority();
+            values[i] = CandidateSdp.toAttributeValue(candidates[i]);
+            sb.append(CandidateSdp.CANDIDATE_LINE_PREFIX).append(values[i]).append(CandidateSdp.LINE_END);
+        }
+        lines = sb.toString();
+    }
+
+    /**
+     * Candidates are replaced rather than changed, apart from their priority
+     */
+    private boolean matches(List<? extends Candidate> current) {
+        if (current.size() != candidates.length) {
+            return false;
+        }
+        int i = 0;
+        for (Candidate candidate : current) {
+            if (candidate != candidates[i] || candidate.getPriority() != priorities[i]) {
+                return false;
+            }
+            i++;
+        }
+        return true;
+    }
+}
@@ -23,6 +23,9 @@ import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.mc_cubed.icedjava.stun.TCPSocketType;
+import net.mc_cubed.icedjava.stun.TransportType;
 
 /**
  * Pairs a LocalCandidate and a RemoteCandidate and stores limited state
@@ -39,6 +42,10 @@ public class CandidatePair {
     protected boolean localControlled;
     protected Long priority;
     private Future<IceReply> replyFuture;
+    private volatile long lastCheckSent = 0;
+    private volatile long roundTripMicros = -1;
+    private final AtomicInteger checksSent = new AtomicInteger();
+    private final AtomicInteger retransmits = new AtomicInteger();
 
     /**
      * Get the value of localCandidate
@@ -99,6 +106,15 @@ public class CandidatePair {
             return false;
         }
 
+        // Transports must match, and ICE-TCP candidates must be able to connect
+        if (localCandidate.getTransport() != remoteCandidate.getTransport()) {
+            return false;
+        }
+        if (localCandidate.getTransport() == TransportType.TCP
+                && !TCPSocketType.canConnect(localCandidate.getSocketType(), remoteCandidate.getSocketType())) {
+            return false;
+        }
+
         // Only pair link local addresses with other link local addresses.
         if (localCandidate.getAddress().isLinkLocalAddress() ^ remoteCandidate.getAddress().isLinkLocalAddress()) {
             return false;
@@ -296,4 +312,56 @@ public class CandidatePair {
     public void setReplyFuture(Future<IceReply> iceFuture) {
         this.replyFuture = iceFuture;
     }
+
+    /**
+     * Get the time the last connectivity check on this pair was started
+     *
+     * @return milliseconds since the epoch, 0 if this pair was never checked
+     */
+    public long getLastCheckSent() {
+        return lastCheckSent;
+    }
+
+    /**
+     * Get the round trip time measured by the last successful connectivity
+     * check on this pair
+     *
+     * @return round trip time in microseconds, -1 if not yet measured
+     */
+    public long getRoundTripMicros() {
+        return roundTripMicros;
+    }
+
+    /**
+     * Get the number of connectivity checks started on this pair
+     *
+     * @return number of checks
+     */
+    public int getChecksSent() {
+        return checksSent.get();
+    }
+
+    /**
+     * Get the total number of STUN retransmissions made by connectivity checks
+     * on this pair
+     *
+     * @return number of retransmissions
+     */
+    public int getRetransmits() {
+        return retransmits.get();
+    }
+
+    void checkSent() {
+        lastCheckSent = System.currentTimeMillis();
+        checksSent.incrementAndGet();
+    }
+
+    void checkCompleted(IceReply reply) {
+        if (reply.getTransmissions() > 1) {
+            retransmits.addAndGet(reply.getTransmissions() - 1);
+        }
+        if (reply.isSuccess() && reply.getRoundTripMicros() >= 0) {
+            roundTripMicros = reply.getRoundTripMicros();
+        }
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import javax.sdp.SdpParseException;
+import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
+import net.mc_cubed.icedjava.stun.TCPSocketType;
+import net.mc_cubed.icedjava.stun.TransportType;
+
+/**
+ * Writes ICE candidates straight to SDP text, and reads them back, without
+ * building JAIN SDP attribute objects.  Used to render candidate attribute
+ * values, and whole a=candidate lines for applications which write their SDP
+ * as text.  Parsing walks the attribute value in place, so the only objects
+ * created are the candidate, its foundation and its addresses.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see CandidateLineCache
+ * @see IceSdpScanner
+ */
+public class CandidateSdp {
+
+    public static final String CANDIDATE_LINE_PREFIX = "a=" + IceStateMachine.CANDIDATE_NAME + ":";
+    public static final String LINE_END = "\r\n";
+
+    /**
+     * Render the value of a candidate attribute, RFC 5245 Section 15.1 and
+     * RFC 6544 Section 4.5
+     *
+     * @param candidate the candidate to render
+     * @return the attribute value
+     */
+    public static String toAttributeValue(Candidate candidate) {
+        return appendAttributeValue(new StringBuilder(96), candidate).toString();
+    }
+
+    /**
+     * Append the value of a candidate attribute
+     *
+     * @param sb where to write the value
+     * @param candidate the candidate to render
+     * @return sb
+     */
+    public static StringBuilder appendAttributeValue(StringBuilder sb, Candidate candidate) {
+        sb.append(candidate.getFoundation()).append(' ');
+        sb.append(candidate.getComponentId()).append(' ');
+        sb.append(candidate.getTransport().name()).append(' ');
+        sb.append(candidate.getPriority()).append(' ');
+        appendAddress(sb, candidate.getAddress()).append(' ');
+        sb.append(candidate.getPort()).append(" typ ");
+        sb.append(candidate.getType().netVal());
+        if (candidate.getType() != CandidateType.LOCAL) {
+            sb.append(" raddr ");
+            appendAddress(sb, candidate.getBaseAddress());
+            sb.append(" rport ").append(candidate.getBasePort());
+        }
+        if (candidate.getTransport() == TransportType.TCP) {
+            sb.append(" tcptype ").append(candidate.getSocketType().getNetworkString());
+        }
+        return sb;
+    }
+
+    /**
+     * Append an a=candidate line for each candidate
+     *
+     * @param sb where to write the lines
+     * @param candidates the candidates to render
+     * @return sb
+     */
+    public static StringBuilder appendCandidateLines(StringBuilder sb, List<? extends Candidate> candidates) {
+        for (Candidate candidate : candidates) {
+            sb.append(CANDIDATE_LINE_PREFIX);
+            appendAttributeValue(sb, candidate);
+            sb.append(LINE_END);
+        }
+        return sb;
+    }
+
+    /**
+     * Parse the value of a candidate attribute.  Extension attributes other
+     * than raddr, rport and tcptype are skipped.
+     *
+     * @param value the attribute value, without the a=candidate: prefix
+     * @return the remote candidate it describes
+     * @throws SdpParseException if the value is malformed
+     * @throws UnknownHostException if an address can't be resolved
+     */
+    public static RemoteCandidate parseCandidate(CharSequence value)
+            throws SdpParseException, UnknownHostException {
+        return parseCandidate(value, 0, value.length());
+    }
+
+    /**
+     * Parse the value of a candidate attribute held in part of a larger text
+     *
+     * @param text text holding the value
+     * @param start index of the first character of the value
+     * @param end index after the last character of the value
+     * @return the remote candidate it describes
+     * @throws SdpParseException if the value is malformed
+     * @throws UnknownHostException if an address can't be resolved
+     */
+    public static RemoteCandidate parseCandidate(CharSequence text, int start, int end)
+            throws SdpParseException, UnknownHostException {
+        return new RemoteCandidate(new Tokens(text, start, end));
+    }
+
+    /**
+     * Parse the fields of a candidate attribute following the candidate
+     * type: raddr, rport and tcptype, skipping any other extension
+     *
+     * @param tokens the tokens, positioned on the candidate type
+     * @param candidate the candidate to fill in
+     * @throws SdpParseException if the fields are malformed, or a reflexive
+     * or relayed candidate has no related address
+     * @throws UnknownHostException if the related address can't be resolved
+     */
+    static void parseExtensions(Tokens tokens, RemoteCandidate candidate)
+            throws SdpParseException, UnknownHostException {
+        boolean hasBaseAddress = false, hasBasePort = false;
+        while (tokens.next()) {
+            if (tokens.is("raddr")) {
+                tokens.next("raddr");
+                candidate.setBaseAddress(tokens.toAddress());
+                hasBaseAddress = true;
+            } else if (tokens.is("rport")) {
+                tokens.next("rport");
+                candidate.setBasePort((int) tokens.toLong(0xffff));
+                hasBasePort = true;
+            } else if (tokens.is("tcptype")) {
+                tokens.next("tcptype");
+                candidate.socketType = TCPSocketType.fromNetworkString(tokens.toString());
+            } else {
+                // Skip the value of an extension we don't use
+                tokens.next("extension value");
+            }
+        }
+        if (candidate.getType() != CandidateType.LOCAL && !(hasBaseAddress && hasBasePort)) {
+            throw new SdpParseException(0, 0, "Expected 'raddr' and 'rport' tokens, but did not find them!");
+        }
+    }
+
+    /**
+     * Walks the whitespace separated tokens of part of a text.  The current
+     * token is read where it lies, and only copied out when asked for as a
+     * String.
+     */
+    static class Tokens {
+
+        private final CharSequence text;
+        private final int end;
+        private int position;
+        private int tokenStart;
+        private int tokenEnd;
+
+        Tokens(CharSequence text) {
+            this(text, 0, text.length());
+        }
+
+        Tokens(CharSequence text, int start, int end) {
+            this.text = text;
+            this.position = start;
+            this.end = end;
+        }
+
+        /**
+         * Move to the next token
+         *
+         * @return false at the end of the text
+         */
+        boolean next() {
+            while (position < end && isSpace(text.charAt(position))) {
+                position++;
+            }
+            if (position == end) {
+                return false;
+            }
+            tokenStart = position;
+            while (position < end && !isSpace(text.charAt(position))) {
+                position++;
+            }
+            tokenEnd = position;
+            return true;
+        }
+
+        /**
+         * Move to the next token, which must be there
+         *
+         * @param name what the token is, for the error message
+         * @throws SdpParseException if there are no more tokens
+         */
+        void next(String name) throws SdpParseException {
+            if (!next()) {
+                throw new SdpParseException(0, 0, "Expected " + name + ", but the candidate ended");
+            }
+        }
+
+        /**
+         * @return true if the current token matches, ignoring case
+         */
+        boolean is(String expected) {
+            if (tokenEnd - tokenStart != expected.length()) {
+                return false;
+            }
+            for (int i = 0; i < expected.length(); i++) {
+                char a = text.charAt(tokenStart + i), b = expected.charAt(i);
+                if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long toLong(long max) throws SdpParseException {
+            int length = tokenEnd - tokenStart;
+            if (length == 0 || length > 10) {
+                throw new SdpParseException(0, 0, "Bad number: " + this);
+            }
+            long value = 0;
+            for (int i = tokenStart; i < tokenEnd; i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new SdpParseException(0, 0, "Bad number: " + this);
+                }
+                value = value * 10 + (c - '0');
+            }
+            if (value > max) {
+                throw new SdpParseException(0, 0, "Number out of range: " + this);
+            }
+            return value;
+        }
+
+        /**
+         * Read an IPv4 literal directly, and leave anything else to
+         * InetAddress
+         */
+        InetAddress toAddress() throws UnknownHostException {
+            byte[] octets = new byte[4];
+            int octet = 0, value = 0, digits = 0;
+            for (int i = tokenStart; i < tokenEnd; i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9' && digits < 3) {
+                    value = value * 10 + (c - '0');
+                    digits++;
+                } else if (c == '.' && digits > 0 && octet < 3 && value <= 255) {
+                    octets[octet++] = (byte) value;
+                    value = 0;
+                    digits = 0;
+                } else {
+                    return InetAddress.getByName(toString());
+                }
+            }
+            if (octet != 3 || digits == 0 || value > 255) {
+                return InetAddress.getByName(toString());
+            }
+            octets[3] = (byte) value;
+            return InetAddress.getByAddress(octets);
+        }
+
+        @Override
+        public String toString() {
+            return text.subSequence(tokenStart, tokenEnd).toString();
+        }
+
+        static boolean isSpace(char c) {
+            return c == ' ' || c == '\t';
+        }
+    }
+
+    /**
+     * Write an address in the form getHostAddress() would, writing IPv4
+     * octets directly
+     */
+    static StringBuilder appendAddress(StringBuilder sb, InetAddress address) {
+        if (address instanceof Inet4Address) {
+            byte[] octets = address.getAddress();
+            sb.append(octets[0] & 0xff).append('.').append(octets[1] & 0xff).append('.')
+                    .append(octets[2] & 0xff).append('.').append(octets[3] & 0xff);
+        } else {
+            sb.append(address.getHostAddress());
+        }
+        return sb;
+    }
+
+    private CandidateSdp() {
+    }
+}
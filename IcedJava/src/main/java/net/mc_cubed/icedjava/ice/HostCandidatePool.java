@@ -0,0 +1,424 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.NotifyingFuture;
+import net.mc_cubed.icedjava.stun.StunReply;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.nio.transport.UDPNIOServerConnection;
+
+/**
+ * Keeps a pool of already bound UDP connections for each usable host address,
+ * along with a short lived cache of the server reflexive mappings of those
+ * connections.  New peers take their host candidates from the pool, and when
+ * the mapping of a pooled connection is still fresh, get their server
+ * reflexive candidate without a STUN round trip.  The pool is refilled in the
+ * background on the shared ICE scheduler.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see UDPCandidateDiscovery
+ * @see StunAddressDiscovery
+ */
+public class HostCandidatePool {
+
+    private static final Logger log = Logger.getLogger(HostCandidatePool.class.getName());
+    // Keeps a probe of an unreachable server to a few seconds
+    static final int PROBE_RETRIES = 3;
+    private static int poolSize = 4;
+    private static long interfaceTtl = 30000;
+    private static long mappingTtl = 15000;
+    private static List<InetAddress> hostAddresses = null;
+    private static List<InetAddress> fixedHostAddresses = null;
+    private static long hostAddressesExpire = 0;
+    private static final ConcurrentMap<InetAddress, Queue<UDPNIOServerConnection>> pool =
+            new ConcurrentHashMap<InetAddress, Queue<UDPNIOServerConnection>>();
+    private static final ConcurrentMap<InetAddress, Boolean> refilling =
+            new ConcurrentHashMap<InetAddress, Boolean>();
+    private static final ConcurrentMap<InetSocketAddress, ReflexiveMapping> mappings =
+            new ConcurrentHashMap<InetSocketAddress, ReflexiveMapping>();
+
+    /**
+     * Returns the addresses of this host usable for host candidates.  The
+     * interface enumeration is cached for a short time so that peers created
+     * in quick succession don't each walk the network interfaces.
+     *
+     * @return usable host addresses, never null
+     */
+    public static synchronized List<InetAddress> getHostAddresses() {
+        if (fixedHostAddresses != null) {
+            return fixedHostAddresses;
+        }
+        long now = new Date().getTime();
+        if (hostAddresses == null || now > hostAddressesExpire) {
+            List<InetAddress> addresses = new ArrayList<InetAddress>();
+            try {
+                Enumeration<NetworkInterface> ifaces =
+                        NetworkInterface.getNetworkInterfaces();
+                while (ifaces.hasMoreElements()) {
+                    NetworkInterface iface = ifaces.nextElement();
+
+                    Enumeration<InetAddress> ifaceAddresses = iface.getInetAddresses();
+                    while (ifaceAddresses.hasMoreElements()) {
+                        InetAddress address = ifaceAddresses.nextElement();
+
+                        // Basic checking to eliminate unusable addresses
+                        if (!address.isLoopbackAddress()
+                                && !address.isLinkLocalAddress()
+                                && !address.isAnyLocalAddress()
+                                && !address.isMulticastAddress()) {
+                            addresses.add(address);
+                        }
+                    }
+                }
+            } catch (SocketException ex) {
+                log.log(Level.FINE, "Caught an exception during interface discovery.  Probably not serious.", ex);
+            }
+
+            // Release pooled connections on addresses that went away
+            for (InetAddress address : pool.keySet()) {
+                if (!addresses.contains(address)) {
+                    drain(address);
+                }
+            }
+
+            hostAddresses = Collections.unmodifiableList(addresses);
+            hostAddressesExpire = now + interfaceTtl;
+        }
+        return hostAddresses;
+    }
+
+    /**
+     * Use the given addresses for host candidates instead of those of the
+     * network interfaces.  Loopback addresses are allowed, so peers on one
+     * machine can be connected without a network, for instance over
+     * 127.0.0.0/8 aliases.
+     *
+     * @param addresses addresses to use, or null to go back to the network
+     * interfaces
+     */
+    public static synchronized void setHostAddresses(List<InetAddress> addresses) {
+        // Release pooled connections on addresses no longer in use
+        for (InetAddress address : pool.keySet()) {
+            if (addresses == null || !addresses.contains(address)) {
+                drain(address);
+            }
+        }
+        if (addresses == null) {
+            fixedHostAddresses = null;
+        } else {
+            fixedHostAddresses = Collections.unmodifiableList(new ArrayList<InetAddress>(addresses));
+        }
+        hostAddresses = null;
+    }
+
+    /**
+     * Take a bound connection for the given address from the pool, binding a
+     * new one if the pool is empty, and attach a STUN pipeline with the
+     * supplied filters to it.
+     *
+     * @param address host address to bind on
+     * @param stunFilters Custom filters for the pipeline, usually the peer
+     * @return A DemultiplexerSocket bound on the given address
+     * @throws IOException
+     */
+    public static DemultiplexerSocket acquire(InetAddress address, Filter... stunFilters) throws IOException {
+        UDPNIOServerConnection connection = null;
+        Queue<UDPNIOServerConnection> queue = pool.get(address);
+        if (queue != null) {
+            connection = queue.poll();
+        }
+        if (connection == null) {
+            connection = StunUtil.bindDatagramConnection(new InetSocketAddress(address, 0));
+        }
+        refill(address);
+
+        return StunUtil.getCustomStunPipeline(connection, stunFilters);
+    }
+
+    /**
+     * Fill the pool for every usable host address now, rather than waiting
+     * for the first peer to be created.
+     */
+    public static void prewarm() {
+        for (InetAddress address : getHostAddresses()) {
+            refill(address);
+        }
+    }
+
+    /**
+     * Get the cached server reflexive address of a host transport address
+     *
+     * @param base the local address and port of a host candidate
+     * @return the mapped address, or null if it isn't known or has expired
+     */
+    public static InetSocketAddress getMapping(InetSocketAddress base) {
+        ReflexiveMapping mapping = mappings.get(base);
+        if (mapping == null) {
+            return null;
+        }
+        if (new Date().getTime() > mapping.expires) {
+            mappings.remove(base, mapping);
+            return null;
+        }
+        return mapping.address;
+    }
+
+    /**
+     * Remember the server reflexive address of a host transport address for
+     * the mapping TTL.
+     *
+     * @param base the local address and port of a host candidate
+     * @param mapped the address reported by the STUN server
+     */
+    public static void putMapping(InetSocketAddress base, InetSocketAddress mapped) {
+        long now = new Date().getTime();
+        // Sweep expired mappings so the cache stays small
+        Iterator<Entry<InetSocketAddress, ReflexiveMapping>> it = mappings.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now > it.next().getValue().expires) {
+                it.remove();
+            }
+        }
+        mappings.put(base, new ReflexiveMapping(mapped, now + mappingTtl));
+    }
+
+    /**
+     * Release all pooled connections and forget all cached mappings and
+     * interfaces.
+     */
+    public static synchronized void clear() {
+        for (InetAddress address : pool.keySet()) {
+            drain(address);
+        }
+        mappings.clear();
+        hostAddresses = null;
+    }
+
+    public static int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @param poolSize Number of idle bound connections to keep per host
+     * address, 0 disables pooling
+     */
+    public static void setPoolSize(int poolSize) {
+        HostCandidatePool.poolSize = poolSize;
+    }
+
+    public static long getMappingTtl() {
+        return mappingTtl;
+    }
+
+    /**
+     * @param mappingTtl milliseconds a server reflexive mapping is trusted
+     * without a new STUN test.  Should stay well below the NAT binding
+     * lifetime.
+     */
+    public static void setMappingTtl(long mappingTtl) {
+        HostCandidatePool.mappingTtl = mappingTtl;
+    }
+
+    public static long getInterfaceTtl() {
+        return interfaceTtl;
+    }
+
+    public static void setInterfaceTtl(long interfaceTtl) {
+        HostCandidatePool.interfaceTtl = interfaceTtl;
+    }
+
+    static void refill(final InetAddress address) {
+        if (poolSize <= 0 || refilling.putIfAbsent(address, Boolean.TRUE) != null) {
+            return;
+        }
+        IceFactory.getSharedThreadpool().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                refillNext(address);
+            }
+        });
+    }
+
+    /**
+     * Bind connections for an address until its pool is full.  When a STUN
+     * server is known, each connection is pooled once its mapping probe
+     * completes, and the refill carries on from there, so no thread waits on
+     * the server.
+     */
+    static void refillNext(final InetAddress address) {
+        boolean finished = true;
+        try {
+            Queue<UDPNIOServerConnection> queue = pool.get(address);
+            if (queue == null) {
+                pool.putIfAbsent(address, new ConcurrentLinkedQueue<UDPNIOServerConnection>());
+                queue = pool.get(address);
+            }
+            InetSocketAddress stunServer = StunServerMonitor.getStunServer();
+            while (queue.size() < poolSize) {
+                final UDPNIOServerConnection connection = StunUtil.bindDatagramConnection(new InetSocketAddress(address, 0));
+                if (stunServer == null) {
+                    queue.add(connection);
+                    continue;
+                }
+                final Queue<UDPNIOServerConnection> probedQueue = queue;
+                probe(connection, stunServer, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (pool.get(address) == probedQueue) {
+                            probedQueue.add(connection);
+                            IceFactory.getSharedThreadpool().execute(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    refillNext(address);
+                                }
+                            });
+                        } else {
+                            // The address was drained meanwhile
+                            release(connection);
+                            refilling.remove(address);
+                        }
+                    }
+                });
+                finished = false;
+                return;
+            }
+        } catch (IOException ex) {
+            log.log(Level.FINE, "Unable to refill the socket pool for " + address, ex);
+        } finally {
+            if (finished) {
+                refilling.remove(address);
+            }
+        }
+    }
+
+    /**
+     * Learn the server reflexive mapping of a pooled connection ahead of time
+     *
+     * @param then run once the probe has completed, successfully or not
+     */
+    static void probe(UDPNIOServerConnection connection, InetSocketAddress stunServer, final Runnable then) {
+        final InetSocketAddress base = (InetSocketAddress) connection.getLocalAddress();
+        Future<StunReply> future;
+        try {
+            DemultiplexerSocket probeSocket = StunUtil.getCustomStunPipeline(connection);
+            probeSocket.setMaxRetries(PROBE_RETRIES);
+            future = probeSocket.doTest(stunServer);
+        } catch (IOException ex) {
+            log.log(Level.FINE, "STUN probe of a pooled socket failed", ex);
+            then.run();
+            return;
+        } catch (InterruptedException ex) {
+            log.log(Level.FINE, "STUN probe of a pooled socket failed", ex);
+            then.run();
+            return;
+        }
+        if (!(future instanceof NotifyingFuture)) {
+            then.run();
+            return;
+        }
+        ((NotifyingFuture<StunReply>) future).addCompletionHandler(new CompletionHandler<StunReply>() {
+
+            @Override
+            public void cancelled() {
+                log.log(Level.FINE, "STUN probe of {0} timed out", base);
+                then.run();
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                log.log(Level.FINE, "STUN probe of a pooled socket failed", throwable);
+                then.run();
+            }
+
+            @Override
+            public void completed(StunReply reply) {
+                if (reply != null && reply.isSuccess() && reply.getMappedAddress() != null) {
+                    putMapping(base, reply.getMappedAddress());
+                }
+                then.run();
+            }
+
+            @Override
+            public void updated(StunReply reply) {
+            }
+        });
+    }
+
+    static void drain(InetAddress address) {
+        Queue<UDPNIOServerConnection> queue = pool.remove(address);
+        if (queue == null) {
+            return;
+        }
+        UDPNIOServerConnection connection;
+        while ((connection = queue.poll()) != null) {
+            release(connection);
+        }
+    }
+
+    static void release(UDPNIOServerConnection connection) {
+        mappings.remove((InetSocketAddress) connection.getLocalAddress());
+        try {
+            connection.close();
+            StunUtil.getDatagramTransport().unbind(connection);
+        } catch (IOException ex) {
+            log.log(Level.FINE, "Error releasing a pooled socket", ex);
+        }
+    }
+
+    static class ReflexiveMapping {
+
+        final InetSocketAddress address;
+        final long expires;
+
+        ReflexiveMapping(InetSocketAddress address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+
+    private HostCandidatePool() {
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import javax.sdp.Attribute;
+import net.mc_cubed.icedjava.ice.event.IceCandidateEvent;
+
+/**
+ * Signals a newly gathered local candidate
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+class IceCandidateEventImpl implements IceCandidateEvent {
+
+    final private IcePeer icePeer;
+    final private IceSocket iceSocket;
+    final private int mediaIndex;
+    final private Candidate candidate;
+    final private Attribute candidateAttribute;
+
+    IceCandidateEventImpl(IcePeer icePeer, IceSocket iceSocket, int mediaIndex, Candidate candidate, Attribute candidateAttribute) {
+        this.icePeer = icePeer;
+        this.iceSocket = iceSocket;
+        this.mediaIndex = mediaIndex;
+        this.candidate = candidate;
+        this.candidateAttribute = candidateAttribute;
+    }
+
+    @Override
+    public IcePeer getIcePeer() {
+        return icePeer;
+    }
+
+    @Override
+    public IceSocket getIceSocket() {
+        return iceSocket;
+    }
+
+    @Override
+    public int getMediaIndex() {
+        return mediaIndex;
+    }
+
+    @Override
+    public Candidate getCandidate() {
+        return candidate;
+    }
+
+    @Override
+    public Attribute getCandidateAttribute() {
+        return candidateAttribute;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[mediaIndex=" + mediaIndex + ":candidate=" + candidate + "]";
+    }
+}
@@ -25,9 +25,13 @@ import javax.sdp.Media;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,9 +39,9 @@ import javax.sdp.Attribute;
 import javax.sdp.MediaDescription;
 import javax.sdp.SdpFactory;
 import javax.sdp.SdpParseException;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
 import net.mc_cubed.icedjava.stun.TCPSocketType;
 import net.mc_cubed.icedjava.stun.TransportType;
-import net.mc_cubed.icedjava.util.ExpiringCache;
 
 /**
  * The name is somewhat misleading since this class doesn't actually implement
@@ -54,13 +58,26 @@ import net.mc_cubed.icedjava.util.ExpiringCache;
 public class IceDatagramSocket implements IceSocket {
 
     //private final InetSocketAddress stunServer;
-    private Map<String, IcePeer> _peers = new HashMap<String, IcePeer>();
+    private Map<String, IcePeer> _peers = new ConcurrentHashMap<String, IcePeer>();
     private final static Logger log =
             Logger.getLogger(net.mc_cubed.icedjava.ice.IceDatagramSocket.class.getName());
     private Short components;
     protected Media media;
     public static final String PROP_MEDIA = "media";
-    ExpiringCache<SocketAddress, IcePeer> socketCache = new ExpiringCache<SocketAddress, IcePeer>();
+    /**
+     * Remote transport address of every pair of every peer, whether still
+     * being checked or selected, to the peer and component it belongs to.
+     * Read without locking on the receive path, and updated by the peers as
+     * they form, select and prune their pairs.
+     */
+    private final Map<SocketAddress, Route> routes = new ConcurrentHashMap<SocketAddress, Route>();
+    // Routes installed by each peer, so they can be withdrawn
+    private final Map<IcePeer, List<Route>> peerRoutes = new HashMap<IcePeer, List<Route>>();
+    /**
+     * Where media sent to all peers goes, one array per component.  Rebuilt
+     * on the next send after any peer changes its selected pairs.
+     */
+    private volatile Destination[][] destinations = null;
 
     /**
      * Get the value of media
@@ -139,12 +156,169 @@ public class IceDatagramSocket implements IceSocket {
         return _peers;
     }
 
-    protected void addPeer(IcePeer peer) {
+    protected synchronized void addPeer(IcePeer peer) {
         getPeerMap().put(peer.getLocalUFrag(), peer);
+        destinations = null;
     }
 
-    protected void removePeer(IcePeer peer) {
+    protected synchronized void removePeer(IcePeer peer) {
         getPeerMap().remove(peer.getLocalUFrag());
+        destinations = null;
+        withdrawRoutes(peer);
+    }
+
+    /**
+     * Called by a peer whenever the pairs it sends media on for this socket
+     * change, or it stops sending media.  Drops the cached destinations, and
+     * makes sure the selected pairs' addresses are routed to the peer.
+     *
+     * @param peer the peer whose selection changed
+     */
+    synchronized void selectionChanged(IcePeer peer) {
+        destinations = null;
+
+        if (!(peer instanceof IceStateMachine)) {
+            return;
+        }
+        List<CandidatePair> pairs = ((IceStateMachine) peer).selectedPairs.get(this);
+        if (pairs != null) {
+            for (CandidatePair pair : pairs) {
+                if (pair != null) {
+                    installRoute(peer, pair);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by a peer when it forms a new pair on this socket, including one
+     * with a peer reflexive candidate, so that packets from the pair's remote
+     * address are delivered to the peer.
+     *
+     * @param peer the peer the pair belongs to
+     * @param pair the new pair
+     */
+    synchronized void pairAdded(IcePeer peer, CandidatePair pair) {
+        installRoute(peer, pair);
+    }
+
+    /**
+     * Called by a peer when it replaces or prunes its pairs on this socket.
+     * Afterwards only the given pairs' addresses are routed to the peer.
+     *
+     * @param peer the peer whose pairs changed
+     * @param pairs every pair the peer still has on this socket
+     */
+    synchronized void pairsChanged(IcePeer peer, Collection<CandidatePair> pairs) {
+        withdrawRoutes(peer);
+        for (CandidatePair pair : pairs) {
+            if (pair != null) {
+                installRoute(peer, pair);
+            }
+        }
+    }
+
+    /**
+     * Called by a peer when ICE restarts, as its remote addresses are about to
+     * change.  Packets from its old addresses are no longer routed to it.
+     *
+     * @param peer the peer being restarted
+     */
+    synchronized void routesInvalidated(IcePeer peer) {
+        withdrawRoutes(peer);
+    }
+
+    private void installRoute(IcePeer peer, CandidatePair pair) {
+        SocketAddress address = pair.getRemoteCandidate().getSocketAddress();
+        short componentId = pair.getComponentId();
+        Route existing = routes.get(address);
+        if (existing != null && existing.peer == peer && existing.componentId == componentId) {
+            return;
+        }
+        Route route = new Route(address, peer, componentId);
+        routes.put(address, route);
+        List<Route> installed = peerRoutes.get(peer);
+        if (installed == null) {
+            installed = new ArrayList<Route>();
+            peerRoutes.put(peer, installed);
+        }
+        installed.add(route);
+    }
+
+    private void withdrawRoutes(IcePeer peer) {
+        List<Route> installed = peerRoutes.remove(peer);
+        if (installed != null) {
+            for (Route route : installed) {
+                // Leave the address alone if another peer has taken it over
+                routes.remove(route.address, route);
+            }
+        }
+    }
+
+    /**
+     * Send the same payload on one component to every peer of this socket.
+     * The destinations are resolved once per change in the peers' selected
+     * pairs rather than once per packet, and every write shares the payload's
+     * content through a read-only view, so the payload is never copied.
+     * Peers which have not selected a pair for the component yet are skipped.
+     *
+     * @param payload data to send, its position is left untouched
+     * @param componentId the component to send on
+     * @return the number of peers the payload was submitted to
+     */
+    public int sendToAll(ByteBuffer payload, short componentId) {
+        Destination[][] current = destinations;
+        if (current == null) {
+            current = buildDestinations();
+        }
+        if (componentId < 0 || componentId >= current.length) {
+            return 0;
+        }
+
+        ByteBuffer shared = payload.asReadOnlyBuffer();
+        int sent = 0;
+        for (Destination destination : current[componentId]) {
+            try {
+                // Each write gets its own position over the shared content
+                destination.socket.send(shared.duplicate(), destination.address);
+                sent++;
+            } catch (IOException ex) {
+                log.log(Level.FINE, "Exception writing to " + destination.address, ex);
+            }
+        }
+        return sent;
+    }
+
+    private synchronized Destination[][] buildDestinations() {
+        short componentCount = getComponents();
+        List<List<Destination>> byComponent = new ArrayList<List<Destination>>(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            byComponent.add(new ArrayList<Destination>());
+        }
+        for (IcePeer peer : getPeers()) {
+            if (!(peer instanceof IceStateMachine)) {
+                continue;
+            }
+            List<CandidatePair> pairs = ((IceStateMachine) peer).selectedPairs.get(this);
+            if (pairs == null) {
+                continue;
+            }
+            for (int i = 0; i < componentCount && i < pairs.size(); i++) {
+                CandidatePair pair = pairs.get(i);
+                if (pair != null && pair.getLocalCandidate().socket != null) {
+                    byComponent.get(i).add(new Destination(
+                            pair.getLocalCandidate().socket,
+                            pair.getRemoteCandidate().getSocketAddress()));
+                }
+            }
+        }
+
+        Destination[][] built = new Destination[componentCount][];
+        for (int i = 0; i < componentCount; i++) {
+            built[i] = byComponent.get(i).toArray(new Destination[0]);
+        }
+        destinations = built;
+        return built;
     }
 
     final public IcePeer getPeer(String uFrag) {
@@ -207,10 +381,10 @@ public class IceDatagramSocket implements IceSocket {
                 1, // This is always only one for a single DatagramDemultiplexerSocket
                 media.getMedia().getProtocol(),
                 formats.toArray(new String[]{}));
+        Vector<Attribute> copiedAttributes = copiedMedia.getAttributes(true);
         for (Attribute attribute : (Vector<Attribute>) media.getAttributes(true)) {
-            copiedMedia.getAttributes(true).add(factory.createAttribute(
-                    attribute.getName(),
-                    attribute.getValue()));
+            // Clone the fields directly rather than going back through the factory
+            copiedAttributes.add((Attribute) attribute.clone());
         }
         return copiedMedia;
 
@@ -221,21 +395,63 @@ public class IceDatagramSocket implements IceSocket {
         return getClass().getName() + "[" + hashCode() + "]";
     }
     
+    /**
+     * Find the peer a packet from the given address belongs to, through the
+     * routing table.  No lock is taken, so the receive path never waits on a
+     * peer.
+     *
+     * @param address the source address of the packet
+     * @param componentId the component the packet arrived on, or null for any
+     * @return the peer with a pair for that remote address, or null if there
+     * is none
+     */
     protected IcePeer translateSocketAddressToPeer(SocketAddress address, Short componentId) {
-        if (socketCache.containsKey(address)) {
-            return socketCache.get(address);
-        } else {
-            IcePeer peer = null;
-            for (IcePeer checkPeer : getPeerMap().values()) {
-                if (checkPeer.hasRemoteAddress(address,this,componentId)) {
-                    peer = checkPeer;
-                    break;
-                }
-            }
-            if (peer != null) {
-                socketCache.admit(address, peer);
-            }
-            return peer;
+        Route route = routes.get(address);
+        if (route != null && (componentId == null || componentId == route.componentId)) {
+            return route.peer;
+        }
+        return null;
+    }
+
+    /**
+     * Find the channel a packet from the given address should be delivered to.
+     *
+     * @param address the source address of the packet
+     * @param componentId the component the packet arrived on
+     * @return the channel of the peer and component with that remote address,
+     * or null if there is none, or if that address is routed for another
+     * component
+     */
+    protected IceSocketChannel translateSocketAddressToChannel(SocketAddress address, short componentId) {
+        Route route = routes.get(address);
+        if (route == null || route.componentId != componentId) {
+            return null;
+        }
+        List<IceSocketChannel> peerChannels = route.peer.getChannels(this);
+        return route.componentId < peerChannels.size() ? peerChannels.get(route.componentId) : null;
+    }
+
+    static class Route {
+
+        final SocketAddress address;
+        final IcePeer peer;
+        final short componentId;
+
+        Route(SocketAddress address, IcePeer peer, short componentId) {
+            this.address = address;
+            this.peer = peer;
+            this.componentId = componentId;
+        }
+    }
+
+    static class Destination {
+
+        final DemultiplexerSocket socket;
+        final SocketAddress address;
+
+        Destination(DemultiplexerSocket socket, SocketAddress address) {
+            this.socket = socket;
+            this.address = address;
         }
     }
 
@@ -22,9 +22,10 @@ package net.mc_cubed.icedjava.ice;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.enterprise.event.Event;
@@ -43,14 +44,24 @@ import net.mc_cubed.icedjava.stun.event.StunEventListener;
  */
 class IceDatagramSocketChannel implements IceSocketChannel, StunEventListener {
 
-    protected HashSet<IceEventListener> listeners = new HashSet<IceEventListener>();
+    // Copied on write so delivering an event doesn't allocate an iterator
+    protected volatile IceEventListener[] listeners = new IceEventListener[0];
     protected final static Logger log = Logger.getLogger(IceDatagramSocketChannel.class.getName());
     protected final IceSocket iceSocket;
-    protected Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
     @Inject
     Event<IceEvent> eventBroadcaster;
     protected final IceStateMachine peer;
     private static final int MAX_QUEUE_SIZE = 64;
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    /**
+     * Received datagrams waiting to be read.  Both the ring and the pool are
+     * array backed, so queueing a datagram allocates nothing once the pool
+     * has warmed up.
+     */
+    protected final BlockingQueue<PooledBuffer> ring = new ArrayBlockingQueue<PooledBuffer>(MAX_QUEUE_SIZE);
+    protected final BufferPool pool = new BufferPool(MAX_QUEUE_SIZE, RECEIVE_BUFFER_SIZE);
+    // Immutable, so one instance serves every notification
+    private final IceEvent bytesAvailableEvent;
     
     public IcePeer getPeer() {
         return peer;
@@ -79,16 +90,23 @@ class IceDatagramSocketChannel implements IceSocketChannel, StunEventListener {
         this.peer = peer;
         this.iceSocket = socket;
         this.component = channel;
+        this.bytesAvailableEvent = new BytesAvailableEventImpl(this, peer);
     }
 
+    /**
+     * Send each buffer as its own datagram to the selected pair.  The pair is
+     * resolved once for the whole batch, and the datagrams are queued on the
+     * transport back to back.
+     */
     @Override
     public long write(ByteBuffer[] bbs, int offset, int length) throws IOException {
-        long bytesWritten = 0;
-        for (int bnum = offset; bnum < length; bnum++) {
-            bytesWritten += write(bbs[bnum]);
+        List<CandidatePair> pairs = peer.selectedPairs.get(iceSocket);
+        CandidatePair pair = (pairs != null && component < pairs.size()) ? pairs.get(component) : null;
+        if (pair == null || pair.localCandidate.socket == null) {
+            log.log(Level.FINEST, "Socket not fully setup before write submitted.  {0} datagrams are being lost", length);
+            return 0;
         }
-
-        return bytesWritten;
+        return pair.localCandidate.socket.send(bbs, offset, length, pair.getRemoteCandidate().getSocketAddress());
     }
 
     @Override
@@ -138,40 +156,89 @@ class IceDatagramSocketChannel implements IceSocketChannel, StunEventListener {
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        ByteBuffer src = queue.poll();
+        PooledBuffer src = ring.poll();
         // If the source buffer is null, don't write anything, only flip the buffer
         if (src != null) {
-            dst.put(src);
+            try {
+                dst.put(src.getBuffer());
+            } finally {
+                src.release();
+            }
         }
         dst.flip();
         return dst.remaining();
     }
 
     @Override
-    public void addEventListener(IceEventListener listener) {
-        listeners.add(listener);
+    public PooledBuffer receive() {
+        return ring.poll();
+    }
+
+    @Override
+    public synchronized void addEventListener(IceEventListener listener) {
+        if (!Arrays.asList(listeners).contains(listener)) {
+            IceEventListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+            newListeners[listeners.length] = listener;
+            listeners = newListeners;
+        }
     }
 
     @Override
-    public void removeEventListener(IceEventListener listener) {
-        listeners.remove(listener);
+    public synchronized void removeEventListener(IceEventListener listener) {
+        int index = Arrays.asList(listeners).indexOf(listener);
+        if (index >= 0) {
+            IceEventListener[] newListeners = new IceEventListener[listeners.length - 1];
+            System.arraycopy(listeners, 0, newListeners, 0, index);
+            System.arraycopy(listeners, index + 1, newListeners, index, newListeners.length - index);
+            listeners = newListeners;
+        }
     }
 
     @Override
     public void stunEvent(StunEvent event) {
         if (event instanceof net.mc_cubed.icedjava.stun.event.DemultiplexedBytesAvailableEvent) {
             net.mc_cubed.icedjava.stun.event.DemultiplexedBytesAvailableEvent bytesEvent = (net.mc_cubed.icedjava.stun.event.DemultiplexedBytesAvailableEvent) event;
-            ByteBuffer buffer = ByteBuffer.allocate(4096);
-            SocketAddress address = bytesEvent.getChannel().receive(buffer);
+            PooledBuffer buffer = pool.acquire();
+            SocketAddress address = bytesEvent.getChannel().receive(buffer.getBuffer());
             if (address != null) {
-                queue.add(buffer);
+                buffer.setAddress(address);
+                route(address).deliver(buffer);
+            } else {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Find the channel a datagram from the given address belongs to, through
+     * the socket's routing table.  Datagrams from addresses no peer knows yet,
+     * such as a peer reflexive candidate, stay on this channel.
+     */
+    private IceDatagramSocketChannel route(SocketAddress address) {
+        if (iceSocket instanceof IceDatagramSocket) {
+            IceSocketChannel target = ((IceDatagramSocket) iceSocket).translateSocketAddressToChannel(address, component);
+            if (target instanceof IceDatagramSocketChannel) {
+                return (IceDatagramSocketChannel) target;
+            }
+        }
+        return this;
+    }
 
-                while (queue.size() > MAX_QUEUE_SIZE) {
-                    log.log(Level.WARNING, "Discarding buffer {0} due to buffer overrun on socket channel {1}", new Object[] {queue.poll(),this});
-                }
-                fireEvent(new BytesAvailableEventImpl(this, peer));
+    /**
+     * Queue a received datagram for reading, discarding the oldest one if the
+     * queue is full.
+     *
+     * @param buffer the datagram, whose reference passes to this channel
+     */
+    void deliver(PooledBuffer buffer) {
+        while (!ring.offer(buffer)) {
+            PooledBuffer discarded = ring.poll();
+            if (discarded != null) {
+                log.log(Level.WARNING, "Discarding buffer {0} due to buffer overrun on socket channel {1}", new Object[] {discarded.getBuffer(),this});
+                discarded.release();
             }
         }
+        fireEvent(bytesAvailableEvent);
     }
 
     private void fireEvent(IceEvent iceEvent) {
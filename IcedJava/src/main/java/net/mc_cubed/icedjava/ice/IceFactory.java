@@ -20,6 +20,10 @@
 package net.mc_cubed.icedjava.ice;
 
 import java.net.SocketException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.sdp.Media;
 import javax.sdp.SdpException;
 import javax.sdp.SdpParseException;
@@ -33,6 +37,80 @@ import net.mc_cubed.icedjava.ice.IceStateMachine.NominationType;
  */
 public class IceFactory {
 
+    private static ScheduledExecutorService sharedThreadpool;
+    private static volatile boolean jmxEnabled = false;
+    private static volatile boolean stunOnlyDiscovery = false;
+
+    /**
+     * Returns the scheduler shared by all IcePeers created by this factory.
+     * Unless one has been supplied with setSharedThreadpool, a scheduler
+     * sized to the number of available processors is created on first use.
+     * Its threads are daemon threads, so it never holds up JVM shutdown.
+     *
+     * @return The scheduler used to drive the ICE state machines
+     */
+    public static synchronized ScheduledExecutorService getSharedThreadpool() {
+        if (sharedThreadpool == null) {
+            sharedThreadpool = Executors.newScheduledThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "IcedJava-Scheduler-"
+                                    + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sharedThreadpool;
+    }
+
+    /**
+     * Replaces the scheduler shared by IcePeers created after this call.
+     * Peers never shut the scheduler down, its lifecycle belongs to the caller.
+     *
+     * @param threadpool The scheduler to drive the ICE state machines, or null
+     * to fall back to the default scheduler
+     */
+    public static synchronized void setSharedThreadpool(ScheduledExecutorService threadpool) {
+        sharedThreadpool = threadpool;
+    }
+
+    public static boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * When enabled, each IcePeer registers its metrics with the platform
+     * MBean server when it starts, and unregisters them when it is closed.
+     *
+     * @param enabled true to publish peer metrics over JMX
+     * @see IcePeerMetricsMBean
+     */
+    public static void setJmxEnabled(boolean enabled) {
+        jmxEnabled = enabled;
+    }
+
+    public static boolean isStunOnlyDiscovery() {
+        return stunOnlyDiscovery;
+    }
+
+    /**
+     * When set, peers find their server reflexive candidates with STUN alone,
+     * skipping UPNP, NAT-PMP and TURN.  Those talk to the local gateway or a
+     * relay, and may create port mappings on it, so tests and benchmarks
+     * which must stay off the network should set this.
+     *
+     * @param stunOnly true to limit address discovery to STUN
+     */
+    public static void setStunOnlyDiscovery(boolean stunOnly) {
+        stunOnlyDiscovery = stunOnly;
+    }
+
     /**
      * An IceSocket represents a media endpoint that can be used for sending and
      * receiving data to and from all peers connected to it, but has no actual
@@ -98,6 +176,21 @@ public class IceFactory {
         return new IcePeerImpl(peerId,aggressive ? NominationType.AGGRESSIVE: NominationType.REGULAR,sockets);
     }
 
+    /**
+     * Create a named IcePeer bound to the supplied sockets, using hybrid
+     * nomination.  Media can flow on the highest priority pair to pass its
+     * connectivity check while regular nomination completes, and switches
+     * over to the nominated pair once it is selected.
+     *
+     * @param peerId Name to assign the peer
+     * @param sockets Sockets to bind the peer to
+     * @return An initialized IcePeer bound to the supplied sockets
+     * @throws SdpException
+     */
+    public static IcePeer createHybridIcePeer(String peerId,IceSocket... sockets) throws SdpException {
+        return new IcePeerImpl(peerId,NominationType.HYBRID,sockets);
+    }
+
     private IceFactory() {
     }
     
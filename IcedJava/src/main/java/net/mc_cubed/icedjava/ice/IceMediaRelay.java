@@ -0,0 +1,253 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.mc_cubed.icedjava.ice.event.IceBytesAvailableEvent;
+import net.mc_cubed.icedjava.ice.event.IceEvent;
+import net.mc_cubed.icedjava.ice.event.IceEventListener;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.MultiplexedProtocol;
+import net.mc_cubed.icedjava.stun.RFC7983DemultiplexingFilter;
+
+/**
+ * Anchors media between two ICE sessions.  Each datagram received on a
+ * component of one leg is sent out of the same component of the other leg,
+ * from the receive buffer it arrived in, to whichever candidate pair is
+ * selected on the other leg at that moment.  A datagram is copied once, from
+ * the demultiplexer's queue into the channel's pooled receive buffer, and not
+ * again on the way out.  No thread is used beyond the one which received the
+ * packet, so one JVM can anchor many calls.
+ *
+ * The relay takes every packet from the channels it binds, so nothing else
+ * should read from them while it runs.  Optionally, the SSRC of the RTP
+ * packets and the sender SSRC of the RTCP packets going each way can be
+ * rewritten, so each leg sees the relay as the media source.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see IceSocketChannel#receive()
+ */
+public class IceMediaRelay {
+
+    private static final Logger log = Logger.getLogger(IceMediaRelay.class.getName());
+    private final Leg forward;
+    private final Leg reverse;
+
+    /**
+     * Create a relay between two sessions.  Packets are not relayed until
+     * start() is called.
+     *
+     * @param peerA the first session
+     * @param socketA the socket of the first session to relay
+     * @param peerB the second session
+     * @param socketB the socket of the second session to relay
+     */
+    public IceMediaRelay(IcePeer peerA, IceSocket socketA, IcePeer peerB, IceSocket socketB) {
+        if (!(peerA instanceof IceStateMachine) || !(peerB instanceof IceStateMachine)) {
+            throw new IllegalArgumentException("Only peers created by IceFactory can be relayed");
+        }
+        forward = new Leg((IceStateMachine) peerA, socketA, (IceStateMachine) peerB, socketB);
+        reverse = new Leg((IceStateMachine) peerB, socketB, (IceStateMachine) peerA, socketA);
+    }
+
+    public void start() {
+        forward.start();
+        reverse.start();
+    }
+
+    /**
+     * Stop relaying.  Both sessions are left running.
+     */
+    public void close() {
+        forward.close();
+        reverse.close();
+    }
+
+    /**
+     * @return the direction from the first session to the second
+     */
+    public Leg getForward() {
+        return forward;
+    }
+
+    /**
+     * @return the direction from the second session to the first
+     */
+    public Leg getReverse() {
+        return reverse;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[forward=" + forward + ":reverse=" + reverse + "]";
+    }
+
+    /**
+     * One direction of a relay
+     */
+    public static class Leg implements IceEventListener {
+
+        private final IceStateMachine sourcePeer;
+        private final IceSocket sourceSocket;
+        private final IceStateMachine targetPeer;
+        private final IceSocket targetSocket;
+        private IceSocketChannel[] sourceChannels = new IceSocketChannel[0];
+        private volatile boolean rewriteSsrc = false;
+        private volatile int ssrc;
+        private final AtomicLong packetsRelayed = new AtomicLong();
+        private final AtomicLong bytesRelayed = new AtomicLong();
+        private final AtomicLong packetsDropped = new AtomicLong();
+
+        Leg(IceStateMachine sourcePeer, IceSocket sourceSocket, IceStateMachine targetPeer, IceSocket targetSocket) {
+            this.sourcePeer = sourcePeer;
+            this.sourceSocket = sourceSocket;
+            this.targetPeer = targetPeer;
+            this.targetSocket = targetSocket;
+        }
+
+        synchronized void start() {
+            List<IceSocketChannel> channels = sourcePeer.getChannels(sourceSocket);
+            sourceChannels = channels.toArray(new IceSocketChannel[channels.size()]);
+            for (IceSocketChannel channel : sourceChannels) {
+                channel.addEventListener(this);
+            }
+        }
+
+        synchronized void close() {
+            for (IceSocketChannel channel : sourceChannels) {
+                channel.removeEventListener(this);
+            }
+        }
+
+        /**
+         * Rewrite the SSRC of packets going this way
+         *
+         * @param ssrc the SSRC the receiving leg should see
+         */
+        public void setSsrc(int ssrc) {
+            this.ssrc = ssrc;
+            this.rewriteSsrc = true;
+        }
+
+        /**
+         * Stop rewriting SSRCs, forwarding packets unchanged
+         */
+        public void clearSsrc() {
+            this.rewriteSsrc = false;
+        }
+
+        public boolean isRewritingSsrc() {
+            return rewriteSsrc;
+        }
+
+        public int getSsrc() {
+            return ssrc;
+        }
+
+        public long getPacketsRelayed() {
+            return packetsRelayed.get();
+        }
+
+        public long getBytesRelayed() {
+            return bytesRelayed.get();
+        }
+
+        /**
+         * @return packets which arrived while the other leg had no selected
+         * pair, or which failed to send
+         */
+        public long getPacketsDropped() {
+            return packetsDropped.get();
+        }
+
+        @Override
+        public void iceEvent(IceEvent event) {
+            if (!(event instanceof IceBytesAvailableEvent)) {
+                return;
+            }
+            IceSocketChannel channel = ((IceBytesAvailableEvent) event).getSocketChannel();
+            PooledBuffer packet = channel.receive();
+            if (packet == null) {
+                return;
+            }
+            int component = componentOf(channel);
+            List<CandidatePair> pairs = targetPeer.selectedPairs.get(targetSocket);
+            CandidatePair pair = (pairs != null && component >= 0 && component < pairs.size()) ? pairs.get(component) : null;
+            if (pair == null || pair.getLocalCandidate().socket == null) {
+                packetsDropped.incrementAndGet();
+                packet.release();
+                return;
+            }
+
+            ByteBuffer buffer = packet.getBuffer();
+            if (rewriteSsrc) {
+                rewrite(buffer);
+            }
+            int length = buffer.remaining();
+            DemultiplexerSocket socket = pair.getLocalCandidate().socket;
+            SocketAddress target = pair.getRemoteCandidate().getSocketAddress();
+            try {
+                // The transport releases the buffer once it has been sent
+                socket.send(buffer, target, packet.releaseOnWrite());
+                packetsRelayed.incrementAndGet();
+                bytesRelayed.addAndGet(length);
+            } catch (IOException ex) {
+                // Does nothing if the handler was already told of the failure
+                packet.releaseWrite();
+                packetsDropped.incrementAndGet();
+                log.log(Level.FINE, "Unable to relay a packet to " + target, ex);
+            }
+        }
+
+        private int componentOf(IceSocketChannel channel) {
+            IceSocketChannel[] channels = sourceChannels;
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] == channel) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void rewrite(ByteBuffer buffer) {
+            int position = buffer.position();
+            MultiplexedProtocol protocol = RFC7983DemultiplexingFilter.classify(buffer);
+            if (protocol == MultiplexedProtocol.RTP && buffer.remaining() >= 12) {
+                buffer.putInt(position + 8, ssrc);
+            } else if (protocol == MultiplexedProtocol.RTCP && buffer.remaining() >= 8) {
+                // Sender SSRC of the first packet in the compound packet
+                buffer.putInt(position + 4, ssrc);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getName() + "[relayed=" + getPacketsRelayed() + ":bytes=" + getBytesRelayed()
+                    + ":dropped=" + getPacketsDropped() + "]";
+        }
+    }
+}
@@ -38,7 +38,7 @@ import org.glassfish.grizzly.filterchain.Filter;
  * @author Charles Chappell
  * @since 0.9
  */
-public interface IcePeer extends SDPListener, Filter {
+public interface IcePeer extends TrickleSDPListener, Filter {
 
     SessionDescription createOffer() throws SdpException;
 
@@ -171,6 +171,36 @@ public interface IcePeer extends SDPListener, Filter {
      */
     public void updateMedia(String sdpText) throws SdpParseException;
 
+    /**
+     * Accept a single remote candidate learned through Trickle ICE.  The
+     * candidate is added to the live check list, and is paired with any
+     * local candidates gathered later on.
+     *
+     * @param mediaIndex index of the m line (and IceSocket) the candidate
+     * belongs to
+     * @param candidate an SDP attribute named "candidate"
+     * @throws SdpParseException if the candidate cannot be parsed
+     */
+    @Override
+    public void addRemoteCandidate(int mediaIndex, Attribute candidate) throws SdpParseException;
+
+    /**
+     * Is Trickle ICE enabled for this peer?
+     *
+     * @return true if candidates are sent as they are gathered
+     */
+    public boolean isTrickle();
+
+    /**
+     * Enable Trickle ICE.  When enabled, only host candidates are gathered
+     * before the first offer is sent.  Other candidates are gathered in the
+     * background, announced with IceCandidateEvents, and sent to the
+     * SDPListener if it is a TrickleSDPListener.
+     *
+     * @param trickle true to trickle candidates
+     */
+    public void setTrickle(boolean trickle);
+
     /**
      * IceEventListeners will receive asynchronous notification of IceEvents on
      * an IceSocketChannel.
@@ -180,4 +210,12 @@ public interface IcePeer extends SDPListener, Filter {
     void addEventListener(IceEventListener listener);
 
     void removeEventListener(IceEventListener listener);
+
+    /**
+     * Connectivity check statistics for this peer, including check round trip
+     * times, retransmissions and the time taken to complete ICE processing.
+     *
+     * @return the metrics of this peer
+     */
+    IcePeerMetricsMBean getMetrics();
 }
@@ -19,7 +19,6 @@
  */
 package net.mc_cubed.icedjava.ice;
 
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import javax.sdp.SdpException;
 import javax.sdp.SdpParseException;
@@ -76,12 +75,18 @@ class IcePeerImpl extends IceStateMachine implements IcePeer {
     @Override
     protected ScheduledExecutorService getThreadpool() {
         if (threadpool == null) {
-            threadpool = Executors.newScheduledThreadPool(10);
+            threadpool = IceFactory.getSharedThreadpool();
         }
 
         return threadpool;
     }
 
+    /**
+     * Use a specific scheduler for this peer instead of the one shared through
+     * IceFactory.  The peer will not shut the scheduler down when stopped.
+     *
+     * @param threadpool scheduler to drive this peer's state machine
+     */
     public void setThreadpool(ScheduledExecutorService threadpool) {
         this.threadpool = threadpool;
     }
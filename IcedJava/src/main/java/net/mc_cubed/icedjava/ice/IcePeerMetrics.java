@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects connectivity check statistics for an IcePeer.  Counters are
+ * updated from the ICE scheduler and may be read from any thread.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+public class IcePeerMetrics implements IcePeerMetricsMBean {
+
+    private static final Logger log = Logger.getLogger(IcePeerMetrics.class.getName());
+    private final IcePeer peer;
+    private volatile long startTime = 0;
+    private volatile long firstSuccessTime = 0;
+    private volatile long completionTime = 0;
+    private final AtomicLong checksSent = new AtomicLong();
+    private final AtomicLong checksSucceeded = new AtomicLong();
+    private final AtomicLong checksFailed = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong roundTripTotal = new AtomicLong();
+    private final AtomicLong minRoundTrip = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxRoundTrip = new AtomicLong(-1);
+    private ObjectName objectName = null;
+
+    IcePeerMetrics(IcePeer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * ICE processing (re)started, so timings start over
+     */
+    void started() {
+        startTime = System.currentTimeMillis();
+        firstSuccessTime = 0;
+        completionTime = 0;
+    }
+
+    void checkSent() {
+        checksSent.incrementAndGet();
+    }
+
+    void checkCompleted(IceReply reply) {
+        if (reply.getTransmissions() > 1) {
+            retransmits.addAndGet(reply.getTransmissions() - 1);
+        }
+        if (!reply.isSuccess()) {
+            checksFailed.incrementAndGet();
+            return;
+        }
+        checksSucceeded.incrementAndGet();
+        if (firstSuccessTime == 0) {
+            firstSuccessTime = System.currentTimeMillis();
+        }
+
+        long rtt = reply.getRoundTripMicros();
+        if (rtt >= 0) {
+            roundTrips.incrementAndGet();
+            roundTripTotal.addAndGet(rtt);
+            long min;
+            while (rtt < (min = minRoundTrip.get()) && !minRoundTrip.compareAndSet(min, rtt)) {
+            }
+            long max;
+            while (rtt > (max = maxRoundTrip.get()) && !maxRoundTrip.compareAndSet(max, rtt)) {
+            }
+        }
+    }
+
+    void completed() {
+        if (completionTime == 0) {
+            completionTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Register these metrics with the platform MBean server.  Does nothing if
+     * they are already registered.
+     *
+     * @return the name the metrics were registered under, or null if
+     * registration failed
+     */
+    public synchronized ObjectName register() {
+        if (objectName == null) {
+            try {
+                ObjectName name = new ObjectName("net.mc_cubed.icedjava:type=IcePeer,name="
+                        + ObjectName.quote(String.valueOf(peer.getPeerId()))
+                        + ",id=" + Integer.toHexString(System.identityHashCode(peer)));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                objectName = name;
+            } catch (JMException ex) {
+                log.log(Level.WARNING, "Unable to register IcePeer metrics", ex);
+            }
+        }
+        return objectName;
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server if registered
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException ex) {
+                log.log(Level.FINE, "Unable to unregister IcePeer metrics", ex);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getPeerId() {
+        return peer.getPeerId();
+    }
+
+    @Override
+    public String getStatus() {
+        return String.valueOf(peer.getStatus());
+    }
+
+    @Override
+    public long getTimeToFirstSuccess() {
+        long first = firstSuccessTime;
+        return (first == 0 || startTime == 0) ? -1 : first - startTime;
+    }
+
+    @Override
+    public long getTimeToCompletion() {
+        long completed = completionTime;
+        return (completed == 0 || startTime == 0) ? -1 : completed - startTime;
+    }
+
+    @Override
+    public long getChecksSent() {
+        return checksSent.get();
+    }
+
+    @Override
+    public long getChecksSucceeded() {
+        return checksSucceeded.get();
+    }
+
+    @Override
+    public long getChecksFailed() {
+        return checksFailed.get();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    @Override
+    public long getMinRoundTripMicros() {
+        long min = minRoundTrip.get();
+        return (min == Long.MAX_VALUE) ? -1 : min;
+    }
+
+    @Override
+    public long getMaxRoundTripMicros() {
+        return maxRoundTrip.get();
+    }
+
+    @Override
+    public long getAverageRoundTripMicros() {
+        long count = roundTrips.get();
+        return (count == 0) ? -1 : roundTripTotal.get() / count;
+    }
+
+    @Override
+    public void reset() {
+        checksSent.set(0);
+        checksSucceeded.set(0);
+        checksFailed.set(0);
+        retransmits.set(0);
+        roundTrips.set(0);
+        roundTripTotal.set(0);
+        minRoundTrip.set(Long.MAX_VALUE);
+        maxRoundTrip.set(-1);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[peerId=" + getPeerId() + ":checksSent=" + getChecksSent()
+                + ":checksSucceeded=" + getChecksSucceeded() + ":checksFailed=" + getChecksFailed()
+                + ":retransmits=" + getRetransmits() + ":avgRtt=" + getAverageRoundTripMicros()
+                + "us:timeToFirstSuccess=" + getTimeToFirstSuccess()
+                + "ms:timeToCompletion=" + getTimeToCompletion() + "ms]";
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+/**
+ * Connectivity check statistics of a single IcePeer.  This is also the
+ * management interface the peer's metrics are exposed through over JMX.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see IcePeer#getMetrics()
+ */
+public interface IcePeerMetricsMBean {
+
+    /**
+     * @return the id of the peer these metrics belong to
+     */
+    String getPeerId();
+
+    /**
+     * @return the current ICE status of the peer
+     */
+    String getStatus();
+
+    /**
+     * Time from the start of ICE processing to the first successful
+     * connectivity check.
+     *
+     * @return milliseconds, or -1 if no check has succeeded yet
+     */
+    long getTimeToFirstSuccess();
+
+    /**
+     * Time from the start of ICE processing to the peer reaching the SUCCESS
+     * or FAILED state.
+     *
+     * @return milliseconds, or -1 if ICE processing has not completed
+     */
+    long getTimeToCompletion();
+
+    /**
+     * @return the number of connectivity checks started
+     */
+    long getChecksSent();
+
+    /**
+     * @return the number of connectivity checks that got a success response
+     */
+    long getChecksSucceeded();
+
+    /**
+     * @return the number of connectivity checks that failed or timed out
+     */
+    long getChecksFailed();
+
+    /**
+     * @return the total number of STUN retransmissions made by connectivity
+     * checks
+     */
+    long getRetransmits();
+
+    /**
+     * @return the shortest measured check round trip in microseconds, -1 if
+     * none was measured
+     */
+    long getMinRoundTripMicros();
+
+    /**
+     * @return the longest measured check round trip in microseconds, -1 if
+     * none was measured
+     */
+    long getMaxRoundTripMicros();
+
+    /**
+     * @return the mean measured check round trip in microseconds, -1 if none
+     * was measured
+     */
+    long getAverageRoundTripMicros();
+
+    /**
+     * Clear all counters and timings
+     */
+    void reset();
+}
@@ -50,12 +50,16 @@ class IceReplyImpl implements IceReply, StunReply {
     private Boolean validFingerprint;
     @SuppressWarnings("MapReplaceableByEnumMap")
     private Map<AttributeType, Attribute> attrMap = new HashMap<AttributeType, Attribute>();
+    private final int transmissions;
+    private final long roundTripMicros;
 
     public IceReplyImpl(StunReply reply) {
         packet = reply.getPacket();
         success = reply.isSuccess();
         errorReason = reply.getErrorReason();
         errorCode = reply.getErrorCode();
+        transmissions = reply.getTransmissions();
+        roundTripMicros = reply.getRoundTripMicros();
         if (packet != null) {
             for (Attribute attr : packet.getAttributes()) {
                 attrMap.put(attr.getType(), attr);
@@ -87,6 +91,8 @@ class IceReplyImpl implements IceReply, StunReply {
         success = false;
         errorReason = ex.getLocalizedMessage();
         errorCode = -1;
+        transmissions = 0;
+        roundTripMicros = -1;
     }
 
     @Override
@@ -133,4 +139,14 @@ class IceReplyImpl implements IceReply, StunReply {
     public StunPacket getPacket() {
         return this.packet;
     }
+
+    @Override
+    public int getTransmissions() {
+        return transmissions;
+    }
+
+    @Override
+    public long getRoundTripMicros() {
+        return roundTripMicros;
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sdp.SdpParseException;
+
+/**
+ * Picks the ICE attributes out of SDP text without parsing the rest of it:
+ * a=ice-ufrag and a=ice-pwd at session and media level, and the a=candidate
+ * lines of each m= section, which become RemoteCandidates directly.  Lines
+ * are examined where they lie in the text, so nothing is allocated for the
+ * lines which aren't of interest.  The text without its candidate lines is
+ * kept, for a full SDP parser to handle the rest of the session cheaply.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see CandidateSdp
+ */
+public class IceSdpScanner {
+
+    private static final String UFRAG_PREFIX = "a=" + IceStateMachine.SDP_UFRAG + ":";
+    private static final String PWD_PREFIX = "a=" + IceStateMachine.SDP_PWD + ":";
+    private String uFrag;
+    private String password;
+    private final List<ScannedMedia> medias = new ArrayList<ScannedMedia>();
+    private final StringBuilder withoutCandidates;
+
+    /**
+     * Scan SDP text for ICE attributes
+     *
+     * @param sdp the session description, with CRLF or LF line endings
+     * @return the ICE attributes found
+     * @throws SdpParseException if a candidate is malformed
+     * @throws UnknownHostException if a candidate address can't be resolved
+     */
+    public static IceSdpScanner scan(CharSequence sdp) throws SdpParseException, UnknownHostException {
+        int length = sdp.length();
+        IceSdpScanner scanner = new IceSdpScanner(length);
+        ScannedMedia media = null;
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && sdp.charAt(end) != '\n') {
+                end++;
+            }
+            int next = end + 1;
+            if (end > start && sdp.charAt(end - 1) == '\r') {
+                end--;
+            }
+
+            if (startsWith(sdp, start, end, "m=")) {
+                int typeEnd = start + 2;
+                while (typeEnd < end && sdp.charAt(typeEnd) != ' ') {
+                    typeEnd++;
+                }
+                media = new ScannedMedia(sdp.subSequence(start + 2, typeEnd).toString());
+                scanner.medias.add(media);
+            } else if (startsWith(sdp, start, end, CandidateSdp.CANDIDATE_LINE_PREFIX)) {
+                if (media != null) {
+                    media.candidates.add(CandidateSdp.parseCandidate(sdp,
+                            start + CandidateSdp.CANDIDATE_LINE_PREFIX.length(), end));
+                }
+                start = next;
+                continue;
+            } else if (startsWith(sdp, start, end, UFRAG_PREFIX)) {
+                String value = value(sdp, start + UFRAG_PREFIX.length(), end);
+                if (media == null) {
+                    scanner.uFrag = value;
+                } else {
+                    media.uFrag = value;
+                }
+            } else if (startsWith(sdp, start, end, PWD_PREFIX)) {
+                String value = value(sdp, start + PWD_PREFIX.length(), end);
+                if (media == null) {
+                    scanner.password = value;
+                } else {
+                    media.password = value;
+                }
+            }
+            scanner.withoutCandidates.append(sdp, start, Math.min(next, length));
+            start = next;
+        }
+        return scanner;
+    }
+
+    /**
+     * @return the session level ufrag, or that of the first media which has
+     * one
+     */
+    public String getUFrag() {
+        if (uFrag == null) {
+            for (ScannedMedia media : medias) {
+                if (media.uFrag != null) {
+                    return media.uFrag;
+                }
+            }
+        }
+        return uFrag;
+    }
+
+    /**
+     * @return the session level password, or that of the first media which
+     * has one
+     */
+    public String getPassword() {
+        if (password == null) {
+            for (ScannedMedia media : medias) {
+                if (media.password != null) {
+                    return media.password;
+                }
+            }
+        }
+        return password;
+    }
+
+    /**
+     * @return the scanned text, less its candidate lines
+     */
+    public String getSdpWithoutCandidates() {
+        return withoutCandidates.toString();
+    }
+
+    public int getMediaCount() {
+        return medias.size();
+    }
+
+    /**
+     * @param mediaIndex index of the m= section
+     * @return its media type, such as audio or video
+     */
+    public String getMediaType(int mediaIndex) {
+        return medias.get(mediaIndex).type;
+    }
+
+    /**
+     * @param mediaIndex index of the m= section
+     * @return its ufrag, falling back to the session level one
+     */
+    public String getUFrag(int mediaIndex) {
+        String mediaUFrag = medias.get(mediaIndex).uFrag;
+        return mediaUFrag != null ? mediaUFrag : uFrag;
+    }
+
+    /**
+     * @param mediaIndex index of the m= section
+     * @return its password, falling back to the session level one
+     */
+    public String getPassword(int mediaIndex) {
+        String mediaPassword = medias.get(mediaIndex).password;
+        return mediaPassword != null ? mediaPassword : password;
+    }
+
+    /**
+     * @param mediaIndex index of the m= section
+     * @return the candidates of that section, in the order they appeared
+     */
+    public List<RemoteCandidate> getCandidates(int mediaIndex) {
+        return medias.get(mediaIndex).candidates;
+    }
+
+    static boolean startsWith(CharSequence text, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String value(CharSequence text, int start, int end) {
+        while (end > start && CandidateSdp.Tokens.isSpace(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.subSequence(start, end).toString();
+    }
+
+    static class ScannedMedia {
+
+        final String type;
+        final List<RemoteCandidate> candidates = new ArrayList<RemoteCandidate>();
+        String uFrag;
+        String password;
+
+        ScannedMedia(String type) {
+            this.type = type;
+        }
+    }
+
+    private IceSdpScanner(int length) {
+        withoutCandidates = new StringBuilder(length);
+    }
+}
@@ -4,6 +4,8 @@
  */
 package net.mc_cubed.icedjava.ice;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ScatteringByteChannel;
@@ -30,4 +32,28 @@ public interface IceSocketChannel extends ByteChannel, ScatteringByteChannel, Ga
     void addEventListener(IceEventListener listener);
 
     void removeEventListener(IceEventListener listener);
+
+    /**
+     * Send each buffer as its own datagram, in order, to the same
+     * destination.  Unlike a plain GatheringByteChannel, the buffers are not
+     * joined into one message.  Prefer this over a loop of single writes when
+     * sending bursts, such as the packets of a video frame.
+     *
+     * @param srcs the buffers to send
+     * @param offset index of the first buffer to send
+     * @param length number of buffers to send
+     * @return number of bytes sent
+     * @throws IOException
+     */
+    @Override
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException;
+
+    /**
+     * Take the next received datagram without copying it.  The returned buffer
+     * belongs to the caller until it calls release() on it, after which the
+     * channel reuses it for later datagrams.
+     *
+     * @return the next datagram, or null if none are waiting
+     */
+    PooledBuffer receive();
 }
\ No newline at end of file
@@ -37,7 +37,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -47,10 +49,15 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
@@ -67,6 +74,7 @@ import javax.sdp.SdpFactory;
 import javax.sdp.SdpParseException;
 import javax.sdp.SessionDescription;
 import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
+import net.mc_cubed.icedjava.ice.event.IceCandidateEvent;
 import net.mc_cubed.icedjava.ice.event.IceEvent;
 import net.mc_cubed.icedjava.ice.event.IceEventListener;
 import net.mc_cubed.icedjava.ice.event.IceFailedEvent;
@@ -89,12 +97,17 @@ import net.mc_cubed.icedjava.packet.attribute.RealmAttribute;
 import net.mc_cubed.icedjava.packet.attribute.UsernameAttribute;
 import net.mc_cubed.icedjava.packet.header.MessageClass;
 import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.NotifyingFuture;
 import net.mc_cubed.icedjava.stun.StunReply;
 import net.mc_cubed.icedjava.stun.StunUtil;
 import net.mc_cubed.icedjava.stun.TransportType;
+import net.mc_cubed.icedjava.turn.TURNAddressDiscovery;
+import net.mc_cubed.icedjava.turn.TURNAllocation;
+import org.glassfish.grizzly.CompletionHandler;
 import org.glassfish.grizzly.filterchain.BaseFilter;
 import org.glassfish.grizzly.filterchain.FilterChainContext;
 import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 
 /**
  * Implements the ICE state machine
@@ -123,6 +136,13 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     private String remoteUFrag;
     private String remotePassword;
     private static final Logger log = Logger.getLogger(IceStateMachine.class.getName());
+    static final int DISCOVERY_THREADS = 2;
+    /**
+     * Address discovery blocks on STUN, TURN and UPnP round trips, so when
+     * trickling and when restarting it runs here rather than on the agent's
+     * scheduler.  The threads go away when idle.
+     */
+    private static final ExecutorService discoveryExecutor = createDiscoveryExecutor();
     private int iceInterval = 500;
     private ScheduledFuture task = null;
     private long lastSent = 0;
@@ -137,8 +157,6 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     // Initialized by the constructor
     private boolean icelite;
     private SDPListener sdpListener;
-    private InetSocketAddress stunServer = StunUtil.getCachedStunServerSocket();
-    private InterfaceProfile defaultInterface = IceUtil.getBestInterfaceCandidate(StunUtil.getCachedStunServerSocket());
     private SdpFactory sdpFactory = SdpFactory.getInstance();
     // These are final to avoid the list being pulled out from under a thread
     private final List<IceSocket> iceSockets = new ArrayList<IceSocket>();
@@ -148,12 +166,15 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     protected final Map<IceSocket, List<CandidatePair>> checkPairs = new ConcurrentHashMap<IceSocket, List<CandidatePair>>();
     //private final Map<CandidateType, Integer> priorities = new HashMap<CandidateType, Integer>();
     private final Map<IceSocket, List<LocalCandidate>> socketCandidateMap = new LinkedHashMap<IceSocket, List<LocalCandidate>>();
+    private final Map<IceSocket, CandidateLineCache> candidateLines = new HashMap<IceSocket, CandidateLineCache>();
     //private Timer checktimer;
     private final long tieBreaker;
     protected static SecureRandom random = new SecureRandom();
     protected final Map<IceSocket, List<CandidatePair>> nominated = new HashMap<IceSocket, List<CandidatePair>>();
-    protected final Map<IceSocket, List<CandidatePair>> selectedPairs = new HashMap<IceSocket, List<CandidatePair>>();
-    protected final List<InterfaceProfile> interfaceData;
+    // Read by the socket channels on the application's threads
+    protected final Map<IceSocket, List<CandidatePair>> selectedPairs = new ConcurrentHashMap<IceSocket, List<CandidatePair>>();
+    // Sockets sending on their nominated pairs, which early media leaves alone
+    private final Set<IceSocket> nominationSelected = Collections.newSetFromMap(new ConcurrentHashMap<IceSocket, Boolean>());
     @Inject
     @DiscoveryMechanism
     Instance<AddressDiscovery> discoveryMechanisms;
@@ -162,10 +183,17 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     Instance<CandidateDiscovery> localCandidateDiscoveryMechs;
     boolean localOnly = false;
     boolean sendKeepalives = false;
+    boolean trickle = false;
     private long lastRemoteVersion = 0;
     private Set<IceEventListener> iceEventListeners = new java.util.concurrent.CopyOnWriteArraySet<IceEventListener>();
     private final Queue<SocketPair> nominationQueue = new LinkedList<SocketPair>();
-    private final Queue<SessionDescription> mediaUpdateQueue = new LinkedList<SessionDescription>();
+    private final Queue<RemoteUpdate> mediaUpdateQueue = new LinkedList<RemoteUpdate>();
+    private final Map<CandidatePair, Future<IceReply>> pendingKeepalives = new HashMap<CandidatePair, Future<IceReply>>();
+    // Nominations sent by the controlling agent and not answered yet
+    private final List<PendingNomination> pendingNominations = new LinkedList<PendingNomination>();
+    private final Queue<TrickledCandidate> remoteCandidateQueue = new ConcurrentLinkedQueue<TrickledCandidate>();
+    private final Map<IceSocket, List<RemoteCandidate>> trickledCandidates = new HashMap<IceSocket, List<RemoteCandidate>>();
+    private final IcePeerMetrics metrics = new IcePeerMetrics(this);
 
     /**
      * IceEventListeners will receive asynchronous notification of IceEvents on
@@ -187,7 +215,6 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     @SuppressWarnings("FinalizeDeclaration")
     protected void finalize() throws Throwable {
         super.finalize();
-        getThreadpool().shutdownNow();
         close();
     }
 
@@ -199,6 +226,21 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         this.sendKeepalives = sendKeepalives;
     }
 
+    @Override
+    public IcePeerMetricsMBean getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public boolean isTrickle() {
+        return trickle;
+    }
+
+    @Override
+    public void setTrickle(boolean trickle) {
+        this.trickle = trickle;
+    }
+
     /**
      * Sets a flag used for testing only to restrict the scope of the ICE tests
      * to only use local type IP/port combinations
@@ -209,6 +251,13 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         this.localOnly = localOnlyFlag;
     }
 
+    /**
+     * The scheduler driving this state machine.  It may be shared with other
+     * peers, so the state machine only ever cancels its own task on it and
+     * never shuts it down.
+     *
+     * @return the scheduler used to run this state machine
+     */
     protected abstract ScheduledExecutorService getThreadpool();
 
     public NominationType getNomination() {
@@ -268,7 +317,8 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         this.localUFrag = generateHashString(UFRAG_LENGTH);
         this.localPassword = generateHashString(PASSWORD_LENGTH);
 
-        interfaceData = IceUtil.getInterfaceCandidates(stunServer);
+        // Server selection and interface profiling run in the background
+        StunServerMonitor.start();
     }
 
     /**
@@ -325,6 +375,10 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         String addrType = "";
 
         InetAddress addr = getDefaultConnectionBasis();
+        if (addr == null) {
+            // No candidates yet, so offer the unspecified address
+            return sdpFactory.createConnection(Connection.IN, Connection.IP4, "0.0.0.0");
+        }
 
         if (addr instanceof Inet6Address) {
             addrType = Connection.IP6;
@@ -338,6 +392,19 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     private InetAddress getDefaultConnectionBasis() {
         if (nominated.isEmpty() || nominated.values().iterator().next() == null
                 || nominated.values().iterator().next().get(0) == null) {
+            InterfaceProfile defaultInterface = StunServerMonitor.getBestInterface();
+            if (defaultInterface == null) {
+                // Not profiled yet, or no interface has reached the STUN
+                // server, so use the first host candidate
+                for (List<LocalCandidate> candidates : socketCandidateMap.values()) {
+                    for (LocalCandidate candidate : candidates) {
+                        if (candidate.getType() == CandidateType.LOCAL) {
+                            return candidate.getAddress();
+                        }
+                    }
+                }
+                return null;
+            }
             return defaultInterface.getAddress();
         } else {
             // Use the first nominated candidate to form the basis of our C line
@@ -410,9 +477,11 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
 
     void checkSessionUpdates() {
         if (!mediaUpdateQueue.isEmpty()) {
-            SessionDescription session = mediaUpdateQueue.poll();
+            RemoteUpdate update = mediaUpdateQueue.poll();
+            SessionDescription session = update.session;
             try {
-                this._updateMedia(session.getOrigin(), session.getConnection(), session.getAttributes(false), session.getMediaDescriptions(false));
+                this._updateMedia(session.getOrigin(), session.getConnection(), session.getAttributes(false),
+                        session.getMediaDescriptions(false), update.scanned);
             } catch (SdpParseException ex) {
                 Logger.getLogger(IceStateMachine.class.getName()).log(Level.SEVERE, null, ex);
             } catch (UnknownHostException ex) {
@@ -422,6 +491,29 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
             }
         }
     }
+    void checkRemoteCandidates() {
+        TrickledCandidate trickled;
+        while ((trickled = remoteCandidateQueue.poll()) != null) {
+            if (trickled.mediaIndex < 0 || trickled.mediaIndex >= iceSockets.size()) {
+                log.log(Level.WARNING, "{0} got a trickled candidate for unknown media {1}",
+                        new Object[]{getPeerId(), trickled.mediaIndex});
+                continue;
+            }
+            IceSocket socket = iceSockets.get(trickled.mediaIndex);
+            List<RemoteCandidate> remotes = trickledCandidates.get(socket);
+            if (remotes == null) {
+                remotes = new LinkedList<RemoteCandidate>();
+                trickledCandidates.put(socket, remotes);
+            }
+            if (!remotes.contains(trickled.candidate)) {
+                remotes.add(trickled.candidate);
+                List<RemoteCandidate> newRemote = new LinkedList<RemoteCandidate>();
+                newRemote.add(trickled.candidate);
+                addCheckPairs(socket, getLocalCandidates(socket), newRemote);
+            }
+        }
+    }
+
     /*
      * This method implements the ICE State machine.  It is called periodically
      */
@@ -447,6 +539,11 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
              */
             checkSessionUpdates();
 
+            /**
+             * Pair any trickled remote candidates
+             */
+            checkRemoteCandidates();
+
             if (iceStatus == IceStatus.IN_PROGRESS) {
                 // First check for any finished pairs
                 for (Entry<IceSocket, List<CandidatePair>> pairsEntry : checkPairs.entrySet()) {
@@ -502,7 +599,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                                     triggeredPair.getLocalCandidate().getComponentId(),
                                     triggeredPair.getRemoteCandidate().getAddress(),
                                     triggeredPair.getRemoteCandidate().getPort()});
-                        runOneTest(triggeredPair.getLocalCandidate().getIceSocket(), triggeredPair);
+                        startCheck(triggeredPair.getLocalCandidate().getIceSocket(), triggeredPair);
                         didTest = true;
                     } else {
                         // Check for a waiting pair in each channel
@@ -534,7 +631,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                             if (pairsInState(pairs, PairState.WAITING) != 0) {
                                 // Non frozen pairs exist, test one, then break out of the loop
                                 CandidatePair pair = getFirstWaitingPair(pairs);
-                                runOneTest(pair.getLocalCandidate().getIceSocket(), pair);
+                                startCheck(pair.getLocalCandidate().getIceSocket(), pair);
                                 didTest = true;
                                 break;
                             }
@@ -552,15 +649,16 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                                     return;
                                 }
                             }
-                            for (Entry<IceSocket, List<CandidatePair>> pairsEntry : checkPairs.entrySet()) {
-                                IceSocket socket = pairsEntry.getKey();
-                                List<CandidatePair> pairs = pairsEntry.getValue();
-
-                                // If controller, nominate a pair, or restart ICE
-                                if (localRole == AgentRole.CONTROLLING) {
+                            // Wait for any nominations still in flight
+                            if (!checkNominationReplies(false)) {
+                                return;
+                            }
+                            // If controller, nominate a pair, or restart ICE
+                            if (localRole == AgentRole.CONTROLLING) {
+                                for (List<CandidatePair> pairs : checkPairs.values()) {
                                     List<CandidatePair> successPairs = new LinkedList<CandidatePair>();
                                     for (CandidatePair cp : pairs) {
-                                        if (cp.getState() == PairState.SUCCEEDED) {
+                                        if (cp.getState() == PairState.SUCCEEDED && !isNominated(cp)) {
                                             successPairs.add(cp);
                                         }
                                     }
@@ -571,29 +669,14 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                                             // Sort to get the highest priority pair on top
                                             Collections.sort(nominateOne, new CandidatePairComparison());
                                             // Nominate the highest priority pair that succeedes
-                                            for (CandidatePair nominatePair : nominateOne) {
-
-                                                nominate(nominatePair);
-                                                // Send the nomination to the remote ICE peer
-                                                IceReply nominationReply = doIceTest(
-                                                        nominatePair,
-                                                        localUFrag,
-                                                        remoteUFrag,
-                                                        remotePassword,
-                                                        isLocalControlled(),
-                                                        PEER_REFLEXIVE_PRIORITY,
-                                                        tieBreaker,
-                                                        true).get();
-
-                                                if (nominationReply.isSuccess()) {
-                                                    nominate(nominatePair);
-                                                    break;
-                                                }
-                                            }
+                                            startNomination(nominateOne);
                                         }
-                                        checkPairs.putAll(nominated);
                                     }
                                 }
+                                if (!pendingNominations.isEmpty()) {
+                                    // The replies finish this pass
+                                    return;
+                                }
                             }
                             //iceStatus = IceStatus.SUCCESS;
                             checkStatus();
@@ -617,47 +700,29 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
             // Upkeep Phase
             if (iceStatus == IceStatus.SUCCESS) {
                 if (sendKeepalives) {
+                    // Log the outcome of any keepalives that finished since the last pass
+                    checkKeepalives();
                     if (new Date().getTime() - lastSent > refreshDelay) {
                         lastSent = new Date().getTime();
                         for (List<CandidatePair> pairList : nominated.values()) {
                             for (CandidatePair pair : pairList) {
                                 /**
                                  * Repeat connectivity checks at a regular interval on
-                                 * nominated candidates to keep the candidates available
+                                 * nominated candidates to keep the candidates available.
+                                 * The reply is collected on a later pass so a slow peer
+                                 * does not hold a shared scheduler thread.
                                  */
-                                IceReply result = doIceTest(
-                                        pair,
-                                        localUFrag,
-                                        remoteUFrag,
-                                        remotePassword,
-                                        isLocalControlled(),
-                                        PEER_REFLEXIVE_PRIORITY,
-                                        tieBreaker,
-                                        true).get();
-                                if (result != null) {
-                                    if (pair == null || pair.getLocalCandidate() == null || pair.getRemoteCandidate() == null) {
-                                        log.log(Level.WARNING, "Got a strange candidate pair: {0}", pair);
-                                    } else {
-                                        log.log(Level.FINEST, "Keepalive: {0}:{1} -> {2}:{3} - {4} - {5}", new Object[]{
-                                                    pair.getLocalCandidate().getAddress(),
-                                                    pair.getLocalCandidate().getPort(),
-                                                    pair.getRemoteCandidate().getAddress(),
-                                                    pair.getRemoteCandidate().getPort(),
-                                                    pair.getState(),
-                                                    (result.isSuccess()) ? result.getMappedAddress() : result.getErrorReason()});
-
-
-                                    }
-                                } else {
-                                    log.log(Level.WARNING, "Got a null reply from an ICE test during keepalive.  "
-                                            + "This is abnormal. {0}:{1} -> {2}:{3} - {4}",
-                                            new Object[]{pair.getLocalCandidate().getAddress(),
-                                                pair.getLocalCandidate().getPort(),
-                                                pair.getRemoteCandidate().getAddress(),
-                                                pair.getRemoteCandidate().getPort(),
-                                                pair.getState()});
+                                if (!pendingKeepalives.containsKey(pair)) {
+                                    pendingKeepalives.put(pair, doIceTest(
+                                            pair,
+                                            localUFrag,
+                                            remoteUFrag,
+                                            remotePassword,
+                                            isLocalControlled(),
+                                            PEER_REFLEXIVE_PRIORITY,
+                                            tieBreaker,
+                                            true));
                                 }
-
                             }
                         }
                     }
@@ -678,11 +743,116 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         log.exiting(getClass().getName(), "run");
     }
 
+    /**
+     * Collects the replies of finished keepalive tests without blocking
+     */
+    void checkKeepalives() throws InterruptedException, ExecutionException {
+        Iterator<Entry<CandidatePair, Future<IceReply>>> it = pendingKeepalives.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<CandidatePair, Future<IceReply>> entry = it.next();
+            if (!entry.getValue().isDone()) {
+                continue;
+            }
+            it.remove();
+            CandidatePair pair = entry.getKey();
+            IceReply result = entry.getValue().get();
+            if (result != null) {
+                if (pair == null || pair.getLocalCandidate() == null || pair.getRemoteCandidate() == null) {
+                    log.log(Level.WARNING, "Got a strange candidate pair: {0}", pair);
+                } else {
+                    log.log(Level.FINEST, "Keepalive: {0}:{1} -> {2}:{3} - {4} - {5}", new Object[]{
+                                pair.getLocalCandidate().getAddress(),
+                                pair.getLocalCandidate().getPort(),
+                                pair.getRemoteCandidate().getAddress(),
+                                pair.getRemoteCandidate().getPort(),
+                                pair.getState(),
+                                (result.isSuccess()) ? result.getMappedAddress() : result.getErrorReason()});
+                }
+            } else {
+                log.log(Level.WARNING, "Got a null reply from an ICE test during keepalive.  "
+                        + "This is abnormal. {0}:{1} -> {2}:{3} - {4}",
+                        new Object[]{pair.getLocalCandidate().getAddress(),
+                            pair.getLocalCandidate().getPort(),
+                            pair.getRemoteCandidate().getAddress(),
+                            pair.getRemoteCandidate().getPort(),
+                            pair.getState()});
+            }
+        }
+    }
+
+    @Override
+    public void addRemoteCandidate(int mediaIndex, Attribute candidate) throws SdpParseException {
+        if (candidate.getName().compareTo(CANDIDATE_NAME) != 0) {
+            throw new SdpParseException(0, 0, "Expected a candidate attribute, got: " + candidate.getName());
+        }
+        try {
+            remoteCandidateQueue.offer(new TrickledCandidate(mediaIndex, CandidateSdp.parseCandidate(candidate.getValue())));
+        } catch (UnknownHostException ex) {
+            throw new SdpParseException(0, 0, "Unable to resolve candidate address: " + candidate.getValue(), ex);
+        }
+    }
+
+    /**
+     * Add pairs formed from the given candidates to the live check list.  New
+     * pairs are immediately eligible for testing.
+     *
+     * @param socket socket the candidates belong to
+     * @param locals local candidates to pair
+     * @param remotes remote candidates to pair
+     */
+    private synchronized void addCheckPairs(IceSocket socket, List<LocalCandidate> locals, List<RemoteCandidate> remotes) {
+        if (iceStatus == IceStatus.SUCCESS || locals == null || remotes.isEmpty()) {
+            return;
+        }
+        List<CandidatePair> pairs = checkPairs.get(socket);
+        if (pairs == null) {
+            pairs = new LinkedList<CandidatePair>();
+            checkPairs.put(socket, pairs);
+        }
+        for (CandidatePair pair : CandidatePair.getPairs(locals, remotes, isLocalControlled())) {
+            if (!pairs.contains(pair)) {
+                pair.setState(PairState.WAITING);
+                pairs.add(pair);
+                routePair(socket, pair);
+            }
+        }
+    }
+
+    /**
+     * Announce newly gathered local candidates to IceEventListeners and, with
+     * trickle enabled, to a TrickleSDPListener.
+     *
+     * @param socket socket the candidates belong to
+     * @param candidates the new candidates
+     */
+    private void announceCandidates(IceSocket socket, List<LocalCandidate> candidates) {
+        boolean trickleToListener = trickle && sdpListener instanceof TrickleSDPListener;
+        if (!trickleToListener && iceEventListeners.isEmpty()) {
+            return;
+        }
+        int mediaIndex = iceSockets.indexOf(socket);
+        for (LocalCandidate candidate : candidates) {
+            Attribute attribute = sdpFactory.createAttribute(CANDIDATE_NAME, candidate.toAttributeFormat());
+            if (!iceEventListeners.isEmpty()) {
+                broadcast(new IceCandidateEventImpl(this, socket, mediaIndex, candidate, attribute));
+            }
+            if (trickleToListener) {
+                try {
+                    ((TrickleSDPListener) sdpListener).addRemoteCandidate(mediaIndex, attribute);
+                } catch (SdpParseException ex) {
+                    log.log(Level.WARNING, "Listener rejected a trickled candidate", ex);
+                }
+            }
+        }
+    }
+
     protected void startOneTest(IceSocket socket, CandidatePair pair) {
         synchronized (pair) {
             try {
                 if (pair.getState() == PairState.WAITING) {
                     pair.setState(PairState.IN_PROGRESS);
+                    pair.checkSent();
+                    metrics.checkSent();
                     Future<IceReply> resultFuture = doIceTest(
                             pair,
                             localUFrag, // Local UserFrag
@@ -709,6 +879,8 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
             try {
                 synchronized (pair) {
                     IceReply result = pair.getReplyFuture().get();
+                    pair.checkCompleted(result);
+                    metrics.checkCompleted(result);
                     if (result.isSuccess()) {
 
                         // Check for a Peer Reflexive Candidate
@@ -759,10 +931,16 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                                             peerReflexPair.getRemoteCandidate().getSocketAddress()});
 
                                 checkPairs.get(socket).add(peerReflexPair);
+                                routePair(socket, peerReflexPair);
                             }
                         } else {
                             pair.setState(PairState.SUCCEEDED);
 
+                            // Let media flow before nomination completes
+                            if (nomination == NominationType.HYBRID) {
+                                selectEarlyPair(pair);
+                            }
+
                             // Unfreeze other pairs with the same foundation
                             for (IceSocket updateSocket : checkPairs.keySet()) {
                                 for (CandidatePair candidate : checkPairs.get(updateSocket)) {
@@ -840,133 +1018,163 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
 
     }
 
-    @Deprecated
-    protected void runOneTest(IceSocket socket, CandidatePair pair) {
-        try {
-            synchronized (pair) {
-                if (pair.getState() == PairState.WAITING) {
-                    pair.setState(PairState.IN_PROGRESS);
-                    IceReply result = doIceTest(
-                            pair,
-                            localUFrag, // Local UserFrag
-                            remoteUFrag, // Remote UserFrag
-                            remotePassword, // Password
-                            isLocalControlled(),
-                            PEER_REFLEXIVE_PRIORITY,
-                            tieBreaker,
-                            nomination == NominationType.AGGRESSIVE).get();
-                    if (result.isSuccess()) {
-                        pair.setState(PairState.SUCCEEDED);
+    /**
+     * Start a connectivity check, and process its result as soon as the reply
+     * comes in rather than on the next pass.  Nothing waits on the reply, so
+     * a slow or unreachable pair never holds a scheduler thread.
+     *
+     * @param socket the socket the pair belongs to
+     * @param pair the pair to check
+     */
+    protected void startCheck(final IceSocket socket, final CandidatePair pair) {
+        startOneTest(socket, pair);
+        if (pair.getState() == PairState.IN_PROGRESS && pair.getReplyFuture() != null) {
+            whenReplied(pair.getReplyFuture(), new Runnable() {
+
+                @Override
+                public void run() {
+                    checkCompleted(socket, pair);
+                }
+            });
+        }
+    }
 
-                        // Check for a Peer Reflexive Candidate
-                        InetSocketAddress mappedAddress = result.getMappedAddress();
-                        List<LocalCandidate> lclist = socketCandidateMap.get(socket);
-                        boolean matched = false;
-                        for (LocalCandidate candidate : lclist) {
-                            if (candidate.getSocketAddress().equals(mappedAddress)) {
-                                matched = true;
-                                break;
-                            }
-                        }
+    synchronized void checkCompleted(IceSocket socket, CandidatePair pair) {
+        if (pair.getState() == PairState.IN_PROGRESS && pair.getReplyFuture() != null
+                && pair.getReplyFuture().isDone()) {
+            checkTestResult(socket, pair);
+            checkStatus();
+        }
+    }
 
-                        if (!matched) {
-                            // Generate a peer reflexive candidate, mark it succeeded and add it to the list
-                            LocalCandidate local = new LocalCandidate(
-                                    pair.getLocalCandidate().getOwner(),
-                                    pair.getLocalCandidate().getIceSocket(),
-                                    CandidateType.PEER_REFLEXIVE,
-                                    mappedAddress.getAddress(),
-                                    mappedAddress.getPort(), pair.getLocalCandidate());
-                            CandidatePair peerReflexPair = new CandidatePair(local, pair.getRemoteCandidate(), isLocalControlled());
-                            peerReflexPair.setState(PairState.SUCCEEDED);
-                            log.log(Level.FINE, "New peer reflexive pair: {0} <-> {1}", new Object[]{
-                                        peerReflexPair.getLocalCandidate().getSocketAddress(),
-                                        peerReflexPair.getRemoteCandidate().getSocketAddress()});
-
-                            checkPairs.get(socket).add(peerReflexPair);
-                        } else {
-                            // Unfreeze other pairs with the same foundation
-                            for (IceSocket updateSocket : checkPairs.keySet()) {
-                                for (CandidatePair candidate : checkPairs.get(updateSocket)) {
-                                    if (candidate.getFoundation().compareTo(pair.getFoundation()) == 0
-                                            && candidate.getState() == PairState.FROZEN) {
-                                        candidate.setState(PairState.WAITING);
-                                    }
-                                }
-                            }
+    /**
+     * Send a nomination on the first of the given pairs.  If it is refused,
+     * the next pair is tried, until one is accepted or none are left.
+     *
+     * @param candidates succeeded pairs of one component, best first
+     */
+    private void startNomination(List<CandidatePair> candidates) {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        CandidatePair pair = candidates.get(0);
+        // Send the nomination to the remote ICE peer
+        Future<IceReply> reply = doIceTest(
+                pair,
+                localUFrag,
+                remoteUFrag,
+                remotePassword,
+                isLocalControlled(),
+                PEER_REFLEXIVE_PRIORITY,
+                tieBreaker,
+                true);
+        pendingNominations.add(new PendingNomination(pair, reply,
+                new LinkedList<CandidatePair>(candidates.subList(1, candidates.size()))));
+        whenReplied(reply, new Runnable() {
 
-                        }
+            @Override
+            public void run() {
+                checkNominationReplies(true);
+            }
+        });
+    }
 
-                        /**
-                         * Special case:
-                         * Aggressive Nomination type nominates the first 
-                         * successful test on each channel/component, so we 
-                         * should re-freeze all other tests in the WAITING state
-                         * with the same channel/componentId
-                         */
-                        if (nomination == NominationType.AGGRESSIVE) {
-                            nominate(pair);
-                            for (CandidatePair checkPair : checkPairs.get(pair.getLocalCandidate().getIceSocket())) {
-                                if (checkPair.getComponentId() == pair.getComponentId() && checkPair.getState() == PairState.WAITING) {
-                                    checkPair.setState(PairState.FROZEN);
-                                }
-                            }
+    /**
+     * Collect the replies of finished nominations without blocking.
+     * Accepted pairs are nominated, refused ones fall through to the next
+     * pair of their component.
+     *
+     * @param updateStatus check for ICE completion once all replies are in
+     * @return true if no nominations are waiting for a reply
+     */
+    synchronized boolean checkNominationReplies(boolean updateStatus) {
+        if (pendingNominations.isEmpty()) {
+            return true;
+        }
+        List<List<CandidatePair>> retries = new LinkedList<List<CandidatePair>>();
+        Iterator<PendingNomination> it = pendingNominations.iterator();
+        while (it.hasNext()) {
+            PendingNomination pending = it.next();
+            if (!pending.reply.isDone()) {
+                continue;
+            }
+            it.remove();
+            IceReply result = null;
+            try {
+                result = pending.reply.get();
+            } catch (InterruptedException ex) {
+                log.log(Level.FINE, "Nomination reply was interrupted", ex);
+            } catch (ExecutionException ex) {
+                log.log(Level.FINE, "Nomination failed", ex);
+            }
+            if (result != null && result.isSuccess()) {
+                nominate(pending.pair);
+            } else {
+                retries.add(pending.fallbacks);
+            }
+        }
+        for (List<CandidatePair> fallbacks : retries) {
+            startNomination(fallbacks);
+        }
+        if (!pendingNominations.isEmpty()) {
+            return false;
+        }
+        for (Entry<IceSocket, List<CandidatePair>> entry : nominated.entrySet()) {
+            if (!entry.getValue().contains(null)) {
+                checkPairs.put(entry.getKey(), entry.getValue());
+            }
+        }
+        // The check lists were pruned down to the nominated pairs
+        reroutePairs();
+        if (updateStatus && iceStatus == IceStatus.IN_PROGRESS) {
+            checkStatus();
+        }
+        return true;
+    }
 
-                        }
-                    } else {
-                        if (result.getErrorCode() == ROLE_CONFLICT) {
-                            long remoteTieBreaker;
-                            if (result.getAttribute(AttributeType.ICE_CONTROLLED) != null) {
-                                IceControlledAttribute remote = (IceControlledAttribute) result.getAttribute(AttributeType.ICE_CONTROLLED);
-                                remoteTieBreaker = remote.getNumber();
-                            } else if (result.getAttribute(AttributeType.ICE_CONTROLLING) != null) {
-                                IceControllingAttribute remote = (IceControllingAttribute) result.getAttribute(AttributeType.ICE_CONTROLLING);
-                                remoteTieBreaker = remote.getNumber();
-                            } else {
-                                throw new java.lang.IllegalStateException("Got an ICE packet without an ICE_CONTROLLED or ICE_CONTROLLING attribute");
-                            }
+    private boolean isNominated(CandidatePair pair) {
+        List<CandidatePair> pairs = nominated.get(pair.getLocalCandidate().getIceSocket());
+        return pairs != null && pairs.size() > pair.getComponentId()
+                && pairs.get(pair.getComponentId()) != null;
+    }
 
-                            final boolean control;
-                            if (remoteTieBreaker >= tieBreaker) {
-                                // We switch to controlled
-                                control = false;
-                            } else {
-                                // We switch to controlling
-                                control = true;
-                            }
+    /**
+     * Have the callback run on the scheduler once a reply is in
+     */
+    private void whenReplied(Future<IceReply> reply, final Runnable callback) {
+        if (reply instanceof IceReplyFuture) {
+            ((IceReplyFuture) reply).addCompletionHandler(new CompletionHandler<IceReply>() {
 
-                            setLocalControlled(control);
+                @Override
+                public void cancelled() {
+                    getThreadpool().execute(callback);
+                }
 
-                            return;
-                        }
-                        pair.setState(PairState.FAILED);
-                    }
-                    log.log(Level.FINE, "{0}:{1} -> {2}:{3} - {4} - {5}", new Object[]{
-                                pair.getLocalCandidate().getAddress(),
-                                pair.getLocalCandidate().getPort(),
-                                pair.getRemoteCandidate().getAddress(),
-                                pair.getRemoteCandidate().getPort(),
-                                pair.getState(),
-                                (result.isSuccess()) ? result.getMappedAddress() : result.getErrorReason()});
+                @Override
+                public void failed(Throwable throwable) {
+                    getThreadpool().execute(callback);
                 }
-            }
-        } catch (InterruptedException ex) {
-            Logger.getLogger(IceStateMachine.class.getName()).log(Level.SEVERE, "Caught Interrupted Exception during an ICE/STUN test", ex);
-        } catch (ExecutionException ex) {
-            Logger.getLogger(IceStateMachine.class.getName()).log(Level.SEVERE, "Caught Execution Exception during an ICE/STUN test", ex);
-        } finally {
-            // Ensure there won't be any pairs still in progress after this function ends
-            if (pair.getState() == PairState.IN_PROGRESS) {
-                pair.setState(PairState.FAILED);
-            }
-        }
 
+                @Override
+                public void completed(IceReply result) {
+                    getThreadpool().execute(callback);
+                }
 
+                @Override
+                public void updated(IceReply result) {
+                }
+            });
+        }
+        // Anything else is collected on the next pass
     }
 
     @Override
     public synchronized void start() {
         if (task == null || task.isDone() == true) {
+            metrics.started();
+            if (IceFactory.isJmxEnabled()) {
+                metrics.register();
+            }
             setIceStatus(IceStatus.IN_PROGRESS);
 
             // Schedule the ice runner
@@ -984,7 +1192,8 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     }
 
     /**
-     * Stops the ICE state machine
+     * Stops the ICE state machine.  Only this peer's task is cancelled, the
+     * scheduler itself is left running for any other peers sharing it.
      *
      * @param immediate interrupt the processing thread if true, let it stop
      * gracefully if false
@@ -993,17 +1202,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         if (task != null && !task.isDone()) {
             task.cancel(immediate);
         }
-
-        if (immediate) {
-            getThreadpool().shutdownNow();
-        } else {
-            getThreadpool().shutdown();
-        }
-        try {
-            getThreadpool().awaitTermination(5, TimeUnit.SECONDS);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(IceStateMachine.class.getName()).log(Level.SEVERE, "Exception during threadpool shutdown", ex);
-        }
+        pendingKeepalives.clear();
     }
 
     /**
@@ -1151,7 +1350,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                 }
                 response.getAttributes().add(AttributeFactory.createFingerprintAttribute());
 
-                ctx.write(sourceAddress, response, null);
+                reply(ctx, sourceAddress, response);
 
                 log.warning("Peer will switch roles");
                 return true;
@@ -1167,19 +1366,15 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         // Note the time we received this packet 
         lastTouch = new Date().getTime();
 
+        InetSocketAddress localAddress = getLocalAddress(ctx);
         // Check whether this is a nomination request, and we're the controlled peer
         if (attrMap.containsKey(AttributeType.USE_CANDIDATE) && !isLocalControlled()) {
             // Nominate this candidate with the peer
-            if (!setNominatedCandidate(
-                    (InetSocketAddress) ctx.getConnection().getLocalAddress(),
-                    (InetSocketAddress) sourceAddress)) {
-                nominationQueue.add(new SocketPair((InetSocketAddress) ctx.getConnection().getLocalAddress(),
-                        (InetSocketAddress) sourceAddress));
+            if (!setNominatedCandidate(localAddress, (InetSocketAddress) sourceAddress)) {
+                nominationQueue.add(new SocketPair(localAddress, (InetSocketAddress) sourceAddress));
             }
         }
-        remoteTouch(
-                (InetSocketAddress) ctx.getConnection().getLocalAddress(),
-                (InetSocketAddress) sourceAddress);
+        remoteTouch(localAddress, (InetSocketAddress) sourceAddress);
         // We should reply
         switch (packet.getMessageClass()) {
             case REQUEST:
@@ -1204,7 +1399,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                 }
                 response.getAttributes().add(AttributeFactory.createFingerprintAttribute());
 
-                ctx.write(sourceAddress, response, null);
+                reply(ctx, sourceAddress, response);
 
                 break;
             default:
@@ -1229,6 +1424,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     synchronized List<LocalCandidate> getLocalCandidates(IceSocket iceSocket, boolean refresh) {
         if (!socketCandidateMap.containsKey(iceSocket) || refresh) {
             socketCandidateMap.put(iceSocket, collectCandidates(iceSocket));
+            announceCandidates(iceSocket, socketCandidateMap.get(iceSocket));
         }
         return socketCandidateMap.get(iceSocket);
     }
@@ -1239,8 +1435,46 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
      * @param iceSocket the channel to collect candidates for
      * @return a list of LocalCandidates
      */
-    private List<LocalCandidate> collectCandidates(IceSocket iceSocket) {
+    private List<LocalCandidate> collectCandidates(final IceSocket iceSocket) {
         log.log(Level.FINE, "Collecting Candidates for peer: {0} on socket {1}", new Object[]{localUFrag, iceSocket});
+        List<LocalCandidate> retval = collectHostCandidates(iceSocket);
+
+        /**
+         * Skip additional candidate processing if we're in local only mode.
+         */
+        if (!localOnly) {
+            if (trickle) {
+                /**
+                 * Hand out the host candidates now, and trickle the rest as
+                 * the slower discovery mechanisms return.
+                 */
+                final List<LocalCandidate> hostCandidates = removeDuplicates(prioritize(retval));
+                discoveryExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        addLocalCandidates(iceSocket, hostCandidates,
+                                discoverAddresses(new LinkedList<LocalCandidate>(hostCandidates)));
+                    }
+                });
+                return hostCandidates;
+            }
+            retval.addAll(discoverAddresses(retval));
+        }
+        /**
+         * Prioritize, then remove duplicate candidates of lower priority.
+         */
+        return removeDuplicates(prioritize(retval));
+    }
+
+    /**
+     * Collect the host candidates of a specified channel, which needs no
+     * round trips to other hosts.
+     *
+     * @param iceSocket the channel to collect candidates for
+     * @return a list of LocalCandidates
+     */
+    private List<LocalCandidate> collectHostCandidates(IceSocket iceSocket) {
         List<LocalCandidate> retval = new LinkedList<LocalCandidate>();
 
 
@@ -1273,34 +1507,61 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                 }
             }
         }
+        return retval;
+    }
 
-        /**
-         * Skip additional candidate processing if we're in local only mode.
-         */
-        if (!localOnly) {
-            // If we're in a WELD environment, take advantage of it
-            if (discoveryMechanisms != null && !discoveryMechanisms.isUnsatisfied()) {
-                // For each address discovery mechanism...
-                for (AddressDiscovery discoveryMechanism : discoveryMechanisms) {
-                    try {
-                        // Add additional candidates to the list
-                        retval.addAll(discoveryMechanism.getCandidates(retval));
-                    } catch (Exception ex) {
-                        log.log(Level.WARNING, "Exception during address discovery.", ex);
-                    }
+    private static ExecutorService createDiscoveryExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DISCOVERY_THREADS, DISCOVERY_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IcedJava-Address-Discovery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Run the address discovery mechanisms (STUN, UPNP, PMP...) against a
+     * list of host candidates, or STUN alone if IceFactory is set to.
+     *
+     * @param hostCandidates the host candidates to discover addresses for
+     * @return the newly discovered candidates only
+     */
+    private List<LocalCandidate> discoverAddresses(List<LocalCandidate> hostCandidates) {
+        List<LocalCandidate> retval = new LinkedList<LocalCandidate>(hostCandidates);
+        boolean stunOnly = IceFactory.isStunOnlyDiscovery();
+        // If we're in a WELD environment, take advantage of it
+        if (discoveryMechanisms != null && !discoveryMechanisms.isUnsatisfied()) {
+            // For each address discovery mechanism...
+            for (AddressDiscovery discoveryMechanism : discoveryMechanisms) {
+                if (stunOnly && !(discoveryMechanism instanceof StunAddressDiscovery)) {
+                    continue;
                 }
-            } else {
-                /**
-                 * If we're not in a weld environment, that's OK too, but the
-                 * extensibile address discovery mechanisms won't be used.
-                 */
                 try {
-                    // Collect Server Reflexive candidates
-                    retval.addAll(new StunAddressDiscovery().getCandidates(retval));
+                    // Add additional candidates to the list
+                    retval.addAll(discoveryMechanism.getCandidates(retval));
                 } catch (Exception ex) {
-                    log.log(Level.WARNING, "Caught an Exception during STUN procedures.", ex);
+                    log.log(Level.WARNING, "Exception during address discovery.", ex);
                 }
+            }
+        } else {
+            /**
+             * If we're not in a weld environment, that's OK too, but the
+             * extensibile address discovery mechanisms won't be used.
+             */
+            try {
+                // Collect Server Reflexive candidates
+                retval.addAll(new StunAddressDiscovery().getCandidates(retval));
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "Caught an Exception during STUN procedures.", ex);
+            }
 
+            if (!stunOnly) {
                 try {
                     // Collect UPNP candidates
                     retval.addAll(new IceUPNPBridge().getCandidates(retval));
@@ -1315,16 +1576,108 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                     log.log(Level.FINE, "Caught an Exception during PMP procedures.", ex);
                 }
 
+                try {
+                    // Collect Server Relayed candidates, if a TURN server is set
+                    retval.addAll(new TURNAddressDiscovery().getCandidates(retval));
+                } catch (Exception ex) {
+                    log.log(Level.FINE, "Caught an Exception during TURN procedures.", ex);
+                }
+            }
+        }
+        return new LinkedList<LocalCandidate>(retval.subList(hostCandidates.size(), retval.size()));
+    }
+
+    /**
+     * Merge candidates found by background discovery into the candidate list
+     * of a socket, pair them with the remote candidates known so far, and
+     * announce them.
+     *
+     * @param iceSocket the socket the candidates were gathered for
+     * @param hostCandidates the candidate list the discovery was started from
+     * @param found the newly discovered candidates
+     */
+    private synchronized void addLocalCandidates(IceSocket iceSocket, List<LocalCandidate> hostCandidates, List<LocalCandidate> found) {
+        List<LocalCandidate> current = socketCandidateMap.get(iceSocket);
+        if (current != hostCandidates) {
+            // Candidates were refreshed while discovery was running
+            return;
+        }
+
+        List<LocalCandidate> added = new LinkedList<LocalCandidate>();
+        for (LocalCandidate candidate : prioritize(found)) {
+            boolean duplicate = false;
+            for (LocalCandidate existing : current) {
+                if (existing.getAddress().equals(candidate.getAddress())
+                        && existing.getPort() == candidate.getPort()) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                added.add(candidate);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        current.addAll(added);
+        Collections.sort(current, new CandidateComparison());
 
-                // TODO: Collect Server Relayed Candidates if supported by server
+        Set<RemoteCandidate> remotes = new LinkedHashSet<RemoteCandidate>();
+        if (checkPairs.get(iceSocket) != null) {
+            for (CandidatePair pair : checkPairs.get(iceSocket)) {
+                remotes.add(pair.getRemoteCandidate());
+            }
+        }
+        if (trickledCandidates.get(iceSocket) != null) {
+            remotes.addAll(trickledCandidates.get(iceSocket));
+        }
+        addCheckPairs(iceSocket, added, new LinkedList<RemoteCandidate>(remotes));
 
+        announceCandidates(iceSocket, added);
+        if (!(sdpListener instanceof TrickleSDPListener)) {
+            // The listener can't take single candidates, so send them all
+            sendSessionUpdate();
+        }
+    }
 
+    /**
+     * Answer a request the way it came, through the TURN relay if it was
+     * relayed, so checks on relayed candidates are symmetric
+     */
+    private void reply(FilterChainContext ctx, SocketAddress target, StunPacket response) throws IOException {
+        TURNAllocation relay = TURNAllocation.getRelay(ctx);
+        if (relay != null) {
+            relay.send(ByteBuffer.wrap(response.getBytes()), target);
+        } else {
+            ctx.write(target, response, null);
+        }
+    }
+
+    /**
+     * Work out which local candidate a packet arrived on.  Packets relayed by
+     * a TURN server arrived on its relayed candidate.  Connections opened
+     * by an active ICE-TCP candidate come from an ephemeral port, while the
+     * candidate itself is known by the discard port, RFC 6544 4.5.
+     */
+    private InetSocketAddress getLocalAddress(FilterChainContext ctx) {
+        TURNAllocation relay = TURNAllocation.getRelay(ctx);
+        if (relay != null) {
+            return relay.getRelayedAddress();
+        }
+        InetSocketAddress local = (InetSocketAddress) ctx.getConnection().getLocalAddress();
+        if (!(ctx.getConnection().getTransport() instanceof TCPNIOTransport)) {
+            return local;
+        }
+        for (List<LocalCandidate> candidates : socketCandidateMap.values()) {
+            for (LocalCandidate candidate : candidates) {
+                if (candidate.getTransport() == TransportType.TCP
+                        && candidate.getSocketAddress().equals(local)) {
+                    return local;
+                }
             }
         }
-        /**
-         * Prioritize, then remove duplicate candidates of lower priority.
-         */
-        return removeDuplicates(prioritize(retval));
+        return new InetSocketAddress(local.getAddress(), StunUtil.ACTIVE_TCP_PORT);
     }
 
     private void remoteTouch(final InetSocketAddress localSocket, final InetSocketAddress remoteSocket) {
@@ -1369,6 +1722,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                 pair.setState(PairState.SUCCEEDED);
                 if (checkPairs.get(local.getIceSocket()) != null) {
                     checkPairs.get(local.getIceSocket()).add(pair);
+                    routePair(local.getIceSocket(), pair);
                 }
 
             }
@@ -1396,8 +1750,12 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                             && !nominated.get(socket).contains(null)) {
                         // Replace the contents of the Using sockets with the
                         // nominated pairs.  This usage method supports hot
-                        // re-negociation.
-                        selectedPairs.putAll(nominated);
+                        // re-negociation, and takes over from any early media
+                        // pair in hybrid nomination.
+                        // Nomination goes on modifying its list in place, so
+                        // the channels are given a copy
+                        nominationSelected.add(socket);
+                        selectPairs(socket, new ArrayList<CandidatePair>(nominated.get(socket)));
                         // TODO: Shut down unused sockets, preserving only the used
                         // socket pairs
                     } else {
@@ -1416,13 +1774,24 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
 
     @Override
     final public void updateMedia(String sdpText) throws SdpParseException {
-        SessionDescription session = sdpFactory.createSessionDescription(sdpText);
+        IceSdpScanner scanned;
+        try {
+            scanned = IceSdpScanner.scan(sdpText);
+        } catch (UnknownHostException ex) {
+            throw new SdpParseException(0, 0, "Unable to resolve a candidate address", ex);
+        }
+        // The candidates are parsed already, so JAIN SDP only gets the rest
+        SessionDescription session = sdpFactory.createSessionDescription(scanned.getSdpWithoutCandidates());
         Origin origin = session.getOrigin();
         Connection connection = session.getConnection();
         List<Attribute> iceAttributes = new LinkedList<Attribute>(session.getAttributes(true));
-        List<MediaDescription> medias = new LinkedList<MediaDescription>(session.getAttributes(true));
-        updateMedia(origin, connection, iceAttributes, medias);
-
+        List<MediaDescription> medias;
+        try {
+            medias = new LinkedList<MediaDescription>(session.getMediaDescriptions(true));
+        } catch (SdpException ex) {
+            throw new SdpParseException(0, 0, "Unable to read the media descriptions", ex);
+        }
+        queueUpdate(origin, connection, iceAttributes, medias, scanned);
     }
 
     /**
@@ -1448,6 +1817,17 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     @Override
     public void updateMedia(final Origin origin, final Connection conn, final List<Attribute> iceAttributes, final List<MediaDescription> iceMedias)
             throws SdpParseException {
+        queueUpdate(origin, conn, iceAttributes, iceMedias, null);
+    }
+
+    /**
+     * Queue a remote update for the ICE thread
+     *
+     * @param scanned the candidates of each media, already scanned from the
+     * SDP text, or null to parse them from the media descriptions
+     */
+    private void queueUpdate(Origin origin, Connection conn, List<Attribute> iceAttributes,
+            List<MediaDescription> iceMedias, IceSdpScanner scanned) {
         try {
             log.log(Level.FINE, "SDP Update to {0}\n{1}\n{2}", new Object[]{localUFrag, iceAttributes, iceMedias});
             /**
@@ -1467,13 +1847,14 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
             session.getAttributes(true).addAll(iceAttributes);
             session.getMediaDescriptions(true).addAll(iceMedias);
 
-            mediaUpdateQueue.offer(session);
+            mediaUpdateQueue.offer(new RemoteUpdate(session, scanned));
         } catch (SdpException ex) {
             Logger.getLogger(IceStateMachine.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    synchronized void _updateMedia(Origin origin, Connection conn, List<Attribute> iceAttributes, List<MediaDescription> iceMedias)
+    synchronized void _updateMedia(Origin origin, Connection conn, List<Attribute> iceAttributes,
+            List<MediaDescription> iceMedias, IceSdpScanner scanned)
             throws SdpParseException, SdpException, UnknownHostException {
 
         /**
@@ -1545,7 +1926,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         }
 
 
-        Map<MediaDescription, List<RemoteCandidate>> remoteMediaMap = extractRemoteCandidates(conn, iceMedias);
+        Map<MediaDescription, List<RemoteCandidate>> remoteMediaMap = extractRemoteCandidates(conn, iceMedias, scanned);
 
         if (restartFlag) {
             doReset(isLocalControlled(), false);
@@ -1570,6 +1951,12 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
             } else {
                 checkPairs.putAll(matchAndUpdate(matchCandidates(socketCandidateMap, remoteMediaMap), checkPairs));
             }
+
+            // Keep the pairs formed from candidates trickled in so far
+            for (Entry<IceSocket, List<RemoteCandidate>> trickledEntry : trickledCandidates.entrySet()) {
+                addCheckPairs(trickledEntry.getKey(), socketCandidateMap.get(trickledEntry.getKey()), trickledEntry.getValue());
+            }
+            reroutePairs();
         }
 
     }
@@ -1871,6 +2258,9 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         if (this.iceStatus != iceStatus) {
             IceStatus oldStatus = this.iceStatus;
             this.iceStatus = iceStatus;
+            if (iceStatus == IceStatus.SUCCESS || iceStatus == IceStatus.FAILED) {
+                metrics.completed();
+            }
 
             if (iceStatus != IceStatus.STOPPED) {
                 sendSessionUpdate();
@@ -1969,6 +2359,35 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         }
     }
 
+    /**
+     * A remote session description waiting to be processed, with its
+     * candidates if they were scanned from the SDP text
+     */
+    static class RemoteUpdate {
+
+        final SessionDescription session;
+        final IceSdpScanner scanned;
+
+        RemoteUpdate(SessionDescription session, IceSdpScanner scanned) {
+            this.session = session;
+            this.scanned = scanned;
+        }
+    }
+
+    /**
+     * A remote candidate waiting to be added to the check list
+     */
+    static class TrickledCandidate {
+
+        final int mediaIndex;
+        final RemoteCandidate candidate;
+
+        TrickledCandidate(int mediaIndex, RemoteCandidate candidate) {
+            this.mediaIndex = mediaIndex;
+            this.candidate = candidate;
+        }
+    }
+
     class IceReplyFuture implements Future<IceReply> {
 
         final Future<StunReply> stunReplyFuture;
@@ -2015,6 +2434,8 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         public IceReply get() throws InterruptedException, ExecutionException {
             if (cause != null) {
                 return new IceReplyImpl(cause);
+            } else if (stunReplyFuture.isCancelled()) {
+                return timedOut();
             } else {
                 StunReply reply = stunReplyFuture.get();
                 return reply != null ? new IceReplyImpl(reply) : null;
@@ -2025,11 +2446,67 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         public IceReply get(long l, TimeUnit tu) throws InterruptedException, ExecutionException, TimeoutException {
             if (cause != null) {
                 return new IceReplyImpl(cause);
+            } else if (stunReplyFuture.isCancelled()) {
+                return timedOut();
             } else {
                 StunReply reply = stunReplyFuture.get(l, tu);
                 return reply != null ? new IceReplyImpl(reply) : null;
             }
         }
+
+        // A transaction which gave up is an ordinary failed check
+        private IceReply timedOut() {
+            return new IceReplyImpl(new TimeoutException("No reply from the remote peer"));
+        }
+
+        /**
+         * Have the handler called once the reply is in.  Replies from sockets
+         * which can't notify are never reported, and must be polled.
+         */
+        void addCompletionHandler(final CompletionHandler<IceReply> handler) {
+            if (cause != null) {
+                handler.completed(new IceReplyImpl(cause));
+            } else if (stunReplyFuture instanceof NotifyingFuture) {
+                ((NotifyingFuture<StunReply>) stunReplyFuture).addCompletionHandler(new CompletionHandler<StunReply>() {
+
+                    @Override
+                    public void cancelled() {
+                        handler.completed(timedOut());
+                    }
+
+                    @Override
+                    public void failed(Throwable throwable) {
+                        handler.completed(new IceReplyImpl(throwable));
+                    }
+
+                    @Override
+                    public void completed(StunReply result) {
+                        handler.completed(new IceReplyImpl(result));
+                    }
+
+                    @Override
+                    public void updated(StunReply result) {
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A nomination waiting for its reply, and the pairs of the same component
+     * to try next if it is refused
+     */
+    static class PendingNomination {
+
+        final CandidatePair pair;
+        final Future<IceReply> reply;
+        final List<CandidatePair> fallbacks;
+
+        PendingNomination(CandidatePair pair, Future<IceReply> reply, List<CandidatePair> fallbacks) {
+            this.pair = pair;
+            this.reply = reply;
+            this.fallbacks = fallbacks;
+        }
     }
 
     /**
@@ -2038,6 +2515,8 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
      *
      * @param remoteConnection Default Connection (c-line) of the SDP offer
      * @param remoteOffer A list of MediaDescriptions (m-lines) from the SDP offer
+     * @param scanned The candidates of each media scanned from the SDP text,
+     * or null if they are to be read from the MediaDescriptions
      * @return A list of Candidates extracted from the map key MediaDescriptions
      * @throws SdpException
      * @throws SdpParseException
@@ -2045,18 +2524,25 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
      */
     private Map<MediaDescription, List<RemoteCandidate>> extractRemoteCandidates(
             Connection remoteConnection,
-            List<MediaDescription> remoteOffer)
+            List<MediaDescription> remoteOffer, IceSdpScanner scanned)
             throws SdpException, SdpParseException, UnknownHostException {
         Map<MediaDescription, List<RemoteCandidate>> retval = new LinkedHashMap<MediaDescription, List<RemoteCandidate>>();
+        int mediaIndex = 0;
         for (MediaDescription media : remoteOffer) {
             List<RemoteCandidate> candidateList = new LinkedList<RemoteCandidate>();
             int candidateCount = 0;
-            for (Attribute attribute : (Vector<Attribute>) media.getAttributes(true)) {
-                if (attribute.getName().compareTo(CANDIDATE_NAME) == 0) {
-                    candidateList.add(new RemoteCandidate(attribute));
-                    candidateCount++;
+            if (scanned != null && mediaIndex < scanned.getMediaCount()) {
+                candidateList.addAll(scanned.getCandidates(mediaIndex));
+                candidateCount = candidateList.size();
+            } else {
+                for (Attribute attribute : (Vector<Attribute>) media.getAttributes(true)) {
+                    if (attribute.getName().compareTo(CANDIDATE_NAME) == 0) {
+                        candidateList.add(CandidateSdp.parseCandidate(attribute.getValue()));
+                        candidateCount++;
+                    }
                 }
             }
+            mediaIndex++;
             if (candidateCount == 0) {
                 // Use the media and C line to form a candidate
                 TransportType tt;
@@ -2161,7 +2647,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         for (Attribute attr : (Vector<Attribute>) md.getAttributes(false)) {
             try {
                 if (attr.getName().compareTo(CANDIDATE_NAME) == 0) {
-                    RemoteCandidate candidate = new RemoteCandidate(attr);
+                    RemoteCandidate candidate = CandidateSdp.parseCandidate(attr.getValue());
                     if (candidate != null) {
                         remoteCandidates.add(candidate);
                     }
@@ -2276,10 +2762,9 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                 }
 
                 // Add candidates to the Media Description
-                for (LocalCandidate candidate : socketCandidateMap.get(socket)) {
+                for (String value : getCandidateLineCache(socket).getValues(socketCandidateMap.get(socket))) {
                     media.getAttributes(true).add(sdpFactory.createAttribute(
-                            "candidate",
-                            candidate.toAttributeFormat()));
+                            CANDIDATE_NAME, value));
                 }
             }
 
@@ -2322,6 +2807,27 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
 
     }
 
+    /**
+     * Get the a=candidate lines of all local candidates of a socket as SDP
+     * text, for applications which build their SDP without JAIN SDP.  The
+     * text is only rendered again when the candidates change.
+     *
+     * @param socket the socket to describe
+     * @return one a=candidate line per candidate, each ending in CRLF
+     */
+    public synchronized String getCandidateSdp(IceSocket socket) {
+        return getCandidateLineCache(socket).getLines(getLocalCandidates(socket));
+    }
+
+    private CandidateLineCache getCandidateLineCache(IceSocket socket) {
+        CandidateLineCache cache = candidateLines.get(socket);
+        if (cache == null) {
+            cache = new CandidateLineCache();
+            candidateLines.put(socket, cache);
+        }
+        return cache;
+    }
+
     /**
      * Create a SessionDescription that can be used to notify peers of the media
      * offered by this ICE State Machine.
@@ -2363,6 +2869,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         // Compute the priority of each candidate
         // Get the interface priorities
         // TODO: allow this to be customized
+        List<InterfaceProfile> interfaceData = StunServerMonitor.getInterfaceProfiles();
 
         // Compute a priority for each
         for (LocalCandidate candidate : candidates) {
@@ -2474,7 +2981,9 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         for (IceSocket socket : matchCandidates.keySet()) {
             List<CandidatePair> original = matchCandidates.get(socket);
             List<CandidatePair> updates = checkPairs.get(socket);
-
+            if (updates == null) {
+                continue;
+            }
 
             for (CandidatePair update : updates) {
                 // Do exact matches and update status
@@ -2525,6 +3034,70 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
             }
         }
         nominated.get(socket).set(pair.getComponentId(), pair);
+        nominationChanged(socket);
+    }
+
+    /**
+     * Hand a changed nomination to the channels, if they are already sending
+     * on the nominated pairs.  They get a copy, as the nominated list goes on
+     * being modified in place.
+     *
+     * @param socket the socket whose nomination changed
+     */
+    private void nominationChanged(IceSocket socket) {
+        if (nominationSelected.contains(socket)) {
+            selectPairs(socket, new ArrayList<CandidatePair>(nominated.get(socket)));
+        }
+    }
+
+    /**
+     * Switch the pairs media is sent on for a socket, and let the socket know
+     * so it can drop any destinations it has cached for this peer.
+     *
+     * @param socket the socket whose pairs changed
+     * @param pairs the pairs to use, one per component
+     */
+    private void selectPairs(IceSocket socket, List<CandidatePair> pairs) {
+        selectedPairs.put(socket, pairs);
+        if (socket instanceof IceDatagramSocket) {
+            ((IceDatagramSocket) socket).selectionChanged(this);
+        }
+    }
+
+    /**
+     * Use a valid pair for media while nomination is still in progress.  The
+     * pair only replaces an earlier one of lower priority, and is never used
+     * once a nomination for its socket has been selected.  Lists in
+     * selectedPairs are replaced rather than modified, so channels writing
+     * concurrently always see a consistent list.
+     *
+     * @param pair a pair which just succeeded its connectivity check
+     */
+    private void selectEarlyPair(CandidatePair pair) {
+        IceSocket socket = pair.getLocalCandidate().getIceSocket();
+        List<CandidatePair> current = selectedPairs.get(socket);
+        if (nominationSelected.contains(socket)) {
+            return;
+        }
+
+        short componentId = pair.getComponentId();
+        CandidatePair currentPair = (current != null && current.size() > componentId)
+                ? current.get(componentId) : null;
+        if (currentPair != null && currentPair.getPriority() >= pair.getPriority()) {
+            return;
+        }
+
+        List<CandidatePair> updated = new ArrayList<CandidatePair>(socket.getComponents());
+        for (int i = 0; i < socket.getComponents(); i++) {
+            updated.add(current != null && current.size() > i ? current.get(i) : null);
+        }
+        updated.set(componentId, pair);
+        selectPairs(socket, updated);
+
+        log.log(Level.FINE, "{0} early media on {1} <-> {2}", new Object[]{
+                    getPeerId(),
+                    pair.getLocalCandidate().getSocketAddress(),
+                    pair.getRemoteCandidate().getSocketAddress()});
     }
 
     /**
@@ -2549,9 +3122,14 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         CONTROLLING, CONTROLLED
     }
 
+    /**
+     * REGULAR nominates once checks have finished, AGGRESSIVE nominates the
+     * first pair to succeed.  HYBRID nominates like REGULAR, but sends media
+     * on the highest priority pair to succeed until the nomination completes.
+     */
     public enum NominationType {
 
-        REGULAR, AGGRESSIVE
+        REGULAR, AGGRESSIVE, HYBRID
     }
 
     @Override
@@ -2638,6 +3216,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                     }
                 }
                 nominated.get(pair.getLocalCandidate().getIceSocket()).set(pair.getLocalCandidate().getComponentId(), pair);
+                nominationChanged(pair.getLocalCandidate().getIceSocket());
 
 
             } else {
@@ -2666,6 +3245,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                     }
                 }
                 nominated.get(pair.getLocalCandidate().getIceSocket()).set(pair.getLocalCandidate().getComponentId(), pair);
+                nominationChanged(pair.getLocalCandidate().getIceSocket());
 
 
             }
@@ -2695,6 +3275,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         setIceStatus(IceStatus.STOPPED);
         // Stop any ongoing ICE processing
         stop();
+        metrics.unregister();
         // Close down all connections
         for (List<LocalCandidate> localCandidates : socketCandidateMap.values()) {
             for (LocalCandidate localCandidate : localCandidates) {
@@ -2707,13 +3288,23 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
                 }
             }
         }
+        // Stop sending media from this peer
+        selectedPairs.clear();
+        for (IceSocket socket : iceSockets) {
+            if (socket instanceof IceDatagramSocket) {
+                ((IceDatagramSocket) socket).selectionChanged(this);
+                ((IceDatagramSocket) socket).routesInvalidated(this);
+            }
+        }
         // Release references
         socketCandidateMap.clear();
+        candidateLines.clear();
         channels.clear();
         checkPairs.clear();
         iceSockets.clear();
         mediaCandidates.clear();
         nominated.clear();
+        nominationSelected.clear();
         triggeredCheckQueue.clear();
     }
 
@@ -2730,24 +3321,99 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         remotePassword = null;
 
         iceStatus = IceStatus.IN_PROGRESS;
+        metrics.started();
 
         checkPairs.clear();
+        pendingNominations.clear();
         triggeredCheckQueue.clear();
+        trickledCandidates.clear();
+        for (IceSocket socket : iceSockets) {
+            if (socket instanceof IceDatagramSocket) {
+                ((IceDatagramSocket) socket).routesInvalidated(this);
+            }
+        }
 
         if (resetPeer) {
             localUFrag = generateHashString(UFRAG_LENGTH);
             localPassword = generateHashString(PASSWORD_LENGTH);
         }
         nominated.clear();
+        nominationSelected.clear();
+
+        if (trickle || localOnly) {
+            for (IceSocket socket : iceSockets) {
+                getLocalCandidates(socket, true);
+            }
+            finishReset(localControl);
+            return;
+        }
 
+        /**
+         * Address discovery blocks on STUN, TURN and UPnP round trips, so
+         * run it off the agent's scheduler, holding the host candidates until
+         * it is done.  The restarted offer goes out once every socket has its
+         * full candidate list.
+         */
+        final Map<IceSocket, List<LocalCandidate>> hostCandidates = new LinkedHashMap<IceSocket, List<LocalCandidate>>();
         for (IceSocket socket : iceSockets) {
-            getLocalCandidates(socket, true);
+            List<LocalCandidate> hosts = removeDuplicates(prioritize(collectHostCandidates(socket)));
+            socketCandidateMap.put(socket, hosts);
+            hostCandidates.put(socket, hosts);
+        }
+        discoveryExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Map<IceSocket, List<LocalCandidate>> found = new HashMap<IceSocket, List<LocalCandidate>>();
+                for (Entry<IceSocket, List<LocalCandidate>> entry : hostCandidates.entrySet()) {
+                    found.put(entry.getKey(), discoverAddresses(new LinkedList<LocalCandidate>(entry.getValue())));
+                }
+                completeReset(localControl, hostCandidates, found);
+            }
+        });
+    }
+
+    /**
+     * Install the candidates found by a reset's address discovery, pair them
+     * with any remote candidates which came in meanwhile, then send the
+     * restarted offer.
+     *
+     * @param localControl the role the reset was asked for
+     * @param hostCandidates the candidate lists the discovery was started from
+     * @param found the newly discovered candidates of each socket
+     */
+    private synchronized void completeReset(boolean localControl, Map<IceSocket, List<LocalCandidate>> hostCandidates,
+            Map<IceSocket, List<LocalCandidate>> found) {
+        for (Entry<IceSocket, List<LocalCandidate>> entry : hostCandidates.entrySet()) {
+            if (socketCandidateMap.get(entry.getKey()) != entry.getValue()) {
+                // Reset again, or closed, while discovery was running
+                return;
+            }
         }
+        for (Entry<IceSocket, List<LocalCandidate>> entry : hostCandidates.entrySet()) {
+            List<LocalCandidate> candidates = new LinkedList<LocalCandidate>(entry.getValue());
+            candidates.addAll(found.get(entry.getKey()));
+            candidates = removeDuplicates(prioritize(candidates));
+            socketCandidateMap.put(entry.getKey(), candidates);
+            announceCandidates(entry.getKey(), candidates);
+
+            List<LocalCandidate> added = new LinkedList<LocalCandidate>(candidates);
+            added.removeAll(entry.getValue());
+            Set<RemoteCandidate> remotes = new LinkedHashSet<RemoteCandidate>();
+            if (checkPairs.get(entry.getKey()) != null) {
+                for (CandidatePair pair : checkPairs.get(entry.getKey())) {
+                    remotes.add(pair.getRemoteCandidate());
+                }
+            }
+            addCheckPairs(entry.getKey(), added, new LinkedList<RemoteCandidate>(remotes));
+        }
+        finishReset(localControl);
+    }
 
+    private void finishReset(boolean localControl) {
         setLocalControlled(localControl);
 
         sendSessionUpdate(true);
-
     }
 
     public IceStatus getIceStatus() {
@@ -2795,7 +3461,7 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
     }
 
     public InetSocketAddress getStunServer() {
-        return stunServer;
+        return StunServerMonitor.getStunServer();
 
     }
     final Map<IceSocket, List<IceSocketChannel>> channels = new HashMap<IceSocket, List<IceSocketChannel>>();
@@ -2818,41 +3484,68 @@ abstract class IceStateMachine extends BaseFilter implements Runnable,
         }
     }
 
+    /**
+     * Datagram sockets answer from their routing table, which holds the
+     * addresses of the pairs being checked as well as the selected ones.
+     * Other sockets are checked against the selected pairs.  No lock is taken.
+     */
     @Override
     public boolean hasRemoteAddress(SocketAddress address, IceSocket socket, Short componentId) {
-        if (socket != null) {
-            if (getNominated().get(socket) != null
-                    && getNominated().get(socket).size() > componentId) {
-                List<CandidatePair> pairs = getNominated().get(socket);
-                if (componentId != null) {
-                    if (pairs.get(componentId).getRemoteCandidate().getSocketAddress().equals(address)) {
-                        return true;
-                    }
-                } else {
-                    for (CandidatePair pair : pairs) {
-                        if (pair.getRemoteCandidate().getSocketAddress().equals(address)) {
-                            return true;
-                        }
-                    }
+        if (socket instanceof IceDatagramSocket) {
+            return ((IceDatagramSocket) socket).translateSocketAddressToPeer(address, componentId) == this;
+        }
+        return hasRemoteAddress(selectedPairs, address, socket, componentId);
+    }
+
+    /**
+     * Route packets from a new pair's remote address to this peer
+     */
+    private void routePair(IceSocket socket, CandidatePair pair) {
+        if (socket instanceof IceDatagramSocket) {
+            ((IceDatagramSocket) socket).pairAdded(this, pair);
+        }
+    }
+
+    /**
+     * Route packets to this peer from the addresses of exactly the pairs it
+     * has now, after its check lists were replaced or pruned
+     */
+    private void reroutePairs() {
+        for (IceSocket socket : iceSockets) {
+            if (socket instanceof IceDatagramSocket) {
+                List<CandidatePair> pairs = new ArrayList<CandidatePair>();
+                if (checkPairs.get(socket) != null) {
+                    pairs.addAll(checkPairs.get(socket));
+                }
+                if (selectedPairs.get(socket) != null) {
+                    pairs.addAll(selectedPairs.get(socket));
                 }
+                ((IceDatagramSocket) socket).pairsChanged(this, pairs);
             }
+        }
+    }
+
+    private static boolean hasRemoteAddress(Map<IceSocket, List<CandidatePair>> pairMap,
+            SocketAddress address, IceSocket socket, Short componentId) {
+        Collection<List<CandidatePair>> pairLists;
+        if (socket != null) {
+            List<CandidatePair> pairs = pairMap.get(socket);
+            if (pairs == null) {
+                return false;
+            }
+            pairLists = Collections.singletonList(pairs);
         } else {
-            for (List<CandidatePair> pairs : getNominated().values()) {
-                if (componentId != null) {
-                    if (pairs.get(componentId).getRemoteCandidate().getSocketAddress().equals(address)) {
-                        return true;
-                    }
-                } else {
-                    for (CandidatePair pair : pairs) {
-                        if (pair.getRemoteCandidate().getSocketAddress().equals(address)) {
-                            return true;
-                        }
-                    }
+            pairLists = pairMap.values();
+        }
+        for (List<CandidatePair> pairs : pairLists) {
+            for (CandidatePair pair : pairs) {
+                if (pair != null
+                        && (componentId == null || pair.getComponentId() == componentId)
+                        && pair.getRemoteCandidate().getSocketAddress().equals(address)) {
+                    return true;
                 }
             }
         }
-
         return false;
-
     }
 }
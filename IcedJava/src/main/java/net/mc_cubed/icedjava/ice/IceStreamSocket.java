@@ -30,10 +30,9 @@ import java.util.logging.Logger;
 import javax.sdp.Media;
 import javax.sdp.SdpException;
 import javax.sdp.SdpParseException;
-import net.mc_cubed.icedjava.stun.StunUtil;
 import net.mc_cubed.icedjava.stun.TCPSocketType;
 import net.mc_cubed.icedjava.stun.TransportType;
-import net.mc_cubed.icedjava.util.ExpiringCache;
+import net.mc_cubed.icedjava.util.ConcurrentExpiringCache;
 
 /**
  * An initial implementation of ICE-TCP<br/><br/>
@@ -55,11 +54,11 @@ class IceStreamSocket implements IceSocket {
     private Short components;
     protected Media media;
     public static final String PROP_MEDIA = "media";
-    ExpiringCache<SocketAddress, IcePeer> socketCache = new ExpiringCache<SocketAddress, IcePeer>();
+    ConcurrentExpiringCache<SocketAddress, IcePeer> socketCache = new ConcurrentExpiringCache<SocketAddress, IcePeer>();
     TCPSocketType tcpSocketType;
        
     protected IceStreamSocket(Media media) {
-        this(StunUtil.getCachedStunServerSocket(),media);
+        this(StunServerMonitor.getStunServer(),media);
         
     }
     protected IceStreamSocket(InetSocketAddress stunServer)
@@ -33,12 +33,13 @@ import java.util.logging.Logger;
 import javax.enterprise.inject.Produces;
 import javax.inject.Named;
 import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
+import net.mc_cubed.icedjava.stun.StunServerPool;
 import net.mc_cubed.icedjava.stun.StunSocketType;
 import net.mc_cubed.icedjava.stun.StunReply;
 import net.mc_cubed.icedjava.stun.StunSocket;
 import net.mc_cubed.icedjava.stun.StunUtil;
 import net.mc_cubed.icedjava.stun.annotation.StunServer;
-import net.mc_cubed.icedjava.util.ExpiringCache;
+import net.mc_cubed.icedjava.util.ConcurrentExpiringCache;
 
 /**
  * A series of useful ICE functions for both internal, and application use.
@@ -49,8 +50,8 @@ import net.mc_cubed.icedjava.util.ExpiringCache;
 @Named
 public class IceUtil {
 
-    protected static ExpiringCache<InetSocketAddress, List<InterfaceProfile>> cacheList =
-            new ExpiringCache<InetSocketAddress, List<InterfaceProfile>>();
+    protected static ConcurrentExpiringCache<InetSocketAddress, List<InterfaceProfile>> cacheList =
+            new ConcurrentExpiringCache<InetSocketAddress, List<InterfaceProfile>>();
 
     /**
      * Returns the most likely to succeed interface candidate based on tests
@@ -73,7 +74,7 @@ public class IceUtil {
             cacheList.admit(stunServer, ifaceList);
         }
 
-        if (ifaceList != null) {
+        if (ifaceList != null && !ifaceList.isEmpty()) {
             return ifaceList.get(0);
         } else {
             return null;
@@ -110,6 +111,9 @@ public class IceUtil {
     protected static List<InterfaceProfile> doInterfaceDiscovery(InetSocketAddress stunServer) {
         // Check the interfaces to see which can contact the internet
         List<InterfaceProfile> ifaceList = new ArrayList<InterfaceProfile>();
+        // Outcome of the tests, reported to the server pool
+        boolean tested = false;
+        long roundTrip = -1;
 
         try {
 
@@ -132,7 +136,11 @@ public class IceUtil {
                             StunReply reply = socket.doTest(stunServer).get();
                             long testInterval = new Date().getTime() - startTime;
 
+                            tested = true;
                             if (reply != null && reply.isSuccess()) {
+                                if (roundTrip < 0) {
+                                    roundTrip = reply.getRoundTripMicros();
+                                }
                                 ifaceList.add(new InterfaceProfile(
                                         iface,
                                         addr,
@@ -161,6 +169,12 @@ public class IceUtil {
 
             Collections.sort(ifaceList, new InterfaceProfileComparator());
 
+            if (roundTrip >= 0) {
+                StunServerPool.reportSuccess(stunServer, roundTrip);
+            } else if (tested) {
+                StunServerPool.reportFailure(stunServer);
+            }
+
             return ifaceList;
         } catch (Exception ex) {
             Logger.getLogger(IceUtil.class.getName()).log(Level.SEVERE, "Caught an exception during interface discovery", ex);
@@ -19,20 +19,17 @@
  */
 package net.mc_cubed.icedjava.ice;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import javax.sdp.SdpParseException;
-import java.io.IOException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.util.Set;
 import javax.media.rtp.RTPConnector;
 import javax.sdp.Media;
 import net.mc_cubed.icedjava.ice.event.IceBytesAvailableEvent;
 import net.mc_cubed.icedjava.ice.event.IceEvent;
 import net.mc_cubed.icedjava.ice.event.IceEventListener;
-import net.mc_cubed.icedjava.stun.StunUtil;
-import net.mc_cubed.icedjava.util.WeakHashSet;
+import net.mc_cubed.icedjava.stun.MultiplexedProtocol;
+import net.mc_cubed.icedjava.stun.RFC7983DemultiplexingFilter;
+import net.mc_cubed.icedjava.util.CopyOnWriteWeakSet;
 
 /**
  * IcedRTPConnector implements a RTP Connector implementation that leverages the
@@ -46,7 +43,9 @@ public class IcedRTPConnector extends IceDatagramSocket
         implements IceSocket, IceEventListener {
 
     public static final int MAX_RTP_PACKET_SIZE = 4096;
-    private final Set<IcedRTPConnectorComponent> bidirectionalConnectors = new WeakHashSet<IcedRTPConnectorComponent>();
+    private final CopyOnWriteWeakSet<IcedRTPConnectorComponent> bidirectionalConnectors =
+            new CopyOnWriteWeakSet<IcedRTPConnectorComponent>();
+    private final Object pushLock = new Object();
 
     public RTPConnector getReceivingConnector() {
         // TODO: Implement a receiver (RTP data + RTCP Sender reports incoming)
@@ -69,62 +68,52 @@ public class IcedRTPConnector extends IceDatagramSocket
     public void iceEvent(IceEvent event) {
         if (event instanceof IceBytesAvailableEvent) {
             IceBytesAvailableEvent bytesEvent = (IceBytesAvailableEvent) event;
-            ByteBuffer buffer = ByteBuffer.allocate(StunUtil.MAX_PACKET_SIZE);
+            // Take the channel's own receive buffer rather than copying it out
+            PooledBuffer packet = bytesEvent.getSocketChannel().receive();
+            if (packet == null) {
+                return;
+            }
             try {
-                bytesEvent.getSocketChannel().read(buffer);
+                ByteBuffer buffer = packet.getBuffer();
                 short channelNum;
                 // If only one component, do RTCP differentiation, otherwise use the channel number
                 if (this.getComponents() == 1) {
-                    channelNum = (isRTCP(buffer)) ? (short) 1 : (short) 0;
+                    channelNum = isRTCP(buffer) ? (short) 1 : (short) 0;
                 } else {
                     channelNum = (short) event.getIcePeer().getChannels(this).indexOf(bytesEvent.getSocketChannel());
                 }
-                for (IcedRTPConnectorComponent connector : bidirectionalConnectors) {
-                    connector.pushBuffer(buffer, channelNum);
+                CopyOnWriteWeakSet.Snapshot<IcedRTPConnectorComponent> connectors =
+                        bidirectionalConnectors.getSnapshot();
+                /**
+                 * Each component's packet ring takes a single producer, so
+                 * events arriving on different threads for this socket are
+                 * serialized here.  Readers never take this lock.
+                 */
+                synchronized (pushLock) {
+                    for (int i = 0; i < connectors.size(); i++) {
+                        IcedRTPConnectorComponent connector = connectors.get(i);
+                        if (connector != null) {
+                            connector.pushBuffer(buffer, channelNum);
+                        }
+                    }
+                }
+                // A slow or re-entrant JMF handler must not hold up the
+                //  other components, or the socket's other receive threads
+                for (int i = 0; i < connectors.size(); i++) {
+                    IcedRTPConnectorComponent connector = connectors.get(i);
+                    if (connector != null) {
+                        connector.transferData(channelNum);
+                    }
                 }
-            } catch (IOException ex) {
-                Logger.getLogger(IcedRTPConnector.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                packet.release();
             }
         }
     }
 
     private boolean isRTCP(ByteBuffer buffer) {
-        // Mark where the buffer is now
-        buffer.mark();
-        
-        try {
-            // The type field, which can be used to differentiate RTP from RTCP
-            switch (buffer.get(1)) {
-                case (byte) 0xc0: // FIR, full INTRA-frame request.
-                case (byte) 0xc1: // NACK, negative acknowledgement
-                case (byte) 0xc2: // SMPTETC, SMPTE time-code mapping.
-                case (byte) 0xc3: // IJ, extended inter-arrival jitter report.
-
-                case (byte) 0xc8: // SR, sender report.
-                case (byte) 0xc9: // RR, receiver report.
-                case (byte) 0xca: // SDES, source description.
-                case (byte) 0xcb: // BYE, goodbye.
-                case (byte) 0xcc: // APP, application defined.
-
-                case (byte) 0xcd: // RTPFB, Generic RTP Feedback.
-                case (byte) 0xce: // PSFB, Payload-specific.
-                case (byte) 0xcf: // XR, RTCP extension.
-                case (byte) 0xd0: // AVB, AVB RTCP packet.
-                case (byte) 0xd1: // RSI, Receiver Summary Information.
-
-                    /**
-                     * Matched an RTCP type we were looking for, so this is most
-                     *  likely an RTCP packet, not an RTP packet.
-                     */ 
-                    
-                    return true;
-                default:
-                    return false;
-            }
-        } finally {
-            // Make sure we reset to avoid upsetting the buffer position
-            buffer.reset();
-        }
+        // RTCP packet types occupy 192 to 223 of the second byte, RFC 5761
+        return RFC7983DemultiplexingFilter.classify(buffer) == MultiplexedProtocol.RTCP;
     }
 
     public IcedRTPConnector() throws SocketException, SdpParseException {
@@ -6,8 +6,6 @@ package net.mc_cubed.icedjava.ice;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.media.protocol.ContentDescriptor;
@@ -103,13 +101,25 @@ class IcedRTPConnectorComponent implements RTPConnector {
         }
     }
 
+    void transferData(short channelNum) {
+        if (channelNum == 0) {
+            rtpSocket.transferData();
+        } else {
+            rtcpSocket.transferData();
+        }
+    }
+
     class BidirectionalStreamSocket implements PushSourceStream,
             OutputDataStream {
 
-        final private Queue<ByteBuffer> packetQueue =
-                new LinkedList<ByteBuffer>();
+        /**
+         * Filled by the connector's event thread, drained by the JMF
+         * transfer handler, so it never needs a lock
+         */
+        final private RTPPacketRing packetRing =
+                new RTPPacketRing(QUEUE_MAX_SIZE);
         private IceSocket socket;
-        private SourceTransferHandler sourceHandler;
+        private volatile SourceTransferHandler sourceHandler;
         private final ContentDescriptor contentDescriptor;
         private final short componentId;
 
@@ -137,37 +147,12 @@ class IcedRTPConnectorComponent implements RTPConnector {
          */
         @Override
         public int read(byte[] outBuffer, int offset, int length) throws IOException {
-            // Get the monitor since we're about to do something sensitive to 
-            // changes in the queue
-            synchronized (packetQueue) {
-                // Basic Sanity checks, do these before we remove the packet from
-                // the queue.  This is why we need the monitor.
-                ByteBuffer inBuffer = packetQueue.peek();
-                if (inBuffer != null) {
-                    if (length < inBuffer.remaining()) {
-                        throw new IOException("Packet size greater than buffer length");
-                    }
-                    if (outBuffer.length - offset < length) {
-                        throw new IOException("Buffer Size Overrun");
-                    }
-
-                    // Get the packet we just peeked at
-                    inBuffer = packetQueue.poll();
-                    // Copy the data
-                    try {
-                        System.arraycopy(inBuffer.array(), inBuffer.arrayOffset() + inBuffer.position(), outBuffer, offset, inBuffer.remaining());
-                    } catch (Exception ex) {
-                        // Replace the packet in the queue if an exception occurs
-                        ((LinkedList) packetQueue).addFirst(inBuffer);
-                        throw new IOException("Exception thrown while copying data into read buffer", ex);
-                    }
-                    return inBuffer.remaining();
-                } else {
-                    Logger.getLogger(getClass().getName()).log(Level.INFO, "No data available reading from {0}", this);
-                    return 0;
-                }
+            int bytesRead = packetRing.poll(outBuffer, offset, length);
+            if (bytesRead < 0) {
+                Logger.getLogger(getClass().getName()).log(Level.INFO, "No data available reading from {0}", this);
+                return 0;
             }
-
+            return bytesRead;
         }
 
         /**
@@ -180,12 +165,7 @@ class IcedRTPConnectorComponent implements RTPConnector {
          */
         @Override
         public int getMinimumTransferSize() {
-            ByteBuffer packet = packetQueue.peek();
-            if (packet != null) {
-                return packet.remaining();
-            } else {
-                return -1;
-            }
+            return packetRing.peekLength();
         }
 
         /**
@@ -267,6 +247,10 @@ class IcedRTPConnectorComponent implements RTPConnector {
         @SuppressWarnings("CallToThreadDumpStack")
         public synchronized int write(byte[] buffer, int offset, int length) {
             ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+            if (socket instanceof IceDatagramSocket) {
+                ((IceDatagramSocket) socket).sendToAll(bb, componentId);
+                return length;
+            }
             for (IcePeer peer : socket.getPeers()) {
                 try {
                     peer.getChannels(socket).get(componentId).write(bb);
@@ -286,36 +270,34 @@ class IcedRTPConnectorComponent implements RTPConnector {
 
         }
 
+        /**
+         * Queue a copy of a received packet for the transfer handler.  Must
+         * not be called by more than one thread at a time.  The handler is
+         * not told, call transferData() for that once the packet is queued.
+         *
+         * @param inputBuffer packet to queue, its position is left untouched
+         */
         public void pushBuffer(ByteBuffer inputBuffer) {
-            ByteBuffer buffer = ByteBuffer.allocate(inputBuffer.remaining());
-            inputBuffer.mark();
-            buffer.put(inputBuffer);
-            inputBuffer.reset();
-            buffer.flip();
-            if (buffer.remaining() == 0) {
+            if (inputBuffer.remaining() == 0) {
                 Logger.getLogger(getClass().getName()).log(
                         Level.SEVERE,
                         "Got a null buffer in IcedRTPConnectorComponent.");
-            } else {
-                // Get object's monitor since we're changing it.
-                synchronized (packetQueue) {
-                    // Add the packet to the queue
-                    packetQueue.add(buffer);
-                    
-                    // Do length checking on the buffer
-                    while (packetQueue.size() > QUEUE_MAX_SIZE) {
-                        packetQueue.poll();
-                    } 
-                    // Notify all listeners in case someone is waiting for data
-                    packetQueue.notifyAll();
-                }
-                // If there's a source handler set, notify them too
-                // Do this outside synchronized block to avoid potential deadlocks
-                if (sourceHandler != null) {
-                    sourceHandler.transferData(this);
-                }
+            } else if (!packetRing.offer(inputBuffer)) {
+                Logger.getLogger(getClass().getName()).log(Level.FINE,
+                        "Dropping packet due to buffer overrun on {0}", this);
             }
+        }
 
+        /**
+         * Tell the transfer handler, if one is set, that packets are waiting.
+         * The handler may read the stream from within, so call this without
+         * holding any lock.
+         */
+        public void transferData() {
+            SourceTransferHandler handler = sourceHandler;
+            if (handler != null) {
+                handler.transferData(this);
+            }
         }
     }
 }
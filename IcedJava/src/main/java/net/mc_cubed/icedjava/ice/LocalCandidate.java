@@ -47,7 +47,7 @@ public class LocalCandidate extends Candidate {
     private final IcePeer owner;
     private final IceSocket iceSocket;
 
-    protected Date nextKeepalive;
+    protected volatile Date nextKeepalive;
 
     /**
      * Get the value of nextKeepalive
@@ -157,6 +157,16 @@ public class LocalCandidate extends Candidate {
         return iceSocket;
     }
 
+    /**
+     * Get the socket this candidate sends from.  Several candidates may share
+     * one, as server reflexive candidates share their base's.
+     *
+     * @return the demultiplexer socket of this candidate
+     */
+    public DemultiplexerSocket getDemultiplexerSocket() {
+        return socket;
+    }
+
     @Override
     public String toString() {
         return getClass().getName() + "[type=" + getType() + ":address=" + getAddress() + ":port=" + getPort() + ":priority=" + getPriority() + ":componentId=" + getComponentId() + ((getBase() != this) ? ":base=" + getBase() : ":base=this") + ":socket=" + socket + "]";
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+
+/**
+ * A reference counted receive buffer handed out by an IceSocketChannel.  The
+ * holder of a PooledBuffer must call release() once it is done with the data,
+ * at which point the buffer goes back to the channel's pool and is reused for
+ * a later datagram.  Code that passes the buffer on to other threads should
+ * retain() it once for each additional holder.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see IceSocketChannel#receive()
+ */
+public class PooledBuffer {
+
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private final AtomicInteger references = new AtomicInteger();
+    private volatile SocketAddress address;
+    // Set while a write holds a reference, so that it is released only once
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // Lets a write hand its reference to the transport, see releaseOnWrite()
+    private final CompletionHandler<WriteResult<ByteBuffer, SocketAddress>> releaseHandler =
+            new CompletionHandler<WriteResult<ByteBuffer, SocketAddress>>() {
+
+                @Override
+                public void cancelled() {
+                    releaseWrite();
+                }
+
+                @Override
+                public void failed(Throwable throwable) {
+                    releaseWrite();
+                }
+
+                @Override
+                public void completed(WriteResult<ByteBuffer, SocketAddress> result) {
+                    releaseWrite();
+                }
+
+                @Override
+                public void updated(WriteResult<ByteBuffer, SocketAddress> result) {
+                }
+            };
+
+    PooledBuffer(BufferPool pool, int size) {
+        this.pool = pool;
+        this.buffer = ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Get the received data.  The buffer is flipped and ready for reading.
+     *
+     * @return the data of this datagram
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the address this datagram was received from
+     *
+     * @return the source address
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Add a reference to this buffer.  Each call must be matched with a call
+     * to release().
+     *
+     * @return this buffer
+     */
+    public PooledBuffer retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.getAndDecrement();
+            throw new IllegalStateException("Buffer has already been released");
+        }
+        return this;
+    }
+
+    /**
+     * Drop a reference to this buffer, returning it to the pool when no
+     * references remain.  The buffer must not be touched after its last
+     * reference has been released.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            buffer.clear();
+            address = null;
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("Buffer has already been released");
+        }
+    }
+
+    /**
+     * A write completion handler which releases one reference to this buffer
+     * when the write finishes, however it finishes.  Passing it to a write
+     * hands that reference over to the transport.
+     */
+    CompletionHandler<WriteResult<ByteBuffer, SocketAddress>> releaseOnWrite() {
+        writing.set(true);
+        return releaseHandler;
+    }
+
+    /**
+     * Release the reference handed to a write by releaseOnWrite(), unless the
+     * write has already released it.  Lets a caller whose write threw clean
+     * up without knowing whether the handler was told of the failure.
+     */
+    void releaseWrite() {
+        if (writing.compareAndSet(true, false)) {
+            release();
+        }
+    }
+
+    int getReferenceCount() {
+        return references.get();
+    }
+
+    void setAddress(SocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Called by the pool when handing out this buffer
+     */
+    void acquired() {
+        references.set(1);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single producer, single consumer ring of packets.  Packets are
+ * copied into byte arrays owned by the ring, which are allocated the first
+ * time a slot is used (or a larger packet than the slot has seen arrives) and
+ * reused from then on.  Neither side takes a lock: the producer publishes a
+ * slot by advancing the tail, and the consumer frees it by advancing the
+ * head.
+ *
+ * Only one thread may offer at a time, and only one thread may poll at a time.
+ * When the ring is full new packets are dropped rather than overwriting ones
+ * the consumer may be reading.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+class RTPPacketRing {
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int mask;
+    // Next slot to be read, written only by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to be written, written only by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity number of packets the ring can hold, rounded up to a
+     * power of two
+     */
+    RTPPacketRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        slots = new byte[size][];
+        lengths = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer into the ring.  The position of the
+     * source buffer is left untouched.
+     *
+     * @param src the packet to enqueue
+     * @return true if the packet was queued, false if the ring was full
+     */
+    boolean offer(ByteBuffer src) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int index = (int) (t & mask);
+        int length = src.remaining();
+        byte[] slot = slots[index];
+        if (slot == null || slot.length < length) {
+            slot = new byte[length];
+            slots[index] = slot;
+        }
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + src.position(), slot, 0, length);
+        } else {
+            int position = src.position();
+            src.get(slot, 0, length);
+            src.position(position);
+        }
+        lengths[index] = length;
+        // Publish the slot to the consumer
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Get the size of the next packet without removing it
+     *
+     * @return the packet length, or -1 if the ring is empty
+     */
+    int peekLength() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        return lengths[(int) (h & mask)];
+    }
+
+    /**
+     * Copy the next packet into the given array and remove it from the ring.
+     * If the packet doesn't fit, it is left in the ring.
+     *
+     * @param out destination array
+     * @param offset offset into out to copy to
+     * @param length space available in out
+     * @return the number of bytes copied, or -1 if the ring is empty
+     * @throws IOException if the packet doesn't fit in the space given
+     */
+    int poll(byte[] out, int offset, int length) throws IOException {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        int index = (int) (h & mask);
+        int packetLength = lengths[index];
+        if (length < packetLength) {
+            throw new IOException("Packet size greater than buffer length");
+        }
+        if (out.length - offset < length) {
+            throw new IOException("Buffer Size Overrun");
+        }
+        System.arraycopy(slots[index], 0, out, offset, packetLength);
+        // Hand the slot back to the producer
+        head.lazySet(h + 1);
+        return packetLength;
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return number of packets dropped because the ring was full
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+}
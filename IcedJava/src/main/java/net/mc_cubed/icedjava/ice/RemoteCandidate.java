@@ -22,10 +22,8 @@ package net.mc_cubed.icedjava.ice;
 import net.mc_cubed.icedjava.stun.TransportType;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.StringTokenizer;
 import javax.sdp.Attribute;
 import javax.sdp.SdpParseException;
-import net.mc_cubed.icedjava.stun.TCPSocketType;
 
 /**
  * Implementation of a Remote Candidate, which is most often initialized from an
@@ -87,43 +85,51 @@ public class RemoteCandidate extends Candidate {
      * @throws UnknownHostException
      */
     public RemoteCandidate(Attribute srcAttribute) throws SdpParseException, UnknownHostException {
-        StringTokenizer tokens = new StringTokenizer(srcAttribute.getValue());
-        foundation = tokens.nextToken();
-        componentId = Short.valueOf(tokens.nextToken());
-        transport = TransportType.valueOf(tokens.nextToken());
-        priority = Integer.valueOf(tokens.nextToken());
-        address = InetAddress.getByName(tokens.nextToken());
-        port = Integer.valueOf(tokens.nextToken());
-        if (tokens.nextToken().compareTo("typ") != 0) {
-            throw new SdpParseException(0, 0, "Expected 'typ' token, but did not find it!");
-        };
-        type = CandidateType.netValOf(tokens.nextToken());
-
-
-        switch (type) {
+        this(new CandidateSdp.Tokens(srcAttribute.getValue()));
+    }
 
-            case LOCAL:
-                // No remote values present
-                break;
-            default:
-                // All other types give some kind of remote address/port combination
-                if (tokens.nextToken().compareTo("raddr") != 0) {
-                    throw new SdpParseException(0, 0, "Expected 'raddr' token, but did not find it!");
-                }
-                setBaseAddress(InetAddress.getByName(tokens.nextToken()));
-                if (tokens.nextToken().compareTo("rport") != 0) {
-                    throw new SdpParseException(0, 0, "Expected 'rport' token, but did not find it!");
-                }
-                setBasePort(Integer.valueOf(tokens.nextToken()));
-                break;
+    /**
+     * Parse the value of a candidate attribute directly into a new candidate
+     *
+     * @param tokens the tokens of the value, none read yet
+     * @see CandidateSdp#parseCandidate(CharSequence, int, int)
+     */
+    RemoteCandidate(CandidateSdp.Tokens tokens) throws SdpParseException, UnknownHostException {
+        tokens.next("foundation");
+        this.foundation = tokens.toString();
+        tokens.next("component-id");
+        this.componentId = (short) tokens.toLong(0xffff);
+        tokens.next("transport");
+        if (tokens.is("UDP")) {
+            this.transport = TransportType.UDP;
+        } else if (tokens.is("TCP")) {
+            this.transport = TransportType.TCP;
+        } else {
+            throw new SdpParseException(0, 0, "Unknown transport: " + tokens);
+        }
+        tokens.next("priority");
+        this.priority = tokens.toLong(0xffffffffL);
+        tokens.next("connection-address");
+        this.address = tokens.toAddress();
+        tokens.next("port");
+        this.port = (int) tokens.toLong(0xffff);
+        tokens.next("typ");
+        if (!tokens.is("typ")) {
+            throw new SdpParseException(0, 0, "Expected 'typ' token, but did not find it!");
         }
-        
-        if (transport == TransportType.TCP) {
-            if (tokens.nextToken().compareTo("tcptype") != 0) {
-                throw new SdpParseException(0, 0, "Expected 'tcptype' token, but did not find it!");                
+        tokens.next("candidate-type");
+        CandidateType candidateType = null;
+        for (CandidateType value : CandidateType.values()) {
+            if (tokens.is(value.netVal())) {
+                candidateType = value;
+                break;
             }
-            socketType = TCPSocketType.fromNetworkString(tokens.nextToken());
         }
+        if (candidateType == null) {
+            throw new SdpParseException(0, 0, "Unknown candidate type: " + tokens);
+        }
+        this.type = candidateType;
+        CandidateSdp.parseExtensions(tokens, this);
     }
 
     @Override
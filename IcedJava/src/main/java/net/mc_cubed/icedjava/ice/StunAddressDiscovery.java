@@ -34,7 +34,8 @@ import java.util.logging.Logger;
 import javax.inject.Inject;
 import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
 import net.mc_cubed.icedjava.stun.StunReply;
-import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.stun.StunServerPool;
+import net.mc_cubed.icedjava.stun.TransportType;
 import net.mc_cubed.icedjava.stun.annotation.StunServer;
 
 /**
@@ -50,6 +51,8 @@ import net.mc_cubed.icedjava.stun.annotation.StunServer;
 @DiscoveryMechanism
 public class StunAddressDiscovery implements AddressDiscovery {
 
+    // Servers to try before giving up on server reflexive candidates
+    static final int MAX_SERVERS = 3;
     @Inject
     @StunServer
     InetSocketAddress stunServer;
@@ -57,34 +60,100 @@ public class StunAddressDiscovery implements AddressDiscovery {
     @Override
     public Collection<LocalCandidate> getCandidates(Collection<LocalCandidate> lcs) {
         // In case we're not using WELD
-        if (stunServer == null) {
-            stunServer = StunUtil.getCachedStunServerSocket();
+        InetSocketAddress server = stunServer;
+        if (server == null) {
+            try {
+                server = StunServerPool.awaitServer(StunServerPool.getProbeTimeout());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (server == null) {
+            Logger.getLogger(StunAddressDiscovery.class.getName()).log(Level.FINE,
+                    "No STUN server is available, skipping server reflexive candidates");
+            return new LinkedList<LocalCandidate>();
         }
 
-        Map<LocalCandidate, Future<StunReply>> replyMap = new HashMap<LocalCandidate, Future<StunReply>>();
         // Collect Server Reflexive candidates
         List<LocalCandidate> reflexiveCandidates = new LinkedList<LocalCandidate>();
+        List<LocalCandidate> pending = new LinkedList<LocalCandidate>();
         for (LocalCandidate hostCandidate : lcs) {
-            if (hostCandidate.getType() == CandidateType.LOCAL) {
-                try {
-                    Future<StunReply> replyFuture = hostCandidate.socket.doTest(stunServer);
-                    replyMap.put(hostCandidate, replyFuture);
-                } catch (IOException ex) {
-                } catch (InterruptedException ex) {
+            // The STUN server is only asked over UDP
+            if (hostCandidate.getType() == CandidateType.LOCAL
+                    && hostCandidate.getTransport() == TransportType.UDP) {
+                // Use the mapping learned for this socket if it's still fresh
+                InetSocketAddress cached = HostCandidatePool.getMapping(
+                        new InetSocketAddress(hostCandidate.getAddress(), hostCandidate.getPort()));
+                if (cached != null) {
+                    if (isReflexive(cached, hostCandidate)) {
+                        reflexiveCandidates.add(new LocalCandidate(
+                                hostCandidate.getOwner(),
+                                hostCandidate.getIceSocket(),
+                                CandidateType.SERVER_REFLEXIVE,
+                                cached.getAddress(),
+                                cached.getPort(),
+                                hostCandidate));
+                    }
+                } else {
+                    pending.add(hostCandidate);
                 }
             }
         }
 
+        /**
+         * If no candidate gets an answer, the server is reported to the pool
+         * and the candidates are tried again with the next best server.
+         */
+        for (int attempt = 0; attempt < MAX_SERVERS && !pending.isEmpty(); attempt++) {
+            pending = test(server, pending, reflexiveCandidates);
+            if (pending.isEmpty()) {
+                break;
+            }
+            InetSocketAddress next = StunServerPool.getServer();
+            if (next == null || next.equals(server)) {
+                break;
+            }
+            server = next;
+        }
+        // Return everything we found
+        return reflexiveCandidates;
+    }
+
+    /**
+     * Test host candidates against a STUN server, adding the server reflexive
+     * candidates found, and report the outcome to the server pool
+     *
+     * @return the host candidates which got no answer
+     */
+    private List<LocalCandidate> test(InetSocketAddress server, List<LocalCandidate> hostCandidates,
+            List<LocalCandidate> reflexiveCandidates) {
+        Map<LocalCandidate, Future<StunReply>> replyMap = new HashMap<LocalCandidate, Future<StunReply>>();
+        List<LocalCandidate> unanswered = new LinkedList<LocalCandidate>();
+        for (LocalCandidate hostCandidate : hostCandidates) {
+            try {
+                Future<StunReply> replyFuture = hostCandidate.socket.doTest(server);
+                replyMap.put(hostCandidate, replyFuture);
+            } catch (IOException ex) {
+            } catch (InterruptedException ex) {
+            }
+        }
+
+        long roundTrip = -1;
         for (Entry<LocalCandidate, Future<StunReply>> replyEntry : replyMap.entrySet()) {
+            LocalCandidate hostCandidate = replyEntry.getKey();
             try {
                 StunReply reply = replyEntry.getValue().get();
-                LocalCandidate hostCandidate = replyEntry.getKey();
                 if (reply != null && reply.isSuccess()) {
+                    if (roundTrip < 0) {
+                        roundTrip = reply.getRoundTripMicros();
+                    }
                     InetSocketAddress sockAddr = reply.getMappedAddress();
+                    if (sockAddr != null) {
+                        HostCandidatePool.putMapping(new InetSocketAddress(
+                                hostCandidate.getAddress(), hostCandidate.getPort()), sockAddr);
+                    }
                     // If we got a reply, and it's not the same as our local entry
-                    if (sockAddr != null
-                            && sockAddr.getAddress() != hostCandidate.getAddress()
-                            && sockAddr.getPort() != hostCandidate.getPort()) {
+                    if (sockAddr != null && isReflexive(sockAddr, hostCandidate)) {
                         reflexiveCandidates.add(new LocalCandidate(
                                 hostCandidate.getOwner(),
                                 hostCandidate.getIceSocket(),
@@ -93,13 +162,34 @@ public class StunAddressDiscovery implements AddressDiscovery {
                                 sockAddr.getPort(),
                                 hostCandidate));
                     }
+                } else if (reply == null || reply.getErrorCode() == 0) {
+                    // No answer, as opposed to an error response
+                    unanswered.add(hostCandidate);
                 }
             } catch (ExecutionException ex) {
                 Logger.getLogger(StunAddressDiscovery.class.getName()).log(Level.SEVERE, null, ex);
+                unanswered.add(hostCandidate);
             } catch (InterruptedException ex) {
             }
         }
-        // Return everything we found
-        return reflexiveCandidates;
+
+        if (roundTrip >= 0) {
+            StunServerPool.reportSuccess(server, roundTrip);
+            // The server works, so don't fail over for the odd lost packet
+            return new LinkedList<LocalCandidate>();
+        }
+        if (!unanswered.isEmpty()) {
+            StunServerPool.reportFailure(server);
+        }
+        return unanswered;
+    }
+
+    /**
+     * A mapping the same as the host candidate's own address means there is
+     * no NAT, and no server reflexive candidate to add
+     */
+    static boolean isReflexive(InetSocketAddress mapped, LocalCandidate hostCandidate) {
+        return !mapped.getAddress().equals(hostCandidate.getAddress())
+                || mapped.getPort() != hostCandidate.getPort();
     }
 }
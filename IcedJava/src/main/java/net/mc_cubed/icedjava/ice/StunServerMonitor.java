@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.mc_cubed.icedjava.stun.StunServerPool;
+
+/**
+ * Profiles the host interfaces in the background, so that creating a peer
+ * never waits on a STUN round trip.  The interfaces are profiled against the
+ * best server of the StunServerPool, again whenever that server changes or
+ * the profiles are older than the pool's refresh interval, and peers read
+ * whatever the last run found.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see StunServerPool
+ * @see IceUtil#getInterfaceCandidates(InetSocketAddress)
+ */
+public class StunServerMonitor {
+
+    private static volatile List<InterfaceProfile> interfaces = Collections.emptyList();
+    private static volatile InetSocketAddress profiledServer = null;
+    private static volatile long profiledTime = 0;
+    private static final AtomicBoolean profiling = new AtomicBoolean();
+    // The thread goes away when idle, so this costs nothing between profiles
+    private static final ExecutorService profiler = new ThreadPoolExecutor(
+            0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "IcedJava-Interface-Profiler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Get the STUN server peers should use.  Never blocks.
+     *
+     * @return the server, or null if none has answered yet
+     * @see StunServerPool#getServer()
+     */
+    public static InetSocketAddress getStunServer() {
+        return StunServerPool.getServer();
+    }
+
+    /**
+     * Wait a bounded time for a STUN server to be selected.  For use off the
+     * peer creation path, for instance by address discovery.
+     *
+     * @param timeout milliseconds to wait at most
+     * @return the server, or null if none was found in time
+     */
+    public static InetSocketAddress awaitStunServer(long timeout) throws InterruptedException {
+        return StunServerPool.awaitServer(timeout);
+    }
+
+    /**
+     * Get the host interfaces as profiled against the current STUN server.
+     * Never blocks; profiling is started in the background if the server
+     * has changed or the profiles are out of date.
+     *
+     * @return the interface profiles, best first, empty if none are known yet
+     */
+    public static List<InterfaceProfile> getInterfaceProfiles() {
+        InetSocketAddress server = getStunServer();
+        if (server != null && (!server.equals(profiledServer)
+                || System.currentTimeMillis() - profiledTime > StunServerPool.getRefreshInterval())) {
+            profile(server);
+        }
+        return interfaces;
+    }
+
+    /**
+     * @return the best interface profile, or null if none is known yet
+     */
+    public static InterfaceProfile getBestInterface() {
+        List<InterfaceProfile> current = getInterfaceProfiles();
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    /**
+     * Start testing the STUN servers, and profile the interfaces as soon as
+     * one answers.  Called implicitly on first use, but may be called early,
+     * for instance at application startup.
+     */
+    public static void start() {
+        StunServerPool.start();
+        getInterfaceProfiles();
+    }
+
+    /**
+     * Forget the interface profiles
+     */
+    public static void clear() {
+        interfaces = Collections.emptyList();
+        profiledServer = null;
+        profiledTime = 0;
+    }
+
+    /**
+     * Profile the interfaces against a server in the background, unless that
+     * is already being done.  Profiling waits on STUN round trips, so it runs
+     * on a thread of its own rather than the shared scheduler.
+     */
+    static void profile(final InetSocketAddress server) {
+        if (!profiling.compareAndSet(false, true)) {
+            return;
+        }
+        profiler.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    List<InterfaceProfile> profiles = IceUtil.doInterfaceDiscovery(server);
+                    if (profiles != null) {
+                        IceUtil.cacheList.admit(server, profiles);
+                        interfaces = Collections.unmodifiableList(profiles);
+                        profiledServer = server;
+                        profiledTime = System.currentTimeMillis();
+                    }
+                } finally {
+                    profiling.set(false);
+                }
+            }
+        });
+    }
+
+    private StunServerMonitor() {
+    }
+}
@@ -22,8 +22,6 @@ package net.mc_cubed.icedjava.ice;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
-import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Level;
@@ -32,9 +30,17 @@ import javax.inject.Named;
 import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
 import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
 import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.stun.TCPSocketType;
 import net.mc_cubed.icedjava.stun.TransportType;
 
 /**
+ * Does ICE-TCP host candidate discovery, per RFC 6544.  Each host address
+ * gets an active candidate, which connects out as checks are sent, and a
+ * passive candidate listening for the remote peer's active candidates.
+ * Simultaneous-open candidates may be added too.
+ *
+ * Stream media always gets TCP candidates.  Datagram media only gets them
+ * once enabled, as a fallback for networks that block UDP.
  *
  * @author charles
  */
@@ -42,63 +48,68 @@ import net.mc_cubed.icedjava.stun.TransportType;
 @DiscoveryMechanism
 public class TCPCandidateDiscovery implements CandidateDiscovery {
 
+    private static final Logger log = Logger.getLogger(TCPCandidateDiscovery.class.getName());
+    private static volatile boolean enabled = false;
+    private static volatile boolean simultaneousOpen = false;
+
     @Override
     public List<LocalCandidate> discoverCandidates(IcePeer peer, IceSocket iceSocket) {
         List<LocalCandidate> retval = new LinkedList<LocalCandidate>();
+        if (iceSocket.getTransport() != TransportType.TCP && !enabled) {
+            return retval;
+        }
 
-        // Disabling this block for now.
-        if (1 == 0) {
-            for (int componentId = 0; componentId < iceSocket.getComponents(); componentId++) {
+        List<InetAddress> addresses = HostCandidatePool.getHostAddresses();
+        for (int componentId = 0; componentId < iceSocket.getComponents(); componentId++) {
+            for (InetAddress address : addresses) {
                 try {
-                    Enumeration<NetworkInterface> ifaces =
-                            NetworkInterface.getNetworkInterfaces();
-                    while (ifaces.hasMoreElements()) {
-                        NetworkInterface iface = ifaces.nextElement();
-
-                        Enumeration<InetAddress> addresses = iface.getInetAddresses();
-                        while (addresses.hasMoreElements()) {
-                            InetAddress address = addresses.nextElement();
-
-                            // Basic checking to eliminate unusable addresses
-                            if (!address.isLoopbackAddress()
-                                    && !address.isLinkLocalAddress()
-                                    && !address.isAnyLocalAddress()
-                                    && !address.isMulticastAddress()) {
-                                // Create the active (outgoing) socket
-                                {
-                                    DemultiplexerSocket socket = StunUtil.getCustomStunPipeline(new InetSocketAddress(address, 0), TransportType.TCP, true, peer);
-                                    socket.setMaxRetries(4);
-                                    retval.add(new LocalCandidate(
-                                            peer,
-                                            iceSocket,
-                                            CandidateType.LOCAL,
-                                            socket,
-                                            (short) componentId));
-                                }
-
-                                // Create the passive (incoming) socket
-                                {
-                                    DemultiplexerSocket socket = StunUtil.getCustomStunPipeline(new InetSocketAddress(address, 0), TransportType.TCP, false, peer);
-                                    socket.setMaxRetries(4);
-                                    retval.add(new LocalCandidate(
-                                            peer,
-                                            iceSocket,
-                                            CandidateType.LOCAL,
-                                            socket,
-                                            (short) componentId));
-                                }
-
-                            }
-                        }
-
+                    retval.add(createCandidate(peer, iceSocket, address, TCPSocketType.ACTIVE, componentId));
+                    retval.add(createCandidate(peer, iceSocket, address, TCPSocketType.PASSIVE, componentId));
+                    if (simultaneousOpen) {
+                        retval.add(createCandidate(peer, iceSocket, address, TCPSocketType.SO, componentId));
                     }
                 } catch (IOException ex) {
-                    Logger.getLogger(IceDatagramSocket.class.getName()).log(
-                            Level.INFO, "Caught an exception during interface discovery.  Probably not serious.", ex);
+                    log.log(Level.FINE, "Caught an exception during interface discovery.  Probably not serious.", ex);
                 }
             }
         }
 
         return retval;
     }
+
+    private LocalCandidate createCandidate(IcePeer peer, IceSocket iceSocket, InetAddress address,
+            TCPSocketType tcpSocketType, int componentId) throws IOException {
+        DemultiplexerSocket socket = StunUtil.getCustomStunPipeline(
+                new InetSocketAddress(address, 0), tcpSocketType, peer);
+        return new LocalCandidate(
+                peer,
+                iceSocket,
+                CandidateType.LOCAL,
+                socket,
+                (short) componentId);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled true to gather TCP candidates for datagram media as well
+     * as stream media
+     */
+    public static void setEnabled(boolean enabled) {
+        TCPCandidateDiscovery.enabled = enabled;
+    }
+
+    public static boolean isSimultaneousOpen() {
+        return simultaneousOpen;
+    }
+
+    /**
+     * @param simultaneousOpen true to also gather simultaneous-open
+     * candidates, which can get through NATs that drop incoming connections
+     */
+    public static void setSimultaneousOpen(boolean simultaneousOpen) {
+        TCPCandidateDiscovery.simultaneousOpen = simultaneousOpen;
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import javax.sdp.Attribute;
+import javax.sdp.SdpParseException;
+
+/**
+ * An SDPListener which also accepts candidates one at a time, as they are
+ * discovered, instead of waiting for a complete SDP update (Trickle ICE).
+ * An IcePeer with trickle enabled sends its candidates to an SDPListener
+ * implementing this interface as soon as they are gathered.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see SDPListener
+ */
+public interface TrickleSDPListener extends SDPListener {
+
+    /**
+     * Deliver a single candidate for one of the media lines of the session.
+     *
+     * @param mediaIndex index of the m line the candidate belongs to
+     * @param candidate an SDP attribute named "candidate"
+     * @throws SdpParseException if the candidate cannot be parsed
+     */
+    public void addRemoteCandidate(int mediaIndex, Attribute candidate)
+            throws SdpParseException;
+}
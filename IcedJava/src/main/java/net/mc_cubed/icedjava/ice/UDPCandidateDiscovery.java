@@ -21,9 +21,6 @@ package net.mc_cubed.icedjava.ice;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
-import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Level;
@@ -31,7 +28,6 @@ import java.util.logging.Logger;
 import javax.inject.Named;
 import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
 import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
-import net.mc_cubed.icedjava.stun.StunUtil;
 import net.mc_cubed.icedjava.stun.TransportType;
 
 /**
@@ -52,37 +48,23 @@ public class UDPCandidateDiscovery implements CandidateDiscovery {
          * non-UDP protocols
          */
         if (iceSocket.getTransport() == TransportType.UDP) {
+            // Host addresses are cached by the pool, as are bound sockets
+            List<InetAddress> addresses = HostCandidatePool.getHostAddresses();
             for (int componentId = 0; componentId < iceSocket.getComponents(); componentId++) {
-                try {
-                    Enumeration<NetworkInterface> ifaces =
-                            NetworkInterface.getNetworkInterfaces();
-                    while (ifaces.hasMoreElements()) {
-                        NetworkInterface iface = ifaces.nextElement();
-
-                        Enumeration<InetAddress> addresses = iface.getInetAddresses();
-                        while (addresses.hasMoreElements()) {
-                            InetAddress address = addresses.nextElement();
-
-                            // Basic checking to eliminate unusable addresses
-                            if (!address.isLoopbackAddress()
-                                    && !address.isLinkLocalAddress()
-                                    && !address.isAnyLocalAddress()
-                                    && !address.isMulticastAddress()) {
-                                DemultiplexerSocket socket = StunUtil.getCustomStunPipeline(new InetSocketAddress(address, 0), iceSocket.getTransport(),false, peer);
-                                socket.setMaxRetries(4);
-                                retval.add(new LocalCandidate(
-                                        peer,
-                                        iceSocket,
-                                        CandidateType.LOCAL,
-                                        socket,
-                                        (short) componentId));
-                            }
-                        }
-
+                for (InetAddress address : addresses) {
+                    try {
+                        DemultiplexerSocket socket = HostCandidatePool.acquire(address, peer);
+                        socket.setMaxRetries(4);
+                        retval.add(new LocalCandidate(
+                                peer,
+                                iceSocket,
+                                CandidateType.LOCAL,
+                                socket,
+                                (short) componentId));
+                    } catch (IOException ex) {
+                        Logger.getLogger(IceDatagramSocket.class.getName()).log(
+                                Level.FINE, "Caught an exception during interface discovery.  Probably not serious.", ex);
                     }
-                } catch (IOException ex) {
-                    Logger.getLogger(IceDatagramSocket.class.getName()).log(
-                            Level.FINE, "Caught an exception during interface discovery.  Probably not serious.", ex);
                 }
             }
         }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice.event;
+
+import javax.sdp.Attribute;
+import net.mc_cubed.icedjava.ice.Candidate;
+import net.mc_cubed.icedjava.ice.IceSocket;
+
+/**
+ * An IceCandidateEvent signals that a new local candidate has been gathered,
+ * and can be trickled to the remote peer without waiting for the rest.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+public interface IceCandidateEvent extends IceEvent {
+
+    /**
+     * Get the IceSocket the candidate was gathered for
+     *
+     * @return the socket owning the candidate
+     */
+    IceSocket getIceSocket();
+
+    /**
+     * Get the index of the m line the candidate belongs to
+     *
+     * @return the media index
+     */
+    int getMediaIndex();
+
+    /**
+     * Get the newly gathered candidate
+     *
+     * @return the candidate
+     */
+    Candidate getCandidate();
+
+    /**
+     * Get the candidate as an SDP attribute, suitable for sending as-is over
+     * the wire.
+     *
+     * @return an attribute named "candidate"
+     */
+    Attribute getCandidateAttribute();
+}
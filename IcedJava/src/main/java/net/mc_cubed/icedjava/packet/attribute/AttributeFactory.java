@@ -94,6 +94,79 @@ public class AttributeFactory {
         return new XORMappedAddressAttributeImpl(address, port, transactionId);
     }
 
+    /**
+     * Creates a TURN XOR-PEER-ADDRESS attribute, naming the peer a relay
+     * permission, channel or Send indication refers to.  Encoded the same
+     * way as the XOR-MAPPED-ADDRESS attribute.
+     *
+     * @param address an IPv4 or IPv6 address to encode
+     * @param port a port number to encode
+     * @param transactionId transaction ID of the packet the attribute goes in
+     * @return an XOR-PEER-ADDRESS attribute with the given address
+     */
+    public static XORMappedAddressAttribute createXORPeerAddressAttribute(InetAddress address, int port, byte[] transactionId) {
+        return new XORMappedAddressAttributeImpl(AttributeType.XOR_PEER_ADDRESS, address, port, transactionId);
+    }
+
+    /**
+     * Creates a TURN XOR-RELAYED-ADDRESS attribute, giving a client the
+     * address a server allocated for it
+     *
+     * @param address an IPv4 or IPv6 address to encode
+     * @param port a port number to encode
+     * @param transactionId transaction ID of the packet the attribute goes in
+     * @return an XOR-RELAYED-ADDRESS attribute with the given address
+     */
+    public static XORMappedAddressAttribute createXORRelayedAddressAttribute(InetAddress address, int port, byte[] transactionId) {
+        return new XORMappedAddressAttributeImpl(AttributeType.XOR_RELAYED_ADDRESS, address, port, transactionId);
+    }
+
+    /**
+     * Creates a TURN REQUESTED-TRANSPORT attribute
+     *
+     * @param protocol IANA protocol number of the relayed transport, 17 for
+     * UDP
+     * @return a REQUESTED-TRANSPORT attribute for the given protocol
+     */
+    public static Attribute createRequestedTransportAttribute(int protocol) {
+        // Protocol number followed by 3 bytes of RFFU
+        return new GenericAttribute(AttributeType.REQUESTED_TRANSPORT, 4,
+                new byte[]{(byte) protocol, 0, 0, 0});
+    }
+
+    /**
+     * Creates a TURN LIFETIME attribute
+     *
+     * @param seconds requested lifetime of the allocation, 0 to release it
+     * @return a LIFETIME attribute with the given lifetime
+     */
+    public static Attribute createLifetimeAttribute(int seconds) {
+        return new GenericAttribute(AttributeType.LIFETIME, 4,
+                NumericUtils.toNetworkBytes(seconds));
+    }
+
+    /**
+     * Creates a TURN CHANNEL-NUMBER attribute
+     *
+     * @param channel channel number, 0x4000 through 0x4FFF
+     * @return a CHANNEL-NUMBER attribute with the given channel number
+     */
+    public static Attribute createChannelNumberAttribute(int channel) {
+        // Channel number followed by 2 bytes of RFFU
+        return new GenericAttribute(AttributeType.CHANNEL_NUMBER, 4,
+                new byte[]{(byte) (channel >> 8), (byte) channel, 0, 0});
+    }
+
+    /**
+     * Creates a TURN DATA attribute carrying the given bytes
+     *
+     * @param data the application data, used as is without copying
+     * @return a DATA attribute wrapping the given bytes
+     */
+    public static Attribute createDataAttribute(byte[] data) {
+        return new GenericAttribute(AttributeType.DATA, data.length, data);
+    }
+
     /**
      * Create a username attribute for STUN authentication purposes
      * 
@@ -51,8 +51,8 @@ public enum AttributeType {
     XOR_PEER_ADDRESS(0x0012,XORMappedAddressAttributeImpl.class),
     DATA(0x0013,GenericAttribute.class),
     REALM(0x0014, StringAttribute.class),
-    NONCE(0x0015, NonceAttribute.class),
-    XOR_RELAYED_ADDRESS(0x0016,GenericAttribute.class),
+    NONCE(0x0015, StringAttribute.class),
+    XOR_RELAYED_ADDRESS(0x0016,XORMappedAddressAttributeImpl.class),
     REQUESTED_ADDRESS_TYPE(0x0017,GenericAttribute.class),
     EVEN_PORT(0x0018,GenericAttribute.class),
     REQUESTED_TRANSPORT(0x0019,GenericAttribute.class),
@@ -58,7 +58,7 @@ class GenericAttribute implements Attribute {
             Attribute newAttr = (Attribute) c.newInstance(type, length, data);
             if (newAttr instanceof FingerprintAttribute) {
                 FingerprintAttribute hashAttr = (FingerprintAttribute) newAttr;
-                if (hashAttr.verifyHash(packetBytes, start, offset)) {
+                if (hashAttr.verifyHash(packetBytes, start, offset - start)) {
                     Logger.getAnonymousLogger().log(Level.FINER,
                             "Found {0} attribute and verified it",
                             type);
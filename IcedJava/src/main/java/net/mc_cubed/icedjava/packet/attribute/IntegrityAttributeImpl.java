@@ -144,7 +144,7 @@ class IntegrityAttributeImpl extends GenericAttribute implements IntegrityAttrib
          * Make a copy of the data we'll be verifying against, since we cannot
          * guarantee it won't be modified.
          */
-        savedData = Arrays.copyOfRange(data, offset, length);
+        savedData = Arrays.copyOfRange(data, offset, offset + length);
         /**
          * This attribute cannot be verified without credentials, so return false
          * for now since we're deferring verification
@@ -60,6 +60,14 @@ class XORMappedAddressAttributeImpl extends GenericAttribute implements XORMappe
     }
 
     protected XORMappedAddressAttributeImpl(InetAddress address, int port, byte[] txId) {
+        this(AttributeType.XOR_MAPPED_ADDRESS, address, port, txId);
+    }
+
+    /**
+     * Encode an address using the XOR-MAPPED-ADDRESS format under another
+     * attribute type, such as the TURN XOR-PEER-ADDRESS
+     */
+    protected XORMappedAddressAttributeImpl(AttributeType type, InetAddress address, int port, byte[] txId) {
         if (txId == null || (address instanceof Inet6Address && txId.length != 16) ||
                 (address instanceof Inet4Address && txId.length < 4)) {
             throw new java.lang.IllegalArgumentException("TransactionID must be a 128-bit number");
@@ -71,7 +79,7 @@ class XORMappedAddressAttributeImpl extends GenericAttribute implements XORMappe
         }
 
         // Initialize members
-        this.type = AttributeType.XOR_MAPPED_ADDRESS;
+        this.type = type;
 
         /**
          * RFC 5389 15.2: XOR-MAPPED-ADDRESS
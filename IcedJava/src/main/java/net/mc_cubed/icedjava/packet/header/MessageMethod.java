@@ -30,6 +30,8 @@ public enum MessageMethod {
     BINDING(0x0001),
     ALLOCATE(0x0003),
     REFRESH(0x0004),
+    SEND(0x0006),
+    DATA(0x0007),
     CHANNELBIND(0x0009),
     CREATE_PERMISSION(0x0008);
     private static final int BIT_MASK = 0xCEEF;
@@ -63,6 +65,10 @@ public enum MessageMethod {
                 return ALLOCATE;
             case 0x0004:
                 return REFRESH;
+            case 0x0006:
+                return SEND;
+            case 0x0007:
+                return DATA;
             case 0x0009:
                 return CHANNELBIND;
             case 0x0008:
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable view of an RTP packet held in a ByteBuffer, per RFC 3550 Section
+ * 5.1.  Fields are read and written in place with absolute gets and puts, so
+ * wrapping a packet copies and allocates nothing, and the buffer's position
+ * and limit are never moved.  The view is only valid for as long as the
+ * buffer holds the packet.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+public class RTPPacket {
+
+    public static final int RTP_VERSION = 2;
+    public static final int FIXED_HEADER_LENGTH = 12;
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    /**
+     * Point this view at the packet between the buffer's position and limit
+     *
+     * @param buffer buffer holding one RTP packet
+     * @return this view
+     */
+    public RTPPacket wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        this.length = buffer.remaining();
+        return this;
+    }
+
+    /**
+     * Check that the packet is long enough for the header it describes and
+     * carries version 2
+     *
+     * @return true if the fields of this packet can be trusted
+     */
+    public boolean isValid() {
+        if (length < FIXED_HEADER_LENGTH || getVersion() != RTP_VERSION) {
+            return false;
+        }
+        int headerLength = getHeaderLength();
+        if (headerLength > length) {
+            return false;
+        }
+        if (hasPadding()) {
+            int padding = buffer.get(offset + length - 1) & 0xff;
+            return padding > 0 && headerLength + padding <= length;
+        }
+        return true;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getVersion() {
+        return (buffer.get(offset) & 0xc0) >> 6;
+    }
+
+    public boolean hasPadding() {
+        return (buffer.get(offset) & 0x20) != 0;
+    }
+
+    public boolean hasExtension() {
+        return (buffer.get(offset) & 0x10) != 0;
+    }
+
+    public int getCsrcCount() {
+        return buffer.get(offset) & 0x0f;
+    }
+
+    public boolean isMarker() {
+        return (buffer.get(offset + 1) & 0x80) != 0;
+    }
+
+    public void setMarker(boolean marker) {
+        byte b = buffer.get(offset + 1);
+        buffer.put(offset + 1, (byte) (marker ? b | 0x80 : b & 0x7f));
+    }
+
+    public int getPayloadType() {
+        return buffer.get(offset + 1) & 0x7f;
+    }
+
+    public void setPayloadType(int payloadType) {
+        byte b = buffer.get(offset + 1);
+        buffer.put(offset + 1, (byte) ((b & 0x80) | (payloadType & 0x7f)));
+    }
+
+    /**
+     * @return the 16 bit sequence number, 0 to 65535
+     */
+    public int getSequenceNumber() {
+        return buffer.getShort(offset + 2) & 0xffff;
+    }
+
+    public void setSequenceNumber(int sequenceNumber) {
+        buffer.putShort(offset + 2, (short) sequenceNumber);
+    }
+
+    /**
+     * @return the unsigned 32 bit timestamp
+     */
+    public long getTimestamp() {
+        return buffer.getInt(offset + 4) & 0xffffffffL;
+    }
+
+    public void setTimestamp(long timestamp) {
+        buffer.putInt(offset + 4, (int) timestamp);
+    }
+
+    public int getSsrc() {
+        return buffer.getInt(offset + 8);
+    }
+
+    public void setSsrc(int ssrc) {
+        buffer.putInt(offset + 8, ssrc);
+    }
+
+    /**
+     * @param index which contributing source, 0 to getCsrcCount() - 1
+     * @return the contributing source identifier
+     */
+    public int getCsrc(int index) {
+        if (index < 0 || index >= getCsrcCount()) {
+            throw new IndexOutOfBoundsException("CSRC " + index + " of " + getCsrcCount());
+        }
+        return buffer.getInt(offset + FIXED_HEADER_LENGTH + 4 * index);
+    }
+
+    /**
+     * @return length of the fixed header, CSRC list and header extension
+     */
+    public int getHeaderLength() {
+        int headerLength = FIXED_HEADER_LENGTH + 4 * getCsrcCount();
+        if (hasExtension()) {
+            if (headerLength + 4 > length) {
+                // Truncated, isValid will reject it
+                return headerLength + 4;
+            }
+            int extensionWords = buffer.getShort(offset + headerLength + 2) & 0xffff;
+            headerLength += 4 + 4 * extensionWords;
+        }
+        return headerLength;
+    }
+
+    public int getPayloadOffset() {
+        return offset + getHeaderLength();
+    }
+
+    public int getPayloadLength() {
+        int payloadLength = length - getHeaderLength();
+        if (hasPadding()) {
+            payloadLength -= buffer.get(offset + length - 1) & 0xff;
+        }
+        return payloadLength;
+    }
+
+    @Override
+    public String toString() {
+        if (buffer == null || length < FIXED_HEADER_LENGTH) {
+            return getClass().getName() + "[length=" + length + "]";
+        }
+        return getClass().getName() + "[ssrc=" + Integer.toHexString(getSsrc()) + ":pt=" + getPayloadType()
+                + ":seq=" + getSequenceNumber() + ":ts=" + getTimestamp() + ":length=" + length + "]";
+    }
+}
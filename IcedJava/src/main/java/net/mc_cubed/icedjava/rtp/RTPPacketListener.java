@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.EventListener;
+
+/**
+ * Receives the packets of an RTPSession.  Called on the thread which received
+ * the packet, and the packet and buffer are only valid for the duration of
+ * the call, so copy anything which must be kept.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see RTPSession
+ */
+public interface RTPPacketListener extends EventListener {
+
+    /**
+     * An RTP packet from a validated source arrived
+     *
+     * @param session the session it arrived on
+     * @param source the state of the packet's synchronization source
+     * @param packet view of the packet
+     */
+    void rtpPacketReceived(RTPSession session, RTPSource source, RTPPacket packet);
+
+    /**
+     * An RTCP packet arrived, multiplexed on the RTP channel
+     *
+     * @param session the session it arrived on
+     * @param buffer the compound RTCP packet, between position and limit
+     */
+    void rtcpPacketReceived(RTPSession session, ByteBuffer buffer);
+}
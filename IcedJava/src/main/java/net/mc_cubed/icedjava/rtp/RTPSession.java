@@ -0,0 +1,345 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.mc_cubed.icedjava.ice.IceSocketChannel;
+import net.mc_cubed.icedjava.ice.PooledBuffer;
+import net.mc_cubed.icedjava.ice.event.IceBytesAvailableEvent;
+import net.mc_cubed.icedjava.ice.event.IceEvent;
+import net.mc_cubed.icedjava.ice.event.IceEventListener;
+import net.mc_cubed.icedjava.stun.MultiplexedProtocol;
+import net.mc_cubed.icedjava.stun.RFC7983DemultiplexingFilter;
+
+/**
+ * A lightweight RTP session on an IceSocketChannel, for use without JMF.
+ *
+ * Each received datagram is parsed in place, accounted to its synchronization
+ * source, and either handed to a listener or, in relay mode, written straight
+ * to another channel.  There is no jitter buffer and no thread of its own:
+ * everything happens on the thread which received the packet, and the
+ * channel's pooled receive buffer is released as soon as the packet is done
+ * with.  A relayed packet is copied once, since its write may still be queued
+ * by then.  RTCP multiplexed on the channel per RFC 5761 is passed through as
+ * is.
+ * <p>
+ * Sources which have sent neither RTP nor RTCP for the source timeout are
+ * forgotten, as in RFC 3550 section 6.3.5.  The table is swept from the
+ * receiving thread, so a session which receives nothing at all keeps its
+ * sources until the next packet arrives.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see net.mc_cubed.icedjava.ice.IcedRTPConnector
+ */
+public class RTPSession implements IceEventListener {
+
+    private static final Logger log = Logger.getLogger(RTPSession.class.getName());
+    /**
+     * RFC 3550 6.3.5: a source times out after M = 5 RTCP intervals without
+     * a packet, and the interval is at least 5 seconds
+     */
+    public static final long DEFAULT_SOURCE_TIMEOUT = 5 * 5000;
+    static final int SOURCE_TIMEOUT_INTERVALS = 5;
+    // The packet view is reused by each receiving thread
+    private static final ThreadLocal<RTPPacket> packetView = new ThreadLocal<RTPPacket>() {
+
+        @Override
+        protected RTPPacket initialValue() {
+            return new RTPPacket();
+        }
+    };
+    private final IceSocketChannel channel;
+    private final ConcurrentHashMap<Integer, RTPSource> sources = new ConcurrentHashMap<Integer, RTPSource>();
+    private volatile RTPPacketListener listener;
+    private volatile IceSocketChannel relayChannel;
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsDiscarded = new AtomicLong();
+    private final AtomicLong rtcpReceived = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong nextSweep = new AtomicLong();
+    private volatile long sourceTimeout = DEFAULT_SOURCE_TIMEOUT;
+
+    /**
+     * Start a session on a channel, registering for its events
+     *
+     * @param channel the channel carrying the RTP stream
+     */
+    public RTPSession(IceSocketChannel channel) {
+        this.channel = channel;
+        channel.addEventListener(this);
+    }
+
+    public IceSocketChannel getChannel() {
+        return channel;
+    }
+
+    public RTPPacketListener getListener() {
+        return listener;
+    }
+
+    public void setListener(RTPPacketListener listener) {
+        this.listener = listener;
+    }
+
+    public IceSocketChannel getRelayChannel() {
+        return relayChannel;
+    }
+
+    /**
+     * Put the session in relay mode.  Every well formed RTP and RTCP packet
+     * received is written unchanged to the given channel, without being
+     * buffered or reordered, and is not passed to the listener.
+     *
+     * @param relayChannel channel to forward to, or null to leave relay mode
+     */
+    public void setRelayChannel(IceSocketChannel relayChannel) {
+        this.relayChannel = relayChannel;
+    }
+
+    public long getSourceTimeout() {
+        return sourceTimeout;
+    }
+
+    /**
+     * Set how long a source may stay silent before it is forgotten.  The table
+     * is checked once every fifth of this time.
+     *
+     * @param sourceTimeout timeout in milliseconds
+     */
+    public void setSourceTimeout(long sourceTimeout) {
+        if (sourceTimeout <= 0) {
+            throw new IllegalArgumentException("Source timeout must be positive: " + sourceTimeout);
+        }
+        this.sourceTimeout = sourceTimeout;
+        nextSweep.set(0);
+    }
+
+    /**
+     * Send an RTP or RTCP packet
+     *
+     * @param packet the packet, between position and limit
+     * @return number of bytes sent
+     * @throws IOException
+     */
+    public int send(ByteBuffer packet) throws IOException {
+        int sent = channel.write(packet);
+        packetsSent.incrementAndGet();
+        return sent;
+    }
+
+    /**
+     * Send the packet a view points to, leaving the view untouched
+     *
+     * @param packet the packet to send
+     * @return number of bytes sent
+     * @throws IOException
+     */
+    public int send(RTPPacket packet) throws IOException {
+        ByteBuffer buffer = packet.getBuffer().duplicate();
+        buffer.limit(packet.getOffset() + packet.getLength());
+        buffer.position(packet.getOffset());
+        return send(buffer);
+    }
+
+    @Override
+    public void iceEvent(IceEvent event) {
+        if (event instanceof IceBytesAvailableEvent) {
+            PooledBuffer packet = ((IceBytesAvailableEvent) event).getSocketChannel().receive();
+            if (packet == null) {
+                return;
+            }
+            try {
+                process(packet.getBuffer(), System.currentTimeMillis());
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    /**
+     * Handle one received datagram
+     *
+     * @param buffer the datagram, between position and limit
+     * @param now arrival time in milliseconds
+     */
+    void process(ByteBuffer buffer, long now) {
+        packetsReceived.incrementAndGet();
+        bytesReceived.addAndGet(buffer.remaining());
+        long sweep = nextSweep.get();
+        if (now >= sweep && nextSweep.compareAndSet(sweep, now + sourceTimeout / SOURCE_TIMEOUT_INTERVALS)) {
+            expireSources(now);
+        }
+
+        MultiplexedProtocol protocol = RFC7983DemultiplexingFilter.classify(buffer);
+        if (protocol == MultiplexedProtocol.RTCP) {
+            rtcpReceived.incrementAndGet();
+            if (buffer.remaining() >= 8) {
+                // An RTCP packet keeps its sender alive too
+                RTPSource sender = sources.get(buffer.getInt(buffer.position() + 4));
+                if (sender != null) {
+                    sender.heard(now);
+                }
+            }
+            IceSocketChannel relay = relayChannel;
+            if (relay != null) {
+                forward(relay, buffer);
+            } else {
+                RTPPacketListener currentListener = listener;
+                if (currentListener != null) {
+                    currentListener.rtcpPacketReceived(this, buffer);
+                }
+            }
+            return;
+        }
+
+        RTPPacket packet = packetView.get().wrap(buffer);
+        if (protocol != MultiplexedProtocol.RTP || !packet.isValid()) {
+            packetsDiscarded.incrementAndGet();
+            return;
+        }
+
+        int ssrc = packet.getSsrc();
+        RTPSource source = sources.get(ssrc);
+        if (source == null) {
+            RTPSource newSource = new RTPSource(ssrc, packet.getSequenceNumber());
+            // Not yet updated, but already safe from a concurrent sweep
+            newSource.heard(now);
+            source = sources.putIfAbsent(ssrc, newSource);
+            if (source == null) {
+                source = newSource;
+            }
+        }
+        boolean inSequence = source.update(packet.getSequenceNumber(), packet.getTimestamp(), now);
+
+        IceSocketChannel relay = relayChannel;
+        if (relay != null) {
+            // No jitter buffer, a relay forwards whatever it gets
+            forward(relay, buffer);
+        } else if (inSequence) {
+            RTPPacketListener currentListener = listener;
+            if (currentListener != null) {
+                currentListener.rtpPacketReceived(this, source, packet);
+            }
+        } else {
+            packetsDiscarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget the sources which have been silent for longer than the source
+     * timeout
+     *
+     * @param now current time in milliseconds
+     */
+    void expireSources(long now) {
+        long silentSince = now - sourceTimeout;
+        for (RTPSource source : sources.values()) {
+            if (source.getLastPacketTime() < silentSince && sources.remove(source.getSsrc(), source)) {
+                log.log(Level.FINE, "Source {0} timed out", Integer.toHexString(source.getSsrc()));
+            }
+        }
+    }
+
+    private void forward(IceSocketChannel relay, ByteBuffer buffer) {
+        /*
+         * The write is queued without copying, and the receive buffer goes
+         * back to the pool as soon as this packet is processed, so the relay
+         * gets a copy of its own.
+         */
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        try {
+            relay.write(copy);
+            packetsSent.incrementAndGet();
+        } catch (IOException ex) {
+            log.log(Level.FINE, "Unable to relay a packet", ex);
+        }
+    }
+
+    /**
+     * Get the state of a synchronization source heard on this session
+     *
+     * @param ssrc the source identifier
+     * @return the source, or null if it hasn't been heard
+     */
+    public RTPSource getSource(int ssrc) {
+        return sources.get(ssrc);
+    }
+
+    public List<RTPSource> getSources() {
+        return new ArrayList<RTPSource>(sources.values());
+    }
+
+    /**
+     * Forget a source, for example after it sent an RTCP BYE
+     *
+     * @param ssrc the source identifier
+     */
+    public void removeSource(int ssrc) {
+        sources.remove(ssrc);
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return packets which were not RTP, malformed, or out of sequence
+     */
+    public long getPacketsDiscarded() {
+        return packetsDiscarded.get();
+    }
+
+    public long getRtcpReceived() {
+        return rtcpReceived.get();
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    /**
+     * Stop receiving.  The channel itself is left open.
+     */
+    public void close() {
+        channel.removeEventListener(this);
+        relayChannel = null;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[channel=" + channel + ":sources=" + sources.size()
+                + ":received=" + getPacketsReceived() + ":sent=" + getPacketsSent() + "]";
+    }
+}
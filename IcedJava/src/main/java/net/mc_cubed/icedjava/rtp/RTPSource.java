@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.rtp;
+
+/**
+ * Reception state of one synchronization source, tracking sequence numbers as
+ * in RFC 3550 Appendix A.1: a new source must send a few packets in sequence
+ * before it is trusted, wrap arounds extend the sequence number, and large
+ * jumps are only believed once they repeat.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+public class RTPSource {
+
+    static final int RTP_SEQ_MOD = 1 << 16;
+    static final int MAX_DROPOUT = 3000;
+    static final int MAX_MISORDER = 100;
+    static final int MIN_SEQUENTIAL = 2;
+    private final int ssrc;
+    private int maxSeq;
+    private int cycles;
+    private int baseSeq;
+    private int badSeq;
+    private int probation;
+    private long received;
+    private long lastTimestamp;
+    private volatile long lastPacketTime;
+
+    RTPSource(int ssrc, int seq) {
+        this.ssrc = ssrc;
+        initSequence(seq);
+        maxSeq = seq - 1;
+        probation = MIN_SEQUENTIAL;
+    }
+
+    private void initSequence(int seq) {
+        baseSeq = seq;
+        maxSeq = seq;
+        badSeq = RTP_SEQ_MOD + 1;
+        cycles = 0;
+        received = 0;
+    }
+
+    /**
+     * Account for a received packet
+     *
+     * @param seq the packet's sequence number
+     * @param timestamp the packet's RTP timestamp
+     * @param now arrival time in milliseconds
+     * @return true if the packet is in sequence and the source is trusted,
+     * false if it should be discarded
+     */
+    synchronized boolean update(int seq, long timestamp, long now) {
+        lastPacketTime = now;
+        int delta = (seq - maxSeq) & 0xffff;
+
+        if (probation > 0) {
+            // Source is not valid until MIN_SEQUENTIAL packets in sequence
+            if (seq == ((maxSeq + 1) & 0xffff)) {
+                probation--;
+                maxSeq = seq;
+                if (probation == 0) {
+                    initSequence(seq);
+                    received++;
+                    lastTimestamp = timestamp;
+                    return true;
+                }
+            } else {
+                probation = MIN_SEQUENTIAL - 1;
+                maxSeq = seq;
+            }
+            return false;
+        } else if (delta < MAX_DROPOUT) {
+            // In order, with permissible gap
+            if (seq < maxSeq) {
+                cycles += RTP_SEQ_MOD;
+            }
+            maxSeq = seq;
+        } else if (delta <= RTP_SEQ_MOD - MAX_MISORDER) {
+            // The sequence number made a very large jump
+            if (seq == badSeq) {
+                // Two sequential packets, assume the other side restarted
+                initSequence(seq);
+            } else {
+                badSeq = (seq + 1) & (RTP_SEQ_MOD - 1);
+                return false;
+            }
+        }
+        // Otherwise a duplicate or reordered packet
+        received++;
+        lastTimestamp = timestamp;
+        return true;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    /**
+     * @return true once the source has sent enough packets in sequence
+     */
+    public synchronized boolean isValid() {
+        return probation == 0;
+    }
+
+    /**
+     * @return highest sequence number received, extended by the number of
+     * wrap arounds
+     */
+    public synchronized long getExtendedHighestSequence() {
+        return (long) cycles + maxSeq;
+    }
+
+    public synchronized long getPacketsReceived() {
+        return received;
+    }
+
+    public synchronized long getPacketsExpected() {
+        return (long) cycles + maxSeq - baseSeq + 1;
+    }
+
+    /**
+     * @return packets expected but not received, negative if duplicates
+     * arrived
+     */
+    public synchronized long getCumulativeLost() {
+        return getPacketsExpected() - received;
+    }
+
+    public synchronized long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return time in milliseconds the last RTP or RTCP packet arrived
+     */
+    public long getLastPacketTime() {
+        return lastPacketTime;
+    }
+
+    /**
+     * Note a packet from this source which does not go through update(), such
+     * as RTCP
+     *
+     * @param now arrival time in milliseconds
+     */
+    void heard(long now) {
+        lastPacketTime = now;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[ssrc=" + Integer.toHexString(ssrc) + ":received=" + getPacketsReceived()
+                + ":lost=" + getCumulativeLost() + "]";
+    }
+}
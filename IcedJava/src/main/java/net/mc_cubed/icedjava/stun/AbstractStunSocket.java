@@ -37,7 +37,7 @@ import net.mc_cubed.icedjava.stun.event.DemultiplexedBytesAvailableEvent;
 import net.mc_cubed.icedjava.stun.event.StunEvent;
 import net.mc_cubed.icedjava.stun.event.StunEventListener;
 import net.mc_cubed.icedjava.util.AddressedByteBuffer;
-import net.mc_cubed.icedjava.util.ExpiringCache;
+import net.mc_cubed.icedjava.util.ConcurrentExpiringCache;
 import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.filterchain.BaseFilter;
 import org.glassfish.grizzly.filterchain.FilterChain;
@@ -53,7 +53,9 @@ import org.glassfish.grizzly.filterchain.NextAction;
 abstract class AbstractStunSocket extends BaseFilter implements StunSocketChannel {
 
     protected static Logger log = Logger.getLogger(DatagramStunSocket.class.getName());
-    static ExpiringCache<BigInteger, StunReplyFuture> requestCache = new ExpiringCache<BigInteger, StunReplyFuture>();
+    static ConcurrentExpiringCache<BigInteger, StunReplyFuture> requestCache =
+            new ConcurrentExpiringCache<BigInteger, StunReplyFuture>(
+            StunUtil.TRANSACTION_LIFETIME, 0, StunUtil.MAX_TRANSACTIONS);
     protected volatile WeakReference<FilterChain> filterChain;
     protected volatile WeakReference<Connection<SocketAddress>> connection;
     boolean nonBlocking = false;
@@ -42,18 +42,23 @@ class ByteBufferGrizzlyProtocolFilter extends BaseFilter {
     @Override
     public NextAction handleRead(FilterChainContext ctx) throws IOException {
         if (ctx.getMessage() instanceof Buffer) {
-            Buffer buffer = ctx.getMessage();
-            
-            // Allocate an appropriately sized ByteBuffer
-            ByteBuffer dst = ByteBuffer.allocate(buffer.capacity());
-            buffer.get(dst);
-            dst.flip();
-            ctx.setMessage(dst);
-            
+            ctx.setMessage(toByteBuffer((Buffer) ctx.getMessage()));
         }
         return super.handleRead(ctx);
     }
 
+    /**
+     * Copy the remaining bytes of a Grizzly buffer into a new ByteBuffer,
+     * ready for reading
+     */
+    static ByteBuffer toByteBuffer(Buffer buffer) {
+        // Allocate an appropriately sized ByteBuffer
+        ByteBuffer dst = ByteBuffer.allocate(buffer.capacity());
+        buffer.get(dst);
+        dst.flip();
+        return dst;
+    }
+
     // Take a ByteBuffer and output a Grizzly buffer
     @Override
     public NextAction handleWrite(FilterChainContext ctx) throws IOException {
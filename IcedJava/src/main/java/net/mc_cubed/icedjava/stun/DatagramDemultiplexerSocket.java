@@ -43,6 +43,9 @@ import net.mc_cubed.icedjava.stun.event.DemultiplexedBytesAvailableEvent;
 import net.mc_cubed.icedjava.stun.event.StunEvent;
 import net.mc_cubed.icedjava.stun.event.StunEventListener;
 import net.mc_cubed.icedjava.util.AddressedByteBuffer;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.WriteResult;
 import org.glassfish.grizzly.filterchain.FilterChainContext;
 import org.glassfish.grizzly.filterchain.NextAction;
 
@@ -60,6 +63,10 @@ class DatagramDemultiplexerSocket extends DatagramStunSocket implements Demultip
     private DatagramStunSocketBridge socket = null;
     final protected Queue<AddressedByteBuffer> bufferQueue = new ConcurrentLinkedQueue<AddressedByteBuffer>();
     final protected HashSet<StunEventListener> listeners = new HashSet<StunEventListener>();
+    // Carries nothing but this socket, so one instance serves every packet
+    private final StunEvent bytesAvailableEvent = new BytesAvailableEventImpl(this);
+    // Placed right after the transport filter, hands media straight to us
+    private final RFC7983DemultiplexingFilter demultiplexingFilter = new RFC7983DemultiplexingFilter(this);
     @Inject
     Event<StunEvent> eventBroadcaster;
 
@@ -176,6 +183,25 @@ class DatagramDemultiplexerSocket extends DatagramStunSocket implements Demultip
         return remainingBytes;
     }
 
+    @Override
+    public int send(ByteBuffer src, SocketAddress target,
+            CompletionHandler<WriteResult<ByteBuffer, SocketAddress>> completionHandler) throws IOException {
+        int remainingBytes = src.remaining();
+        connection.get().write(target, src, completionHandler);
+        return remainingBytes;
+    }
+
+    @Override
+    public long send(ByteBuffer[] srcs, int offset, int length, SocketAddress target) throws IOException {
+        Connection<SocketAddress> current = connection.get();
+        long remainingBytes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remainingBytes += srcs[i].remaining();
+            current.write(target, srcs[i], null);
+        }
+        return remainingBytes;
+    }
+
     @Override
     public void registerStunEventListener(StunEventListener listener) {
         listeners.add(listener);
@@ -193,7 +219,7 @@ class DatagramDemultiplexerSocket extends DatagramStunSocket implements Demultip
     }
 
     private void broadcastReceivedMessage() {
-        StunEvent event = new BytesAvailableEventImpl(this);
+        StunEvent event = bytesAvailableEvent;
 
         // Use CDI if availble
         if (eventBroadcaster != null) {
@@ -221,6 +247,11 @@ class DatagramDemultiplexerSocket extends DatagramStunSocket implements Demultip
         throw new UnsupportedOperationException("Not valid for a datagram socket.");
     }
 
+    @Override
+    public RFC7983DemultiplexingFilter getDemultiplexingFilter() {
+        return demultiplexingFilter;
+    }
+
     /**
      * A dummy DatagramSocket implementation used to allow OIO dependant code to
      * leverage ICE without major code rewriting.
@@ -25,18 +25,21 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import net.mc_cubed.icedjava.packet.header.MessageClass;
 import net.mc_cubed.icedjava.packet.header.MessageMethod;
-import net.mc_cubed.icedjava.util.ExpiringCache;
+import net.mc_cubed.icedjava.util.ConcurrentExpiringCache;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.List;
+import java.util.LinkedList;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.mc_cubed.icedjava.packet.StunPacket;
 import net.mc_cubed.icedjava.packet.attribute.AttributeFactory;
+import org.glassfish.grizzly.CompletionHandler;
 import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.GrizzlyFuture;
 import org.glassfish.grizzly.WriteResult;
@@ -55,7 +58,9 @@ import org.glassfish.grizzly.filterchain.NextAction;
 class DatagramStunSocket extends BaseFilter implements StunSocket {
 
     protected static Logger log = Logger.getLogger(DatagramStunSocket.class.getName());
-    static ExpiringCache<BigInteger, StunReplyFuture> requestCache = new ExpiringCache<BigInteger, StunReplyFuture>();
+    static ConcurrentExpiringCache<BigInteger, StunReplyFuture> requestCache =
+            new ConcurrentExpiringCache<BigInteger, StunReplyFuture>(
+            StunUtil.TRANSACTION_LIFETIME, 0, StunUtil.MAX_TRANSACTIONS);
     protected volatile WeakReference<FilterChain> filterChain;
     protected volatile WeakReference<Connection<SocketAddress>> connection;
 
@@ -127,6 +132,7 @@ class DatagramStunSocket extends BaseFilter implements StunSocket {
                      * have failed.
                      */
                     for (int i = 0; i < maxRetries; i++) {
+                        replyFuture.transmitted();
                         GrizzlyFuture<WriteResult> future = filterChain.get().write(connection.get(), new InetSocketAddress(server, port), request, null);
 
                         // Wait for the write to finish
@@ -291,11 +297,14 @@ class DatagramStunSocket extends BaseFilter implements StunSocket {
         return TransportType.UDP;
     }
 
-    class StunReplyFuture implements Future<StunReply> {
+    static class StunReplyFuture implements NotifyingFuture<StunReply> {
 
         private final InetSocketAddress sockAddr;
         private StunReply stunReply = null;
         private boolean timeout = false;
+        private int transmissions = 0;
+        private long lastSent = 0;
+        private List<CompletionHandler<StunReply>> handlers = null;
 
         public StunReplyFuture(InetSocketAddress sockAddr) {
             this.sockAddr = sockAddr;
@@ -306,12 +315,15 @@ class DatagramStunSocket extends BaseFilter implements StunSocket {
         }
 
         @Override
-        public synchronized boolean cancel(boolean notify) {
-            this.timeout = true;
-            if (notify) {
-                this.notifyAll();
+        public boolean cancel(boolean notify) {
+            synchronized (this) {
+                this.timeout = true;
+                if (notify) {
+                    this.notifyAll();
+                }
             }
-            return timeout;
+            notifyHandlers();
+            return true;
         }
 
         @Override
@@ -349,10 +361,67 @@ class DatagramStunSocket extends BaseFilter implements StunSocket {
             return stunReply;
         }
 
-        protected synchronized void setReply(StunReply reply) {
-            this.stunReply = reply;
-            timeout = stunReply == null;
-            notifyAll();
+        @Override
+        public void addCompletionHandler(CompletionHandler<StunReply> handler) {
+            synchronized (this) {
+                if (!isDone()) {
+                    if (handlers == null) {
+                        handlers = new LinkedList<CompletionHandler<StunReply>>();
+                    }
+                    handlers.add(handler);
+                    return;
+                }
+            }
+            notifyHandler(handler);
+        }
+
+        /**
+         * Record that the request is about to be (re)transmitted
+         */
+        synchronized void transmitted() {
+            transmissions++;
+            lastSent = System.nanoTime();
+        }
+
+        protected void setReply(StunReply reply) {
+            synchronized (this) {
+                if (reply instanceof StunReplyImpl) {
+                    long rtt = (reply.getPacket() != null && transmissions > 0)
+                            ? (System.nanoTime() - lastSent) / 1000 : -1;
+                    ((StunReplyImpl) reply).setTiming(transmissions, rtt);
+                }
+                this.stunReply = reply;
+                timeout = stunReply == null;
+                notifyAll();
+            }
+            notifyHandlers();
+        }
+
+        // Handlers are called outside the lock, and only once
+        private void notifyHandlers() {
+            List<CompletionHandler<StunReply>> toNotify;
+            synchronized (this) {
+                toNotify = handlers;
+                handlers = null;
+            }
+            if (toNotify != null) {
+                for (CompletionHandler<StunReply> handler : toNotify) {
+                    notifyHandler(handler);
+                }
+            }
+        }
+
+        private void notifyHandler(CompletionHandler<StunReply> handler) {
+            try {
+                StunReply reply = stunReply;
+                if (reply != null) {
+                    handler.completed(reply);
+                } else {
+                    handler.cancelled();
+                }
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "A STUN completion handler threw an exception", ex);
+            }
         }
     }
 
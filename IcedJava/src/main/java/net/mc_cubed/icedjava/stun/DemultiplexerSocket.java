@@ -23,8 +23,12 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import net.mc_cubed.icedjava.stun.event.StunEventListener;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.WriteResult;
 
 /**
  * A generic demultiplexer socket interface implemented by both Datagram and
@@ -71,4 +75,44 @@ public interface DemultiplexerSocket extends StunSocketChannel, StunPacketSender
     public Socket getSocket() throws IOException;
 
     public TCPSocketType getTcpSocketType();
+
+    /**
+     * Send data without copying it.  The transport may still be using the
+     * buffer when this returns, so it must not be changed or reused until the
+     * completion handler is notified.
+     *
+     * @param src the data, between position and limit
+     * @param target address to send to
+     * @param completionHandler notified once the transport is done with src
+     * @return number of bytes being sent
+     * @throws IOException
+     */
+    public int send(ByteBuffer src, SocketAddress target,
+            CompletionHandler<WriteResult<ByteBuffer, SocketAddress>> completionHandler) throws IOException;
+
+    /**
+     * Send a run of buffers to one address, each as its own datagram (or
+     * frame, on a stream socket).  The connection is looked up once and the
+     * writes are queued back to back, letting the transport flush them
+     * together.  As with send(ByteBuffer, SocketAddress), the buffers are not
+     * copied.
+     *
+     * @param srcs the buffers to send
+     * @param offset index of the first buffer to send
+     * @param length number of buffers to send
+     * @param target address to send to
+     * @return number of bytes being sent
+     * @throws IOException
+     */
+    public long send(ByteBuffer[] srcs, int offset, int length, SocketAddress target) throws IOException;
+
+    /**
+     * Get the RFC 7983 filter classifying the packets arriving on this socket,
+     * so handlers for further protocols, such as TURN ChannelData, can be
+     * added to it.
+     *
+     * @return the demultiplexing filter, or null if this socket's pipeline
+     * doesn't have one
+     */
+    public RFC7983DemultiplexingFilter getDemultiplexingFilter();
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+/**
+ * The protocols which may share one ICE transport address, told apart by the
+ * first byte of each packet as laid out in RFC 7983 Section 7, with RTP and
+ * RTCP further split on the second byte as in RFC 5761 Section 4.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see RFC7983DemultiplexingFilter
+ */
+public enum MultiplexedProtocol {
+
+    /**
+     * First byte 0 to 3
+     */
+    STUN,
+    /**
+     * First byte 16 to 19
+     */
+    ZRTP,
+    /**
+     * First byte 20 to 63
+     */
+    DTLS,
+    /**
+     * First byte 64 to 79, TURN ChannelData
+     */
+    TURN_CHANNEL,
+    /**
+     * First byte 128 to 191, second byte not an RTCP packet type
+     */
+    RTP,
+    /**
+     * First byte 128 to 191, second byte 192 to 223
+     */
+    RTCP,
+    /**
+     * Anything else, which RFC 7983 says to drop
+     */
+    UNKNOWN;
+
+    /**
+     * Classify a packet by its first two bytes
+     *
+     * @param firstByte the first byte of the packet, 0 to 255
+     * @param secondByte the second byte of the packet, 0 to 255, or -1 if the
+     * packet is a single byte long
+     * @return the protocol the packet belongs to
+     */
+    public static MultiplexedProtocol classify(int firstByte, int secondByte) {
+        if (firstByte < 4) {
+            return STUN;
+        } else if (firstByte < 16) {
+            return UNKNOWN;
+        } else if (firstByte < 20) {
+            return ZRTP;
+        } else if (firstByte < 64) {
+            return DTLS;
+        } else if (firstByte < 80) {
+            return TURN_CHANNEL;
+        } else if (firstByte < 128 || firstByte > 191 || secondByte < 0) {
+            return UNKNOWN;
+        } else if (secondByte >= 192 && secondByte <= 223) {
+            return RTCP;
+        } else {
+            return RTP;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.util.concurrent.Future;
+import org.glassfish.grizzly.CompletionHandler;
+
+/**
+ * A Future which can tell interested parties when it is done, so callers
+ * don't need to hold a thread waiting on get().
+ *
+ * @param <V> the result type
+ * @author Charles Chappell
+ * @since 1.0
+ */
+public interface NotifyingFuture<V> extends Future<V> {
+
+    /**
+     * Have the handler called once this future is done.  completed() is
+     * called with the result, cancelled() if the future timed out or was
+     * cancelled without one.  If the future is already done, the handler is
+     * called straight away on the calling thread, otherwise on the thread
+     * which finishes the future, so handlers should be quick.
+     *
+     * @param handler the handler to notify
+     */
+    void addCompletionHandler(CompletionHandler<V> handler);
+}
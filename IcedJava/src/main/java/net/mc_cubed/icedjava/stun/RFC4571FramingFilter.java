@@ -21,13 +21,22 @@ package net.mc_cubed.icedjava.stun;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
 import org.glassfish.grizzly.filterchain.BaseFilter;
 import org.glassfish.grizzly.filterchain.FilterChainContext;
 import org.glassfish.grizzly.filterchain.NextAction;
 
 /**
  * This filter breaks buffer/datagram based data up into frames suitable for
- * transmission over a stream oriented connection
+ * transmission over a stream oriented connection.  Frames carry a 16 bit
+ * unsigned length, so they can be up to 65535 bytes long.
+ * <p>
+ * One instance is shared by every connection accepted on a listening socket,
+ * so the partly read frame is kept on the connection rather than on the
+ * filter.  Frames which arrive whole are passed on as slices of the read
+ * buffer, and only a frame split across reads is copied, once.
  *
  * @author Charles Chappell
  * @since 1.0
@@ -35,11 +44,18 @@ import org.glassfish.grizzly.filterchain.NextAction;
 public class RFC4571FramingFilter extends BaseFilter {
 
     /**
-     * Buffer for holding incomplete read data.  Writes are always performed 
-     * completely, so this is only for reads
+     * Largest frame the 16 bit length field can describe
      */
-    ByteBuffer readBuffer = ByteBuffer.allocate(Short.MAX_VALUE + 2);
-    int expectedBytes = 0;
+    public static final int MAX_FRAME_LENGTH = 0xffff;
+    static final int HEADER_LENGTH = 2;
+    private static final Attribute<Deframer> deframerAttribute =
+            Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(
+            RFC4571FramingFilter.class.getName() + ".deframer");
+    /**
+     * Used when the context has no connection, which only happens when the
+     * filter is driven outside of a transport
+     */
+    private final Deframer localDeframer = new Deframer();
 
     /**
      * Assumes ByteBuffer formatted input
@@ -52,80 +68,18 @@ public class RFC4571FramingFilter extends BaseFilter {
     public NextAction handleRead(FilterChainContext ctx) throws IOException {
         ByteBuffer inBuffer = ctx.getMessage();
 
-        /**
-         * If we had an incomplete packet last time, we should continue reading
-         * it now
-         */
-        if (readBuffer.position() > 0) {
-            readBuffer.put(inBuffer);
-            // If we have enough bytes to proceed, do so now
-            if (readBuffer.position() >= expectedBytes) {
-                // Flip the buffer for reading
-                readBuffer.flip();
-                // Allocate an appropriately sized output buffer
-                ByteBuffer outBuffer = ByteBuffer.allocate(expectedBytes);
-                // Write the bytes into the output buffer
-                outBuffer.put(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), expectedBytes);
-                // Forward by the number of bytes read
-                readBuffer.position(readBuffer.position() + expectedBytes);
-                // Set the output buffer
-                ctx.setMessage(outBuffer);
-                /*
-                 * What to do next?  If readBuffer has bytes remaining, then we
-                 * should compact and iterate again, otherwise, clear the read
-                 * buffer and proceed
-                 */
-                if (readBuffer.remaining() > 0) {
-                    // compact buffer and read again
-                    readBuffer.compact();
-                    // Flip the buffer into write mode
-                    readBuffer.flip();
-                    // Invoke next filter and iterate again
-                    return ctx.getInvokeAction(ByteBuffer.allocate(0));
-                } else {
-                    // Clear the filter
-                    readBuffer.clear();
-                    // Invoke the next filter
-                    return ctx.getInvokeAction();
-                }
-            } else {
-                // We don't yet have enough data to form a complete buffer, so stop here
-                return ctx.getStopAction();
-            }
-        } else {
-            // Peek at the first two bytes to see how many additional bytes we need
-            expectedBytes = inBuffer.getShort();
-
-            // Check whether we have the requisite number of bytes
-            if (inBuffer.remaining() >= expectedBytes) {
-                // Allocate a buffer to hold the incoming data
-                ByteBuffer outBuffer = ByteBuffer.allocate(expectedBytes);
-                // Read the complete chunk
-                outBuffer.put(inBuffer.array(), inBuffer.arrayOffset() + inBuffer.position(), expectedBytes);
-                // Increment the input buffer by the number of bytes read
-                inBuffer.position(expectedBytes + inBuffer.position());
-                // Set the resulting buffer for passing upstream
-                ctx.setMessage(outBuffer);
-                /*
-                 * What to do next?  If inBuffer has bytes remaining, then we
-                 * should iterate again, otherwise, just pass the buffer up
-                 */
-                if (inBuffer.remaining() > 0) {
-                    // Invoke next filter and iterate again
-                    return ctx.getInvokeAction(inBuffer);
-                } else {
-                    // Clear the filter
-                    readBuffer.clear();
-                    // Invoke the next filter
-                    return ctx.getInvokeAction();
-                }
-            } else {
-                // Put the bytes into the read buffer for later processing
-                readBuffer.put(inBuffer);
-                // Stop filter chain execution until more data arrives
-                return ctx.getStopAction();
-            }
+        ByteBuffer frame = getDeframer(ctx.getConnection()).next(inBuffer);
+        if (frame == null) {
+            // We don't yet have a complete frame, so stop here
+            return ctx.getStopAction();
+        }
 
+        ctx.setMessage(frame);
+        if (inBuffer.hasRemaining()) {
+            // Invoke the next filter and iterate again over what is left
+            return ctx.getInvokeAction(inBuffer);
+        } else {
+            return ctx.getInvokeAction();
         }
     }
 
@@ -142,14 +96,16 @@ public class RFC4571FramingFilter extends BaseFilter {
         // Get the input data
         ByteBuffer bb = ctx.getMessage();
         // Check to make sure it's not too long
-        int writeBytes = Math.min(bb.remaining(), Short.MAX_VALUE);
+        int writeBytes = Math.min(bb.remaining(), MAX_FRAME_LENGTH);
 
         // Allocate an output buffer to hold the data
-        ByteBuffer outBuffer = ByteBuffer.allocate(writeBytes + 2);
+        ByteBuffer outBuffer = ByteBuffer.allocate(writeBytes + HEADER_LENGTH);
         // Put the length field to start the framing
         outBuffer.putShort((short) writeBytes);
-        // Put the actual frame data
-        outBuffer.put(bb.array(), bb.arrayOffset() + bb.position(), writeBytes);
+        // Put the actual frame data, which need not be backed by an array
+        ByteBuffer data = bb.duplicate();
+        data.limit(data.position() + writeBytes);
+        outBuffer.put(data);
         // Forward the input buffer by writeBytes
         bb.position(bb.position() + writeBytes);
         // Flip the output buffer for reading
@@ -167,4 +123,91 @@ public class RFC4571FramingFilter extends BaseFilter {
             return ctx.getInvokeAction();
         }
     }
+
+    Deframer getDeframer(Connection connection) {
+        if (connection == null) {
+            return localDeframer;
+        }
+        Deframer deframer = deframerAttribute.get(connection);
+        if (deframer == null) {
+            // Reads on one connection are never processed concurrently
+            deframer = new Deframer();
+            deframerAttribute.set(connection, deframer);
+        }
+        return deframer;
+    }
+
+    /**
+     * Reassembly state of one stream
+     */
+    static class Deframer {
+
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        private ByteBuffer partial;
+
+        /**
+         * Take the next complete frame from the stream.  The input buffer is
+         * advanced past everything consumed, which is either one frame or
+         * all of it.
+         *
+         * @param in data read from the stream
+         * @return the frame, or null if more data is needed to complete it
+         */
+        ByteBuffer next(ByteBuffer in) {
+            while (partial == null) {
+                int length;
+                if (!in.hasRemaining()) {
+                    return null;
+                } else if (header.position() > 0) {
+                    // Finish a length field split across reads
+                    header.put(in.get());
+                    header.flip();
+                    length = header.getShort() & 0xffff;
+                    header.clear();
+                } else if (in.remaining() >= HEADER_LENGTH) {
+                    length = in.getShort() & 0xffff;
+                    if (in.remaining() >= length) {
+                        // The whole frame is here, pass it on without copying
+                        ByteBuffer frame = in.slice();
+                        frame.limit(length);
+                        in.position(in.position() + length);
+                        if (length > 0) {
+                            return frame;
+                        }
+                        continue;
+                    }
+                } else {
+                    header.put(in.get());
+                    return null;
+                }
+                if (length > 0) {
+                    partial = ByteBuffer.allocate(length);
+                }
+            }
+
+            // Copy as much of the split frame as this read holds
+            if (in.remaining() > partial.remaining()) {
+                ByteBuffer part = in.duplicate();
+                part.limit(part.position() + partial.remaining());
+                partial.put(part);
+                in.position(part.position());
+            } else {
+                partial.put(in);
+            }
+            if (partial.hasRemaining()) {
+                return null;
+            }
+            ByteBuffer frame = partial;
+            partial = null;
+            frame.flip();
+            return frame;
+        }
+
+        /**
+         * @return true if part of a frame is waiting for more data
+         */
+        boolean isPending() {
+            return partial != null || header.position() > 0;
+        }
+    }
 }
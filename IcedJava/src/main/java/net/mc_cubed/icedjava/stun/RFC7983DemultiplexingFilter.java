@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+
+/**
+ * Classifies each incoming packet by its first byte, per RFC 7983, and hands
+ * those with a registered handler straight to it as a ByteBuffer viewing the
+ * received bytes.  Packets of any other protocol, STUN included, continue
+ * down the chain as before, as do those RFC 7983 does not assign to a
+ * protocol, since an IceSocketChannel may carry any datagrams at all.  Those
+ * are only dropped if the filter is told to with setDropUnassigned().
+ *
+ * Placed directly after the TransportFilter, this keeps media from passing
+ * through the STUN decoder and the ICE filters at all.  May also be placed
+ * after the RFC 4571 framing filter of a stream pipeline.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see MultiplexedProtocol
+ */
+public class RFC7983DemultiplexingFilter extends BaseFilter {
+
+    // Replaced rather than changed, so the read path needs no lock
+    private volatile Map<MultiplexedProtocol, Filter> handlers =
+            new EnumMap<MultiplexedProtocol, Filter>(MultiplexedProtocol.class);
+    private volatile boolean dropUnassigned = false;
+
+    public RFC7983DemultiplexingFilter() {
+    }
+
+    /**
+     * Route media directly to the given filter, usually the demultiplexer
+     * socket at the end of the chain
+     *
+     * @param mediaHandler the filter to receive RTP, RTCP, DTLS and ZRTP
+     */
+    public RFC7983DemultiplexingFilter(Filter mediaHandler) {
+        setHandler(MultiplexedProtocol.RTP, mediaHandler);
+        setHandler(MultiplexedProtocol.RTCP, mediaHandler);
+        setHandler(MultiplexedProtocol.DTLS, mediaHandler);
+        setHandler(MultiplexedProtocol.ZRTP, mediaHandler);
+    }
+
+    /**
+     * Route packets of one protocol to a handler.  May be called while the
+     * filter chain is receiving, as the TURN client does once it has an
+     * allocation.
+     *
+     * @param protocol the protocol to route
+     * @param handler the filter whose handleRead gets the packets, or null to
+     * let them continue down the chain
+     */
+    public final synchronized void setHandler(MultiplexedProtocol protocol, Filter handler) {
+        Map<MultiplexedProtocol, Filter> updated =
+                new EnumMap<MultiplexedProtocol, Filter>(handlers);
+        if (handler == null) {
+            updated.remove(protocol);
+        } else {
+            updated.put(protocol, handler);
+        }
+        handlers = updated;
+    }
+
+    public Filter getHandler(MultiplexedProtocol protocol) {
+        return handlers.get(protocol);
+    }
+
+    public boolean isDropUnassigned() {
+        return dropUnassigned;
+    }
+
+    /**
+     * Drop packets RFC 7983 does not assign to any protocol, for channels
+     * known to carry nothing but STUN and media
+     *
+     * @param dropUnassigned true to stop the chain on unassigned packets,
+     * false to pass them on down the chain
+     */
+    public void setDropUnassigned(boolean dropUnassigned) {
+        this.dropUnassigned = dropUnassigned;
+    }
+
+    @Override
+    public NextAction handleRead(FilterChainContext ctx) throws IOException {
+        Object message = ctx.getMessage();
+        MultiplexedProtocol protocol;
+        if (message instanceof Buffer) {
+            protocol = classify((Buffer) message);
+        } else if (message instanceof ByteBuffer) {
+            protocol = classify((ByteBuffer) message);
+        } else {
+            return ctx.getInvokeAction();
+        }
+
+        if (protocol == MultiplexedProtocol.UNKNOWN && dropUnassigned) {
+            return ctx.getStopAction();
+        }
+        Filter handler = handlers.get(protocol);
+        if (handler == null) {
+            return ctx.getInvokeAction();
+        }
+        if (message instanceof Buffer) {
+            // The transport doesn't reuse a buffer the chain stopped on, so
+            // the handler may keep this view rather than a copy
+            ctx.setMessage(((Buffer) message).toByteBuffer());
+        }
+        return handler.handleRead(ctx);
+    }
+
+    /**
+     * Classify a Grizzly buffer without moving its position
+     */
+    public static MultiplexedProtocol classify(Buffer buffer) {
+        int remaining = buffer.remaining();
+        if (remaining == 0) {
+            return MultiplexedProtocol.UNKNOWN;
+        }
+        int position = buffer.position();
+        return MultiplexedProtocol.classify(buffer.get(position) & 0xff,
+                remaining > 1 ? buffer.get(position + 1) & 0xff : -1);
+    }
+
+    /**
+     * Classify an NIO buffer without moving its position
+     */
+    public static MultiplexedProtocol classify(ByteBuffer buffer) {
+        int remaining = buffer.remaining();
+        if (remaining == 0) {
+            return MultiplexedProtocol.UNKNOWN;
+        }
+        int position = buffer.position();
+        return MultiplexedProtocol.classify(buffer.get(position) & 0xff,
+                remaining > 1 ? buffer.get(position + 1) & 0xff : -1);
+    }
+}
@@ -32,37 +32,282 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketImpl;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NotYetConnectedException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import net.mc_cubed.icedjava.ice.IceFactory;
 import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.packet.attribute.AttributeFactory;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.DatagramStunSocket.StunReplyFuture;
 import net.mc_cubed.icedjava.stun.event.StunEventListener;
 import net.mc_cubed.icedjava.util.AddressedByteBuffer;
+import org.glassfish.grizzly.CompletionHandler;
 import org.glassfish.grizzly.Connection;
-import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
 
 /**
- * A datagram socket that can be used for STUN testing, or sending and receiving
- * data, or both at the same time. The socket implementation takes care of
- * separating the two types of data.
+ * A stream socket that can be used for STUN testing, or sending and receiving
+ * data, or both at the same time, as an ICE-TCP candidate per RFC 6544.  The
+ * socket implementation takes care of separating the two types of data.
+ *
+ * Each remote address gets one connection, which is reused for every check
+ * and all the media sent to it.  Active sockets connect from an ephemeral
+ * port and advertise port 9, simultaneous-open sockets connect from their own
+ * fixed port, and passive sockets only use connections accepted on their
+ * listening port.
  *
  * @author Charles Chappell
  * @since 0.9
  */
 class StreamDemultiplexerSocket extends AbstractStunSocket implements DemultiplexerSocket, StunSocketChannel {
 
+    /**
+     * RFC 5389 7.2.2: Ti, how long a transaction over a reliable transport
+     * waits for its response
+     */
+    static final int RELIABLE_TIMEOUT = 39500;
     private ServerStreamStunSocketBridge serverSocketBridge;
     private StreamStunSocketBridge socketBridge;
     private final ConnectionFactory connectionFactory;
-    
+    private volatile InetSocketAddress localAddress;
+    private final ConcurrentMap<SocketAddress, Connection<SocketAddress>> connections =
+            new ConcurrentHashMap<SocketAddress, Connection<SocketAddress>>();
+    private Connection<SocketAddress> serverConnection;
+    // Callers waiting on a connection being opened, guarded by connections
+    private final Map<SocketAddress, List<CompletionHandler<Connection<SocketAddress>>>> connecting =
+            new HashMap<SocketAddress, List<CompletionHandler<Connection<SocketAddress>>>>();
+    private final RFC7983DemultiplexingFilter demultiplexingFilter = new RFC7983DemultiplexingFilter(this);
+    private volatile boolean closed = false;
+    private int transactionTimeout = RELIABLE_TIMEOUT;
+
     protected interface ConnectionFactory {
-        Connection connect(InetSocketAddress address,Filter socket);
+
+        /**
+         * Start opening a connection with a pipeline ending in the given
+         * socket.  Nothing waits on the connect, the handler is told once
+         * the connection is open, or has failed or timed out.
+         *
+         * @param address the remote address to connect to
+         * @param localAddress the local address to connect from
+         * @param socket the socket to put at the top of the pipeline
+         * @param handler told the outcome of the connect
+         * @throws IOException if the connect could not be started
+         */
+        void connect(InetSocketAddress address, InetSocketAddress localAddress,
+                StreamDemultiplexerSocket socket, CompletionHandler<Connection<SocketAddress>> handler) throws IOException;
+
+        /**
+         * Let go of anything held for the socket's local address.  Called
+         * when the socket is closed.
+         */
+        void close() throws IOException;
     }
-    
-    protected StreamDemultiplexerSocket(StunEventListener stunEventListener,ConnectionFactory factory) {
+
+    /**
+     * @param stunEventListener listener to notify of received data, may be null
+     * @param tcpSocketType how connections are established
+     * @param localAddress the address to connect from, or listen on
+     * @param factory opens outgoing connections, null for passive sockets
+     */
+    protected StreamDemultiplexerSocket(StunEventListener stunEventListener, TCPSocketType tcpSocketType,
+            InetSocketAddress localAddress, ConnectionFactory factory) {
         if (stunEventListener != null) {
             listeners.add(stunEventListener);
         }
+        this.tcpSocketType = tcpSocketType;
+        this.localAddress = localAddress;
         this.connectionFactory = factory;
-        tcpSocketType = TCPSocketType.ACTIVE;
+    }
+
+    @Override
+    public NextAction handleAccept(FilterChainContext ctx) throws IOException {
+        // The STUN handler answers checks without passing them up the chain,
+        //  so an accepted connection has to become known before any read
+        Connection<SocketAddress> accepted = addressed(ctx.getConnection());
+        if (accepted != null && accepted.getPeerAddress() != null) {
+            register(accepted.getPeerAddress(), accepted);
+        }
+        return ctx.getInvokeAction();
+    }
+
+    @Override
+    public NextAction handleRead(FilterChainContext ctx) throws IOException {
+        // Accepted connections, and those we opened, become known here
+        if (ctx.getConnection() != null && ctx.getAddress() != null) {
+            register((SocketAddress) ctx.getAddress(), addressed(ctx.getConnection()));
+        }
+        if (ctx.getMessage() instanceof StunPacket) {
+            storeAndNotify((StunPacket) ctx.getMessage());
+            return ctx.getStopAction();
+        }
+        return super.handleRead(ctx);
+    }
+
+    /**
+     * Remember the connection to a remote address, and forget it once it
+     * closes, failing any transaction still waiting on it.
+     */
+    void register(final SocketAddress remote, final Connection<SocketAddress> connection) {
+        if (connections.get(remote) == connection) {
+            return;
+        }
+        connections.put(remote, connection);
+        this.connection = new WeakReference<Connection<SocketAddress>>(connection);
+        connection.addCloseListener(new Connection.CloseListener() {
+
+            @Override
+            @SuppressWarnings("rawtypes")
+            public void onClosed(Connection closedConnection) throws IOException {
+                connections.remove(remote, closedConnection);
+                failTransactions(remote, new ClosedChannelException());
+            }
+        });
+    }
+
+    /**
+     * Grizzly 2.1 hands some connections out raw.  Every one this socket
+     * sees is a TCP connection, addressed by SocketAddress.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static Connection<SocketAddress> addressed(Connection connection) {
+        return connection;
+    }
+
+    void failTransactions(SocketAddress remote, Throwable cause) {
+        for (StunReplyFuture replyFuture : requestCache.values()) {
+            if (!replyFuture.isDone() && replyFuture.getSockAddr().equals(remote)) {
+                replyFuture.setReply(new StunReplyImpl(cause));
+            }
+        }
+    }
+
+    /**
+     * Get the open connection to a remote address
+     *
+     * @return the connection, or null if there is none
+     */
+    Connection<SocketAddress> getConnection(SocketAddress remote) {
+        Connection<SocketAddress> existing = connections.get(remote);
+        if (existing != null && !existing.isOpen()) {
+            connections.remove(remote, existing);
+            return null;
+        }
+        return existing;
+    }
+
+    /**
+     * Get the connection to a remote address, opening one if this socket may.
+     * The handler is called straight away if the connection is already open,
+     * otherwise once it has been opened.  Callers arriving while a connect is
+     * under way share its outcome.
+     *
+     * @param remote the address to connect to
+     * @param handler told the connection, or why there is none
+     */
+    void connect(final InetSocketAddress remote, CompletionHandler<Connection<SocketAddress>> handler) {
+        Connection<SocketAddress> existing = getConnection(remote);
+        if (existing != null) {
+            handler.completed(existing);
+            return;
+        }
+        if (closed) {
+            handler.failed(new ClosedChannelException());
+            return;
+        }
+        if (connectionFactory == null) {
+            handler.failed(new IOException("Passive socket " + localAddress + " has no connection from " + remote));
+            return;
+        }
+        synchronized (connections) {
+            List<CompletionHandler<Connection<SocketAddress>>> waiting = connecting.get(remote);
+            if (waiting != null) {
+                waiting.add(handler);
+                return;
+            }
+            waiting = new LinkedList<CompletionHandler<Connection<SocketAddress>>>();
+            waiting.add(handler);
+            connecting.put(remote, waiting);
+        }
+
+        InetSocketAddress from = tcpSocketType == TCPSocketType.SO
+                ? localAddress : new InetSocketAddress(localAddress.getAddress(), 0);
+        try {
+            connectionFactory.connect(remote, from, this, new CompletionHandler<Connection<SocketAddress>>() {
+
+                @Override
+                public void cancelled() {
+                    connected(remote, null, new IOException("Connecting to " + remote + " was cancelled"));
+                }
+
+                @Override
+                public void failed(Throwable throwable) {
+                    connected(remote, null, throwable);
+                }
+
+                @Override
+                public void completed(Connection<SocketAddress> opened) {
+                    Connection<SocketAddress> winner;
+                    synchronized (connections) {
+                        // The remote side may have connected to us first, keep theirs
+                        winner = getConnection(remote);
+                        if (winner == null) {
+                            register(remote, opened);
+                            winner = opened;
+                        }
+                    }
+                    if (winner != opened) {
+                        try {
+                            opened.close();
+                        } catch (IOException ex) {
+                            log.log(Level.FINE, "Error closing a duplicate connection", ex);
+                        }
+                    }
+                    connected(remote, winner, null);
+                }
+
+                @Override
+                public void updated(Connection<SocketAddress> result) {
+                }
+            });
+        } catch (IOException ex) {
+            connected(remote, null, ex);
+        }
+    }
+
+    private void connected(SocketAddress remote, Connection<SocketAddress> connection, Throwable cause) {
+        List<CompletionHandler<Connection<SocketAddress>>> waiting;
+        synchronized (connections) {
+            waiting = connecting.remove(remote);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (CompletionHandler<Connection<SocketAddress>> handler : waiting) {
+            try {
+                if (connection != null) {
+                    handler.completed(connection);
+                } else {
+                    handler.failed(cause);
+                }
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "A connect handler threw an exception", ex);
+            }
+        }
     }
 
     @Override
@@ -78,6 +323,9 @@ class StreamDemultiplexerSocket extends AbstractStunSocket implements Demultiple
     @Override
     public int read(ByteBuffer bb) throws IOException {
         AddressedByteBuffer packet = bufferQueue.poll();
+        if (packet == null) {
+            return 0;
+        }
 
         bb.put(packet.getBuffer());
         bb.flip();
@@ -86,13 +334,17 @@ class StreamDemultiplexerSocket extends AbstractStunSocket implements Demultiple
 
     @Override
     public boolean isOpen() {
-        return connection.get() != null ? connection.get().isOpen() : false;
+        return !closed;
     }
 
     @Override
     public int write(ByteBuffer bb) throws IOException {
+        Connection<SocketAddress> current = connection != null ? connection.get() : null;
+        if (current == null) {
+            throw new NotYetConnectedException();
+        }
         int bytes = bb.remaining();
-        connection.get().write(bb);
+        current.write(bb);
         return bytes;
 
     }
@@ -129,6 +381,9 @@ class StreamDemultiplexerSocket extends AbstractStunSocket implements Demultiple
     @Override
     public SocketAddress receive(ByteBuffer dst) {
         AddressedByteBuffer packet = bufferQueue.poll();
+        if (packet == null) {
+            return null;
+        }
 
         dst.put(packet.getBuffer());
         dst.flip();
@@ -137,8 +392,83 @@ class StreamDemultiplexerSocket extends AbstractStunSocket implements Demultiple
 
     @Override
     public int send(ByteBuffer src, SocketAddress target) throws IOException {
+        return send(src, target, null);
+    }
+
+    /**
+     * Send a frame to the target, connecting first if needed.  The frame is
+     * written once the connection is open, so the caller never waits on the
+     * connect.
+     */
+    @Override
+    public int send(final ByteBuffer src, final SocketAddress target,
+            final CompletionHandler<WriteResult<ByteBuffer, SocketAddress>> completionHandler) throws IOException {
         int remainingBytes = src.remaining();
-        connection.get().write(target, src, null);
+        connect((InetSocketAddress) target, new CompletionHandler<Connection<SocketAddress>>() {
+
+            @Override
+            public void cancelled() {
+                if (completionHandler != null) {
+                    completionHandler.cancelled();
+                }
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                log.log(Level.FINE, "Unable to send to " + target, throwable);
+                if (completionHandler != null) {
+                    completionHandler.failed(throwable);
+                }
+            }
+
+            @Override
+            public void completed(Connection<SocketAddress> connection) {
+                try {
+                    connection.write(target, src, completionHandler);
+                } catch (IOException ex) {
+                    failed(ex);
+                }
+            }
+
+            @Override
+            public void updated(Connection<SocketAddress> result) {
+            }
+        });
+        return remainingBytes;
+    }
+
+    @Override
+    public long send(final ByteBuffer[] srcs, final int offset, final int length, final SocketAddress target) throws IOException {
+        long remainingBytes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remainingBytes += srcs[i].remaining();
+        }
+        connect((InetSocketAddress) target, new CompletionHandler<Connection<SocketAddress>>() {
+
+            @Override
+            public void cancelled() {
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                log.log(Level.FINE, "Unable to send to " + target, throwable);
+            }
+
+            @Override
+            public void completed(Connection<SocketAddress> connection) {
+                try {
+                    for (int i = offset; i < offset + length; i++) {
+                        connection.write(target, srcs[i], null);
+                    }
+                } catch (IOException ex) {
+                    failed(ex);
+                }
+            }
+
+            @Override
+            public void updated(Connection<SocketAddress> result) {
+            }
+        });
         return remainingBytes;
     }
 
@@ -178,46 +508,177 @@ class StreamDemultiplexerSocket extends AbstractStunSocket implements Demultiple
 
     @Override
     public InetAddress getLocalAddress() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return localAddress.getAddress();
     }
 
     @Override
     public int getLocalPort() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if (tcpSocketType == TCPSocketType.ACTIVE) {
+            return StunUtil.ACTIVE_TCP_PORT;
+        }
+        return localAddress.getPort();
     }
 
     @Override
     public InetSocketAddress getLocalSocketAddress() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new InetSocketAddress(getLocalAddress(), getLocalPort());
     }
 
     @Override
     public void close() throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        closed = true;
+        for (Connection<SocketAddress> open : connections.values()) {
+            open.close();
+        }
+        connections.clear();
+        if (serverConnection != null) {
+            serverConnection.close();
+            StunUtil.getServerSocketChannelFactory().unbind(serverConnection);
+        }
+        if (connectionFactory != null) {
+            connectionFactory.close();
+        }
     }
 
     @Override
     public void setMaxRetries(int retries) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        // Nothing is retransmitted over a reliable transport, RFC 5389 7.2.2
+    }
+
+    /**
+     * @param transactionTimeout milliseconds a STUN transaction waits for its
+     * response, Ti in RFC 5389 7.2.2
+     */
+    public void setTransactionTimeout(int transactionTimeout) {
+        this.transactionTimeout = transactionTimeout;
+    }
+
+    public int getTransactionTimeout() {
+        return transactionTimeout;
     }
 
     @Override
     public void storeAndNotify(StunPacket packet) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if (packet.getMessageClass() != MessageClass.SUCCESS
+                && packet.getMessageClass() != MessageClass.ERROR) {
+            log.log(Level.FINE, "Dropping an unhandled STUN {0}", packet.getMessageClass());
+            return;
+        }
+        StunReplyFuture requestFuture = requestCache.get(packet.getId());
+
+        if (requestFuture != null) {
+            requestFuture.setReply(new StunReplyImpl(packet));
+        } else {
+            log.log(Level.INFO, "Got an unexpected reply: {0}", packet);
+        }
     }
 
     @Override
     public Future<StunReply> doTest(InetSocketAddress stunServer) throws IOException, InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        StunPacketImpl request = new StunPacketImpl(MessageClass.REQUEST, MessageMethod.BINDING);
+        request.getAttributes().add(AttributeFactory.createFingerprintAttribute());
+
+        return doTest(stunServer, request);
     }
 
+    /**
+     * Send a STUN request over the connection to the server, connecting
+     * first if needed.  The request is sent once, per RFC 5389 7.2.2, and the
+     * transaction fails if no response comes within the transaction timeout.
+     */
     @Override
-    public Future<StunReply> doTest(InetSocketAddress stunServer, StunPacket packet) throws IOException, InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public Future<StunReply> doTest(final InetSocketAddress stunServer, final StunPacket packet) throws IOException, InterruptedException {
+        log.log(Level.FINER, "Sending: {0}", packet);
+        final StunReplyFuture replyFuture = new StunReplyFuture(stunServer);
+        requestCache.admit(packet.getId(), replyFuture);
+
+        connect(stunServer, new CompletionHandler<Connection<SocketAddress>>() {
+
+            @Override
+            public void cancelled() {
+                failed(new IOException("Connecting to " + stunServer + " was cancelled"));
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                replyFuture.setReply(new StunReplyImpl(throwable));
+            }
+
+            @Override
+            public void completed(Connection<SocketAddress> connection) {
+                transmit(connection, stunServer, packet, replyFuture);
+            }
+
+            @Override
+            public void updated(Connection<SocketAddress> result) {
+            }
+        });
+        if (replyFuture.isDone()) {
+            return replyFuture;
+        }
+
+        final ScheduledFuture<?> timeout = IceFactory.getSharedThreadpool().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!replyFuture.isDone()) {
+                    replyFuture.cancel(true);
+                }
+            }
+        }, transactionTimeout, TimeUnit.MILLISECONDS);
+        // Take the timeout off the scheduler as soon as the transaction ends
+        replyFuture.addCompletionHandler(new CompletionHandler<StunReply>() {
+
+            @Override
+            public void cancelled() {
+                cancelTimeout(timeout);
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                cancelTimeout(timeout);
+            }
+
+            @Override
+            public void completed(StunReply result) {
+                cancelTimeout(timeout);
+            }
+
+            @Override
+            public void updated(StunReply result) {
+            }
+        });
+        return replyFuture;
     }
 
-    void setServerConnection(Connection connection) {
-        this.connection = new WeakReference<Connection<SocketAddress>>(connection);
+    /**
+     * Cancel a timeout on the shared pool, and take it off the pool's queue
+     * rather than leave it there until it would have run
+     */
+    private static void cancelTimeout(ScheduledFuture<?> timeout) {
+        if (timeout.cancel(false)) {
+            ScheduledExecutorService pool = IceFactory.getSharedThreadpool();
+            if (pool instanceof ScheduledThreadPoolExecutor && timeout instanceof Runnable) {
+                ((ScheduledThreadPoolExecutor) pool).remove((Runnable) timeout);
+            }
+        }
+    }
+
+    void transmit(Connection<SocketAddress> connection, InetSocketAddress target, StunPacket packet, StunReplyFuture replyFuture) {
+        try {
+            replyFuture.transmitted();
+            connection.write(target, packet, null);
+        } catch (IOException ex) {
+            replyFuture.setReply(new StunReplyImpl(ex));
+        }
+    }
+
+    /**
+     * Listen for connections on a bound server connection
+     */
+    void setServerConnection(Connection<SocketAddress> connection) {
+        this.serverConnection = connection;
+        this.localAddress = (InetSocketAddress) connection.getLocalAddress();
     }
 
     final TCPSocketType tcpSocketType;
@@ -227,6 +688,20 @@ class StreamDemultiplexerSocket extends AbstractStunSocket implements Demultiple
         return tcpSocketType;
     }
 
+    /**
+     * Placed after the framing filter of every connection's pipeline, so media
+     * frames skip the STUN filters
+     */
+    @Override
+    public RFC7983DemultiplexingFilter getDemultiplexingFilter() {
+        return demultiplexingFilter;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[tcpSocketType=" + tcpSocketType + ":localAddress=" + localAddress + "]";
+    }
+
     /**
      * A dummy ServerSocket implementation used to allow OIO dependant code to
      * leverage ICE without major code rewriting.
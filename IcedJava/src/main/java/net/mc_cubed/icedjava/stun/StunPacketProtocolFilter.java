@@ -46,8 +46,9 @@ public class StunPacketProtocolFilter extends BaseFilter {
         ByteBuffer buffer = ctx.getMessage();
         StunPacket packet = null;
         try {
-            if (MessageHeader.isRFC5389StunPacket(buffer.array(), buffer.arrayOffset(), buffer.remaining())) {
-                packet = new StunPacketImpl(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+            int off = buffer.arrayOffset() + buffer.position();
+            if (MessageHeader.isRFC5389StunPacket(buffer.array(), off, buffer.remaining())) {
+                packet = new StunPacketImpl(buffer.array(), off, buffer.remaining());
                 buffer.position(buffer.limit());
             }
         } catch (Exception ex) {
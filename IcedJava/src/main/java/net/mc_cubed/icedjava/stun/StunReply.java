@@ -93,4 +93,22 @@ public interface StunReply {
      * @return The original StunPacket
      */
     public StunPacket getPacket();
+
+    /**
+     * The number of times the request was put on the wire before this reply
+     * was received or the transaction gave up.  Anything above 1 means the
+     * request was retransmitted.
+     *
+     * @return the number of transmissions, 0 if the request was never sent
+     */
+    int getTransmissions();
+
+    /**
+     * The time between the last transmission of the request and the arrival
+     * of this reply.
+     *
+     * @return the round trip time in microseconds, or -1 if no reply packet
+     * was received
+     */
+    long getRoundTripMicros();
 }
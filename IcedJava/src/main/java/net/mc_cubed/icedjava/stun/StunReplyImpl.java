@@ -48,6 +48,8 @@ class StunReplyImpl implements StunReply {
     private String errorReason;
     private Boolean validFingerprint;
     private Map<AttributeType, Attribute> attrMap = new HashMap<AttributeType, Attribute>();
+    private int transmissions = 0;
+    private long roundTripMicros = -1;
 
     public StunReplyImpl(StunPacket packet) {
         success = packet.getMessageClass() == MessageClass.SUCCESS;
@@ -125,4 +127,19 @@ class StunReplyImpl implements StunReply {
     public StunPacket getPacket() {
         return this.packet;
     }
+
+    @Override
+    public int getTransmissions() {
+        return transmissions;
+    }
+
+    @Override
+    public long getRoundTripMicros() {
+        return roundTripMicros;
+    }
+
+    void setTiming(int transmissions, long roundTripMicros) {
+        this.transmissions = transmissions;
+        this.roundTripMicros = roundTripMicros;
+    }
 }
@@ -0,0 +1,718 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * A pool of STUN servers, ranked by how quickly and how reliably they answer.
+ * <p>
+ * In the background, every refresh interval, the built-in server names are
+ * resolved in parallel, with the results cached for their DNS TTL, and every
+ * address is tested at once from one socket.  Each server keeps an
+ * exponentially weighted moving average of its round trip time and of its
+ * failure rate, updated by these tests and by the results reported by users
+ * of the pool.  Servers which have answered and don't fail too often are
+ * healthy, and are handed out fastest first; a server whose last test failed
+ * drops behind those whose last test succeeded, so callers fail over to the
+ * next server as soon as a failure is reported.
+ * <p>
+ * A server set with StunUtil.setCachedStunServerSocket takes precedence
+ * over the pool.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see StunUtil#getCachedStunServerSocket()
+ */
+public class StunServerPool {
+
+    private static final Logger log = Logger.getLogger(StunServerPool.class.getName());
+    private static long refreshInterval = 300000;
+    private static long probeTimeout = 2000;
+    private static double smoothing = 0.25;
+    private static double maxFailureRate = 0.5;
+    private static long minDnsTtl = 60000;
+    private static long maxDnsTtl = 3600000;
+    private static List<InetSocketAddress> serverList = null;
+    private static final ConcurrentMap<String, ResolvedName> dnsCache =
+            new ConcurrentHashMap<String, ResolvedName>();
+    private static final ConcurrentMap<InetSocketAddress, ServerStatus> servers =
+            new ConcurrentHashMap<InetSocketAddress, ServerStatus>();
+    private static volatile List<ServerStatus> ranking = Collections.emptyList();
+    private static final Object rankingLock = new Object();
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+    private static ScheduledExecutorService scheduler = null;
+    private static ExecutorService resolver = null;
+    private static ScheduledFuture<?> refresher = null;
+
+    /**
+     * Get the server to use.  Never blocks; starts the background refresh if
+     * it isn't running yet.
+     *
+     * @return the configured server, else the best healthy one, or null if
+     * none has answered yet
+     */
+    public static InetSocketAddress getServer() {
+        InetSocketAddress configured = StunUtil.peekCachedStunServerSocket();
+        if (configured != null) {
+            return configured;
+        }
+        start();
+        List<ServerStatus> current = ranking;
+        return current.isEmpty() ? null : current.get(0).getAddress();
+    }
+
+    /**
+     * Wait a bounded time for a healthy server
+     *
+     * @param timeout milliseconds to wait at most
+     * @return the server, or null if none was found in time
+     */
+    public static InetSocketAddress awaitServer(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        InetSocketAddress server = getServer();
+        synchronized (rankingLock) {
+            while (server == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                rankingLock.wait(remaining);
+                server = getServer();
+            }
+        }
+        return server;
+    }
+
+    /**
+     * @return the healthy servers, best first
+     */
+    public static List<ServerStatus> getRanking() {
+        return ranking;
+    }
+
+    /**
+     * Get the state of a server, healthy or not
+     *
+     * @return the server's state, or null if it isn't in the pool
+     */
+    public static ServerStatus getStatus(InetSocketAddress server) {
+        return (server == null) ? null : servers.get(server);
+    }
+
+    /**
+     * Record a successful STUN transaction with a server of the pool
+     *
+     * @param server the server which answered
+     * @param roundTripMicros the round trip time, or -1 if unknown
+     */
+    public static void reportSuccess(InetSocketAddress server, long roundTripMicros) {
+        ServerStatus status = (server == null) ? null : servers.get(server);
+        if (status != null) {
+            status.success(roundTripMicros);
+            rank();
+        }
+    }
+
+    /**
+     * Record a STUN transaction with a server of the pool which got no
+     * answer, moving the server behind the others which are answering
+     *
+     * @param server the server which failed
+     */
+    public static void reportFailure(InetSocketAddress server) {
+        ServerStatus status = (server == null) ? null : servers.get(server);
+        if (status != null) {
+            status.failure();
+            rank();
+        }
+    }
+
+    /**
+     * Start the periodic refresh.  Called implicitly on first use, but may be
+     * called early, for instance at application startup, so that a server is
+     * known by the time it is first needed.
+     */
+    public static synchronized void start() {
+        if (refresher == null) {
+            refresher = getScheduler().scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    refreshNow();
+                }
+            }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Test the servers again now, without waiting for the next refresh
+     */
+    public static void refresh() {
+        getScheduler().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                refreshNow();
+            }
+        });
+    }
+
+    /**
+     * Stop the periodic refresh and forget all servers and cached DNS
+     * results
+     */
+    public static synchronized void clear() {
+        if (refresher != null) {
+            refresher.cancel(false);
+            refresher = null;
+        }
+        dnsCache.clear();
+        servers.clear();
+        synchronized (rankingLock) {
+            ranking = Collections.emptyList();
+        }
+    }
+
+    public static long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * @param refreshInterval milliseconds between tests of the servers.
+     * Takes effect when the refresh is next started.
+     */
+    public static void setRefreshInterval(long refreshInterval) {
+        StunServerPool.refreshInterval = refreshInterval;
+    }
+
+    public static long getProbeTimeout() {
+        return probeTimeout;
+    }
+
+    /**
+     * @param probeTimeout milliseconds to wait for the servers to answer
+     */
+    public static void setProbeTimeout(long probeTimeout) {
+        StunServerPool.probeTimeout = probeTimeout;
+    }
+
+    public static double getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * @param smoothing weight of the newest sample in the moving averages,
+     * between 0 and 1.  Higher values follow changes faster.
+     */
+    public static void setSmoothing(double smoothing) {
+        StunServerPool.smoothing = smoothing;
+    }
+
+    public static double getMaxFailureRate() {
+        return maxFailureRate;
+    }
+
+    /**
+     * @param maxFailureRate average failure rate above which a server is
+     * no longer handed out
+     */
+    public static void setMaxFailureRate(double maxFailureRate) {
+        StunServerPool.maxFailureRate = maxFailureRate;
+    }
+
+    public static long getMinDnsTtl() {
+        return minDnsTtl;
+    }
+
+    /**
+     * @param minDnsTtl milliseconds a DNS result is kept at least, whatever
+     * its TTL
+     */
+    public static void setMinDnsTtl(long minDnsTtl) {
+        StunServerPool.minDnsTtl = minDnsTtl;
+    }
+
+    public static long getMaxDnsTtl() {
+        return maxDnsTtl;
+    }
+
+    /**
+     * @param maxDnsTtl milliseconds a DNS result is kept at most, whatever
+     * its TTL
+     */
+    public static void setMaxDnsTtl(long maxDnsTtl) {
+        StunServerPool.maxDnsTtl = maxDnsTtl;
+    }
+
+    public static synchronized List<InetSocketAddress> getServerList() {
+        return serverList;
+    }
+
+    /**
+     * @param servers servers to use instead of resolving the built-in list,
+     * or null to go back to the built-in list
+     */
+    public static synchronized void setServerList(List<InetSocketAddress> servers) {
+        if (servers == null) {
+            serverList = null;
+        } else {
+            serverList = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(servers));
+        }
+    }
+
+    /**
+     * Resolve and test the servers.  Runs at most once at a time.
+     */
+    static void refreshNow() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Set<InetSocketAddress> addresses = resolve();
+            // Forget servers which are no longer configured or resolved
+            servers.keySet().retainAll(addresses);
+            for (InetSocketAddress address : addresses) {
+                if (!servers.containsKey(address)) {
+                    servers.putIfAbsent(address, new ServerStatus(address));
+                }
+            }
+            probe(addresses);
+            rank();
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "STUN server refresh failed", ex);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * Resolve every configured name in parallel, using the cached result of
+     * names whose TTL hasn't run out
+     *
+     * @return the addresses of every server to test
+     */
+    static Set<InetSocketAddress> resolve() {
+        Set<InetSocketAddress> addresses = new LinkedHashSet<InetSocketAddress>();
+        List<InetSocketAddress> configured = getServerList();
+        if (configured != null) {
+            addresses.addAll(configured);
+            return addresses;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<String, Future<ResolvedName>> lookups = new LinkedHashMap<String, Future<ResolvedName>>();
+        for (final String name : StunUtil.getServerNames()) {
+            ResolvedName cached = dnsCache.get(name);
+            if (cached != null && cached.expires > now) {
+                addresses.addAll(cached.addresses);
+            } else {
+                lookups.put(name, getResolver().submit(new Callable<ResolvedName>() {
+
+                    @Override
+                    public ResolvedName call() {
+                        return lookup(name);
+                    }
+                }));
+            }
+        }
+
+        // Lookups retry on their own, so allow them twice the probe timeout
+        long deadline = System.currentTimeMillis() + probeTimeout * 2;
+        for (Entry<String, Future<ResolvedName>> entry : lookups.entrySet()) {
+            ResolvedName resolved = null;
+            try {
+                resolved = entry.getValue().get(
+                        Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                log.log(Level.FINE, "Unable to resolve STUN server " + entry.getKey(), ex);
+            } catch (TimeoutException ex) {
+                entry.getValue().cancel(true);
+                log.log(Level.FINE, "Timed out resolving STUN server {0}", entry.getKey());
+            }
+            if (resolved != null && !resolved.addresses.isEmpty()) {
+                dnsCache.put(entry.getKey(), resolved);
+                addresses.addAll(resolved.addresses);
+            } else {
+                // Keep using a stale result rather than losing the server
+                ResolvedName stale = dnsCache.get(entry.getKey());
+                if (stale != null) {
+                    addresses.addAll(stale.addresses);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Look up the addresses of a STUN server name, first by SRV record, then
+     * by AAAA and A records on the default port
+     *
+     * @param name the server name
+     * @return the addresses and how long they may be cached
+     */
+    static ResolvedName lookup(String name) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        long ttl = Long.MAX_VALUE;
+
+        try {
+            Record[] records = new Lookup("_stun._udp." + name, Type.SRV).run();
+            if (records != null) {
+                for (Record record : records) {
+                    SRVRecord srvRecord = (SRVRecord) record;
+                    try {
+                        for (InetAddress address : InetAddress.getAllByName(srvRecord.getTarget().toString())) {
+                            addresses.add(new InetSocketAddress(address, srvRecord.getPort()));
+                        }
+                        ttl = Math.min(ttl, record.getTTL());
+                    } catch (UnknownHostException ex) {
+                        log.log(Level.FINE, "Unable to resolve SRV target " + srvRecord.getTarget(), ex);
+                    }
+                }
+            }
+        } catch (TextParseException ex) {
+            log.log(Level.WARNING, "Invalid STUN server name " + name, ex);
+        }
+
+        if (addresses.isEmpty()) {
+            for (int lookupType : new int[]{Type.AAAA, Type.A}) {
+                try {
+                    Record[] records = new Lookup(name, lookupType).run();
+                    if (records != null) {
+                        for (Record record : records) {
+                            if (record instanceof ARecord) {
+                                addresses.add(new InetSocketAddress(((ARecord) record).getAddress(), StunUtil.STUN_PORT));
+                            } else if (record instanceof AAAARecord) {
+                                addresses.add(new InetSocketAddress(((AAAARecord) record).getAddress(), StunUtil.STUN_PORT));
+                            } else {
+                                continue;
+                            }
+                            ttl = Math.min(ttl, record.getTTL());
+                        }
+                    }
+                } catch (TextParseException ex) {
+                    log.log(Level.WARNING, "Invalid STUN server name " + name, ex);
+                }
+            }
+        }
+
+        long cacheFor = (ttl == Long.MAX_VALUE) ? minDnsTtl
+                : Math.max(minDnsTtl, Math.min(maxDnsTtl, ttl * 1000));
+        return new ResolvedName(addresses, System.currentTimeMillis() + cacheFor);
+    }
+
+    /**
+     * Test all servers at once, from one socket per address family, and fold
+     * the results into their averages
+     */
+    static void probe(Set<InetSocketAddress> addresses) {
+        if (addresses.isEmpty()) {
+            return;
+        }
+        Map<Boolean, StunSocket> sockets = new HashMap<Boolean, StunSocket>();
+        try {
+            Map<InetSocketAddress, Future<StunReply>> replies = new LinkedHashMap<InetSocketAddress, Future<StunReply>>();
+            for (InetSocketAddress server : addresses) {
+                try {
+                    replies.put(server, getProbeSocket(sockets, server).doTest(server));
+                } catch (IOException ex) {
+                    log.log(Level.FINE, "Unable to test STUN server " + server, ex);
+                    reportFailure(server);
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + probeTimeout;
+            for (Entry<InetSocketAddress, Future<StunReply>> entry : replies.entrySet()) {
+                ServerStatus status = servers.get(entry.getKey());
+                if (status == null) {
+                    // The pool was cleared meanwhile
+                    continue;
+                }
+                try {
+                    StunReply reply = entry.getValue().get(
+                            Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                    if (reply != null && reply.isSuccess()) {
+                        status.success(reply.getRoundTripMicros());
+                    } else {
+                        status.failure();
+                    }
+                } catch (ExecutionException ex) {
+                    log.log(Level.FINE, "STUN server " + entry.getKey() + " failed its test", ex);
+                    status.failure();
+                } catch (TimeoutException ex) {
+                    entry.getValue().cancel(true);
+                    log.log(Level.FINE, "STUN server {0} did not answer in time", entry.getKey());
+                    status.failure();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (StunSocket socket : sockets.values()) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    log.log(Level.FINE, "Error closing the STUN test socket", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the socket to test a server from, bound to the wildcard address of
+     * the server's family, opening it on first use
+     *
+     * @param sockets the sockets opened so far, keyed by whether they are IPv6
+     */
+    private static StunSocket getProbeSocket(Map<Boolean, StunSocket> sockets, InetSocketAddress server) throws IOException {
+        boolean ipv6 = server.getAddress() instanceof Inet6Address;
+        StunSocket socket = sockets.get(ipv6);
+        if (socket == null) {
+            socket = StunUtil.getStunSocket(new InetSocketAddress(
+                    InetAddress.getByName(ipv6 ? "::" : "0.0.0.0"), 0), StunSocketType.CLIENT);
+            socket.setMaxRetries(2);
+            sockets.put(ipv6, socket);
+        }
+        return socket;
+    }
+
+    /**
+     * Rebuild the ranking from the current state of every server
+     */
+    static void rank() {
+        // Servers keep being updated while this sorts, so sort a snapshot
+        List<RankedServer> snapshot = new ArrayList<RankedServer>();
+        for (ServerStatus status : servers.values()) {
+            RankedServer ranked = status.snapshot();
+            if (ranked != null) {
+                snapshot.add(ranked);
+            }
+        }
+        Collections.sort(snapshot, new Comparator<RankedServer>() {
+
+            @Override
+            public int compare(RankedServer o1, RankedServer o2) {
+                // Servers whose last transaction failed go last
+                if (o1.failed != o2.failed) {
+                    return o1.failed ? 1 : -1;
+                }
+                return Double.compare(o1.roundTripMicros, o2.roundTripMicros);
+            }
+        });
+        List<ServerStatus> healthy = new ArrayList<ServerStatus>(snapshot.size());
+        for (RankedServer ranked : snapshot) {
+            healthy.add(ranked.status);
+        }
+        synchronized (rankingLock) {
+            ranking = Collections.unmodifiableList(healthy);
+            rankingLock.notifyAll();
+        }
+    }
+
+    static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "IcedJava-STUN-Pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    static synchronized ExecutorService getResolver() {
+        if (resolver == null) {
+            // Idle threads go away, so this costs nothing between refreshes
+            resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "IcedJava-STUN-Resolver-"
+                            + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return resolver;
+    }
+
+    /**
+     * The addresses of a server name, and when they must be looked up again
+     */
+    static class ResolvedName {
+
+        final List<InetSocketAddress> addresses;
+        final long expires;
+
+        ResolvedName(List<InetSocketAddress> addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The state of a server at one moment, as it is ranked
+     */
+    static class RankedServer {
+
+        final ServerStatus status;
+        final boolean failed;
+        final double roundTripMicros;
+
+        RankedServer(ServerStatus status, boolean failed, double roundTripMicros) {
+            this.status = status;
+            this.failed = failed;
+            this.roundTripMicros = roundTripMicros;
+        }
+    }
+
+    /**
+     * The moving averages kept for one server
+     */
+    public static class ServerStatus {
+
+        private final InetSocketAddress address;
+        private double roundTripMicros = -1;
+        private double failureRate = 0;
+        private int consecutiveFailures = 0;
+        private long lastSuccess = 0;
+
+        ServerStatus(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        synchronized void success(long roundTrip) {
+            if (roundTrip >= 0) {
+                roundTripMicros = (roundTripMicros < 0) ? roundTrip
+                        : roundTripMicros + smoothing * (roundTrip - roundTripMicros);
+            } else if (roundTripMicros < 0) {
+                // Answered, but the time is unknown, so rank it last
+                roundTripMicros = Double.MAX_VALUE;
+            }
+            failureRate -= smoothing * failureRate;
+            consecutiveFailures = 0;
+            lastSuccess = System.currentTimeMillis();
+        }
+
+        synchronized void failure() {
+            failureRate += smoothing * (1 - failureRate);
+            consecutiveFailures++;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the average round trip time in microseconds, or -1 if the
+         * server has never answered
+         */
+        public synchronized double getRoundTripMicros() {
+            return roundTripMicros;
+        }
+
+        /**
+         * @return the average failure rate, from 0 to 1
+         */
+        public synchronized double getFailureRate() {
+            return failureRate;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * @return when the server last answered, 0 if never
+         */
+        public synchronized long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        /**
+         * @return what the server is ranked by, or null if it isn't healthy
+         */
+        synchronized RankedServer snapshot() {
+            return isHealthy() ? new RankedServer(this, consecutiveFailures > 0, roundTripMicros) : null;
+        }
+
+        /**
+         * @return true if the server has answered and doesn't fail too often
+         */
+        public synchronized boolean isHealthy() {
+            return roundTripMicros >= 0 && failureRate < maxFailureRate;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return getClass().getName() + "[address=" + address + ":roundTripMicros=" + roundTripMicros
+                    + ":failureRate=" + failureRate + ":consecutiveFailures=" + consecutiveFailures + "]";
+        }
+    }
+
+    private StunServerPool() {
+    }
+}
@@ -7,26 +7,32 @@ package net.mc_cubed.icedjava.stun;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.net.Socket;
+import java.net.SocketAddress;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.enterprise.inject.Produces;
 import javax.inject.Named;
+import net.mc_cubed.icedjava.ice.IceFactory;
 import net.mc_cubed.icedjava.packet.StunPacket;
 import net.mc_cubed.icedjava.packet.header.MessageClass;
 import net.mc_cubed.icedjava.packet.header.MessageMethod;
 import net.mc_cubed.icedjava.stun.StreamDemultiplexerSocket.ConnectionFactory;
 import net.mc_cubed.icedjava.stun.annotation.StunServer;
 import net.mc_cubed.icedjava.stun.event.StunEventListener;
+import org.glassfish.grizzly.CompletionHandler;
 import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.GrizzlyFuture;
 import org.glassfish.grizzly.Transport;
 import org.glassfish.grizzly.Transport.State;
 import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.filterchain.FilterChain;
 import org.glassfish.grizzly.filterchain.FilterChainBuilder;
 import org.glassfish.grizzly.filterchain.TransportFilter;
 import org.glassfish.grizzly.nio.transport.TCPNIOServerConnection;
@@ -35,13 +41,6 @@ import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
 import org.glassfish.grizzly.nio.transport.UDPNIOServerConnection;
 import org.glassfish.grizzly.nio.transport.UDPNIOTransport;
 import org.glassfish.grizzly.nio.transport.UDPNIOTransportBuilder;
-import org.xbill.DNS.AAAARecord;
-import org.xbill.DNS.ARecord;
-import org.xbill.DNS.Lookup;
-import org.xbill.DNS.Record;
-import org.xbill.DNS.SRVRecord;
-import org.xbill.DNS.TextParseException;
-import org.xbill.DNS.Type;
 
 /**
  * StunUtil is the entry point into the IcedJava library STUN components.
@@ -67,45 +66,41 @@ public class StunUtil {
     public static Integer STUN_PORT = 3478;
     // This really should be adjusted to match some established standard
     public static Integer MAX_PACKET_SIZE = 4096;
+    // RFC 6544 4.5: Active ICE-TCP candidates use the discard port
+    public static final int ACTIVE_TCP_PORT = 9;
+    // Milliseconds to wait for an ICE-TCP connection to be established
+    static final int STREAM_CONNECT_TIMEOUT = 5000;
+    // Outstanding transactions kept per socket type.  A transaction gives up
+    // well within the minute an entry lives, so only a flood fills the table
+    static final int MAX_TRANSACTIONS = 65536;
+    static final long TRANSACTION_LIFETIME = 60000;
 
     /**
-     * Gets the InetSocketAddress of a valid STUN server picked from the built-in
-     * list of stun servers.
+     * Gets the InetSocketAddress of the fastest healthy STUN server of the
+     * built-in list, waiting for the servers to be tested if that hasn't
+     * been done yet.
      *
      * @return the address of a valid and tested STUN server, or NULL if none
      * could be tested successfully.
+     * @see StunServerPool
      */
     @Produces
     @StunServer
     public static InetSocketAddress getStunServerSocket() {
         try {
-            List<String> servers = new LinkedList<String>();
-
-            servers.addAll(Arrays.asList(serverList));
-
-            Collections.shuffle(servers);
-            StunSocket testSocket = getStunSocket(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 0), StunSocketType.CLIENT);
-
-            for (String server : servers) {
-                try {
-                    for (InetSocketAddress address : getStunServerByName(server)) {
-                        StunReply reply = testSocket.doTest(address).get();
-                        if (reply != null && reply.isSuccess()) {
-                            return address;
-                        }
-                    }
-                    // Don't interrupt the whole process if one server fails.
-                } catch (Exception ex) {
-                    Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-                }
-
-            }
-        } catch (Exception ex) {
-            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
+            // Resolution and testing may each take up to the probe timeout
+            return StunServerPool.awaitServer(StunServerPool.getProbeTimeout() * 3);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
         }
+    }
 
-        // Failed
-        return null;
+    /**
+     * @return the names of the built-in STUN servers
+     */
+    public static List<String> getServerNames() {
+        return Collections.unmodifiableList(Arrays.asList(serverList));
     }
 
     public static StunSocket getStunSocket(InetSocketAddress address, final StunSocketType stunType) throws IOException {
@@ -160,6 +155,10 @@ public class StunUtil {
     }
 
     public static DemultiplexerSocket getCustomStunPipeline(InetSocketAddress address, TransportType transportType, boolean active, final Filter... stunFilters) throws IOException {
+        if (transportType == TransportType.TCP) {
+            return getCustomStunPipeline(address, active ? TCPSocketType.ACTIVE : TCPSocketType.PASSIVE, stunFilters);
+        }
+
         // Create a FilterChain using FilterChainBuilder
         FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
 
@@ -167,14 +166,13 @@ public class StunUtil {
         //  data to the connection
         filterChainBuilder.add(new TransportFilter());
 
+        // Send media straight to the socket, skipping the STUN filters
+        DatagramDemultiplexerSocket socket = new DatagramDemultiplexerSocket(null);
+        filterChainBuilder.add(socket.getDemultiplexingFilter());
+
         // Add the transcoding filter to go from Grizzly Buffers to NIO buffers
         filterChainBuilder.add(new ByteBufferGrizzlyProtocolFilter());
 
-        if (transportType == transportType.TCP) {
-            // If we're a TCP socket, we MUST support RFC 4571 framing!
-            filterChainBuilder.add(new RFC4571FramingFilter());
-        }
-
         // Add the STUN packet decoder
         filterChainBuilder.add(new StunPacketProtocolFilter());
 
@@ -183,109 +181,105 @@ public class StunUtil {
             filterChainBuilder.add(stunFilter);
         }
 
-        DemultiplexerSocket socket;
-
-        if (transportType == transportType.UDP) {
-            // Finally, add the stunSocket class to the top of the chain
-            socket = new DatagramDemultiplexerSocket(null);
-            filterChainBuilder.add((Filter) socket);
-
-            // Get the underlying datagram transport
-            UDPNIOTransport transport = getDatagramTransport();
-
-            // Bing the socket to the supplied address
-            UDPNIOServerConnection connection = transport.bind(address);
-
-            // Add the filter chain
-            connection.setProcessor(filterChainBuilder.build());
-
-            // Set the server connection
-            ((DatagramStunSocket) socket).setServerConnection(connection);
-        } else {
-            if (active) {
-                ConnectionFactory factory = new ConnectionFactory() {
-
-                    @Override
-                    public Connection connect(InetSocketAddress address, Filter socket) {
-                        try {
-                            // Create a FilterChain using FilterChainBuilder
-                            FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
-
-                            // Add TransportFilter, which is responsible for reading and writing 
-                            //  data to the connection
-                            filterChainBuilder.add(new TransportFilter());
+        // Finally, add the stunSocket class to the top of the chain
+        filterChainBuilder.add(socket);
 
-                            // Add the transcoding filter to go from Grizzly Buffers to NIO buffers
-                            filterChainBuilder.add(new ByteBufferGrizzlyProtocolFilter());
+        // Get the underlying datagram transport
+        UDPNIOTransport transport = getDatagramTransport();
 
-                            // If we're a TCP socket, we MUST support RFC 4571 framing!
-                            filterChainBuilder.add(new RFC4571FramingFilter());
+        // Bing the socket to the supplied address
+        UDPNIOServerConnection connection = transport.bind(address);
 
-                            // Add the STUN packet decoder
-                            filterChainBuilder.add(new StunPacketProtocolFilter());
+        // Add the filter chain
+        connection.setProcessor(filterChainBuilder.build());
 
-                            // Add the custom filters
-                            for (Filter stunFilter : stunFilters) {
-                                filterChainBuilder.add(stunFilter);
-                            }
-                            filterChainBuilder.add((Filter) socket);
+        // Set the server connection
+        socket.setServerConnection(connection);
 
-                            // Get the underlying stream transport
-                            TCPNIOTransport transport = getServerSocketChannelFactory();
+        return socket;
+    }
 
-                            // Bind the socket to the supplied address
-                            Connection connection = transport.connect(address).get();
+    /**
+     * Create an ICE-TCP socket, per RFC 6544.  Passive sockets listen on the
+     * supplied address; active and simultaneous-open sockets open a
+     * connection from it to each remote address they test or send to, and
+     * reuse that connection from then on.
+     *
+     * @param address local address, a port of 0 picks a free one
+     * @param tcpSocketType how the socket establishes connections
+     * @param stunFilters Custom filters for each connection's pipeline
+     * @return A DemultiplexerSocket for the given address
+     * @throws IOException
+     */
+    public static DemultiplexerSocket getCustomStunPipeline(InetSocketAddress address, TCPSocketType tcpSocketType, final Filter... stunFilters) throws IOException {
+        return getStreamSocket(address, tcpSocketType, null, stunFilters);
+    }
 
-                            // Add the filter chain
-                            connection.setProcessor(filterChainBuilder.build());
+    public static DemultiplexerSocket getCustomStunPipeline(int port, final Filter... stunFilters) throws IOException {
+        return getCustomStunPipeline(new InetSocketAddress(port), TransportType.UDP, false, stunFilters);
+    }
 
-                            return connection;
-                        } catch (InterruptedException ex) {
-                            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-                        } catch (ExecutionException ex) {
-                            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-                        } catch (IOException ex) {
-                            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                        return null;
-                    }
-                };
+    public static DemultiplexerSocket getCustomStunPipeline(InetAddress address, int port, final Filter... stunFilters) throws IOException {
+        return getCustomStunPipeline(new InetSocketAddress(address, port), TransportType.UDP, false, stunFilters);
+    }
 
-                socket = new StreamDemultiplexerSocket(null, factory);
+    public static DemultiplexerSocket getCustomStunPipeline(final Filter... stunFilters) throws IOException {
+        return getCustomStunPipeline(new InetSocketAddress(0), TransportType.UDP, false, stunFilters);
+    }
 
-            } else {
-                socket = new StreamDemultiplexerServerSocket(null);
+    /**
+     * Bind a datagram connection without attaching a pipeline to it yet.  Used
+     * to bind sockets ahead of time, see getCustomStunPipeline(UDPNIOServerConnection, Filter...)
+     *
+     * @param address Address to bind to, use port 0 for an ephemeral port
+     * @return The bound connection
+     * @throws IOException
+     */
+    public static UDPNIOServerConnection bindDatagramConnection(InetSocketAddress address) throws IOException {
+        return getDatagramTransport().bind(address);
+    }
 
-                filterChainBuilder.add((Filter) socket);
+    /**
+     * Attach a STUN pipeline to an already bound datagram connection.  Any
+     * pipeline previously attached to the connection is replaced.
+     *
+     * @param connection A connection obtained from bindDatagramConnection
+     * @param stunFilters Custom filters to place below the demultiplexer
+     * @return A DemultiplexerSocket using the supplied connection
+     */
+    public static DemultiplexerSocket getCustomStunPipeline(UDPNIOServerConnection connection, final Filter... stunFilters) {
+        // Create a FilterChain using FilterChainBuilder
+        FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
 
-                // Get the underlying stream transport
-                TCPNIOTransport transport = getServerSocketChannelFactory();
+        // Add TransportFilter, which is responsible for reading and writing 
+        //  data to the connection
+        filterChainBuilder.add(new TransportFilter());
 
-                // Bind the socket to the supplied address
-                TCPNIOServerConnection connection = transport.bind(address);
+        // Send media straight to the socket, skipping the STUN filters
+        DatagramDemultiplexerSocket socket = new DatagramDemultiplexerSocket(null);
+        filterChainBuilder.add(socket.getDemultiplexingFilter());
 
-                // Add the filter chain
-                connection.setProcessor(filterChainBuilder.build());
+        // Add the transcoding filter to go from Grizzly Buffers to NIO buffers
+        filterChainBuilder.add(new ByteBufferGrizzlyProtocolFilter());
 
-                // Set the server connection
-                ((StreamDemultiplexerSocket) socket).setServerConnection(connection);
-            }
+        // Add the STUN packet decoder
+        filterChainBuilder.add(new StunPacketProtocolFilter());
 
+        // Add the custom filters
+        for (Filter stunFilter : stunFilters) {
+            filterChainBuilder.add(stunFilter);
         }
 
-        return socket;
-    }
+        // Finally, add the stunSocket class to the top of the chain
+        filterChainBuilder.add(socket);
 
-    public static DemultiplexerSocket getCustomStunPipeline(int port, final Filter... stunFilters) throws IOException {
-        return getCustomStunPipeline(new InetSocketAddress(port), TransportType.UDP, false, stunFilters);
-    }
+        // Replace the filter chain
+        connection.setProcessor(filterChainBuilder.build());
 
-    public static DemultiplexerSocket getCustomStunPipeline(InetAddress address, int port, final Filter... stunFilters) throws IOException {
-        return getCustomStunPipeline(new InetSocketAddress(address, port), TransportType.UDP, false, stunFilters);
-    }
+        // Set the server connection
+        socket.setServerConnection(connection);
 
-    public static DemultiplexerSocket getCustomStunPipeline(final Filter... stunFilters) throws IOException {
-        return getCustomStunPipeline(new InetSocketAddress(0), TransportType.UDP, false, stunFilters);
+        return socket;
     }
 
     public static DemultiplexerSocket getDemultiplexerSocket(InetAddress address, int port) throws IOException {
@@ -301,6 +295,13 @@ public class StunUtil {
     }
 
     public static DemultiplexerSocket getDemultiplexerSocket(InetSocketAddress inetSocketAddress, TransportType transportType, boolean active, final StunEventListener stunEventListener) throws IOException {
+        if (transportType == TransportType.TCP) {
+            // This socket should respond to STUN packets, so add the default
+            //  stun handler
+            return getStreamSocket(inetSocketAddress, active ? TCPSocketType.ACTIVE : TCPSocketType.PASSIVE,
+                    null, new DefaultStunServerHandler());
+        }
+
         // Create a FilterChain using FilterChainBuilder
         FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
 
@@ -308,14 +309,13 @@ public class StunUtil {
         //  data to the connection
         filterChainBuilder.add(new TransportFilter());
 
+        // Send media straight to the socket, skipping the STUN filters
+        DatagramDemultiplexerSocket socket = new DatagramDemultiplexerSocket(null);
+        filterChainBuilder.add(socket.getDemultiplexingFilter());
+
         // Add the transcoding filter to go from Grizzly Buffers to NIO buffers
         filterChainBuilder.add(new ByteBufferGrizzlyProtocolFilter());
 
-        if (transportType == transportType.TCP) {
-            // If we're a TCP socket, we MUST support RFC 4571 framing!
-            filterChainBuilder.add(new RFC4571FramingFilter());
-        }
-
         // Add the packet encoding/decoding filter which does the format
         //  translation for STUN packets
         filterChainBuilder.add(new StunPacketProtocolFilter());
@@ -324,141 +324,177 @@ public class StunUtil {
         //  handler
         filterChainBuilder.add(new DefaultStunServerHandler());
 
-        DemultiplexerSocket socket;
+        // Finally, add the stunSocket class to the top of the chain
+        filterChainBuilder.add(socket);
+
+        // Get the underlying datagram transport
+        UDPNIOTransport transport = getDatagramTransport();
+
+        // Bing the socket to the supplied address
+        UDPNIOServerConnection connection = transport.bind(inetSocketAddress);
 
-        if (transportType == transportType.UDP) {
-            // Finally, add the stunSocket class to the top of the chain
-            socket = new DatagramDemultiplexerSocket(null);
-            filterChainBuilder.add((Filter) socket);
+        // Add the filter chain
+        connection.setProcessor(filterChainBuilder.build());
+
+        // Set the server connection
+        socket.setServerConnection(connection);
 
-            // Get the underlying datagram transport
-            UDPNIOTransport transport = getDatagramTransport();
+        return socket;
+    }
 
-            // Bing the socket to the supplied address
-            UDPNIOServerConnection connection = transport.bind(inetSocketAddress);
+    static DemultiplexerSocket getStreamSocket(InetSocketAddress address, TCPSocketType tcpSocketType,
+            StunEventListener stunEventListener, final Filter... stunFilters) throws IOException {
+        if (address == null) {
+            address = new InetSocketAddress(0);
+        }
+        if (tcpSocketType == TCPSocketType.PASSIVE) {
+            StreamDemultiplexerServerSocket socket = new StreamDemultiplexerServerSocket(stunEventListener, address);
+
+            // Accepted connections share the listening connection's chain
+            FilterChainBuilder filterChainBuilder = getStreamFilterChain(socket, stunFilters);
+            filterChainBuilder.add(socket);
+
+            // Bind the socket to the supplied address
+            TCPNIOServerConnection connection = getServerSocketChannelFactory().bind(address);
 
             // Add the filter chain
             connection.setProcessor(filterChainBuilder.build());
 
             // Set the server connection
-            ((DatagramStunSocket) socket).setServerConnection(connection);
-        } else {
-            if (active) {
-                ConnectionFactory factory = new ConnectionFactory() {
-
-                    @Override
-                    public Connection connect(InetSocketAddress address, Filter socket) {
-                        try {
-                            // Create a FilterChain using FilterChainBuilder
-                            FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
-
-                            // Add TransportFilter, which is responsible for reading and writing 
-                            //  data to the connection
-                            filterChainBuilder.add(new TransportFilter());
+            socket.setServerConnection(connection);
+            return socket;
+        }
 
-                            // Add the transcoding filter to go from Grizzly Buffers to NIO buffers
-                            filterChainBuilder.add(new ByteBufferGrizzlyProtocolFilter());
+        final Socket reservation;
+        if (tcpSocketType == TCPSocketType.SO) {
+            // A simultaneous-open candidate advertises the port it connects
+            //  from, so bind it now and hold it until the socket is closed.
+            //  Grizzly binds each connection itself, with SO_REUSEADDR, so
+            //  the port is held by a socket bound the same way.
+            reservation = new Socket();
+            reservation.setReuseAddress(true);
+            try {
+                reservation.bind(address);
+            } catch (IOException ex) {
+                reservation.close();
+                throw ex;
+            }
+            address = new InetSocketAddress(address.getAddress(), reservation.getLocalPort());
+        } else {
+            reservation = null;
+        }
 
-                            // If we're a TCP socket, we MUST support RFC 4571 framing!
-                            filterChainBuilder.add(new RFC4571FramingFilter());
+        ConnectionFactory factory = new ConnectionFactory() {
 
-                            // Add the STUN packet decoder
-                            filterChainBuilder.add(new StunPacketProtocolFilter());
+            @Override
+            public void close() throws IOException {
+                if (reservation != null) {
+                    reservation.close();
+                }
+            }
 
-                            // This socket should respond to STUN packets, so add the default stun
-                            //  handler
-                            filterChainBuilder.add(new DefaultStunServerHandler());
+            @Override
+            @SuppressWarnings("rawtypes")
+            public void connect(final InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+                    StreamDemultiplexerSocket socket, final CompletionHandler<Connection<SocketAddress>> handler) throws IOException {
+                // Grizzly 2.1 connects with raw Connections
+                // Each connection gets its own chain, and so its own framing state
+                FilterChainBuilder filterChainBuilder = getStreamFilterChain(socket, stunFilters);
+                filterChainBuilder.add(socket);
+                final FilterChain filterChain = filterChainBuilder.build();
+                // The handler hears about the connect exactly once
+                final AtomicBoolean finished = new AtomicBoolean();
+
+                final GrizzlyFuture<Connection> future = getServerSocketChannelFactory().connect(remoteAddress, localAddress,
+                        new CompletionHandler<Connection>() {
+
+                            @Override
+                            public void cancelled() {
+                                if (finished.compareAndSet(false, true)) {
+                                    handler.cancelled();
+                                }
+                            }
 
-                            filterChainBuilder.add((Filter) socket);
+                            @Override
+                            public void failed(Throwable throwable) {
+                                if (finished.compareAndSet(false, true)) {
+                                    handler.failed(new IOException("Unable to connect to " + remoteAddress, throwable));
+                                }
+                            }
 
-                            // Get the underlying stream transport
-                            TCPNIOTransport transport = getServerSocketChannelFactory();
+                            @Override
+                            public void completed(Connection connection) {
+                                // Add the filter chain
+                                connection.setProcessor(filterChain);
+                                if (finished.compareAndSet(false, true)) {
+                                    handler.completed(StreamDemultiplexerSocket.addressed(connection));
+                                } else {
+                                    // Too late, the caller has given up on it
+                                    try {
+                                        connection.close();
+                                    } catch (IOException ex) {
+                                        Logger.getLogger(StunUtil.class.getName()).log(Level.FINE, "Error closing a late connection", ex);
+                                    }
+                                }
+                            }
 
-                            // Bind the socket to the supplied address
-                            Connection connection = transport.connect(address).get();
+                            @Override
+                            public void updated(Connection connection) {
+                            }
+                        });
 
-                            // Add the filter chain
-                            connection.setProcessor(filterChainBuilder.build());
+                // Give up on connects that take too long
+                IceFactory.getSharedThreadpool().schedule(new Runnable() {
 
-                            return connection;
-                        } catch (InterruptedException ex) {
-                            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-                        } catch (ExecutionException ex) {
-                            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-                        } catch (IOException ex) {
-                            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
+                    @Override
+                    public void run() {
+                        if (finished.compareAndSet(false, true)) {
+                            future.cancel(false);
+                            handler.failed(new IOException("Timed out connecting to " + remoteAddress));
                         }
-                        return null;
                     }
-                };
-
-                socket = new StreamDemultiplexerSocket(null, factory);
-            } else {
-                socket = new StreamDemultiplexerServerSocket(null);
+                }, STREAM_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        };
 
-                filterChainBuilder.add((Filter) socket);
+        return new StreamDemultiplexerSocket(stunEventListener, tcpSocketType, address, factory);
+    }
 
-                // Get the underlying stream transport
-                TCPNIOTransport transport = getServerSocketChannelFactory();
+    /**
+     * Build the start of a stream pipeline, up to and including the custom
+     * filters
+     */
+    static FilterChainBuilder getStreamFilterChain(DemultiplexerSocket socket, Filter... stunFilters) {
+        // Create a FilterChain using FilterChainBuilder
+        FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
 
-                // Bind the socket to the supplied address
-                TCPNIOServerConnection connection = transport.bind(inetSocketAddress);
+        // Add TransportFilter, which is responsible for reading and writing 
+        //  data to the connection
+        filterChainBuilder.add(new TransportFilter());
 
-                // Add the filter chain
-                connection.setProcessor(filterChainBuilder.build());
+        // Add the transcoding filter to go from Grizzly Buffers to NIO buffers
+        filterChainBuilder.add(new ByteBufferGrizzlyProtocolFilter());
 
-                // Set the server connection
-                ((StreamDemultiplexerServerSocket) socket).setServerConnection(connection);
-            }
-        }
-        return socket;
-    }
+        // If we're a TCP socket, we MUST support RFC 4571 framing!
+        filterChainBuilder.add(new RFC4571FramingFilter());
 
-    public static InetSocketAddress[] getStunServerByName(String address) {
-        List<InetSocketAddress> retval = new LinkedList<InetSocketAddress>();
+        // Send media frames straight to the socket, skipping the STUN filters
+        filterChainBuilder.add(socket.getDemultiplexingFilter());
 
-        try {
-            Lookup lookup = new Lookup("_stun._udp." + address, Type.SRV);
-            SRVRecord[] records = (SRVRecord[]) lookup.run();
-            if (records != null) {
-                for (SRVRecord record : records) {
-                    try {
-                        retval.add(new InetSocketAddress(InetAddress.getByName(record.rdataToString()), record.getPort()));
-                    } catch (UnknownHostException ex) {
-                        Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
-            }
-            if (retval.size() > 0) {
-                return retval.toArray(new InetSocketAddress[0]);
-            }
-        } catch (TextParseException ex) {
-            Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        // Add the STUN packet decoder
+        filterChainBuilder.add(new StunPacketProtocolFilter());
 
-        for (int lookupType : new int[]{Type.AAAA, Type.A}) {
-            try {
-                Lookup lookup = new Lookup(address, lookupType);
-                Record[] records = (Record[]) lookup.run();
-                if (records != null) {
-                    for (Record record : records) {
-                        if (record instanceof ARecord) {
-                            ARecord aRecord = (ARecord) record;
-                            retval.add(new InetSocketAddress(aRecord.getAddress(), STUN_PORT));
-                        } else if (record instanceof AAAARecord) {
-                            AAAARecord aaaaRecord = (AAAARecord) record;
-                            retval.add(new InetSocketAddress(aaaaRecord.getAddress(), STUN_PORT));
-                        }
-                    }
-                }
-            } catch (TextParseException ex) {
-                Logger.getLogger(StunUtil.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        // Add the custom filters
+        for (Filter stunFilter : stunFilters) {
+            filterChainBuilder.add(stunFilter);
         }
+        return filterChainBuilder;
+    }
 
-        return retval.toArray(new InetSocketAddress[0]);
-
+    public static InetSocketAddress[] getStunServerByName(String address) {
+        return StunServerPool.lookup(address).addresses.toArray(new InetSocketAddress[0]);
     }
+
     protected static TCPNIOTransport streamTransport = null;
     protected static UDPNIOTransport datagramTransport = null;
 
@@ -494,11 +530,27 @@ public class StunUtil {
     }
     protected static InetSocketAddress cachedStunServerSocket = null;
 
+    /**
+     * Get the STUN server set with setCachedStunServerSocket, or else the
+     * best server of the pool, which changes as servers slow down or fail.
+     *
+     * @return the server, or null if none could be found
+     */
     public static InetSocketAddress getCachedStunServerSocket() {
-        if (cachedStunServerSocket == null) {
-            cachedStunServerSocket = getStunServerSocket();
+        InetSocketAddress configured = cachedStunServerSocket;
+        if (configured != null) {
+            return configured;
         }
 
+        return getStunServerSocket();
+    }
+
+    /**
+     * Get the cached STUN server without probing for one if there is none
+     *
+     * @return the server set or found earlier, or null
+     */
+    public static InetSocketAddress peekCachedStunServerSocket() {
         return cachedStunServerSocket;
     }
 
@@ -506,6 +558,17 @@ public class StunUtil {
         cachedStunServerSocket = null;
     }
 
+    /**
+     * Use the given STUN server instead of probing the built-in list.  Peers
+     * created afterwards, and address discovery, will use it.
+     *
+     * @param stunServer address of the STUN server, or null to probe the
+     * built-in list again when next needed
+     */
+    public static void setCachedStunServerSocket(InetSocketAddress stunServer) {
+        cachedStunServerSocket = stunServer;
+    }
+
     public static StunPacket createReplyPacket(StunPacket packet, MessageClass messageClass) {
         StunPacket replyPacket = new StunPacketImpl(messageClass, packet.getMethod(), packet.getTransactionId());
         return replyPacket;
@@ -31,9 +31,9 @@ import java.util.Map;
  */
 public enum TCPSocketType {
 
-    ACTIVE("act"),
+    ACTIVE("active"),
     SO("so"),
-    PASSIVE("pass");
+    PASSIVE("passive");
     
     final String networkString;
     
@@ -43,6 +43,9 @@ public enum TCPSocketType {
         for (TCPSocketType types : EnumSet.allOf(TCPSocketType.class)) {
             socketTypeMap.put(types.getNetworkString(), types);
         }
+        // Written by earlier versions of this library
+        socketTypeMap.put("act", ACTIVE);
+        socketTypeMap.put("pass", PASSIVE);
     }
     
     TCPSocketType(String networkString) {
@@ -56,4 +59,28 @@ public enum TCPSocketType {
     static public TCPSocketType fromNetworkString(String networkString) {
         return socketTypeMap.get(networkString);
     }
+
+    /**
+     * Check whether candidates of these types can form a connection, RFC 6544
+     * 6.2: active candidates connect to passive ones, and simultaneous-open
+     * candidates to each other.  A null type is taken as unknown, which can
+     * pair with anything.
+     *
+     * @param local type of the local candidate
+     * @param remote type of the remote candidate
+     * @return true if the candidates may be paired
+     */
+    static public boolean canConnect(TCPSocketType local, TCPSocketType remote) {
+        if (local == null || remote == null) {
+            return true;
+        }
+        switch (local) {
+            case ACTIVE:
+                return remote == PASSIVE;
+            case PASSIVE:
+                return remote == ACTIVE;
+            default:
+                return remote == SO;
+        }
+    }
 }
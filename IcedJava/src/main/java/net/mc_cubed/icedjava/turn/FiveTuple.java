@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.net.InetSocketAddress;
+import net.mc_cubed.icedjava.stun.TransportType;
+
+/**
+ * The client address, server address and transport identifying a TURN
+ * allocation, per RFC 8656 Section 2
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+final class FiveTuple {
+
+    private final InetSocketAddress client;
+    private final InetSocketAddress server;
+    private final TransportType transport;
+    private final int hash;
+
+    FiveTuple(InetSocketAddress client, InetSocketAddress server, TransportType transport) {
+        this.client = client;
+        this.server = server;
+        this.transport = transport;
+        this.hash = (client.hashCode() * 31 + server.hashCode()) * 31 + transport.hashCode();
+    }
+
+    InetSocketAddress getClient() {
+        return client;
+    }
+
+    InetSocketAddress getServer() {
+        return server;
+    }
+
+    TransportType getTransport() {
+        return transport;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FiveTuple)) {
+            return false;
+        }
+        FiveTuple other = (FiveTuple) obj;
+        return hash == other.hash
+                && transport == other.transport
+                && client.equals(other.client)
+                && server.equals(other.server);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return transport + ":" + client + "->" + server;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The range of ports a TURN server relays on.  Ports are handed out in turn,
+ * and a released port goes to the back of the queue, so it isn't reused
+ * while packets for its last allocation may still be arriving.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+class RelayPortPool {
+
+    private final int minPort;
+    private final int maxPort;
+    private final BlockingQueue<Integer> free;
+
+    /**
+     * @param minPort lowest port of the range
+     * @param maxPort highest port of the range, inclusive
+     */
+    RelayPortPool(int minPort, int maxPort) {
+        if (minPort < 1 || maxPort > 65535 || minPort > maxPort) {
+            throw new IllegalArgumentException("Invalid relay port range: " + minPort + "-" + maxPort);
+        }
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.free = new LinkedBlockingQueue<Integer>(maxPort - minPort + 1);
+        for (int port = minPort; port <= maxPort; port++) {
+            free.add(port);
+        }
+    }
+
+    /**
+     * Take the next free port
+     *
+     * @return a port, or -1 if all are in use
+     */
+    int acquire() {
+        Integer port = free.poll();
+        return port == null ? -1 : port;
+    }
+
+    /**
+     * Return a port to the pool
+     */
+    void release(int port) {
+        if (port >= minPort && port <= maxPort) {
+            free.offer(port);
+        }
+    }
+
+    int available() {
+        return free.size();
+    }
+
+    int size() {
+        return maxPort - minPort + 1;
+    }
+}
@@ -19,34 +19,164 @@
  */
 package net.mc_cubed.icedjava.turn;
 
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.inject.Named;
 import net.mc_cubed.icedjava.ice.AddressDiscovery;
+import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
 import net.mc_cubed.icedjava.ice.DiscoveryMechanism;
+import net.mc_cubed.icedjava.ice.KeepaliveHandler;
 import net.mc_cubed.icedjava.ice.LocalCandidate;
+import net.mc_cubed.icedjava.stun.StunAuthenticator;
+import net.mc_cubed.icedjava.stun.TransportType;
+import org.glassfish.grizzly.CompletionHandler;
 
 /**
- * Implements the AddressDiscovery interface for discovering TURN per addresses
- * for use during the ICE procedure.
- * 
- * WARNING: Currently just stubbed out, this class does nothing yet.
+ * Implements the AddressDiscovery interface for discovering TURN relayed
+ * addresses for use during the ICE procedure.
+ *
+ * Each UDP host candidate gets an allocation on the configured TURN server,
+ * and a relayed candidate whose socket sends through it.  The allocations,
+ * and the permissions and channels made on them, are kept alive by the ICE
+ * state machine calling back into this class as a KeepaliveHandler.  Nothing
+ * is discovered until a server is configured, either on the instance or with
+ * setDefaultServer.
  *
  * @author Charles Chappell
  * @since 1.0
+ * @see TURNAllocation
  */
 @Named
 @DiscoveryMechanism
-public class TURNAddressDiscovery implements AddressDiscovery {
+public class TURNAddressDiscovery implements AddressDiscovery, KeepaliveHandler {
+
+    private static final Logger log = Logger.getLogger(TURNAddressDiscovery.class.getName());
+    // Milliseconds to wait before trying again after a failed refresh
+    static final long RETRY_INTERVAL = 10000;
+    private static volatile InetSocketAddress defaultServer;
+    private static volatile StunAuthenticator defaultCredentials;
+    private InetSocketAddress turnServer;
+    private StunAuthenticator credentials;
+
+    public TURNAddressDiscovery() {
+    }
+
+    /**
+     * @param turnServer TURN server to allocate relays on
+     * @param credentials long-term credentials for the server, may be null
+     */
+    public TURNAddressDiscovery(InetSocketAddress turnServer, StunAuthenticator credentials) {
+        this.turnServer = turnServer;
+        this.credentials = credentials;
+    }
+
+    /**
+     * Set the TURN server used by instances which weren't given one, such as
+     * those created by CDI
+     *
+     * @param server TURN server to allocate relays on, null to disable
+     * @param credentials long-term credentials for the server, may be null
+     */
+    public static void setDefaultServer(InetSocketAddress server, StunAuthenticator credentials) {
+        defaultServer = server;
+        defaultCredentials = credentials;
+    }
+
+    public static InetSocketAddress getDefaultServer() {
+        return defaultServer;
+    }
 
     @Override
     public Collection<LocalCandidate> getCandidates(Collection<LocalCandidate> baseCandidates) {
         List<LocalCandidate> retval = new LinkedList<LocalCandidate>();
-        
-        // TODO: Implement TURN address discovery options
-        
+
+        InetSocketAddress server = turnServer;
+        StunAuthenticator serverCredentials = credentials;
+        if (server == null) {
+            server = defaultServer;
+            serverCredentials = defaultCredentials;
+        }
+        if (server == null || server.isUnresolved()) {
+            return retval;
+        }
+
+        for (LocalCandidate hostCandidate : baseCandidates) {
+            // Relay UDP host candidates of the same address family as the server
+            if (hostCandidate.getType() != CandidateType.LOCAL
+                    || hostCandidate.getTransport() != TransportType.UDP
+                    || (hostCandidate.getAddress() instanceof Inet4Address)
+                    != (server.getAddress() instanceof Inet4Address)) {
+                continue;
+            }
+            try {
+                TURNAllocation allocation = TURNAllocation.allocate(
+                        hostCandidate.getDemultiplexerSocket(), server, serverCredentials);
+                LocalCandidate relayedCandidate = new LocalCandidate(
+                        hostCandidate.getOwner(),
+                        hostCandidate.getIceSocket(),
+                        CandidateType.RELAYED,
+                        new TURNRelaySocket(allocation),
+                        hostCandidate.getComponentId());
+                relayedCandidate.setKeepaliveObjectData(allocation);
+                relayedCandidate.setKeepaliveHandler(this);
+                relayedCandidate.setNextKeepalive(new Date(allocation.nextMaintenance(System.currentTimeMillis())));
+                retval.add(relayedCandidate);
+            } catch (IOException ex) {
+                log.log(Level.FINE, "No TURN allocation for " + hostCandidate.getSocketAddress(), ex);
+            }
+        }
+
         return retval;
     }
-    
+
+    /**
+     * Refresh the allocation of a relayed candidate, and the channels bound
+     * on it.  Returns without waiting for the server, and the next keep alive
+     * is scheduled once it answers.
+     */
+    @Override
+    public void doKeepalive(final LocalCandidate lc) {
+        TURNAllocation allocation = (TURNAllocation) lc.getKeepaliveObjectData();
+        if (allocation == null || allocation.isClosed()) {
+            // Nothing left to keep alive
+            lc.setKeepaliveHandler(null);
+            return;
+        }
+        // Not called again while the refresh is outstanding
+        lc.setNextKeepalive(new Date(System.currentTimeMillis() + RETRY_INTERVAL));
+        allocation.maintain(new CompletionHandler<Long>() {
+
+            @Override
+            public void cancelled() {
+                retry(null);
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                retry(throwable);
+            }
+
+            @Override
+            public void completed(Long next) {
+                lc.setNextKeepalive(new Date(next));
+            }
+
+            @Override
+            public void updated(Long next) {
+            }
+
+            private void retry(Throwable throwable) {
+                log.log(Level.WARNING, "Caught an exception refreshing a TURN allocation.  Retrying in "
+                        + RETRY_INTERVAL + "ms", throwable);
+                lc.setNextKeepalive(new Date(System.currentTimeMillis() + RETRY_INTERVAL));
+            }
+        });
+    }
 }
@@ -0,0 +1,805 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.packet.attribute.Attribute;
+import net.mc_cubed.icedjava.packet.attribute.AttributeFactory;
+import net.mc_cubed.icedjava.packet.attribute.AttributeType;
+import net.mc_cubed.icedjava.packet.attribute.NonceAttribute;
+import net.mc_cubed.icedjava.packet.attribute.RealmAttribute;
+import net.mc_cubed.icedjava.packet.attribute.XORMappedAddressAttribute;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.NotifyingFuture;
+import net.mc_cubed.icedjava.stun.StunAuthenticator;
+import net.mc_cubed.icedjava.stun.StunReply;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.util.NumericUtils;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+
+/**
+ * The client side of one TURN allocation, per RFC 8656 (formerly RFC 5766),
+ * made from a local UDP socket on a TURN server.
+ *
+ * Requests use the long-term credential mechanism, learning the realm and
+ * nonce from the server's 401 challenge and retrying.  Each peer sent to is
+ * given a channel, and once the ChannelBind succeeds its data travels as
+ * ChannelData, both ways.  Until then data is sent in Send indications, and
+ * arrives in Data indications.  The allocation, its permissions and its
+ * channels all expire unless refreshed by calling maintain() before the time
+ * it returns.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see ChannelData
+ * @see TURNAddressDiscovery
+ */
+public class TURNAllocation {
+
+    private static final Logger log = Logger.getLogger(TURNAllocation.class.getName());
+    /**
+     * Lifetime requested for the allocation, in seconds
+     */
+    public static final int DEFAULT_LIFETIME = 600;
+    // Fixed by RFC 8656 Sections 9 and 12
+    static final long PERMISSION_LIFETIME = 300000;
+    static final long CHANNEL_LIFETIME = 600000;
+    // IANA protocol number of UDP, the only relayed transport requested
+    static final int PROTOCOL_UDP = 17;
+    static final long TRANSACTION_TIMEOUT = 10000;
+    // A refused ChannelBind is retried after this, doubling up to the maximum
+    static final long BIND_RETRY_INTERVAL = 1000;
+    static final long MAX_BIND_RETRY_INTERVAL = 60000;
+    private final DemultiplexerSocket socket;
+    private final InetSocketAddress server;
+    private final StunAuthenticator credentials;
+    private volatile String realm;
+    private volatile String nonce;
+    private volatile InetSocketAddress relayedAddress;
+    private volatile InetSocketAddress mappedAddress;
+    private volatile long expires;
+    // Seconds granted by the server in its last Allocate or Refresh response
+    private volatile int grantedLifetime = DEFAULT_LIFETIME;
+    private volatile boolean closed = false;
+    // Set while a Refresh sent by maintain() is outstanding
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final ConcurrentMap<SocketAddress, Binding> bindings =
+            new ConcurrentHashMap<SocketAddress, Binding>();
+    // Indexed by channel number less MIN_CHANNEL, read for every packet received
+    private final AtomicReferenceArray<InetSocketAddress> channelPeers =
+            new AtomicReferenceArray<InetSocketAddress>(ChannelData.MAX_CHANNEL - ChannelData.MIN_CHANNEL + 1);
+    // Guarded by bindings
+    private int nextChannel = ChannelData.MIN_CHANNEL;
+
+    TURNAllocation(DemultiplexerSocket socket, InetSocketAddress server, StunAuthenticator credentials) {
+        this.socket = socket;
+        this.server = server;
+        this.credentials = credentials;
+    }
+
+    /**
+     * Allocate a relayed address on a TURN server, and start accepting
+     * ChannelData from it on the socket.
+     *
+     * @param socket the local UDP socket to allocate from
+     * @param server the TURN server
+     * @param credentials long-term credentials for the server, may be null if
+     * it doesn't ask for any
+     * @return the allocation
+     * @throws IOException if the server can't be reached or refuses
+     */
+    public static TURNAllocation allocate(DemultiplexerSocket socket, InetSocketAddress server,
+            StunAuthenticator credentials) throws IOException {
+        TURNChannelDataFilter filter = TURNChannelDataFilter.getInstance(socket);
+        if (filter == null) {
+            throw new IOException("TURN needs a datagram socket with a demultiplexing filter: " + socket);
+        }
+        TURNAllocation allocation = new TURNAllocation(socket, server, credentials);
+        allocation.allocate();
+        filter.addAllocation(allocation);
+        return allocation;
+    }
+
+    void allocate() throws IOException {
+        StunReply reply = transact(MessageMethod.ALLOCATE, null,
+                AttributeFactory.createRequestedTransportAttribute(PROTOCOL_UDP),
+                AttributeFactory.createLifetimeAttribute(DEFAULT_LIFETIME));
+        if (!reply.isSuccess()) {
+            throw new IOException("TURN allocation refused by " + server + ": "
+                    + reply.getErrorCode() + " " + reply.getErrorReason());
+        }
+        XORMappedAddressAttribute relayed = (XORMappedAddressAttribute) reply.getAttribute(AttributeType.XOR_RELAYED_ADDRESS);
+        if (relayed == null) {
+            throw new IOException("TURN server " + server + " did not return a relayed address");
+        }
+        relayedAddress = new InetSocketAddress(
+                relayed.getAddress(reply.getPacket().getTransactionId()), relayed.getPort());
+        mappedAddress = reply.getMappedAddress();
+        updateExpiry(reply);
+        log.log(Level.FINE, "Allocated {0} on {1}", new Object[]{relayedAddress, server});
+    }
+
+    /**
+     * Refresh the allocation, and any channel or permission due to expire
+     * within half its lifetime, without waiting for the server.  The
+     * allocation's lifetime is the one the server granted, which may be
+     * shorter than requested.  Meant to be called from a keep alive handler.
+     * <p>
+     * The handler is given the time, in milliseconds, by which this should be
+     * called again: straight away if the allocation needed no Refresh, or once
+     * the server accepted it.  It is told failed() if the server refused or
+     * didn't answer.  A call made while a Refresh is still outstanding sends
+     * nothing, and its handler is never told, as the outstanding one reports.
+     * Channels are refreshed in the background, as when first bound.
+     *
+     * @param handler notified of the outcome, possibly on the thread which
+     * received the reply
+     */
+    public void maintain(final CompletionHandler<Long> handler) {
+        long now = System.currentTimeMillis();
+        for (Binding binding : bindings.values()) {
+            if (binding.bound && binding.refreshAt() <= now) {
+                bindInBackground(binding.peer);
+            }
+        }
+        if (expires - now >= grantedLifetime * 1000L / 2) {
+            handler.completed(nextMaintenance(now));
+            return;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        transact(MessageMethod.REFRESH, null, true, new CompletionHandler<StunReply>() {
+
+            @Override
+            public void cancelled() {
+                refreshing.set(false);
+                handler.failed(new IOException("No reply to TURN Refresh from " + server));
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                refreshing.set(false);
+                handler.failed(throwable);
+            }
+
+            @Override
+            public void completed(StunReply reply) {
+                refreshing.set(false);
+                if (reply.isSuccess()) {
+                    updateExpiry(reply);
+                    handler.completed(nextMaintenance(System.currentTimeMillis()));
+                } else {
+                    handler.failed(new IOException("TURN server " + server + " refused to refresh "
+                            + relayedAddress + ": " + reply.getErrorCode() + " " + reply.getErrorReason()));
+                }
+            }
+
+            @Override
+            public void updated(StunReply reply) {
+            }
+        }, AttributeFactory.createLifetimeAttribute(DEFAULT_LIFETIME));
+    }
+
+    /**
+     * @param now the current time, in milliseconds
+     * @return the time by which maintain() should be called next: half way
+     * through the allocation's lifetime, or when the first channel is due
+     */
+    long nextMaintenance(long now) {
+        long next = now + grantedLifetime * 1000L / 2;
+        for (Binding binding : bindings.values()) {
+            if (binding.bound) {
+                next = Math.min(next, binding.refreshAt());
+            }
+        }
+        return Math.max(next, now + 1000);
+    }
+
+    /**
+     * Send a Refresh request for the allocation
+     *
+     * @param lifetime seconds the allocation should last, 0 to release it
+     * @return true if the server accepted
+     * @throws IOException if the server could not be reached
+     */
+    public boolean refresh(int lifetime) throws IOException {
+        StunReply reply = transact(MessageMethod.REFRESH, null,
+                AttributeFactory.createLifetimeAttribute(lifetime));
+        if (reply.isSuccess()) {
+            updateExpiry(reply);
+            return true;
+        }
+        log.log(Level.WARNING, "TURN refresh of {0} failed: {1} {2}",
+                new Object[]{relayedAddress, reply.getErrorCode(), reply.getErrorReason()});
+        return false;
+    }
+
+    /**
+     * Install a permission on the relay for a peer address, letting data from
+     * it through.  Binding a channel installs one too.
+     *
+     * @param peer the peer's address, the port is ignored by the server
+     * @return true if the server accepted
+     * @throws IOException if the server could not be reached
+     */
+    public boolean createPermission(InetAddress peer) throws IOException {
+        StunReply reply = transact(MessageMethod.CREATE_PERMISSION, new InetSocketAddress(peer, 0));
+        return reply.isSuccess();
+    }
+
+    /**
+     * Bind a channel to a peer, or refresh the existing binding, waiting for
+     * the server's answer.  The channel number stays the same for as long as
+     * the allocation lasts.
+     *
+     * @param peer the peer's transport address
+     * @return the channel number, or -1 if the server refused or no channels
+     * are left
+     * @throws IOException if the server could not be reached
+     */
+    public int bindChannel(InetSocketAddress peer) throws IOException {
+        Binding binding = getBinding(peer);
+        if (binding == null) {
+            return -1;
+        }
+        StunReply reply = transact(MessageMethod.CHANNELBIND, peer,
+                AttributeFactory.createChannelNumberAttribute(binding.channel));
+        return channelBound(binding, reply) ? binding.channel : -1;
+    }
+
+    /**
+     * Record the outcome of a ChannelBind
+     *
+     * @return true if the server accepted
+     */
+    boolean channelBound(Binding binding, StunReply reply) {
+        long now = System.currentTimeMillis();
+        if (!reply.isSuccess()) {
+            log.log(Level.FINE, "ChannelBind of {0} to {1} failed: {2} {3}",
+                    new Object[]{binding.peer, binding.channel, reply.getErrorCode(), reply.getErrorReason()});
+            binding.refused(now);
+            return false;
+        }
+        // The binding also installs or refreshes the permission for the peer
+        binding.refreshed = now;
+        binding.refusals = 0;
+        channelPeers.set(binding.channel - ChannelData.MIN_CHANNEL, binding.peer);
+        binding.bound = true;
+        return true;
+    }
+
+    /**
+     * Send data to a peer through the relay.  Sent as ChannelData if a
+     * channel is bound to the peer, otherwise as a Send indication while a
+     * channel is bound in the background.  The data is copied once, into the
+     * framed message, and src is left unchanged.
+     *
+     * @param src the data, between position and limit
+     * @param peer the peer's transport address
+     * @return the number of bytes of data sent
+     * @throws IOException
+     */
+    public int send(ByteBuffer src, SocketAddress peer) throws IOException {
+        return send(src, peer, null);
+    }
+
+    /**
+     * Send data to a peer through the relay, notifying a completion handler
+     * once the framed copy has been written.  src itself may be reused as
+     * soon as this returns.
+     */
+    public int send(ByteBuffer src, SocketAddress peer,
+            CompletionHandler<WriteResult<ByteBuffer, SocketAddress>> completionHandler) throws IOException {
+        int length = src.remaining();
+        socket.send(frame(src, (InetSocketAddress) peer), server, completionHandler);
+        return length;
+    }
+
+    /**
+     * Send a run of buffers to one peer, each as its own message, with one
+     * binding lookup for the lot
+     */
+    public long send(ByteBuffer[] srcs, int offset, int length, SocketAddress peer) throws IOException {
+        Binding binding = bindings.get(peer);
+        if (binding == null || !binding.bound) {
+            long sent = 0;
+            for (int i = offset; i < offset + length; i++) {
+                sent += send(srcs[i], peer);
+            }
+            return sent;
+        }
+        ByteBuffer[] messages = new ByteBuffer[length];
+        long sent = 0;
+        for (int i = 0; i < length; i++) {
+            sent += srcs[offset + i].remaining();
+            messages[i] = ChannelData.encode(binding.channel, srcs[offset + i]);
+        }
+        socket.send(messages, 0, length, server);
+        return sent;
+    }
+
+    /**
+     * Run a STUN transaction, such as an ICE connectivity check, with a peer
+     * through the relay.  The request is framed afresh for each
+     * retransmission, so it moves to ChannelData as soon as the channel is
+     * bound, and the response comes back the same way.
+     *
+     * @param peer the peer's transport address
+     * @param request the request to send
+     * @return the future reply
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Future<StunReply> doTest(InetSocketAddress peer, StunPacket request) throws IOException, InterruptedException {
+        return socket.doTest(server, new RelayedStunPacket(request, peer));
+    }
+
+    /**
+     * Release the allocation on the server and stop accepting ChannelData for
+     * it.  The local socket is left open.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        TURNChannelDataFilter filter = TURNChannelDataFilter.getInstance(socket);
+        if (filter != null) {
+            filter.removeAllocation(this);
+        }
+        try {
+            refresh(0);
+        } catch (IOException ex) {
+            log.log(Level.FINE, "Could not release the TURN allocation " + relayedAddress, ex);
+        }
+        bindings.clear();
+        for (int i = 0; i < channelPeers.length(); i++) {
+            channelPeers.set(i, null);
+        }
+    }
+
+    /**
+     * Find the peer bound to a channel
+     *
+     * @param channel a channel number
+     * @return the peer, or null if the channel isn't bound
+     */
+    public InetSocketAddress getPeer(int channel) {
+        if (!ChannelData.isValidChannel(channel)) {
+            return null;
+        }
+        return channelPeers.get(channel - ChannelData.MIN_CHANNEL);
+    }
+
+    /**
+     * Get the channel bound to a peer
+     *
+     * @return the channel number, or -1 if none is bound yet
+     */
+    public int getChannel(SocketAddress peer) {
+        Binding binding = bindings.get(peer);
+        return (binding != null && binding.bound) ? binding.channel : -1;
+    }
+
+    public InetSocketAddress getRelayedAddress() {
+        return relayedAddress;
+    }
+
+    /**
+     * @return our address as seen by the TURN server
+     */
+    public InetSocketAddress getMappedAddress() {
+        return mappedAddress;
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    public DemultiplexerSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return the time, in milliseconds, at which the allocation expires
+     * unless refreshed
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return the lifetime, in seconds, the server last granted the
+     * allocation
+     */
+    public int getLifetime() {
+        return grantedLifetime;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Find the allocation a received packet was relayed through, so an answer
+     * to it, such as the response to a connectivity check, can be sent back
+     * the same way
+     *
+     * @param ctx the context the packet is being read in
+     * @return the allocation, or null if the packet came directly
+     */
+    public static TURNAllocation getRelay(FilterChainContext ctx) {
+        return TURNChannelDataFilter.getRelay(ctx);
+    }
+
+    /**
+     * Frame data for a peer, as ChannelData if a channel is bound
+     */
+    ByteBuffer frame(ByteBuffer src, InetSocketAddress peer) {
+        Binding binding = bindings.get(peer);
+        if (binding != null && binding.bound) {
+            return ChannelData.encode(binding.channel, src);
+        }
+        bindInBackground(peer);
+
+        byte[] data = new byte[src.remaining()];
+        src.duplicate().get(data);
+        StunPacket indication = StunUtil.createStunRequest(MessageClass.INDICATION, MessageMethod.SEND);
+        indication.getAttributes().add(AttributeFactory.createXORPeerAddressAttribute(
+                peer.getAddress(), peer.getPort(), indication.getTransactionId()));
+        indication.getAttributes().add(AttributeFactory.createDataAttribute(data));
+        return ByteBuffer.wrap(indication.getBytes());
+    }
+
+    /**
+     * Frame a whole packet for a peer, as ChannelData if a channel is bound
+     */
+    byte[] frame(byte[] packet, InetSocketAddress peer) {
+        Binding binding = bindings.get(peer);
+        if (binding != null && binding.bound) {
+            return ChannelData.encode(binding.channel, packet);
+        }
+        ByteBuffer message = frame(ByteBuffer.wrap(packet), peer);
+        return message.array();
+    }
+
+    /**
+     * Bind a channel to a peer without waiting for the result.  Only one
+     * ChannelBind per peer is in flight at a time, and after the server
+     * refuses one the next waits, for longer with each refusal.
+     */
+    void bindInBackground(InetSocketAddress peer) {
+        final Binding binding = getBinding(peer);
+        if (binding == null || closed || System.currentTimeMillis() < binding.retryAt
+                || !binding.pending.compareAndSet(false, true)) {
+            return;
+        }
+        transact(MessageMethod.CHANNELBIND, peer, true, new CompletionHandler<StunReply>() {
+
+            @Override
+            public void cancelled() {
+                log.log(Level.FINE, "No reply to ChannelBind of {0}", binding.peer);
+                binding.refused(System.currentTimeMillis());
+                binding.pending.set(false);
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                log.log(Level.FINE, "ChannelBind of " + binding.peer + " failed", throwable);
+                binding.refused(System.currentTimeMillis());
+                binding.pending.set(false);
+            }
+
+            @Override
+            public void completed(StunReply reply) {
+                channelBound(binding, reply);
+                binding.pending.set(false);
+            }
+
+            @Override
+            public void updated(StunReply reply) {
+            }
+        }, AttributeFactory.createChannelNumberAttribute(binding.channel));
+    }
+
+    /**
+     * Get the binding of a peer, assigning it the next free channel if it has
+     * none
+     *
+     * @return the binding, or null if the channels have run out
+     */
+    Binding getBinding(InetSocketAddress peer) {
+        Binding binding = bindings.get(peer);
+        if (binding != null) {
+            return binding;
+        }
+        // New peers are rare enough to take a lock for, so that a channel
+        //  number is only used up by the binding which goes in
+        synchronized (bindings) {
+            binding = bindings.get(peer);
+            if (binding == null) {
+                if (!ChannelData.isValidChannel(nextChannel)) {
+                    log.log(Level.WARNING, "Out of TURN channels on {0}", relayedAddress);
+                    return null;
+                }
+                binding = new Binding(peer, nextChannel++);
+                bindings.put(peer, binding);
+            }
+        }
+        return binding;
+    }
+
+    /**
+     * Run a request against the server, answering a 401 or 438 challenge with
+     * the long-term credentials once
+     *
+     * @param method the TURN method
+     * @param peer the address to put in an XOR-PEER-ADDRESS, or null
+     * @param attributes further attributes of the request
+     * @return the server's final reply
+     * @throws IOException if no reply came
+     */
+    StunReply transact(MessageMethod method, InetSocketAddress peer, Attribute... attributes) throws IOException {
+        StunReply reply = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            StunPacket request = createRequest(method, peer, attributes);
+            try {
+                reply = socket.doTest(server, request).get(TRANSACTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                throw new IOException("No reply to TURN " + method + " from " + server, ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("TURN " + method + " to " + server + " failed", ex);
+            } catch (TimeoutException ex) {
+                throw new IOException("No reply to TURN " + method + " from " + server, ex);
+            }
+            if (reply == null) {
+                throw new IOException("No reply to TURN " + method + " from " + server);
+            }
+            if (!challenged(reply)) {
+                break;
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Run a request against the server without waiting for it, answering a
+     * challenge as transact() does.  The handler is told of the final reply,
+     * or cancelled() if none came.
+     *
+     * @param method the TURN method
+     * @param peer the address to put in an XOR-PEER-ADDRESS, or null
+     * @param retry true if a challenge may be answered
+     * @param handler notified once, on the thread which received the reply
+     * @param attributes further attributes of the request
+     */
+    void transact(final MessageMethod method, final InetSocketAddress peer, final boolean retry,
+            final CompletionHandler<StunReply> handler, final Attribute... attributes) {
+        Future<StunReply> future;
+        try {
+            future = socket.doTest(server, createRequest(method, peer, attributes));
+        } catch (IOException ex) {
+            handler.failed(ex);
+            return;
+        } catch (InterruptedException ex) {
+            handler.failed(ex);
+            return;
+        }
+        if (!(future instanceof NotifyingFuture)) {
+            handler.failed(new IOException("TURN needs a socket whose transactions notify: " + socket));
+            return;
+        }
+        ((NotifyingFuture<StunReply>) future).addCompletionHandler(new CompletionHandler<StunReply>() {
+
+            @Override
+            public void cancelled() {
+                handler.cancelled();
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                handler.failed(throwable);
+            }
+
+            @Override
+            public void completed(StunReply reply) {
+                if (retry && challenged(reply)) {
+                    transact(method, peer, false, handler, attributes);
+                } else {
+                    handler.completed(reply);
+                }
+            }
+
+            @Override
+            public void updated(StunReply reply) {
+            }
+        });
+    }
+
+    StunPacket createRequest(MessageMethod method, InetSocketAddress peer, Attribute... attributes) {
+        StunPacket request = StunUtil.createStunRequest(MessageClass.REQUEST, method);
+        List<Attribute> requestAttributes = request.getAttributes();
+        if (peer != null) {
+            requestAttributes.add(AttributeFactory.createXORPeerAddressAttribute(
+                    peer.getAddress(), peer.getPort(), request.getTransactionId()));
+        }
+        for (Attribute attribute : attributes) {
+            requestAttributes.add(attribute);
+        }
+        if (credentials != null && realm != null && nonce != null) {
+            requestAttributes.add(AttributeFactory.createUsernameAttribute(credentials.getUsername()));
+            requestAttributes.add(AttributeFactory.createRealmAttribute(realm));
+            requestAttributes.add(AttributeFactory.createNonceAttribute(nonce));
+            // Must come last, it covers everything before it
+            requestAttributes.add(AttributeFactory.createIntegrityAttribute(
+                    credentials.getUsername(), realm, credentials.getPassword()));
+        }
+        return request;
+    }
+
+    /**
+     * 401 Unauthorized and 438 Stale Nonce carry the values to retry with
+     *
+     * @return true if the reply was such a challenge, and the request should
+     * be sent again
+     */
+    boolean challenged(StunReply reply) {
+        if (reply.isSuccess() || credentials == null
+                || (reply.getErrorCode() != 401 && reply.getErrorCode() != 438)
+                || reply.getAttribute(AttributeType.NONCE) == null) {
+            return false;
+        }
+        nonce = ((NonceAttribute) reply.getAttribute(AttributeType.NONCE)).getValue();
+        RealmAttribute realmAttribute = (RealmAttribute) reply.getAttribute(AttributeType.REALM);
+        if (realmAttribute != null) {
+            realm = realmAttribute.getValue();
+            credentials.setRealm(realm);
+        }
+        return true;
+    }
+
+    private void updateExpiry(StunReply reply) {
+        Attribute lifetime = reply.getAttribute(AttributeType.LIFETIME);
+        long seconds = (lifetime != null && lifetime.getLength() == 4)
+                ? NumericUtils.toInt(lifetime.getData()) : DEFAULT_LIFETIME;
+        expires = System.currentTimeMillis() + seconds * 1000;
+        if (seconds > 0) {
+            grantedLifetime = (int) seconds;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[server=" + server + ":relayedAddress=" + relayedAddress
+                + ":channels=" + bindings.size() + "]";
+    }
+
+    /**
+     * A peer's channel, and when its binding was last refreshed
+     */
+    static class Binding {
+
+        final InetSocketAddress peer;
+        final int channel;
+        volatile boolean bound = false;
+        volatile long refreshed = 0;
+        final AtomicBoolean pending = new AtomicBoolean();
+        // Refusals since the last successful bind, and when to try again
+        volatile int refusals = 0;
+        volatile long retryAt = 0;
+
+        Binding(InetSocketAddress peer, int channel) {
+            this.peer = peer;
+            this.channel = channel;
+        }
+
+        /**
+         * The permission installed along with the channel runs out first, so
+         * refresh when half of it has gone
+         */
+        long refreshAt() {
+            return refreshed + PERMISSION_LIFETIME / 2;
+        }
+
+        void refused(long now) {
+            long interval = BIND_RETRY_INTERVAL << Math.min(refusals, 6);
+            retryAt = now + Math.min(interval, MAX_BIND_RETRY_INTERVAL);
+            refusals++;
+        }
+    }
+
+    /**
+     * A STUN request bound for a peer through the relay.  Keeps the identity
+     * of the request, so the reply is matched to it, but encodes as the
+     * framed message to send to the server.
+     */
+    class RelayedStunPacket implements StunPacket {
+
+        private final StunPacket request;
+        private final InetSocketAddress peer;
+
+        RelayedStunPacket(StunPacket request, InetSocketAddress peer) {
+            this.request = request;
+            this.peer = peer;
+        }
+
+        @Override
+        public byte[] getBytes() {
+            return frame(request.getBytes(), peer);
+        }
+
+        @Override
+        public List<Attribute> getAttributes() {
+            return request.getAttributes();
+        }
+
+        @Override
+        public BigInteger getId() {
+            return request.getId();
+        }
+
+        @Override
+        public MessageClass getMessageClass() {
+            return request.getMessageClass();
+        }
+
+        @Override
+        public MessageMethod getMethod() {
+            return request.getMethod();
+        }
+
+        @Override
+        public byte[] getTransactionId() {
+            return request.getTransactionId();
+        }
+
+        @Override
+        public boolean isRfc5389() {
+            return request.isRfc5389();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getName() + "[peer=" + peer + ":request=" + request + "]";
+        }
+    }
+}
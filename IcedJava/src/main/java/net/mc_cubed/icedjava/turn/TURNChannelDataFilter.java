@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.mc_cubed.icedjava.packet.attribute.AttributeFactory;
+import net.mc_cubed.icedjava.packet.attribute.AttributeType;
+import net.mc_cubed.icedjava.packet.attribute.XORMappedAddressAttribute;
+import net.mc_cubed.icedjava.packet.header.MessageHeader;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.MultiplexedProtocol;
+import net.mc_cubed.icedjava.stun.RFC7983DemultiplexingFilter;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+
+/**
+ * Unwraps the ChannelData messages and Data indications arriving on a socket
+ * from its TURN servers.  Registered with the socket's RFC 7983 filter as the
+ * TURN channel and STUN handler, it swaps each message for its data and its
+ * source for the peer it came from, then classifies it again.  Media relayed
+ * this way reaches the socket the same as media received directly, and STUN
+ * carries on down the chain to the ICE filters, with the allocation it came
+ * through noted on the context so answers can go back the same way.  Any
+ * other STUN passes straight through.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see TURNAllocation
+ */
+class TURNChannelDataFilter extends BaseFilter {
+
+    private static final Attribute<TURNAllocation> relayAttribute =
+            Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(
+            TURNChannelDataFilter.class.getName() + ".relay");
+    // Message type of a Data indication, RFC 8656 Section 18
+    private static final int DATA_INDICATION = 0x0017;
+    private final RFC7983DemultiplexingFilter demultiplexer;
+    private final ConcurrentMap<SocketAddress, TURNAllocation> allocations =
+            new ConcurrentHashMap<SocketAddress, TURNAllocation>();
+
+    TURNChannelDataFilter(RFC7983DemultiplexingFilter demultiplexer) {
+        this.demultiplexer = demultiplexer;
+    }
+
+    /**
+     * Get the filter handling ChannelData on a socket, registering one if
+     * there isn't one yet
+     *
+     * @return the filter, or null if the socket doesn't classify its packets
+     */
+    static TURNChannelDataFilter getInstance(DemultiplexerSocket socket) {
+        RFC7983DemultiplexingFilter demultiplexer = socket.getDemultiplexingFilter();
+        if (demultiplexer == null) {
+            return null;
+        }
+        synchronized (demultiplexer) {
+            Filter handler = demultiplexer.getHandler(MultiplexedProtocol.TURN_CHANNEL);
+            if (handler instanceof TURNChannelDataFilter) {
+                return (TURNChannelDataFilter) handler;
+            }
+            TURNChannelDataFilter filter = new TURNChannelDataFilter(demultiplexer);
+            demultiplexer.setHandler(MultiplexedProtocol.TURN_CHANNEL, filter);
+            demultiplexer.setHandler(MultiplexedProtocol.STUN, filter);
+            return filter;
+        }
+    }
+
+    /**
+     * @return the allocation the message being read was relayed through, or
+     * null if it came directly
+     */
+    static TURNAllocation getRelay(FilterChainContext ctx) {
+        return relayAttribute.get(ctx);
+    }
+
+    void addAllocation(TURNAllocation allocation) {
+        allocations.put(allocation.getServer(), allocation);
+    }
+
+    void removeAllocation(TURNAllocation allocation) {
+        allocations.remove(allocation.getServer(), allocation);
+    }
+
+    @Override
+    public NextAction handleRead(FilterChainContext ctx) throws IOException {
+        if (!(ctx.getMessage() instanceof ByteBuffer)) {
+            return ctx.getInvokeAction();
+        }
+        ByteBuffer message = (ByteBuffer) ctx.getMessage();
+        TURNAllocation allocation = allocations.get((SocketAddress) ctx.getAddress());
+        if (RFC7983DemultiplexingFilter.classify(message) == MultiplexedProtocol.STUN) {
+            if (allocation == null || !isDataIndication(message)) {
+                // Answers from the server, or STUN from anywhere else
+                return ctx.getInvokeAction();
+            }
+            return unwrapDataIndication(ctx, allocation, message);
+        }
+        if (allocation == null || !ChannelData.isChannelData(message)) {
+            // Not from one of our servers, or malformed
+            return ctx.getStopAction();
+        }
+        InetSocketAddress peer = allocation.getPeer(ChannelData.getChannelNumber(message));
+        if (peer == null) {
+            return ctx.getStopAction();
+        }
+
+        return relayed(ctx, allocation, ChannelData.getPayload(message), peer);
+    }
+
+    /**
+     * Unwrap the data a server relayed before a channel was bound
+     */
+    NextAction unwrapDataIndication(FilterChainContext ctx, TURNAllocation allocation,
+            ByteBuffer message) throws IOException {
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        if (!MessageHeader.isRFC5389StunPacket(bytes, 0, bytes.length)) {
+            return ctx.getStopAction();
+        }
+        MessageHeader header = new MessageHeader(bytes, 0, bytes.length);
+        XORMappedAddressAttribute peerAttribute = null;
+        net.mc_cubed.icedjava.packet.attribute.Attribute data = null;
+        for (net.mc_cubed.icedjava.packet.attribute.Attribute attribute
+                : AttributeFactory.processIntoList(bytes, 0, 20, bytes.length - 20)) {
+            if (attribute.getType() == AttributeType.XOR_PEER_ADDRESS) {
+                peerAttribute = (XORMappedAddressAttribute) attribute;
+            } else if (attribute.getType() == AttributeType.DATA) {
+                data = attribute;
+            }
+        }
+        if (peerAttribute == null || data == null || data.getLength() == 0) {
+            return ctx.getStopAction();
+        }
+        InetSocketAddress peer = new InetSocketAddress(
+                peerAttribute.getAddress(header.getTransactionId()), peerAttribute.getPort());
+        return relayed(ctx, allocation, ByteBuffer.wrap(data.getData(), 0, data.getLength()), peer);
+    }
+
+    NextAction relayed(FilterChainContext ctx, TURNAllocation allocation,
+            ByteBuffer payload, InetSocketAddress peer) throws IOException {
+        ctx.setMessage(payload);
+        ctx.setAddress(peer);
+        relayAttribute.set(ctx, allocation);
+        return demultiplexer.handleRead(ctx);
+    }
+
+    static boolean isDataIndication(ByteBuffer message) {
+        int position = message.position();
+        return message.remaining() >= 20
+                && (message.getShort(position) & 0xffff) == DATA_INDICATION;
+    }
+}
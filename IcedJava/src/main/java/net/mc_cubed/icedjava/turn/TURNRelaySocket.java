@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.RFC7983DemultiplexingFilter;
+import net.mc_cubed.icedjava.stun.StunReply;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.stun.TCPSocketType;
+import net.mc_cubed.icedjava.stun.TransportType;
+import net.mc_cubed.icedjava.stun.event.StunEventListener;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+
+/**
+ * The socket of a relayed candidate.  Sends, and STUN transactions such as
+ * connectivity checks, go out through the TURN allocation, while receiving
+ * is left to the local socket the allocation was made from, where relayed
+ * packets arrive already unwrapped.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see TURNAllocation
+ */
+class TURNRelaySocket implements DemultiplexerSocket {
+
+    private final TURNAllocation allocation;
+    private final DemultiplexerSocket socket;
+
+    TURNRelaySocket(TURNAllocation allocation) {
+        this.allocation = allocation;
+        this.socket = allocation.getSocket();
+    }
+
+    TURNAllocation getAllocation() {
+        return allocation;
+    }
+
+    @Override
+    public int send(ByteBuffer src, SocketAddress target) throws IOException {
+        return allocation.send(src, target);
+    }
+
+    @Override
+    public int send(ByteBuffer src, SocketAddress target,
+            CompletionHandler<WriteResult<ByteBuffer, SocketAddress>> completionHandler) throws IOException {
+        return allocation.send(src, target, completionHandler);
+    }
+
+    @Override
+    public long send(ByteBuffer[] srcs, int offset, int length, SocketAddress target) throws IOException {
+        return allocation.send(srcs, offset, length, target);
+    }
+
+    @Override
+    public Future<StunReply> doTest(InetSocketAddress stunServer) throws IOException, InterruptedException {
+        return doTest(stunServer, StunUtil.createStunRequest(MessageClass.REQUEST, MessageMethod.BINDING));
+    }
+
+    @Override
+    public Future<StunReply> doTest(InetSocketAddress stunServer, StunPacket packet) throws IOException, InterruptedException {
+        return allocation.doTest(stunServer, packet);
+    }
+
+    @Override
+    public void setMaxRetries(int retries) {
+        socket.setMaxRetries(retries);
+    }
+
+    @Override
+    public void storeAndNotify(StunPacket packet) {
+        socket.storeAndNotify(packet);
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer dst) {
+        return socket.receive(dst);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return socket.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return socket.read(dsts, offset, length);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return socket.read(dsts);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new UnsupportedOperationException("A relayed socket has no default peer, use send");
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        throw new UnsupportedOperationException("A relayed socket has no default peer, use send");
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        throw new UnsupportedOperationException("A relayed socket has no default peer, use send");
+    }
+
+    @Override
+    public void registerStunEventListener(StunEventListener listener) {
+        socket.registerStunEventListener(listener);
+    }
+
+    @Override
+    public void deregisterStunEventListener(StunEventListener listener) {
+        socket.deregisterStunEventListener(listener);
+    }
+
+    @Override
+    public void setStunEventListener(StunEventListener listener) {
+        socket.setStunEventListener(listener);
+    }
+
+    @Override
+    public DatagramSocket getDatagramSocket() throws SocketException {
+        throw new UnsupportedOperationException("Not supported by a relayed socket.");
+    }
+
+    @Override
+    public ServerSocket getServerSocket() throws IOException {
+        throw new UnsupportedOperationException("Not supported by a relayed socket.");
+    }
+
+    @Override
+    public Socket getSocket() throws IOException {
+        throw new UnsupportedOperationException("Not supported by a relayed socket.");
+    }
+
+    @Override
+    public TCPSocketType getTcpSocketType() {
+        throw new UnsupportedOperationException("Not valid for a datagram socket.");
+    }
+
+    @Override
+    public RFC7983DemultiplexingFilter getDemultiplexingFilter() {
+        return socket.getDemultiplexingFilter();
+    }
+
+    @Override
+    public TransportType getTransportType() {
+        return TransportType.UDP;
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return allocation.getRelayedAddress().getAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return allocation.getRelayedAddress().getPort();
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress() {
+        return allocation.getRelayedAddress();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !allocation.isClosed() && socket.isOpen();
+    }
+
+    /**
+     * Releases the allocation.  The local socket belongs to the host
+     * candidate and stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        allocation.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[allocation=" + allocation + "]";
+    }
+}
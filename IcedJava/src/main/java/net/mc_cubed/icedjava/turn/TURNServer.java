@@ -0,0 +1,640 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.mc_cubed.icedjava.ice.IceFactory;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.packet.attribute.Attribute;
+import net.mc_cubed.icedjava.packet.attribute.AttributeFactory;
+import net.mc_cubed.icedjava.packet.attribute.AttributeType;
+import net.mc_cubed.icedjava.packet.attribute.IntegrityAttribute;
+import net.mc_cubed.icedjava.packet.attribute.NonceAttribute;
+import net.mc_cubed.icedjava.packet.attribute.SoftwareAttribute;
+import net.mc_cubed.icedjava.packet.attribute.UsernameAttribute;
+import net.mc_cubed.icedjava.packet.attribute.XORMappedAddressAttribute;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.MultiplexedProtocol;
+import net.mc_cubed.icedjava.stun.RFC7983DemultiplexingFilter;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.stun.TransportType;
+import net.mc_cubed.icedjava.util.NumericUtils;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.nio.transport.UDPNIOServerConnection;
+
+/**
+ * An embedded TURN server, per RFC 8656, relaying UDP for clients reaching
+ * it over UDP.  Built on the same Grizzly pipeline as the STUN sockets: the
+ * RFC 7983 filter hands ChannelData straight to the relay path, while TURN
+ * requests and Send indications are decoded and answered by a filter further
+ * up, which also answers plain STUN Binding requests.
+ *
+ * Allocations are keyed by their 5-tuple and get a relay port from a fixed
+ * range.  Data is copied once on its way through, from the receiving
+ * connection's buffer.  A bandwidth quota, in bytes per second, may be set
+ * for each allocation, and a limit on the number of allocations.  Clients
+ * must use the long-term credential mechanism once any user is added.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see TURNAllocation
+ */
+public class TURNServer {
+
+    private static final Logger log = Logger.getLogger(TURNServer.class.getName());
+    public static final int DEFAULT_PORT = 3478;
+    // Seconds, per RFC 8656 Section 3.2
+    static final int DEFAULT_LIFETIME = 600;
+    static final int MAX_LIFETIME = 3600;
+    static final SoftwareAttribute softwareAttribute = AttributeFactory.createSoftwareAttribute(
+            "IcedJava TURN 1.0");
+    private final InetSocketAddress listenAddress;
+    private final InetAddress relayAddress;
+    private final RelayPortPool ports;
+    private final ConcurrentMap<FiveTuple, TURNServerAllocation> allocations =
+            new ConcurrentHashMap<FiveTuple, TURNServerAllocation>();
+    private final Map<String, String> users = new ConcurrentHashMap<String, String>();
+    private String realm = "icedjava";
+    private final String nonce;
+    private volatile long bandwidthQuota = 0;
+    private volatile int maxAllocations = 0;
+    private DemultiplexerSocket socket;
+    private InetSocketAddress serverAddress;
+    private ScheduledFuture<?> sweeper;
+    private final AtomicLong packetsRelayed = new AtomicLong();
+    private final AtomicLong bytesRelayed = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+
+    /**
+     * @param listenAddress address to take requests on, usually port 3478
+     * @param relayAddress local address to bind relay ports on
+     * @param minPort lowest relay port
+     * @param maxPort highest relay port, inclusive
+     */
+    public TURNServer(InetSocketAddress listenAddress, InetAddress relayAddress, int minPort, int maxPort) {
+        this.listenAddress = listenAddress;
+        this.relayAddress = relayAddress;
+        this.ports = new RelayPortPool(minPort, maxPort);
+
+        SecureRandom random = new SecureRandom();
+        this.nonce = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+    }
+
+    /**
+     * Bind the listening socket and start serving
+     *
+     * @throws IOException if the socket can't be bound
+     */
+    public synchronized void start() throws IOException {
+        if (socket != null) {
+            return;
+        }
+        UDPNIOServerConnection connection = StunUtil.bindDatagramConnection(listenAddress);
+        socket = StunUtil.getCustomStunPipeline(connection, new RequestFilter());
+        serverAddress = socket.getLocalSocketAddress();
+
+        RFC7983DemultiplexingFilter demultiplexer = socket.getDemultiplexingFilter();
+        demultiplexer.setHandler(MultiplexedProtocol.TURN_CHANNEL, new ChannelDataFilter());
+        // Nothing reads media sent to the server itself, so don't queue it
+        Filter drop = new DropFilter();
+        demultiplexer.setHandler(MultiplexedProtocol.RTP, drop);
+        demultiplexer.setHandler(MultiplexedProtocol.RTCP, drop);
+        demultiplexer.setHandler(MultiplexedProtocol.DTLS, drop);
+        demultiplexer.setHandler(MultiplexedProtocol.ZRTP, drop);
+
+        sweeper = IceFactory.getSharedThreadpool().scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                sweep(System.currentTimeMillis());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        log.log(Level.INFO, "TURN server listening on {0}, relaying on {1}",
+                new Object[]{serverAddress, relayAddress});
+    }
+
+    /**
+     * Release every allocation and close the listening socket
+     */
+    public synchronized void stop() {
+        if (socket == null) {
+            return;
+        }
+        sweeper.cancel(false);
+        for (TURNServerAllocation allocation : allocations.values()) {
+            release(allocation);
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            log.log(Level.FINE, "Error closing the TURN server socket", ex);
+        }
+        socket = null;
+    }
+
+    /**
+     * Require long-term credentials, accepting this user
+     */
+    public void addUser(String username, String password) {
+        users.put(username, password);
+    }
+
+    public void removeUser(String username) {
+        users.remove(username);
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * @return bytes per second each allocation may relay, 0 for no limit
+     */
+    public long getBandwidthQuota() {
+        return bandwidthQuota;
+    }
+
+    /**
+     * @param bandwidthQuota bytes per second each allocation may relay, in
+     * each direction combined.  Packets over the quota are dropped.  0
+     * removes the limit.
+     */
+    public void setBandwidthQuota(long bandwidthQuota) {
+        this.bandwidthQuota = bandwidthQuota;
+    }
+
+    public int getMaxAllocations() {
+        return maxAllocations;
+    }
+
+    /**
+     * @param maxAllocations most allocations to hold at once, 0 for as many
+     * as there are relay ports
+     */
+    public void setMaxAllocations(int maxAllocations) {
+        this.maxAllocations = maxAllocations;
+    }
+
+    /**
+     * @return the address the server is listening on, once started
+     */
+    public InetSocketAddress getLocalSocketAddress() {
+        return serverAddress;
+    }
+
+    public int getAllocationCount() {
+        return allocations.size();
+    }
+
+    /**
+     * @return packets relayed, in both directions
+     */
+    public long getPacketsRelayed() {
+        return packetsRelayed.get();
+    }
+
+    /**
+     * @return bytes of application data relayed, in both directions
+     */
+    public long getBytesRelayed() {
+        return bytesRelayed.get();
+    }
+
+    /**
+     * @return packets dropped for lack of a permission, channel or quota
+     */
+    public long getPacketsDropped() {
+        return packetsDropped.get();
+    }
+
+    void dropped() {
+        packetsDropped.incrementAndGet();
+    }
+
+    /**
+     * Send a framed message on to a client, without copying it
+     */
+    void sendToClient(ByteBuffer message, InetSocketAddress client, int dataLength) throws IOException {
+        socket.send(message, client);
+        packetsRelayed.incrementAndGet();
+        bytesRelayed.addAndGet(dataLength);
+    }
+
+    ByteBuffer createDataIndication(InetSocketAddress peer, byte[] data) {
+        StunPacket indication = StunUtil.createStunRequest(MessageClass.INDICATION, MessageMethod.DATA);
+        indication.getAttributes().add(AttributeFactory.createXORPeerAddressAttribute(
+                peer.getAddress(), peer.getPort(), indication.getTransactionId()));
+        indication.getAttributes().add(AttributeFactory.createDataAttribute(data));
+        return ByteBuffer.wrap(indication.getBytes());
+    }
+
+    /**
+     * Release expired allocations, and the expired permissions and channels
+     * of the rest
+     */
+    void sweep(long now) {
+        Iterator<Entry<FiveTuple, TURNServerAllocation>> it = allocations.entrySet().iterator();
+        while (it.hasNext()) {
+            TURNServerAllocation allocation = it.next().getValue();
+            if (allocation.getExpires() <= now) {
+                log.log(Level.FINE, "Allocation expired: {0}", allocation);
+                it.remove();
+                allocation.close();
+                ports.release(allocation.getPort());
+            } else {
+                allocation.expire(now);
+            }
+        }
+    }
+
+    private void release(TURNServerAllocation allocation) {
+        if (allocations.remove(allocation.getFiveTuple(), allocation)) {
+            allocation.close();
+            ports.release(allocation.getPort());
+        }
+    }
+
+    private FiveTuple fiveTuple(SocketAddress client) {
+        return new FiveTuple((InetSocketAddress) client, serverAddress, TransportType.UDP);
+    }
+
+    /**
+     * Work out the lifetime to grant, per RFC 8656 Section 7.2
+     */
+    private static int desiredLifetime(StunPacket request) {
+        Attribute lifetime = getAttribute(request, AttributeType.LIFETIME);
+        if (lifetime == null || lifetime.getLength() != 4) {
+            return DEFAULT_LIFETIME;
+        }
+        long requested = NumericUtils.toInt(lifetime.getData());
+        if (requested == 0) {
+            return 0;
+        }
+        return (int) Math.max(Math.min(requested, MAX_LIFETIME), DEFAULT_LIFETIME);
+    }
+
+    private static Attribute getAttribute(StunPacket packet, AttributeType type) {
+        for (Attribute attribute : packet.getAttributes()) {
+            if (attribute.getType() == type) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    private static InetSocketAddress getPeer(StunPacket packet, Attribute attribute) {
+        XORMappedAddressAttribute peer = (XORMappedAddressAttribute) attribute;
+        return new InetSocketAddress(peer.getAddress(packet.getTransactionId()), peer.getPort());
+    }
+
+    /**
+     * Decodes and answers TURN requests and Send indications, and STUN
+     * Binding requests
+     */
+    class RequestFilter extends BaseFilter {
+
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            if (!(ctx.getMessage() instanceof StunPacket)) {
+                return ctx.getInvokeAction();
+            }
+            StunPacket packet = (StunPacket) ctx.getMessage();
+            SocketAddress client = (SocketAddress) ctx.getAddress();
+            switch (packet.getMessageClass()) {
+                case INDICATION:
+                    if (packet.getMethod() == MessageMethod.SEND) {
+                        processSend(packet, client);
+                    }
+                    return ctx.getStopAction();
+                case REQUEST:
+                    processRequest(packet, client, ctx);
+                    return ctx.getStopAction();
+                default:
+                    return ctx.getInvokeAction();
+            }
+        }
+
+        void processRequest(StunPacket request, SocketAddress client, FilterChainContext ctx) throws IOException {
+            InetSocketAddress clientAddress = (InetSocketAddress) client;
+            if (request.getMethod() == MessageMethod.BINDING) {
+                StunPacket reply = StunUtil.createReplyPacket(request, MessageClass.SUCCESS);
+                reply.getAttributes().add(AttributeFactory.createXORMappedAddressAttribute(
+                        clientAddress.getAddress(), clientAddress.getPort(), request.getTransactionId()));
+                reply(ctx, client, reply, null);
+                return;
+            }
+            if (request.getMethod() == null) {
+                error(ctx, client, request, 400, "Bad Request");
+                return;
+            }
+
+            String username = authenticate(request, client, ctx);
+            if (username == null) {
+                return;
+            }
+
+            FiveTuple tuple = fiveTuple(client);
+            if (request.getMethod() == MessageMethod.ALLOCATE) {
+                processAllocate(request, tuple, username, ctx);
+                return;
+            }
+
+            TURNServerAllocation allocation = allocations.get(tuple);
+            if (allocation == null || !allocation.getUsername().equals(username)) {
+                error(ctx, client, request, 437, "Allocation Mismatch");
+                return;
+            }
+            long now = System.currentTimeMillis();
+            StunPacket reply = StunUtil.createReplyPacket(request, MessageClass.SUCCESS);
+            switch (request.getMethod()) {
+                case REFRESH:
+                    int lifetime = desiredLifetime(request);
+                    if (lifetime == 0) {
+                        release(allocation);
+                    } else {
+                        allocation.setExpires(now + lifetime * 1000L);
+                    }
+                    reply.getAttributes().add(AttributeFactory.createLifetimeAttribute(lifetime));
+                    break;
+                case CREATE_PERMISSION:
+                    List<InetAddress> peers = new LinkedList<InetAddress>();
+                    for (Attribute attribute : request.getAttributes()) {
+                        if (attribute.getType() == AttributeType.XOR_PEER_ADDRESS) {
+                            peers.add(getPeer(request, attribute).getAddress());
+                        }
+                    }
+                    if (peers.isEmpty()) {
+                        error(ctx, client, request, 400, "Bad Request");
+                        return;
+                    }
+                    for (InetAddress peer : peers) {
+                        allocation.installPermission(peer, now);
+                    }
+                    break;
+                case CHANNELBIND:
+                    Attribute channel = getAttribute(request, AttributeType.CHANNEL_NUMBER);
+                    Attribute peer = getAttribute(request, AttributeType.XOR_PEER_ADDRESS);
+                    if (channel == null || channel.getLength() != 4 || peer == null
+                            || !allocation.bindChannel(NumericUtils.toShort(channel.getData()),
+                            getPeer(request, peer), now)) {
+                        error(ctx, client, request, 400, "Bad Request");
+                        return;
+                    }
+                    break;
+                default:
+                    error(ctx, client, request, 400, "Bad Request");
+                    return;
+            }
+            reply(ctx, client, reply, username);
+        }
+
+        void processAllocate(StunPacket request, FiveTuple tuple, String username, FilterChainContext ctx) throws IOException {
+            InetSocketAddress client = tuple.getClient();
+            TURNServerAllocation existing = allocations.get(tuple);
+            if (existing != null) {
+                retransmittedAllocate(existing, request, username, ctx);
+                return;
+            }
+            Attribute transport = getAttribute(request, AttributeType.REQUESTED_TRANSPORT);
+            if (transport == null || transport.getLength() != 4) {
+                error(ctx, client, request, 400, "Bad Request");
+                return;
+            }
+            if (transport.getData()[0] != TURNAllocation.PROTOCOL_UDP) {
+                error(ctx, client, request, 442, "Unsupported Transport Protocol");
+                return;
+            }
+            if (maxAllocations > 0 && allocations.size() >= maxAllocations) {
+                error(ctx, client, request, 486, "Allocation Quota Reached");
+                return;
+            }
+
+            TURNServerAllocation allocation = null;
+            // Skip ports something else has already bound
+            for (int attempt = 0; attempt < ports.size() && allocation == null; attempt++) {
+                int port = ports.acquire();
+                if (port < 0) {
+                    break;
+                }
+                TURNServerAllocation candidate = new TURNServerAllocation(TURNServer.this, tuple, username, port);
+                try {
+                    candidate.open(relayAddress);
+                    allocation = candidate;
+                } catch (IOException ex) {
+                    log.log(Level.FINE, "Relay port {0} unavailable", port);
+                    ports.release(port);
+                }
+            }
+            if (allocation == null) {
+                error(ctx, client, request, 508, "Insufficient Capacity");
+                return;
+            }
+
+            int lifetime = desiredLifetime(request);
+            if (lifetime == 0) {
+                lifetime = DEFAULT_LIFETIME;
+            }
+            allocation.setExpires(System.currentTimeMillis() + lifetime * 1000L);
+
+            InetSocketAddress relayed = allocation.getRelayedAddress();
+            StunPacket reply = StunUtil.createReplyPacket(request, MessageClass.SUCCESS);
+            reply.getAttributes().add(AttributeFactory.createXORRelayedAddressAttribute(
+                    relayed.getAddress(), relayed.getPort(), request.getTransactionId()));
+            reply.getAttributes().add(AttributeFactory.createXORMappedAddressAttribute(
+                    client.getAddress(), client.getPort(), request.getTransactionId()));
+            reply.getAttributes().add(AttributeFactory.createLifetimeAttribute(lifetime));
+            sign(reply, username);
+            // Kept before the allocation is visible, for retransmissions to find
+            allocation.setAllocateResponse(reply);
+
+            existing = allocations.putIfAbsent(tuple, allocation);
+            if (existing != null) {
+                // A retransmission beat us to it
+                allocation.close();
+                ports.release(allocation.getPort());
+                retransmittedAllocate(existing, request, username, ctx);
+                return;
+            }
+            log.log(Level.FINE, "Allocated {0}", allocation);
+            ctx.write(client, reply, null);
+        }
+
+        /**
+         * Answer an Allocate on a 5-tuple which already has an allocation.
+         * A retransmission of the request which made it gets the same
+         * success response again, RFC 8656 Section 7.2, anything else a 437.
+         */
+        void retransmittedAllocate(TURNServerAllocation existing, StunPacket request,
+                String username, FilterChainContext ctx) throws IOException {
+            InetSocketAddress client = existing.getFiveTuple().getClient();
+            StunPacket response = existing.getAllocateResponse(request.getTransactionId());
+            if (response != null && existing.getUsername().equals(username)) {
+                ctx.write(client, response, null);
+            } else {
+                error(ctx, client, request, 437, "Allocation Mismatch");
+            }
+        }
+
+        void processSend(StunPacket indication, SocketAddress client) throws IOException {
+            TURNServerAllocation allocation = allocations.get(fiveTuple(client));
+            Attribute peerAttribute = getAttribute(indication, AttributeType.XOR_PEER_ADDRESS);
+            Attribute data = getAttribute(indication, AttributeType.DATA);
+            if (allocation == null || peerAttribute == null || data == null || data.getLength() == 0) {
+                dropped();
+                return;
+            }
+            InetSocketAddress peer = getPeer(indication, peerAttribute);
+            if (!allocation.permits(peer.getAddress(), System.currentTimeMillis())
+                    || !allocation.consume(data.getLength())) {
+                dropped();
+                return;
+            }
+            allocation.relayToPeer(ByteBuffer.wrap(data.getData(), 0, data.getLength()), peer);
+            packetsRelayed.incrementAndGet();
+            bytesRelayed.addAndGet(data.getLength());
+        }
+
+        /**
+         * Check the long-term credentials of a request, answering it with a
+         * challenge if they are missing or wrong
+         *
+         * @return the user name, "" if no users are configured, or null if the
+         * request was refused
+         */
+        String authenticate(StunPacket request, SocketAddress client, FilterChainContext ctx) throws IOException {
+            if (users.isEmpty()) {
+                return "";
+            }
+            IntegrityAttribute integrity = (IntegrityAttribute) getAttribute(request, AttributeType.MESSAGE_INTEGRITY);
+            UsernameAttribute username = (UsernameAttribute) getAttribute(request, AttributeType.USERNAME);
+            NonceAttribute requestNonce = (NonceAttribute) getAttribute(request, AttributeType.NONCE);
+            if (integrity == null || username == null || requestNonce == null) {
+                error(ctx, client, request, 401, "Unauthorized");
+                return null;
+            }
+            if (!nonce.equals(requestNonce.getValue())) {
+                error(ctx, client, request, 438, "Stale Nonce");
+                return null;
+            }
+            String password = users.get(username.getValue());
+            if (password == null || !integrity.verifyHash(username.getValue(), realm, password)) {
+                error(ctx, client, request, 401, "Unauthorized");
+                return null;
+            }
+            return username.getValue();
+        }
+
+        void reply(FilterChainContext ctx, SocketAddress client, StunPacket reply, String username) throws IOException {
+            sign(reply, username);
+            ctx.write(client, reply, null);
+        }
+
+        /**
+         * Add the closing attributes of a response
+         */
+        void sign(StunPacket reply, String username) {
+            reply.getAttributes().add(softwareAttribute);
+            String password = username != null ? users.get(username) : null;
+            if (password != null) {
+                // Last, covering everything before it
+                reply.getAttributes().add(AttributeFactory.createIntegrityAttribute(username, realm, password));
+            }
+        }
+
+        void error(FilterChainContext ctx, SocketAddress client, StunPacket request, int code, String reason) throws IOException {
+            StunPacket reply = StunUtil.createReplyPacket(request, MessageClass.ERROR);
+            reply.getAttributes().add(AttributeFactory.createErrorCodeAttribute(code, reason));
+            if (code == 401 || code == 438) {
+                reply.getAttributes().add(AttributeFactory.createRealmAttribute(realm));
+                reply.getAttributes().add(AttributeFactory.createNonceAttribute(nonce));
+            }
+            reply.getAttributes().add(softwareAttribute);
+            ctx.write(client, reply, null);
+        }
+    }
+
+    /**
+     * Relays ChannelData from clients to their peers
+     */
+    class ChannelDataFilter extends BaseFilter {
+
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            if (!(ctx.getMessage() instanceof ByteBuffer)) {
+                return ctx.getStopAction();
+            }
+            ByteBuffer message = (ByteBuffer) ctx.getMessage();
+            TURNServerAllocation allocation = allocations.get(fiveTuple((SocketAddress) ctx.getAddress()));
+            if (allocation == null || !ChannelData.isChannelData(message)) {
+                dropped();
+                return ctx.getStopAction();
+            }
+            TURNServerAllocation.Channel channel = allocation.getChannel(
+                    ChannelData.getChannelNumber(message), System.currentTimeMillis());
+            int length = ChannelData.getLength(message);
+            if (channel == null || !allocation.consume(length)) {
+                dropped();
+                return ctx.getStopAction();
+            }
+            allocation.relayToPeer(ChannelData.getPayload(message), channel.peer);
+            packetsRelayed.incrementAndGet();
+            bytesRelayed.addAndGet(length);
+            return ctx.getStopAction();
+        }
+    }
+
+    /**
+     * Discards packets the server has no use for
+     */
+    class DropFilter extends BaseFilter {
+
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            dropped();
+            return ctx.getStopAction();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.memory.ByteBufferWrapper;
+import org.glassfish.grizzly.nio.transport.UDPNIOServerConnection;
+
+/**
+ * The server side of one TURN allocation: the relay connection, and the
+ * permissions and channels installed on it.  Permissions are looked up by
+ * peer address and channels both by number and by peer, each in constant
+ * time, so a relayed packet costs a few hash lookups and the one copy
+ * needed to move it between connections.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ * @see TURNServer
+ */
+class TURNServerAllocation {
+
+    private static final Logger log = Logger.getLogger(TURNServerAllocation.class.getName());
+    private final TURNServer server;
+    private final FiveTuple fiveTuple;
+    private final String username;
+    private final int port;
+    private UDPNIOServerConnection relayConnection;
+    private InetSocketAddress relayedAddress;
+    private volatile long expires;
+    private volatile StunPacket allocateResponse;
+    private final ConcurrentMap<InetAddress, Long> permissions =
+            new ConcurrentHashMap<InetAddress, Long>();
+    private final ConcurrentMap<SocketAddress, Channel> peerChannels =
+            new ConcurrentHashMap<SocketAddress, Channel>();
+    // Indexed by channel number less MIN_CHANNEL
+    private final AtomicReferenceArray<Channel> channels =
+            new AtomicReferenceArray<Channel>(ChannelData.MAX_CHANNEL - ChannelData.MIN_CHANNEL + 1);
+    // Token bucket enforcing the server's bandwidth quota
+    private long tokens;
+    private long lastRefill;
+
+    TURNServerAllocation(TURNServer server, FiveTuple fiveTuple, String username, int port) {
+        this.server = server;
+        this.fiveTuple = fiveTuple;
+        this.username = username;
+        this.port = port;
+        this.tokens = server.getBandwidthQuota();
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Bind the relay connection and start relaying from it
+     *
+     * @param relayAddress local address to relay on
+     * @throws IOException if the port can't be bound
+     */
+    void open(InetAddress relayAddress) throws IOException {
+        relayConnection = StunUtil.bindDatagramConnection(new InetSocketAddress(relayAddress, port));
+        FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
+        filterChainBuilder.add(new TransportFilter());
+        filterChainBuilder.add(new PeerFilter());
+        relayConnection.setProcessor(filterChainBuilder.build());
+        relayedAddress = (InetSocketAddress) relayConnection.getLocalAddress();
+    }
+
+    /**
+     * Unbind the relay connection
+     */
+    void close() {
+        if (relayConnection != null) {
+            try {
+                relayConnection.close();
+                StunUtil.getDatagramTransport().unbind(relayConnection);
+            } catch (IOException ex) {
+                log.log(Level.FINE, "Error closing the relay connection of " + fiveTuple, ex);
+            }
+        }
+        permissions.clear();
+        peerChannels.clear();
+    }
+
+    /**
+     * Check whether a peer may send through this allocation
+     */
+    boolean permits(InetAddress peer, long now) {
+        Long permissionExpires = permissions.get(peer);
+        return permissionExpires != null && permissionExpires > now;
+    }
+
+    /**
+     * Install or refresh a permission for a peer address
+     */
+    void installPermission(InetAddress peer, long now) {
+        permissions.put(peer, now + TURNAllocation.PERMISSION_LIFETIME);
+    }
+
+    /**
+     * Bind a channel to a peer, or refresh the binding.  Fails if either is
+     * already bound to something else, per RFC 8656 Section 11.2.
+     *
+     * @return true if bound
+     */
+    synchronized boolean bindChannel(int number, InetSocketAddress peer, long now) {
+        if (!ChannelData.isValidChannel(number)) {
+            return false;
+        }
+        Channel byNumber = channels.get(number - ChannelData.MIN_CHANNEL);
+        Channel byPeer = peerChannels.get(peer);
+        if (byNumber != byPeer) {
+            return false;
+        }
+        if (byNumber == null) {
+            byNumber = new Channel(number, peer);
+            channels.set(number - ChannelData.MIN_CHANNEL, byNumber);
+            peerChannels.put(peer, byNumber);
+        }
+        byNumber.expires = now + TURNAllocation.CHANNEL_LIFETIME;
+        installPermission(peer.getAddress(), now);
+        return true;
+    }
+
+    /**
+     * Get a live channel by number
+     *
+     * @return the channel, or null if it isn't bound
+     */
+    Channel getChannel(int number, long now) {
+        if (!ChannelData.isValidChannel(number)) {
+            return null;
+        }
+        Channel channel = channels.get(number - ChannelData.MIN_CHANNEL);
+        return (channel != null && channel.expires > now) ? channel : null;
+    }
+
+    /**
+     * Get a live channel by peer
+     *
+     * @return the channel, or null if none is bound to the peer
+     */
+    Channel getChannel(SocketAddress peer, long now) {
+        Channel channel = peerChannels.get(peer);
+        return (channel != null && channel.expires > now) ? channel : null;
+    }
+
+    /**
+     * Take bytes from the bandwidth quota
+     *
+     * @return false if the quota is used up and the packet should be dropped
+     */
+    synchronized boolean consume(int bytes) {
+        long quota = server.getBandwidthQuota();
+        if (quota <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long refill = (now - lastRefill) * quota / 1000000000L;
+        if (refill > 0) {
+            // Allow at most a second's worth of burst
+            tokens = Math.min(quota, tokens + refill);
+            lastRefill = now;
+        }
+        if (tokens < bytes) {
+            return false;
+        }
+        tokens -= bytes;
+        return true;
+    }
+
+    /**
+     * Send data from the client on to a peer, without copying it again
+     */
+    void relayToPeer(ByteBuffer payload, SocketAddress peer) throws IOException {
+        relayConnection.write(peer, new ByteBufferWrapper(payload), null);
+    }
+
+    /**
+     * Forget permissions and channels which have run out
+     */
+    synchronized void expire(long now) {
+        Iterator<Entry<InetAddress, Long>> permissionIt = permissions.entrySet().iterator();
+        while (permissionIt.hasNext()) {
+            if (permissionIt.next().getValue() <= now) {
+                permissionIt.remove();
+            }
+        }
+        Iterator<Channel> channelIt = peerChannels.values().iterator();
+        while (channelIt.hasNext()) {
+            Channel channel = channelIt.next();
+            if (channel.expires <= now) {
+                channelIt.remove();
+                channels.set(channel.number - ChannelData.MIN_CHANNEL, null);
+            }
+        }
+    }
+
+    FiveTuple getFiveTuple() {
+        return fiveTuple;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    InetSocketAddress getRelayedAddress() {
+        return relayedAddress;
+    }
+
+    long getExpires() {
+        return expires;
+    }
+
+    void setExpires(long expires) {
+        this.expires = expires;
+    }
+
+    /**
+     * Get the success response to the Allocate request which made this
+     * allocation, to answer a retransmission of that request with
+     *
+     * @param transactionId the transaction ID of a new Allocate request
+     * @return the response, or null if the request is not a retransmission
+     */
+    StunPacket getAllocateResponse(byte[] transactionId) {
+        StunPacket response = allocateResponse;
+        if (response == null || !Arrays.equals(response.getTransactionId(), transactionId)) {
+            return null;
+        }
+        return response;
+    }
+
+    void setAllocateResponse(StunPacket allocateResponse) {
+        this.allocateResponse = allocateResponse;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[fiveTuple=" + fiveTuple + ":relayedAddress=" + relayedAddress + "]";
+    }
+
+    /**
+     * A channel bound on this allocation
+     */
+    static class Channel {
+
+        final int number;
+        final InetSocketAddress peer;
+        volatile long expires;
+
+        Channel(int number, InetSocketAddress peer) {
+            this.number = number;
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * Receives from peers on the relay connection, passing what is permitted
+     * to the client as ChannelData, or as a Data indication if the peer has
+     * no channel.
+     */
+    class PeerFilter extends BaseFilter {
+
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            Object message = ctx.getMessage();
+            if (!(message instanceof Buffer)) {
+                return ctx.getStopAction();
+            }
+            Buffer buffer = (Buffer) message;
+            InetSocketAddress peer = (InetSocketAddress) ctx.getAddress();
+            long now = System.currentTimeMillis();
+            int length = buffer.remaining();
+            if (length > 0xffff || !permits(peer.getAddress(), now) || !consume(length)) {
+                server.dropped();
+                return ctx.getStopAction();
+            }
+
+            ByteBuffer out;
+            Channel channel = getChannel(peer, now);
+            if (channel != null) {
+                // The one copy, straight into the framed message
+                out = ByteBuffer.allocate(ChannelData.HEADER_LENGTH + length);
+                out.putShort((short) channel.number);
+                out.putShort((short) length);
+                buffer.get(out);
+                out.flip();
+            } else {
+                byte[] data = new byte[length];
+                buffer.get(ByteBuffer.wrap(data));
+                out = server.createDataIndication(peer, data);
+            }
+            server.sendToClient(out, fiveTuple.getClient(), length);
+            return ctx.getStopAction();
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent map whose entries expire a set time after they were written,
+ * after a set time without being read, or both, and which can be bounded to a
+ * maximum number of entries, evicting the least recently used.
+ *
+ * Unlike ExpiringCache, values are held by strong references, and expiry is
+ * driven by a timing wheel shared by every cache rather than a timer thread
+ * and full sweep per cache.  Reads never block: expired entries are detected
+ * on access, and recency is only updated when the LRU lock is free, so under
+ * contention eviction order is approximate.
+ *
+ * @param <K> Key to map objects by
+ * @param <V> Type of Object to cache
+ * @author Charles Chappell
+ * @since 1.0
+ * @see ExpiringCache
+ */
+public class ConcurrentExpiringCache<K, V> extends AbstractMap<K, V> implements Map<K, V> {
+
+    private final ConcurrentHashMap<K, CacheEntry<K, V>> cacheMap = new ConcurrentHashMap<K, CacheEntry<K, V>>();
+    private final TimingWheel wheel;
+    private final long ttl;
+    private final long ato;
+    private final int maxSize;
+    // Least recently used entries first, only maintained when bounded
+    private final CacheEntry<K, V> lruHead = new CacheEntry<K, V>(null, null, 0, 0, null);
+    private final ReentrantLock lruLock = new ReentrantLock();
+    private int lruSize = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private Set<Entry<K, V>> entrySet = null;
+
+    /**
+     * Creates an unbounded cache with the ExpiringCache default timeouts
+     */
+    public ConcurrentExpiringCache() {
+        this(ExpiringCache.DEFAULT_TIME_TO_LIVE, ExpiringCache.DEFAULT_ACCESS_TIMEOUT, 0);
+    }
+
+    /**
+     * @param ttl milliseconds an entry lives after it is written, 0 for no limit
+     * @param ato milliseconds an entry lives after it is last read, 0 for no
+     * limit
+     * @param maxSize maximum number of entries, 0 for no limit
+     */
+    public ConcurrentExpiringCache(long ttl, long ato, int maxSize) {
+        this(ttl, ato, maxSize, TimingWheel.getShared());
+    }
+
+    ConcurrentExpiringCache(long ttl, long ato, int maxSize, TimingWheel wheel) {
+        this.ttl = ttl;
+        this.ato = ato;
+        this.maxSize = maxSize;
+        this.wheel = wheel;
+        lruHead.lruPrev = lruHead;
+        lruHead.lruNext = lruHead;
+    }
+
+    /**
+     * Cache an object using the cache's timeouts
+     *
+     * @param key key to cache the object by
+     * @param dataToCache object to cache
+     * @return the object previously cached for the key, or null if none
+     */
+    public V admit(K key, V dataToCache) {
+        return admit(key, dataToCache, ttl, ato);
+    }
+
+    /**
+     * Cache an object with its own timeouts
+     *
+     * @param key key to cache the object by
+     * @param dataToCache object to cache
+     * @param objectTimeToLive milliseconds the object lives after being
+     * cached, 0 for no limit
+     * @param objectIdleTimeout milliseconds the object lives after being last
+     * read, 0 for no limit
+     * @return the object previously cached for the key, or null if none
+     */
+    public V admit(K key, V dataToCache, long objectTimeToLive, long objectIdleTimeout) {
+        if (dataToCache == null) {
+            return remove(key);
+        }
+        long now = System.currentTimeMillis();
+        CacheEntry<K, V> existing = cacheMap.get(key);
+        if (existing != null && existing.objectTTL == objectTimeToLive
+                && existing.objectIdleTimeout == objectIdleTimeout) {
+            // Overwrite in place, the entry keeps its place in the timing wheel
+            // and fixes up its deadline when it fires
+            boolean overwritten = false;
+            V previousValue = null;
+            synchronized (existing) {
+                if (!existing.retired) {
+                    previousValue = existing.hasExpired(now) ? null : existing.value;
+                    existing.value = dataToCache;
+                    existing.timeCached = now;
+                    existing.timeAccessedLast = now;
+                    overwritten = true;
+                }
+            }
+            if (overwritten) {
+                touch(existing);
+                return previousValue;
+            }
+        }
+
+        CacheEntry<K, V> entry = new CacheEntry<K, V>(key, dataToCache, objectTimeToLive, objectIdleTimeout, this);
+        entry.timeCached = now;
+        entry.timeAccessedLast = now;
+        entry.deadline = entry.expiresAt();
+
+        CacheEntry<K, V> previous = cacheMap.put(key, entry);
+        V previousValue = null;
+        if (previous != null) {
+            if (!previous.hasExpired(now)) {
+                previousValue = previous.value;
+            }
+            retire(previous);
+        }
+        if (maxSize > 0) {
+            linkAndEvict(entry);
+        }
+        if (entry.deadline != Long.MAX_VALUE) {
+            schedule(entry);
+        }
+        return previousValue;
+    }
+
+    /**
+     * Get a cached object, counting a hit or miss
+     *
+     * @param key key the object was cached by
+     * @return the cached object, or null if absent or expired
+     */
+    public V recover(Object key) {
+        CacheEntry<K, V> entry = cacheMap.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.hasExpired(now)) {
+            expire(entry);
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.objectIdleTimeout > 0 && entry.timeAccessedLast != now) {
+            entry.timeAccessedLast = now;
+        }
+        touch(entry);
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    public void discard(Object key) {
+        remove(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        return recover(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return admit(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        CacheEntry<K, V> entry = cacheMap.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        V value = entry.value;
+        retire(entry);
+        return entry.hasExpired(System.currentTimeMillis()) ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        CacheEntry<K, V> entry = cacheMap.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.hasExpired(System.currentTimeMillis())) {
+            expire(entry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The number of entries, which may include entries which have expired but
+     * have not been removed yet.
+     *
+     * @return number of entries in the cache
+     */
+    @Override
+    public int size() {
+        return cacheMap.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return cacheMap.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        for (K key : cacheMap.keySet()) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of entries removed to keep the cache within its maximum
+     * size
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of entries removed because they timed out
+     */
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * @return fraction of reads which found an entry, 1.0 if there were none
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return (total == 0) ? 1.0 : (double) hitCount / total;
+    }
+
+    public long getTimeToLive() {
+        return ttl;
+    }
+
+    public long getAccessTimeout() {
+        return ato;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[size=" + size() + ":hits=" + getHitCount() + ":misses=" + getMissCount()
+                + ":evictions=" + getEvictionCount() + ":expirations=" + getExpirationCount() + "]";
+    }
+
+    /**
+     * Remove an entry because it timed out, unless it was already replaced
+     */
+    void expire(CacheEntry<K, V> entry) {
+        synchronized (entry) {
+            // Check again, it may have been overwritten in place
+            if (entry.retired || !entry.hasExpired(System.currentTimeMillis())
+                    || !cacheMap.remove(entry.key, entry)) {
+                return;
+            }
+            entry.retired = true;
+            entry.value = null;
+        }
+        expirations.incrementAndGet();
+        wheel.cancel(entry);
+        unlinkLru(entry);
+    }
+
+    /**
+     * Release an entry which is no longer in the map, taking it off the timing
+     * wheel so churn doesn't hold entries there until their deadlines.
+     */
+    private void retire(CacheEntry<K, V> entry) {
+        synchronized (entry) {
+            entry.retired = true;
+            entry.value = null;
+        }
+        wheel.cancel(entry);
+        unlinkLru(entry);
+    }
+
+    /**
+     * Put an entry on the timing wheel.  It may have been retired meanwhile,
+     * after its retirement found nothing to cancel, so check once it is on.
+     */
+    private void schedule(CacheEntry<K, V> entry) {
+        wheel.schedule(entry);
+        if (entry.retired) {
+            wheel.cancel(entry);
+        }
+    }
+
+    private void unlinkLru(CacheEntry<K, V> entry) {
+        if (maxSize > 0) {
+            lruLock.lock();
+            try {
+                if (entry.lruNext != null) {
+                    unlink(entry);
+                }
+            } finally {
+                lruLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Mark an entry as recently used.  Skipped rather than waiting when
+     * another thread holds the LRU lock.
+     */
+    private void touch(CacheEntry<K, V> entry) {
+        if (maxSize > 0 && lruHead.lruPrev != entry && lruLock.tryLock()) {
+            try {
+                if (entry.lruNext != null) {
+                    unlink(entry);
+                    linkLast(entry);
+                }
+            } finally {
+                lruLock.unlock();
+            }
+        }
+    }
+
+    private void linkAndEvict(CacheEntry<K, V> entry) {
+        lruLock.lock();
+        try {
+            if (entry.retired) {
+                // Replaced before we got here
+                return;
+            }
+            linkLast(entry);
+            while (lruSize > maxSize) {
+                CacheEntry<K, V> eldest = lruHead.lruNext;
+                unlink(eldest);
+                synchronized (eldest) {
+                    if (cacheMap.remove(eldest.key, eldest)) {
+                        evictions.incrementAndGet();
+                    }
+                    eldest.retired = true;
+                    eldest.value = null;
+                }
+                wheel.cancel(eldest);
+            }
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    private void linkLast(CacheEntry<K, V> entry) {
+        entry.lruPrev = lruHead.lruPrev;
+        entry.lruNext = lruHead;
+        lruHead.lruPrev.lruNext = entry;
+        lruHead.lruPrev = entry;
+        lruSize++;
+    }
+
+    private void unlink(CacheEntry<K, V> entry) {
+        entry.lruPrev.lruNext = entry.lruNext;
+        entry.lruNext.lruPrev = entry.lruPrev;
+        entry.lruPrev = null;
+        entry.lruNext = null;
+        lruSize--;
+    }
+
+    static class CacheEntry<K, V> extends TimingWheel.Timeout {
+
+        final K key;
+        volatile V value;
+        final long objectTTL;
+        final long objectIdleTimeout;
+        final ConcurrentExpiringCache<K, V> cache;
+        volatile long timeCached;
+        volatile long timeAccessedLast;
+        // Set once the entry leaves the map, guarded by the entry itself
+        volatile boolean retired = false;
+        // Guarded by the cache's LRU lock
+        CacheEntry<K, V> lruPrev;
+        CacheEntry<K, V> lruNext;
+
+        CacheEntry(K key, V value, long objectTTL, long objectIdleTimeout, ConcurrentExpiringCache<K, V> cache) {
+            this.key = key;
+            this.value = value;
+            this.objectTTL = objectTTL;
+            this.objectIdleTimeout = objectIdleTimeout;
+            this.cache = cache;
+        }
+
+        long expiresAt() {
+            long expires = Long.MAX_VALUE;
+            if (objectTTL > 0) {
+                expires = timeCached + objectTTL;
+            }
+            if (objectIdleTimeout > 0) {
+                expires = Math.min(expires, timeAccessedLast + objectIdleTimeout);
+            }
+            return expires;
+        }
+
+        boolean hasExpired(long now) {
+            return now > expiresAt();
+        }
+
+        @Override
+        void expired(long now) {
+            if (retired) {
+                return;
+            }
+            long expires = expiresAt();
+            if (now > expires) {
+                cache.expire(this);
+            } else {
+                // Read since it was scheduled, wait for the new deadline
+                deadline = expires;
+                cache.schedule(this);
+            }
+        }
+    }
+
+    class EntrySet extends AbstractSet<Entry<K, V>> {
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            final Iterator<CacheEntry<K, V>> entries = cacheMap.values().iterator();
+            return new Iterator<Entry<K, V>>() {
+
+                private CacheEntry<K, V> next = null;
+                private CacheEntry<K, V> last = null;
+
+                @Override
+                public boolean hasNext() {
+                    long now = System.currentTimeMillis();
+                    while (next == null && entries.hasNext()) {
+                        CacheEntry<K, V> candidate = entries.next();
+                        V value = candidate.value;
+                        if (value != null && !candidate.hasExpired(now)) {
+                            next = candidate;
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Entry<K, V> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next;
+                    next = null;
+                    return new SimpleImmutableEntry<K, V>(last.key, last.value);
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    if (cacheMap.remove(last.key, last)) {
+                        retire(last);
+                    }
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return cacheMap.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            V value = ConcurrentExpiringCache.this.get(e.getKey());
+            return value != null && value.equals(e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (contains(o)) {
+                ConcurrentExpiringCache.this.remove(((Entry<?, ?>) o).getKey());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentExpiringCache.this.clear();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A thread safe set of weakly referenced elements, compared by identity.
+ *
+ * Every change replaces an immutable snapshot of the elements, so readers
+ * never lock and never see a change part way through.  This suits sets which
+ * change rarely and are read often, such as listener lists read once per
+ * packet.  Elements which have been garbage collected read as null in a
+ * snapshot until the next change, or the next read after the collector
+ * reports them, drops them.
+ *
+ * @param <T> Type of element held
+ * @author Charles Chappell
+ * @since 1.0
+ * @see Snapshot
+ */
+public class CopyOnWriteWeakSet<T> extends AbstractSet<T> {
+
+    private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+    private volatile Snapshot<T> snapshot = new Snapshot<T>(CopyOnWriteWeakSet.<T>newElements(0));
+
+    /**
+     * Get the current elements.  Taking a snapshot allocates nothing, and the
+     * snapshot never changes, so it can be walked on a hot path without
+     * locking.
+     *
+     * @return the elements of the set as of now
+     */
+    public Snapshot<T> getSnapshot() {
+        if (queue.poll() != null) {
+            expunge();
+        }
+        return snapshot;
+    }
+
+    @Override
+    public synchronized boolean add(T element) {
+        if (element == null) {
+            throw new NullPointerException("Null elements are not supported");
+        }
+        Element<T>[] elements = snapshot.elements;
+        for (Element<T> ref : elements) {
+            if (ref.get() == element) {
+                return false;
+            }
+        }
+        snapshot = new Snapshot<T>(copyLive(elements, new Element<T>(element, queue), null));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Object element) {
+        if (element == null) {
+            return false;
+        }
+        Element<T>[] elements = snapshot.elements;
+        for (Element<T> ref : elements) {
+            if (ref.get() == element) {
+                snapshot = new Snapshot<T>(copyLive(elements, null, element));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        Snapshot<T> current = getSnapshot();
+        for (int i = 0; i < current.size(); i++) {
+            if (current.get(i) == element) {
+                return element != null;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void clear() {
+        while (queue.poll() != null) {
+            // Everything is being dropped anyway
+        }
+        snapshot = new Snapshot<T>(CopyOnWriteWeakSet.<T>newElements(0));
+    }
+
+    /**
+     * The number of elements, which may include elements collected since the
+     * last change.
+     *
+     * @return number of elements in the current snapshot
+     */
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    /**
+     * Iterates over a snapshot, skipping collected elements.  The iterator
+     * never throws ConcurrentModificationException, and removing through it
+     * removes the last element returned from the set.
+     *
+     * @return iterator over the current elements
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final Snapshot<T> current = getSnapshot();
+        return new Iterator<T>() {
+
+            private int index = 0;
+            private T next = null;
+            private T last = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && index < current.size()) {
+                    next = current.get(index++);
+                }
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = null;
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                CopyOnWriteWeakSet.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private synchronized void expunge() {
+        snapshot = new Snapshot<T>(copyLive(snapshot.elements, null, null));
+    }
+
+    /**
+     * Copy the elements which have not been collected, and forget what the
+     * collector has reported so far.  Called with the set locked.
+     *
+     * @param elements the elements to copy
+     * @param added element to append, or null
+     * @param removed element to leave out, or null
+     * @return the new elements
+     */
+    private Element<T>[] copyLive(Element<T>[] elements, Element<T> added, Object removed) {
+        while (queue.poll() != null) {
+            // Collected elements are dropped by the copy below
+        }
+        // One pass, since elements may be collected while we copy
+        Element<T>[] newElements = newElements(elements.length + 1);
+        int live = 0;
+        for (Element<T> ref : elements) {
+            Object referent = ref.get();
+            if (referent != null && referent != removed) {
+                newElements[live++] = ref;
+            }
+        }
+        if (added != null) {
+            newElements[live++] = added;
+        }
+        if (live != newElements.length) {
+            newElements = Arrays.copyOf(newElements, live);
+        }
+        return newElements;
+    }
+
+    /**
+     * Java cannot create an array of a generic type, so create one of the
+     * erased type.  Only Element&lt;T&gt; is ever stored in it.
+     *
+     * @param length size of the array
+     * @return an empty array of elements
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Element<T>[] newElements(int length) {
+        return (Element<T>[]) new Element<?>[length];
+    }
+
+    /**
+     * An unchanging view of the elements of the set at one point in time
+     *
+     * @param <T> Type of element held
+     */
+    public static final class Snapshot<T> {
+
+        private final Element<T>[] elements;
+
+        Snapshot(Element<T>[] elements) {
+            this.elements = elements;
+        }
+
+        public int size() {
+            return elements.length;
+        }
+
+        /**
+         * @param index position of the element, from 0 to size() - 1
+         * @return the element, or null if it has been garbage collected
+         */
+        public T get(int index) {
+            return elements[index].get();
+        }
+    }
+
+    static final class Element<T> extends WeakReference<T> {
+
+        Element(T referent, ReferenceQueue<T> queue) {
+            super(referent, queue);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hierarchical timing wheel.  Four levels of 64 slots each cover about 19
+ * days at the default 100ms tick; later deadlines are parked in the last slot
+ * of the top level and placed again when it comes around.  Scheduling and
+ * firing a timeout are O(1), and a timeout is moved down a level at most three
+ * times before it fires.
+ *
+ * Timeouts are intrusive: the links to their neighbours in a slot live in the
+ * Timeout itself, so scheduling allocates nothing.  Slots are doubly linked,
+ * so a timeout which is no longer wanted is cancelled in O(1) rather than
+ * held until its deadline.
+ *
+ * All caches share one wheel, driven by a single daemon thread.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+class TimingWheel {
+
+    private static final Logger log = Logger.getLogger(TimingWheel.class.getName());
+    static final long DEFAULT_TICK = 100;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static TimingWheel shared = null;
+    private final Timeout[][] wheels = new Timeout[LEVELS][WHEEL_SIZE];
+    private final long tickMillis;
+    private long currentTick;
+    private int pending = 0;
+
+    /**
+     * Something to be done when its deadline passes
+     */
+    abstract static class Timeout {
+
+        /**
+         * Wall clock time in milliseconds this timeout should fire at
+         */
+        volatile long deadline;
+        // Neighbours in the same slot, guarded by the wheel
+        Timeout wheelNext;
+        Timeout wheelPrev;
+        // Level and slot it is linked into, guarded by the wheel
+        int wheelLevel;
+        int wheelSlot;
+        // Next timeout fired by the same advance, used only by that thread
+        Timeout firedNext;
+        boolean scheduled;
+
+        /**
+         * Called on the wheel's thread once the deadline has passed.
+         *
+         * @param now current time in milliseconds
+         */
+        abstract void expired(long now);
+    }
+
+    TimingWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Get the wheel shared by all caches, starting its thread on first use.
+     *
+     * @return the shared wheel
+     */
+    static synchronized TimingWheel getShared() {
+        if (shared == null) {
+            final TimingWheel wheel = new TimingWheel(DEFAULT_TICK, System.currentTimeMillis());
+            ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "IcedJava-TimingWheel");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            driver.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        wheel.advance(System.currentTimeMillis());
+                    } catch (Throwable t) {
+                        // Never let an exception kill the wheel
+                        log.log(Level.WARNING, "Exception firing timeouts", t);
+                    }
+                }
+            }, DEFAULT_TICK, DEFAULT_TICK, TimeUnit.MILLISECONDS);
+            shared = wheel;
+        }
+        return shared;
+    }
+
+    /**
+     * Schedule a timeout to fire at its deadline.  Does nothing if it is
+     * already scheduled.
+     *
+     * @param timeout the timeout to schedule
+     */
+    synchronized void schedule(Timeout timeout) {
+        if (!timeout.scheduled) {
+            timeout.scheduled = true;
+            pending++;
+            // The current tick's slot has already been fired
+            place(timeout, currentTick + 1);
+        }
+    }
+
+    /**
+     * Take a timeout off the wheel before it fires.  Does nothing if it is not
+     * scheduled, or is already firing.
+     *
+     * @param timeout the timeout to cancel
+     */
+    synchronized void cancel(Timeout timeout) {
+        if (timeout.scheduled) {
+            timeout.scheduled = false;
+            pending--;
+            if (timeout.wheelPrev == null) {
+                wheels[timeout.wheelLevel][timeout.wheelSlot] = timeout.wheelNext;
+            } else {
+                timeout.wheelPrev.wheelNext = timeout.wheelNext;
+            }
+            if (timeout.wheelNext != null) {
+                timeout.wheelNext.wheelPrev = timeout.wheelPrev;
+            }
+            timeout.wheelNext = null;
+            timeout.wheelPrev = null;
+        }
+    }
+
+    /**
+     * Put a timeout in the slot covering its deadline
+     *
+     * @param timeout the timeout to place
+     * @param earliestTick the first tick whose slot has not been fired yet
+     */
+    private void place(Timeout timeout, long earliestTick) {
+        // Round up, a timeout must never fire before its deadline
+        long tick = Math.max((timeout.deadline + tickMillis - 1) / tickMillis, earliestTick);
+        long delta = tick - currentTick;
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        long span = 1L << (WHEEL_BITS * (level + 1));
+        if (delta >= span) {
+            // Beyond the top level, park it as far out as the wheel reaches
+            tick = currentTick + span - 1;
+        }
+
+        int slot = (int) ((tick >> (WHEEL_BITS * level)) & WHEEL_MASK);
+        Timeout head = wheels[level][slot];
+        timeout.wheelLevel = level;
+        timeout.wheelSlot = slot;
+        timeout.wheelPrev = null;
+        timeout.wheelNext = head;
+        if (head != null) {
+            head.wheelPrev = timeout;
+        }
+        wheels[level][slot] = timeout;
+    }
+
+    /**
+     * Move the wheel forward to the given time, firing every timeout whose
+     * deadline has passed.  Timeouts are fired outside the wheel's lock, so
+     * they may schedule themselves again.
+     *
+     * @param now current time in milliseconds
+     */
+    void advance(long now) {
+        Timeout due = null;
+        synchronized (this) {
+            long targetTick = now / tickMillis;
+            while (currentTick < targetTick) {
+                currentTick++;
+                // Bring down the timeouts of any higher level slot coming due
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                        int slot = (int) ((currentTick >> (WHEEL_BITS * level)) & WHEEL_MASK);
+                        Timeout cascade = wheels[level][slot];
+                        wheels[level][slot] = null;
+                        while (cascade != null) {
+                            Timeout next = cascade.wheelNext;
+                            place(cascade, currentTick);
+                            cascade = next;
+                        }
+                    }
+                }
+
+                int slot = (int) (currentTick & WHEEL_MASK);
+                Timeout expired = wheels[0][slot];
+                wheels[0][slot] = null;
+                while (expired != null) {
+                    Timeout next = expired.wheelNext;
+                    expired.scheduled = false;
+                    pending--;
+                    expired.wheelNext = null;
+                    expired.wheelPrev = null;
+                    expired.firedNext = due;
+                    due = expired;
+                    expired = next;
+                }
+            }
+        }
+
+        while (due != null) {
+            Timeout next = due.firedNext;
+            due.firedNext = null;
+            try {
+                due.expired(now);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Exception in an expired timeout", ex);
+            }
+            due = next;
+        }
+    }
+
+    /**
+     * @return number of timeouts waiting to fire
+     */
+    synchronized int getPending() {
+        return pending;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+}
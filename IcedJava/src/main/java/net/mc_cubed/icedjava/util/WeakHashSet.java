@@ -45,7 +45,10 @@ import java.util.Iterator;
 /**
  * A weak HashSet. An element stored in the WeakHashSet might be
  * garbage collected, if there is no strong reference to this element.
+ *
+ * @deprecated Not thread safe, use {@link CopyOnWriteWeakSet} instead
  */
+@Deprecated
 
 public class WeakHashSet<T extends Object> extends HashSet {
     /**
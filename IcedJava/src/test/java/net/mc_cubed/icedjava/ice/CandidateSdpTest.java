@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sdp.SdpParseException;
+import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
+import net.mc_cubed.icedjava.stun.TCPSocketType;
+import net.mc_cubed.icedjava.stun.TransportType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class CandidateSdpTest {
+
+    @Test
+    public void testAttributeValue() throws Exception {
+        System.out.println("attributeValue");
+        RemoteCandidate host = new RemoteCandidate(CandidateType.LOCAL,
+                InetAddress.getByName("192.168.1.10"), 40000, (short) 1, TransportType.UDP, "1");
+        host.setPriority(2130706431L);
+        Assert.assertEquals("1 1 UDP 2130706431 192.168.1.10 40000 typ host",
+                host.toAttributeFormat());
+
+        RemoteCandidate reflexive = new RemoteCandidate(CandidateType.SERVER_REFLEXIVE,
+                InetAddress.getByName("203.0.113.5"), 50000, (short) 2, TransportType.UDP, "2");
+        reflexive.setPriority(1694498814L);
+        reflexive.setBaseAddress(InetAddress.getByName("192.168.1.10"));
+        reflexive.setBasePort(40001);
+        Assert.assertEquals("2 2 UDP 1694498814 203.0.113.5 50000 typ srflx raddr 192.168.1.10 rport 40001",
+                reflexive.toAttributeFormat());
+
+        RemoteCandidate tcp = new RemoteCandidate(CandidateType.LOCAL,
+                InetAddress.getByName("2001:db8::1"), 9, (short) 1, TransportType.TCP, "3");
+        tcp.setPriority(1015022079L);
+        tcp.socketType = TCPSocketType.ACTIVE;
+        Assert.assertEquals("3 1 TCP 1015022079 " + InetAddress.getByName("2001:db8::1").getHostAddress()
+                + " 9 typ host tcptype active", tcp.toAttributeFormat());
+
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(host);
+        candidates.add(reflexive);
+        Assert.assertEquals("a=candidate:" + host.toAttributeFormat() + "\r\n"
+                + "a=candidate:" + reflexive.toAttributeFormat() + "\r\n",
+                CandidateSdp.appendCandidateLines(new StringBuilder(), candidates).toString());
+    }
+
+    @Test
+    public void testLineCache() throws Exception {
+        System.out.println("lineCache");
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (int i = 0; i < 4; i++) {
+            RemoteCandidate candidate = new RemoteCandidate(CandidateType.LOCAL,
+                    InetAddress.getByName("10.0.0." + (i + 1)), 40000 + i, (short) 1, TransportType.UDP, Integer.toString(i));
+            candidate.setPriority(2130706431L - i);
+            candidates.add(candidate);
+        }
+
+        CandidateLineCache cache = new CandidateLineCache();
+        String[] values = cache.getValues(candidates);
+        String lines = cache.getLines(candidates);
+        Assert.assertEquals(4, values.length);
+        Assert.assertEquals(CandidateSdp.appendCandidateLines(new StringBuilder(), candidates).toString(), lines);
+
+        // Nothing changed, nothing rendered
+        Assert.assertSame(values, cache.getValues(candidates));
+        Assert.assertSame(lines, cache.getLines(candidates));
+
+        // A new priority is rendered
+        candidates.get(2).setPriority(100);
+        String[] reprioritized = cache.getValues(candidates);
+        Assert.assertNotSame(values, reprioritized);
+        Assert.assertEquals(candidates.get(2).toAttributeFormat(), reprioritized[2]);
+
+        // So is a new candidate
+        RemoteCandidate added = new RemoteCandidate(CandidateType.LOCAL,
+                InetAddress.getByName("10.0.0.9"), 40009, (short) 1, TransportType.UDP, "9");
+        candidates.add(added);
+        Assert.assertEquals(5, cache.getValues(candidates).length);
+        Assert.assertTrue(cache.getLines(candidates).endsWith("a=candidate:" + added.toAttributeFormat() + "\r\n"));
+    }
+
+    @Test
+    public void testParseCandidate() throws Exception {
+        System.out.println("parseCandidate");
+        RemoteCandidate host = CandidateSdp.parseCandidate("1 1 UDP 2130706431 192.168.1.10 40000 typ host");
+        Assert.assertEquals("1", host.getFoundation());
+        Assert.assertEquals(1, host.getComponentId());
+        Assert.assertEquals(TransportType.UDP, host.getTransport());
+        // Above the range of a signed int
+        Assert.assertEquals(2130706431L, host.getPriority());
+        Assert.assertEquals(InetAddress.getByName("192.168.1.10"), host.getAddress());
+        Assert.assertEquals(40000, host.getPort());
+        Assert.assertEquals(CandidateType.LOCAL, host.getType());
+
+        RemoteCandidate relay = CandidateSdp.parseCandidate(
+                "842163049 2 udp 4294967295 203.0.113.5 50000 typ relay raddr 10.0.0.1 rport 40001 generation 0");
+        Assert.assertEquals(4294967295L, relay.getPriority());
+        Assert.assertEquals(CandidateType.RELAYED, relay.getType());
+        Assert.assertEquals(InetAddress.getByName("10.0.0.1"), relay.getBaseAddress());
+        Assert.assertEquals(40001, relay.getBasePort());
+
+        RemoteCandidate tcp = CandidateSdp.parseCandidate(
+                "3 1 TCP 1015022079 2001:db8::1 9 typ host tcptype active");
+        Assert.assertEquals(InetAddress.getByName("2001:db8::1"), tcp.getAddress());
+        Assert.assertEquals(TCPSocketType.ACTIVE, tcp.getSocketType());
+
+        // Not an IPv4 literal, so left to InetAddress
+        Assert.assertEquals(InetAddress.getByName("127.0.0.1"),
+                CandidateSdp.parseCandidate("1 1 UDP 1 localhost 1 typ host").getAddress());
+
+        // What we write, we read back the same
+        Assert.assertEquals(relay.toAttributeFormat(),
+                CandidateSdp.parseCandidate(relay.toAttributeFormat()).toAttributeFormat());
+        Assert.assertEquals(tcp.toAttributeFormat(),
+                CandidateSdp.parseCandidate(tcp.toAttributeFormat()).toAttributeFormat());
+    }
+
+    @Test
+    public void testParseMalformed() throws Exception {
+        System.out.println("parseMalformed");
+        String[] malformed = new String[]{
+            "",
+            "1 1 UDP 2130706431 192.168.1.10 40000",
+            "1 1 SCTP 2130706431 192.168.1.10 40000 typ host",
+            "1 1 UDP 21307064310000 192.168.1.10 40000 typ host",
+            "1 1 UDP 2130706431 192.168.1.10 70000 typ host",
+            "1 1 UDP 2130706431 192.168.1.10 40000 type host",
+            "1 1 UDP 2130706431 192.168.1.10 40000 typ bogus",
+            "1 1 UDP 2130706431 192.168.1.10 40000 typ srflx raddr 10.0.0.1",
+            "1 1 UDP 2130706431 192.168.1.10 40000 typ host generation"
+        };
+        for (String value : malformed) {
+            try {
+                CandidateSdp.parseCandidate(value);
+                Assert.fail("Parsed " + value);
+            } catch (SdpParseException ex) {
+                // Expected
+            }
+        }
+    }
+}
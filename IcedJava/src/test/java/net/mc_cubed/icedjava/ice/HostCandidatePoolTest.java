@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class HostCandidatePoolTest {
+
+    @After
+    public void tearDown() {
+        HostCandidatePool.setHostAddresses(null);
+        HostCandidatePool.setMappingTtl(15000);
+        HostCandidatePool.clear();
+    }
+
+    @Test
+    public void testMappingExpiry() throws Exception {
+        System.out.println("mappingExpiry");
+        InetSocketAddress base = new InetSocketAddress(InetAddress.getByName("192.168.1.10"), 40000);
+        InetSocketAddress mapped = new InetSocketAddress(InetAddress.getByName("203.0.113.5"), 50000);
+
+        HostCandidatePool.setMappingTtl(100);
+        HostCandidatePool.putMapping(base, mapped);
+        Assert.assertEquals(mapped, HostCandidatePool.getMapping(base));
+
+        Thread.sleep(200);
+        Assert.assertNull(HostCandidatePool.getMapping(base));
+    }
+
+    @Test
+    public void testAcquire() throws IOException {
+        System.out.println("acquire");
+        List<InetAddress> addresses = HostCandidatePool.getHostAddresses();
+        // The interface list is cached between calls
+        Assert.assertSame(addresses, HostCandidatePool.getHostAddresses());
+
+        for (InetAddress address : addresses) {
+            DemultiplexerSocket first = HostCandidatePool.acquire(address);
+            DemultiplexerSocket second = HostCandidatePool.acquire(address);
+            Assert.assertEquals(address, first.getLocalAddress());
+            Assert.assertTrue(first.getLocalPort() != second.getLocalPort());
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testFixedHostAddresses() throws Exception {
+        System.out.println("fixedHostAddresses");
+        List<InetAddress> aliases = Arrays.asList(
+                InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2"));
+
+        HostCandidatePool.setHostAddresses(aliases);
+        Assert.assertEquals(aliases, HostCandidatePool.getHostAddresses());
+
+        HostCandidatePool.setHostAddresses(null);
+        for (InetAddress address : HostCandidatePool.getHostAddresses()) {
+            Assert.assertFalse(address.isLoopbackAddress());
+        }
+    }
+}
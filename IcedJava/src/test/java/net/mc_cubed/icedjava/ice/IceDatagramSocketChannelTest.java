@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import net.mc_cubed.icedjava.stun.StunSocketChannel;
+import net.mc_cubed.icedjava.stun.TransportType;
+import net.mc_cubed.icedjava.stun.event.DemultiplexedBytesAvailableEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Exercises the pooled receive path of IceDatagramSocketChannel.  Its
+ * allocation rate is measured by IceDatagramSocketChannelBenchmark.
+ *
+ * @author Charles Chappell
+ */
+public class IceDatagramSocketChannelTest {
+
+    static final int RTP_PACKET_SIZE = 172;
+
+    @Test
+    public void testReceiveAndRelease() throws IOException {
+        System.out.println("receiveAndRelease");
+        FakeStunChannel source = new FakeStunChannel();
+        IceDatagramSocketChannel channel = new IceDatagramSocketChannel(null, null, (short) 1);
+
+        channel.stunEvent(source.event);
+        PooledBuffer buffer = channel.receive();
+        Assert.assertNotNull(buffer);
+        Assert.assertNull(channel.receive());
+        Assert.assertEquals(RTP_PACKET_SIZE, buffer.getBuffer().remaining());
+        Assert.assertEquals(source.address, buffer.getAddress());
+
+        // A second holder keeps the buffer out of the pool
+        buffer.retain();
+        buffer.release();
+        Assert.assertEquals(0, channel.pool.getIdleCount());
+        buffer.release();
+        Assert.assertEquals(1, channel.pool.getIdleCount());
+        try {
+            buffer.release();
+            Assert.fail("Released a buffer twice");
+        } catch (IllegalStateException ex) {
+        }
+
+        // The next datagram reuses the same buffer
+        channel.stunEvent(source.event);
+        Assert.assertSame(buffer, channel.receive());
+    }
+
+    @Test
+    public void testReleaseOnWrite() {
+        System.out.println("releaseOnWrite");
+        BufferPool pool = new BufferPool(4, RTP_PACKET_SIZE);
+
+        // A write which threw after its handler failed releases only once
+        PooledBuffer buffer = pool.acquire();
+        buffer.releaseOnWrite().failed(new IOException());
+        buffer.releaseWrite();
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        // A write which threw without telling its handler is released too
+        buffer = pool.acquire();
+        buffer.releaseOnWrite();
+        buffer.releaseWrite();
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertEquals(0, buffer.getReferenceCount());
+    }
+
+    @Test
+    public void testOverrun() throws IOException {
+        System.out.println("overrun");
+        FakeStunChannel source = new FakeStunChannel();
+        IceDatagramSocketChannel channel = new IceDatagramSocketChannel(null, null, (short) 1);
+
+        for (int i = 0; i < 100; i++) {
+            channel.stunEvent(source.event);
+        }
+        // Discarded buffers are reused for the next datagram
+        Assert.assertEquals(64, channel.ring.size());
+        Assert.assertTrue(channel.pool.getIdleCount() <= 1);
+
+        ByteBuffer dst = ByteBuffer.allocate(1500);
+        int packets = 0;
+        while (true) {
+            dst.clear();
+            if (channel.read(dst) == 0) {
+                break;
+            }
+            packets++;
+        }
+        Assert.assertEquals(64, packets);
+        // Every buffer read went back to the pool
+        Assert.assertEquals(64, channel.pool.getIdleCount());
+    }
+
+    /**
+     * Stands in for a demultiplexer socket, producing the same RTP sized
+     * datagram on every receive.
+     */
+    static class FakeStunChannel implements StunSocketChannel {
+
+        final byte[] payload = new byte[RTP_PACKET_SIZE];
+        final InetSocketAddress address;
+        final DemultiplexedBytesAvailableEvent event = new DemultiplexedBytesAvailableEvent() {
+
+            @Override
+            public StunSocketChannel getChannel() {
+                return FakeStunChannel.this;
+            }
+        };
+
+        FakeStunChannel() throws IOException {
+            address = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 5004);
+            payload[0] = (byte) 0x80;
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer dst) {
+            dst.put(payload);
+            dst.flip();
+            return address;
+        }
+
+        @Override
+        public int send(ByteBuffer src, SocketAddress target) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public TransportType getTransportType() {
+            return TransportType.UDP;
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return 0;
+        }
+
+        @Override
+        public InetSocketAddress getLocalSocketAddress() {
+            return null;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
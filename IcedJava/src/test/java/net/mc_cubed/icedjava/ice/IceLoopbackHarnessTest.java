@@ -0,0 +1,175 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sdp.SdpException;
+import javax.sdp.SdpFactory;
+import net.mc_cubed.icedjava.stun.LoopbackStunServer;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Connects peer pairs over loopback with a STUN server running in-process,
+ * so ICE performance can be checked without any network access.  Reports
+ * the time-to-connect percentiles, the connectivity checks each pair needed
+ * and the check rate, and fails if the 95th percentile goes over a limit.
+ * <p>
+ * Tunable with system properties: icedjava.loopback.pairs for the number of
+ * pairs, icedjava.loopback.addresses for a comma separated list of host
+ * addresses, such as 127.0.0.1,127.0.0.2 to use loopback aliases, and
+ * icedjava.loopback.maxP95 for the limit in milliseconds.
+ *
+ * @author Charles Chappell
+ */
+public class IceLoopbackHarnessTest {
+
+    static final String PROP_PAIRS = "icedjava.loopback.pairs";
+    static final String PROP_ADDRESSES = "icedjava.loopback.addresses";
+    static final String PROP_MAX_P95 = "icedjava.loopback.maxP95";
+    static final int DEFAULT_PAIRS = 20;
+    static final String DEFAULT_ADDRESSES = "127.0.0.1";
+    static final long DEFAULT_MAX_P95 = 5000;
+
+    @Test
+    public void testLoopbackConnect() throws SdpException, IOException, InterruptedException {
+        int pairCount = Integer.getInteger(PROP_PAIRS, DEFAULT_PAIRS);
+        long maxP95 = Long.getLong(PROP_MAX_P95, DEFAULT_MAX_P95);
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        for (String address : System.getProperty(PROP_ADDRESSES, DEFAULT_ADDRESSES).split(",")) {
+            addresses.add(InetAddress.getByName(address.trim()));
+        }
+        System.out.println("loopbackConnect: " + pairCount + " pairs on " + addresses);
+
+        // UPNP and NAT-PMP would go looking for the real gateway
+        IceFactory.setStunOnlyDiscovery(true);
+        LoopbackStunServer stunServer = new LoopbackStunServer(addresses.get(0));
+        StunUtil.setCachedStunServerSocket(stunServer.getAddress());
+        HostCandidatePool.setHostAddresses(addresses);
+
+        SdpFactory factory = SdpFactory.getInstance();
+        List<IcePeerImpl> peers = new ArrayList<IcePeerImpl>();
+        List<IceSocket> sockets = new ArrayList<IceSocket>();
+        try {
+            for (int i = 0; i < pairCount; i++) {
+                IceSocket localSocket = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+                IceSocket remoteSocket = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+                sockets.add(localSocket);
+                sockets.add(remoteSocket);
+
+                IcePeerImpl localPeer = (IcePeerImpl) IceFactory.createIcePeer("localPeer" + i, localSocket);
+                IcePeerImpl remotePeer = (IcePeerImpl) IceFactory.createIcePeer("remotePeer" + i, remoteSocket);
+                localPeer.setSdpListener(remotePeer);
+                remotePeer.setSdpListener(localPeer);
+                peers.add(localPeer);
+                peers.add(remotePeer);
+            }
+
+            long startTime = new Date().getTime();
+            for (IcePeerImpl peer : peers) {
+                peer.start();
+            }
+
+            // Wait for every session to leave IN_PROGRESS, or 120 seconds to pass
+            int inProgress = peers.size();
+            while (inProgress > 0 && new Date().getTime() - startTime < 120000) {
+                Thread.sleep(50);
+                inProgress = 0;
+                for (IcePeerImpl peer : peers) {
+                    if (peer.getStatus() == IceStatus.IN_PROGRESS) {
+                        inProgress++;
+                    }
+                }
+            }
+            long elapsed = new Date().getTime() - startTime;
+
+            int succeeded = 0;
+            long checks = 0;
+            long packets = 0;
+            long[] connectTimes = new long[peers.size()];
+            int connected = 0;
+            for (IcePeerImpl peer : peers) {
+                IcePeerMetricsMBean metrics = peer.getMetrics();
+                if (peer.getStatus() == IceStatus.SUCCESS) {
+                    succeeded++;
+                }
+                if (metrics.getTimeToCompletion() >= 0) {
+                    connectTimes[connected++] = metrics.getTimeToCompletion();
+                }
+                checks += metrics.getChecksSent();
+                // Requests, retransmissions and the responses to them
+                packets += metrics.getChecksSent() + metrics.getRetransmits() + metrics.getChecksSucceeded();
+            }
+            connectTimes = Arrays.copyOf(connectTimes, connected);
+            Arrays.sort(connectTimes);
+
+            System.out.println("Sessions succeeded: " + succeeded + "/" + peers.size() + " in " + elapsed + "ms");
+            System.out.println("Time to connect: p50=" + percentile(connectTimes, 50)
+                    + "ms p90=" + percentile(connectTimes, 90)
+                    + "ms p95=" + percentile(connectTimes, 95)
+                    + "ms p99=" + percentile(connectTimes, 99)
+                    + "ms max=" + percentile(connectTimes, 100) + "ms");
+            System.out.println("Checks: " + checks + " (" + ((double) checks / pairCount) + " per pair)");
+            System.out.println("Check packets: " + packets + " (" + (packets * 1000 / Math.max(elapsed, 1)) + " per second)");
+            System.out.println("STUN server requests: " + stunServer.getRequests());
+
+            Assert.assertEquals(peers.size(), succeeded);
+            Assert.assertTrue("95th percentile time to connect is over " + maxP95 + "ms",
+                    percentile(connectTimes, 95) <= maxP95);
+        } finally {
+            for (IcePeerImpl peer : peers) {
+                peer.close();
+            }
+            for (IceSocket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(IceLoopbackHarnessTest.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            IceFactory.setStunOnlyDiscovery(false);
+            HostCandidatePool.setHostAddresses(null);
+            HostCandidatePool.clear();
+            StunUtil.clearCachedStunServer();
+            stunServer.close();
+        }
+    }
+
+    /**
+     * Nearest rank percentile of sorted values
+     *
+     * @return the percentile, or -1 if there are no values
+     */
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import javax.sdp.SdpException;
+import javax.sdp.SdpFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Relays RTP between two loopback ICE sessions
+ *
+ * @author Charles Chappell
+ */
+public class IceMediaRelayTest {
+
+    @Test
+    public void testRelay() throws SdpException, IOException, InterruptedException {
+        System.out.println("relay");
+        SdpFactory factory = SdpFactory.getInstance();
+        IceSocket[] sockets = new IceSocket[4];
+        IcePeerImpl[] peers = new IcePeerImpl[4];
+        IceMediaRelay relay = null;
+        try {
+            for (int i = 0; i < 4; i++) {
+                sockets[i] = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+                peers[i] = (IcePeerImpl) IceFactory.createIcePeer("relayPeer" + i, sockets[i]);
+                peers[i].setLocalOnly(true);
+            }
+            // Session A is peers 0 and 1, session B is peers 2 and 3
+            peers[0].setSdpListener(peers[1]);
+            peers[1].setSdpListener(peers[0]);
+            peers[2].setSdpListener(peers[3]);
+            peers[3].setSdpListener(peers[2]);
+            for (IcePeerImpl peer : peers) {
+                peer.start();
+            }
+
+            long startTime = new Date().getTime();
+            boolean inProgress = true;
+            while (inProgress && new Date().getTime() - startTime < 60000) {
+                Thread.sleep(250);
+                inProgress = false;
+                for (IcePeerImpl peer : peers) {
+                    inProgress |= peer.getStatus() == IceStatus.IN_PROGRESS;
+                }
+            }
+            for (IcePeerImpl peer : peers) {
+                Assert.assertEquals(IceStatus.SUCCESS, peer.getStatus());
+            }
+
+            // Anchor the media of peer 1 to peer 2
+            relay = new IceMediaRelay(peers[1], sockets[1], peers[2], sockets[2]);
+            relay.getForward().setSsrc(0x0a0b0c0d);
+            relay.start();
+
+            IceSocketChannel callerChannel = peers[0].getChannels(sockets[0]).get(0);
+            IceSocketChannel calleeChannel = peers[3].getChannels(sockets[3]).get(0);
+
+            ByteBuffer rtp = ByteBuffer.allocate(172);
+            rtp.put((byte) 0x80).put((byte) 8).putShort((short) 1).putInt(160).putInt(0x11111111);
+            rtp.clear();
+            callerChannel.write(rtp);
+            Thread.sleep(250);
+
+            ByteBuffer received = ByteBuffer.allocate(1500);
+            calleeChannel.read(received);
+            Assert.assertEquals(172, received.remaining());
+            Assert.assertEquals(0x0a0b0c0d, received.getInt(8));
+            Assert.assertEquals(1, relay.getForward().getPacketsRelayed());
+            Assert.assertEquals(172, relay.getForward().getBytesRelayed());
+
+            // The other way is left untouched
+            rtp.clear();
+            rtp.putInt(8, 0x22222222);
+            calleeChannel.write(rtp);
+            Thread.sleep(250);
+
+            received.clear();
+            callerChannel.read(received);
+            Assert.assertEquals(0x22222222, received.getInt(8));
+            Assert.assertEquals(1, relay.getReverse().getPacketsRelayed());
+            Assert.assertEquals(0, relay.getForward().getPacketsDropped() + relay.getReverse().getPacketsDropped());
+            System.out.println(relay);
+        } finally {
+            if (relay != null) {
+                relay.close();
+            }
+            for (IcePeerImpl peer : peers) {
+                if (peer != null) {
+                    peer.setSdpListener(null);
+                    peer.close();
+                }
+            }
+        }
+    }
+}
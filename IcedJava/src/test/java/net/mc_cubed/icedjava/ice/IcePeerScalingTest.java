@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sdp.SdpException;
+import javax.sdp.SdpFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Stands up a number of loopback peer pairs on the shared scheduler and
+ * reports the thread and heap cost of each session.  The number of pairs can
+ * be raised with the icedjava.scaling.pairs system property.  This is a load
+ * test, and only runs in the load-tests profile.
+ *
+ * @author Charles Chappell
+ */
+public class IcePeerScalingTest {
+
+    static final String PROP_PAIRS = "icedjava.scaling.pairs";
+    static final int DEFAULT_PAIRS = 250;
+
+    @Test
+    public void testSharedScheduler() throws SdpException, IOException, InterruptedException {
+        int pairCount = Integer.getInteger(PROP_PAIRS, DEFAULT_PAIRS);
+        System.out.println("sharedScheduler: " + pairCount + " pairs");
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        // Make sure the shared scheduler is part of the baseline
+        IceFactory.getSharedThreadpool();
+        System.gc();
+        int threadsBefore = threadBean.getThreadCount();
+        long memoryBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+
+        SdpFactory factory = SdpFactory.getInstance();
+        List<IcePeerImpl> peers = new ArrayList<IcePeerImpl>();
+        List<IceSocket> sockets = new ArrayList<IceSocket>();
+        try {
+            for (int i = 0; i < pairCount; i++) {
+                IceSocket localSocket = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+                IceSocket remoteSocket = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+                sockets.add(localSocket);
+                sockets.add(remoteSocket);
+
+                IcePeerImpl localPeer = (IcePeerImpl) IceFactory.createIcePeer("localPeer" + i, localSocket);
+                IcePeerImpl remotePeer = (IcePeerImpl) IceFactory.createIcePeer("remotePeer" + i, remoteSocket);
+                localPeer.setLocalOnly(true);
+                remotePeer.setLocalOnly(true);
+                localPeer.setSdpListener(remotePeer);
+                remotePeer.setSdpListener(localPeer);
+                peers.add(localPeer);
+                peers.add(remotePeer);
+            }
+
+            long startTime = new Date().getTime();
+            for (IcePeerImpl peer : peers) {
+                peer.start();
+            }
+
+            // Wait for every session to leave IN_PROGRESS, or 120 seconds to pass
+            int inProgress = peers.size();
+            while (inProgress > 0 && new Date().getTime() - startTime < 120000) {
+                Thread.sleep(500);
+                inProgress = 0;
+                for (IcePeerImpl peer : peers) {
+                    if (peer.getStatus() == IceStatus.IN_PROGRESS) {
+                        inProgress++;
+                    }
+                }
+            }
+            long elapsed = new Date().getTime() - startTime;
+
+            // Let outstanding STUN transactions drain before counting threads
+            Thread.sleep(1000);
+            System.gc();
+            int threadsAfter = threadBean.getThreadCount();
+            long memoryAfter = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+
+            int succeeded = 0;
+            for (IcePeerImpl peer : peers) {
+                if (peer.getStatus() == IceStatus.SUCCESS) {
+                    succeeded++;
+                }
+            }
+
+            System.out.println("Sessions succeeded: " + succeeded + "/" + peers.size() + " in " + elapsed + "ms");
+            System.out.println("Threads: " + threadsBefore + " -> " + threadsAfter
+                    + " (" + ((double) (threadsAfter - threadsBefore) / pairCount) + " per pair)");
+            System.out.println("Heap: " + ((memoryAfter - memoryBefore) / pairCount) + " bytes per pair");
+
+            Assert.assertEquals(peers.size(), succeeded);
+            // A scheduler per peer would cost at least two threads per pair
+            Assert.assertTrue("Thread count grows with the number of sessions",
+                    threadsAfter - threadsBefore < pairCount);
+        } finally {
+            for (IcePeerImpl peer : peers) {
+                peer.close();
+            }
+            for (IceSocket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(IcePeerScalingTest.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+}
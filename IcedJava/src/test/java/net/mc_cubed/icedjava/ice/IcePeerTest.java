@@ -36,6 +36,7 @@ import javax.sdp.SdpFactory;
 import javax.sdp.SdpParseException;
 import javax.sdp.SessionDescription;
 import javax.swing.SwingUtilities;
+import net.mc_cubed.icedjava.ice.event.IceCandidateEvent;
 import net.mc_cubed.icedjava.ice.event.IceEvent;
 import net.mc_cubed.icedjava.ice.event.IceEventListener;
 import org.junit.Assert;
@@ -201,6 +202,30 @@ public class IcePeerTest {
             Assert.assertEquals(2, localPeer.getNominated().size());
             Assert.assertEquals(2, remotePeer.getNominated().size());
 
+            // Check timings were recorded along the way
+            IcePeerMetricsMBean metrics = localPeer.getMetrics();
+            System.out.println(metrics);
+            Assert.assertTrue(metrics.getChecksSucceeded() > 0);
+            Assert.assertTrue(metrics.getChecksSent() >= metrics.getChecksSucceeded() + metrics.getChecksFailed());
+            Assert.assertTrue(metrics.getTimeToFirstSuccess() >= 0);
+            Assert.assertTrue(metrics.getTimeToCompletion() >= metrics.getTimeToFirstSuccess());
+            Assert.assertTrue(metrics.getMinRoundTripMicros() >= 0);
+            Assert.assertTrue(metrics.getMaxRoundTripMicros() >= metrics.getMinRoundTripMicros());
+
+            // Packets from the nominated remote addresses route to the peer
+            for (IceSocket socket : localSockets) {
+                for (CandidatePair pair : localPeer.getNominated().get(socket)) {
+                    Assert.assertSame(localPeer, ((IceDatagramSocket) socket).translateSocketAddressToPeer(
+                            pair.getRemoteCandidate().getSocketAddress(), pair.getComponentId()));
+                    Assert.assertSame(localPeer.getChannels(socket).get(pair.getComponentId()),
+                            ((IceDatagramSocket) socket).translateSocketAddressToChannel(
+                            pair.getRemoteCandidate().getSocketAddress(), pair.getComponentId()));
+                    // but not when they arrive on another component
+                    Assert.assertNull(((IceDatagramSocket) socket).translateSocketAddressToChannel(
+                            pair.getRemoteCandidate().getSocketAddress(), (short) (pair.getComponentId() + 1)));
+                }
+            }
+
             List<IceSocketChannel> outputChannels = new LinkedList<IceSocketChannel>();
             List<IceSocketChannel> inputChannels = new LinkedList<IceSocketChannel>();
 
@@ -230,6 +255,19 @@ public class IcePeerTest {
                 inputChannels.get(i).read(inputBytes);
                 Assert.assertEquals(0, inputBytes.compareTo(expected));
             }
+
+            // A batched write arrives as one datagram per buffer, in order
+            ByteBuffer[] batch = new ByteBuffer[3];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = ByteBuffer.wrap("Batch".concat("" + i).getBytes());
+            }
+            Assert.assertEquals(18, outputChannels.get(0).write(batch));
+            Thread.sleep(250);
+            for (int i = 0; i < batch.length; i++) {
+                ByteBuffer inputBytes = ByteBuffer.allocate(30);
+                inputChannels.get(0).read(inputBytes);
+                Assert.assertEquals(0, inputBytes.compareTo(ByteBuffer.wrap("Batch".concat("" + i).getBytes())));
+            }
         } finally {
             if (localPeer != null) {
                 localPeer.setSdpListener(null);
@@ -716,4 +754,93 @@ public class IcePeerTest {
             }
         }
     }
+
+    @Test
+    public void testAddRemoteCandidate() throws SdpException, IOException {
+        System.out.println("addRemoteCandidate");
+        SdpFactory factory = SdpFactory.getInstance();
+        IceSocket socket = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+        IcePeerImpl instance = (IcePeerImpl) IceFactory.createIcePeer("localPeer", socket);
+        instance.setLocalOnly(true);
+        instance.setTrickle(true);
+
+        final List<IceCandidateEvent> events = new LinkedList<IceCandidateEvent>();
+        instance.addEventListener(new IceEventListener() {
+
+            @Override
+            public void iceEvent(IceEvent event) {
+                if (event instanceof IceCandidateEvent) {
+                    events.add((IceCandidateEvent) event);
+                }
+            }
+        });
+
+        // Every gathered candidate is announced
+        List<LocalCandidate> candidates = instance.getLocalCandidates(socket);
+        Assert.assertEquals(candidates.size(), events.size());
+        Assert.assertEquals(0, events.get(0).getMediaIndex());
+        Assert.assertEquals("candidate", events.get(0).getCandidateAttribute().getName());
+
+        // A trickled candidate goes straight into the check list
+        LocalCandidate local = candidates.get(0);
+        instance.addRemoteCandidate(0, factory.createAttribute("candidate",
+                "1 0 UDP 2130706431 " + local.getAddress().getHostAddress() + " 9 typ host"));
+        instance.checkRemoteCandidates();
+
+        boolean found = false;
+        for (CandidatePair pair : instance.checkPairs.get(socket)) {
+            if (pair.getRemoteCandidate().getPort() == 9) {
+                found = true;
+                Assert.assertEquals(PairState.WAITING, pair.getState());
+            }
+        }
+        Assert.assertTrue(found);
+
+        instance.close();
+        socket.close();
+    }
+
+    @Test
+    public void testHybridICESocket() throws SdpException, IOException, InterruptedException {
+        System.out.println("hybridICESocket");
+        SdpFactory factory = SdpFactory.getInstance();
+        IceSocket localSocket = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+        IceSocket remoteSocket = IceFactory.createIceSocket(factory.createMediaDescription("audio", 0, 1, "RTP/AVP", new String[]{"8"}).getMedia());
+
+        IcePeerImpl localPeer = (IcePeerImpl) IceFactory.createHybridIcePeer("localPeer", localSocket);
+        IcePeerImpl remotePeer = (IcePeerImpl) IceFactory.createIcePeer("remotePeer", remoteSocket);
+        try {
+            localPeer.setLocalOnly(true);
+            remotePeer.setLocalOnly(true);
+            localPeer.setSdpListener(remotePeer);
+            remotePeer.setSdpListener(localPeer);
+
+            localPeer.start();
+            remotePeer.start();
+
+            // Media may flow as soon as one pair is valid, before nomination
+            boolean earlyMedia = false;
+            long startTime = new Date().getTime();
+            while (new Date().getTime() - startTime < 60000 && localPeer.getStatus() == IceStatus.IN_PROGRESS) {
+                if (localPeer.getSelectedPairs().get(localSocket) != null) {
+                    earlyMedia = true;
+                }
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("No pair was selected before nomination", earlyMedia);
+
+            Assert.assertEquals(IceStatus.SUCCESS, localPeer.getStatus());
+            // Once nominated, the nominated pairs are the ones in use, through
+            // a copy the nomination can't change underneath the channels
+            Assert.assertEquals(localPeer.getNominated().get(localSocket), localPeer.getSelectedPairs().get(localSocket));
+            Assert.assertNotSame(localPeer.getNominated().get(localSocket), localPeer.getSelectedPairs().get(localSocket));
+        } finally {
+            localPeer.setSdpListener(null);
+            remotePeer.setSdpListener(null);
+            localPeer.close();
+            remotePeer.close();
+            localSocket.close();
+            remoteSocket.close();
+        }
+    }
 }
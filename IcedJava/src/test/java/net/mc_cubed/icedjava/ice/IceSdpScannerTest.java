@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Vector;
+import javax.sdp.Attribute;
+import javax.sdp.MediaDescription;
+import javax.sdp.SdpFactory;
+import javax.sdp.SessionDescription;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the ICE attribute scanner, and compares it with reading the same
+ * offers through JAIN SDP.  The number of offers parsed by the benchmark can
+ * be raised with the icedjava.sdp.iterations system property.
+ *
+ * @author Charles Chappell
+ */
+public class IceSdpScannerTest {
+
+    static final String PROP_ITERATIONS = "icedjava.sdp.iterations";
+    static final int DEFAULT_ITERATIONS = 2000;
+
+    @Test
+    public void testScan() throws Exception {
+        System.out.println("scan");
+        String sdp = "v=0\r\n"
+                + "o=- 1 2 IN IP4 192.168.1.10\r\n"
+                + "s=-\r\n"
+                + "c=IN IP4 192.168.1.10\r\n"
+                + "t=0 0\r\n"
+                + "a=ice-ufrag:sess\r\n"
+                + "a=ice-pwd:sessionpassword12345678\r\n"
+                + "m=audio 40000 RTP/AVP 0\r\n"
+                + "a=candidate:1 1 UDP 2130706431 192.168.1.10 40000 typ host\r\n"
+                + "a=candidate:2 1 UDP 1694498815 203.0.113.5 50000 typ srflx raddr 192.168.1.10 rport 40000\r\n"
+                + "m=video 40002 RTP/AVP 31\n"
+                + "a=ice-ufrag:vid \n"
+                + "a=candidate:1 1 UDP 2130706431 192.168.1.10 40002 typ host\n";
+        IceSdpScanner scanner = IceSdpScanner.scan(sdp);
+
+        Assert.assertEquals("sess", scanner.getUFrag());
+        Assert.assertEquals("sessionpassword12345678", scanner.getPassword());
+        Assert.assertEquals(2, scanner.getMediaCount());
+        Assert.assertEquals("audio", scanner.getMediaType(0));
+        Assert.assertEquals("video", scanner.getMediaType(1));
+        Assert.assertEquals("sess", scanner.getUFrag(0));
+        Assert.assertEquals("vid", scanner.getUFrag(1));
+        Assert.assertEquals("sessionpassword12345678", scanner.getPassword(1));
+
+        List<RemoteCandidate> audio = scanner.getCandidates(0);
+        Assert.assertEquals(2, audio.size());
+        Assert.assertEquals(InetAddress.getByName("203.0.113.5"), audio.get(1).getAddress());
+        Assert.assertEquals(40000, audio.get(1).getBasePort());
+        Assert.assertEquals(1, scanner.getCandidates(1).size());
+        Assert.assertEquals(40002, scanner.getCandidates(1).get(0).getPort());
+
+        // Everything but the candidates is left for JAIN SDP
+        String rest = scanner.getSdpWithoutCandidates();
+        Assert.assertFalse(rest.contains("a=candidate"));
+        Assert.assertTrue(rest.startsWith("v=0\r\no=- 1 2 IN IP4 192.168.1.10\r\n"));
+        Assert.assertTrue(rest.contains("m=audio 40000 RTP/AVP 0\r\nm=video 40002 RTP/AVP 31\na=ice-ufrag:vid \n"));
+    }
+
+    /**
+     * Parse an offer of two media with 32 candidates each, through the
+     * scanner and through JAIN SDP
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        int iterations = Integer.getInteger(PROP_ITERATIONS, DEFAULT_ITERATIONS);
+        System.out.println("benchmark: " + iterations + " offers");
+        String sdp = createOffer(2, 32);
+        SdpFactory factory = SdpFactory.getInstance();
+
+        int scanned = 0, parsed = 0;
+        // Warm both paths up before timing them
+        for (int i = 0; i < iterations / 10; i++) {
+            scanned += scanCandidates(sdp);
+            parsed += parseCandidates(factory, sdp);
+        }
+        Assert.assertEquals(scanned, parsed);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            scanned += scanCandidates(sdp);
+        }
+        long scannerTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parsed += parseCandidates(factory, sdp);
+        }
+        long jainTime = System.nanoTime() - startTime;
+
+        Assert.assertEquals(scanned, parsed);
+        System.out.println("Scanner: " + (scannerTime / iterations) + "ns per offer, JAIN SDP: "
+                + (jainTime / iterations) + "ns per offer");
+    }
+
+    static int scanCandidates(String sdp) throws Exception {
+        IceSdpScanner scanner = IceSdpScanner.scan(sdp);
+        int count = 0;
+        for (int i = 0; i < scanner.getMediaCount(); i++) {
+            count += scanner.getCandidates(i).size();
+        }
+        return count;
+    }
+
+    static int parseCandidates(SdpFactory factory, String sdp) throws Exception {
+        SessionDescription session = factory.createSessionDescription(sdp);
+        int count = 0;
+        for (MediaDescription media : (Vector<MediaDescription>) session.getMediaDescriptions(false)) {
+            for (Attribute attribute : (Vector<Attribute>) media.getAttributes(true)) {
+                if (attribute.getName().equals(IceStateMachine.CANDIDATE_NAME)) {
+                    new RemoteCandidate(attribute);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    static String createOffer(int mediaCount, int candidatesPerMedia) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v=0\r\no=- 1 2 IN IP4 192.168.1.10\r\ns=-\r\nc=IN IP4 192.168.1.10\r\nt=0 0\r\n");
+        sb.append("a=ice-ufrag:8hhY\r\na=ice-pwd:asd88fgpdd777uzjYhagZg\r\n");
+        for (int m = 0; m < mediaCount; m++) {
+            sb.append("m=audio ").append(40000 + m * 100).append(" RTP/AVP 0 8\r\n");
+            for (int c = 0; c < candidatesPerMedia; c++) {
+                int port = 40000 + m * 100 + c;
+                switch (c % 3) {
+                    case 0:
+                        sb.append("a=candidate:").append(c).append(" 1 UDP 2130706431 192.168.")
+                                .append(c).append(".10 ").append(port).append(" typ host\r\n");
+                        break;
+                    case 1:
+                        sb.append("a=candidate:").append(c).append(" 1 UDP 1694498815 203.0.113.")
+                                .append(c).append(' ').append(port).append(" typ srflx raddr 192.168.")
+                                .append(c).append(".10 rport ").append(port).append("\r\n");
+                        break;
+                    default:
+                        sb.append("a=candidate:").append(c).append(" 1 TCP 1015022079 192.168.")
+                                .append(c).append(".10 9 typ host tcptype active\r\n");
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
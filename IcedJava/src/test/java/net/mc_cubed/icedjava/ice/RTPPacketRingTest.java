@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class RTPPacketRingTest {
+
+    @Test
+    public void testOfferAndPoll() throws IOException {
+        System.out.println("offerAndPoll");
+        RTPPacketRing ring = new RTPPacketRing(4);
+        byte[] out = new byte[16];
+
+        Assert.assertEquals(-1, ring.peekLength());
+        Assert.assertEquals(-1, ring.poll(out, 0, out.length));
+
+        ByteBuffer packet = ByteBuffer.wrap("Testing0".getBytes());
+        Assert.assertTrue(ring.offer(packet));
+        // The source buffer is left as it was
+        Assert.assertEquals(8, packet.remaining());
+        Assert.assertEquals(8, ring.peekLength());
+
+        try {
+            ring.poll(out, 0, 4);
+            Assert.fail("Packet should not fit");
+        } catch (IOException ex) {
+        }
+        // A failed read leaves the packet queued
+        Assert.assertEquals(8, ring.poll(out, 0, out.length));
+        Assert.assertEquals("Testing0", new String(out, 0, 8));
+        Assert.assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        System.out.println("full");
+        RTPPacketRing ring = new RTPPacketRing(4);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(ring.offer(ByteBuffer.wrap(new byte[]{(byte) i})));
+        }
+        Assert.assertFalse(ring.offer(ByteBuffer.wrap(new byte[]{4})));
+        Assert.assertEquals(1, ring.getDropped());
+
+        // The oldest packets survive an overrun
+        byte[] out = new byte[1];
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(1, ring.poll(out, 0, 1));
+            Assert.assertEquals(i, out[0]);
+        }
+    }
+
+    @Test
+    public void testProducerConsumer() throws Exception {
+        System.out.println("producerConsumer");
+        final RTPPacketRing ring = new RTPPacketRing(64);
+        final int packets = 1000000;
+
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(172);
+                for (int i = 0; i < packets; i++) {
+                    buffer.clear();
+                    buffer.putInt(0, i);
+                    while (!ring.offer(buffer)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        producer.start();
+        byte[] out = new byte[172];
+        ByteBuffer view = ByteBuffer.wrap(out);
+        int expected = 0;
+        while (expected < packets) {
+            int length = ring.poll(out, 0, out.length);
+            if (length < 0) {
+                Thread.yield();
+                continue;
+            }
+            Assert.assertEquals(172, length);
+            // Packets arrive complete and in order
+            Assert.assertEquals(expected, view.getInt(0));
+            expected++;
+        }
+        producer.join();
+        long elapsed = System.nanoTime() - start;
+        System.out.println((packets * 1000000000L / Math.max(elapsed, 1)) + " packets/s");
+    }
+}
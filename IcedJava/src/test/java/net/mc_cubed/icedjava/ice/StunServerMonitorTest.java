@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import net.mc_cubed.icedjava.stun.StunServerPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class StunServerMonitorTest {
+
+    @After
+    public void tearDown() {
+        StunServerMonitor.clear();
+        StunServerPool.clear();
+        StunServerPool.setServerList(null);
+    }
+
+    @Test
+    public void testNonBlocking() throws Exception {
+        System.out.println("nonBlocking");
+        // TEST-NET-1, which never answers
+        StunServerPool.setServerList(Collections.singletonList(
+                new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 3478)));
+        StunServerPool.clear();
+
+        long start = System.nanoTime();
+        InetSocketAddress server = StunServerMonitor.getStunServer();
+        List<InterfaceProfile> profiles = StunServerMonitor.getInterfaceProfiles();
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Lookup took " + (elapsed / 1000) + "us");
+
+        Assert.assertNull(server);
+        Assert.assertTrue(profiles.isEmpty());
+        Assert.assertTrue("Server lookup blocked", elapsed < 50000000L);
+        Assert.assertNull(StunServerMonitor.awaitStunServer(100));
+    }
+}
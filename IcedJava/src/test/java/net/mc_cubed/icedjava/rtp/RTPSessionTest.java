@@ -0,0 +1,297 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.mc_cubed.icedjava.ice.IceSocketChannel;
+import net.mc_cubed.icedjava.ice.PooledBuffer;
+import net.mc_cubed.icedjava.ice.event.IceEventListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class RTPSessionTest {
+
+    static final int RELAY_PACKETS = 1000;
+
+    static ByteBuffer createPacket(int ssrc, int seq, long timestamp, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(RTPPacket.FIXED_HEADER_LENGTH + payloadLength);
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 0);
+        buffer.putShort((short) seq);
+        buffer.putInt((int) timestamp);
+        buffer.putInt(ssrc);
+        buffer.position(0);
+        return buffer;
+    }
+
+    @Test
+    public void testPacketView() {
+        System.out.println("packetView");
+        ByteBuffer buffer = createPacket(0x12345678, 65535, 0xfffffff0L, 160);
+        RTPPacket packet = new RTPPacket().wrap(buffer);
+        Assert.assertTrue(packet.isValid());
+        Assert.assertEquals(2, packet.getVersion());
+        Assert.assertEquals(0x12345678, packet.getSsrc());
+        Assert.assertEquals(65535, packet.getSequenceNumber());
+        Assert.assertEquals(0xfffffff0L, packet.getTimestamp());
+        Assert.assertEquals(12, packet.getHeaderLength());
+        Assert.assertEquals(160, packet.getPayloadLength());
+
+        packet.setSsrc(42);
+        packet.setSequenceNumber(7);
+        packet.setMarker(true);
+        packet.setPayloadType(96);
+        Assert.assertEquals(42, packet.getSsrc());
+        Assert.assertEquals(7, packet.getSequenceNumber());
+        Assert.assertTrue(packet.isMarker());
+        Assert.assertEquals(96, packet.getPayloadType());
+        Assert.assertEquals(0, buffer.position());
+
+        // Extension header of one word, and two bytes of padding
+        ByteBuffer extended = createPacket(1, 1, 1, 4 + 4 + 10);
+        extended.put(0, (byte) 0xb0);
+        extended.putShort(14, (short) 1);
+        extended.put(extended.limit() - 1, (byte) 2);
+        packet.wrap(extended);
+        Assert.assertTrue(packet.isValid());
+        Assert.assertEquals(20, packet.getHeaderLength());
+        Assert.assertEquals(8, packet.getPayloadLength());
+
+        // Claims more CSRCs than it carries
+        ByteBuffer truncated = createPacket(1, 1, 1, 4);
+        truncated.put(0, (byte) 0x82);
+        Assert.assertFalse(packet.wrap(truncated).isValid());
+    }
+
+    @Test
+    public void testSourceSequence() {
+        System.out.println("sourceSequence");
+        RTPSource source = new RTPSource(1, 65530);
+        // The first packet is on probation
+        Assert.assertFalse(source.update(65530, 0, 0));
+        Assert.assertTrue(source.update(65531, 160, 0));
+        for (int seq = 65532; seq < 65536; seq++) {
+            Assert.assertTrue(source.update(seq, 0, 0));
+        }
+        // Wrap around, skipping 0 and 1
+        Assert.assertTrue(source.update(2, 0, 0));
+        Assert.assertEquals(65536 + 2, source.getExtendedHighestSequence());
+        Assert.assertEquals(6, source.getPacketsReceived());
+        Assert.assertEquals(2, source.getCumulativeLost());
+
+        // A big jump is only believed once it repeats
+        Assert.assertFalse(source.update(30000, 0, 0));
+        Assert.assertTrue(source.update(30001, 0, 0));
+        Assert.assertEquals(30001, source.getExtendedHighestSequence());
+    }
+
+    @Test
+    public void testListenerAndRelay() {
+        System.out.println("listenerAndRelay");
+        CountingChannel in = new CountingChannel();
+        CountingChannel out = new CountingChannel();
+        RTPSession session = new RTPSession(in);
+        final int[] delivered = new int[2];
+        session.setListener(new RTPPacketListener() {
+
+            @Override
+            public void rtpPacketReceived(RTPSession session, RTPSource source, RTPPacket packet) {
+                delivered[0]++;
+            }
+
+            @Override
+            public void rtcpPacketReceived(RTPSession session, ByteBuffer buffer) {
+                delivered[1]++;
+            }
+        });
+        Assert.assertSame(session, in.listener);
+
+        for (int seq = 0; seq < 10; seq++) {
+            session.process(createPacket(99, seq, seq * 160, 160), 0);
+        }
+        ByteBuffer rtcp = createPacket(99, 0, 0, 16);
+        rtcp.put(1, (byte) 200);
+        session.process(rtcp, 0);
+        // Not RTP at all
+        session.process(ByteBuffer.wrap(new byte[]{0x01, 0x01, 0, 0}), 0);
+
+        Assert.assertEquals(9, delivered[0]);
+        Assert.assertEquals(1, delivered[1]);
+        Assert.assertEquals(1, session.getSources().size());
+        Assert.assertEquals(9, session.getSource(99).getPacketsReceived());
+        Assert.assertEquals(2, session.getPacketsDiscarded());
+
+        session.setRelayChannel(out);
+        ByteBuffer relayed = createPacket(99, 10, 1600, 160);
+        session.process(relayed, 0);
+        session.process(rtcp, 0);
+        Assert.assertEquals(2, out.packets);
+        Assert.assertEquals(172 + 28, out.bytes);
+        Assert.assertEquals(0, relayed.position());
+        Assert.assertEquals(9, delivered[0]);
+
+        session.close();
+        Assert.assertNull(in.listener);
+    }
+
+    /**
+     * Relays interleaved packets from several sources, reusing the same
+     * buffers
+     */
+    @Test
+    public void testRelayInterleaved() {
+        System.out.println("relayInterleaved");
+        CountingChannel out = new CountingChannel();
+        RTPSession session = new RTPSession(new CountingChannel());
+        session.setRelayChannel(out);
+        ByteBuffer[] packets = new ByteBuffer[64];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = createPacket(i % 4, i, i * 160, 160);
+        }
+
+        for (int i = 0; i < RELAY_PACKETS; i++) {
+            ByteBuffer packet = packets[i & 63];
+            packet.putShort(2, (short) (i / 4));
+            session.process(packet, 0);
+            Assert.assertEquals(0, packet.position());
+        }
+
+        Assert.assertEquals(RELAY_PACKETS, out.packets);
+        Assert.assertEquals(RELAY_PACKETS * 172L, out.bytes);
+        Assert.assertEquals(4, session.getSources().size());
+        for (RTPSource source : session.getSources()) {
+            Assert.assertTrue(source.isValid());
+            Assert.assertEquals(0, source.getCumulativeLost());
+        }
+    }
+
+    @Test
+    public void testSourceTimeout() {
+        System.out.println("sourceTimeout");
+        RTPSession session = new RTPSession(new CountingChannel());
+        Assert.assertEquals(RTPSession.DEFAULT_SOURCE_TIMEOUT, session.getSourceTimeout());
+        session.setSourceTimeout(1000);
+
+        session.process(createPacket(1, 0, 0, 160), 0);
+        session.process(createPacket(2, 0, 0, 160), 0);
+        session.process(createPacket(3, 0, 0, 160), 0);
+        // Source 2 keeps talking, source 3 only sends RTCP
+        session.process(createPacket(2, 1, 160, 160), 800);
+        ByteBuffer rtcp = createPacket(0, 0, 0, 16);
+        rtcp.put(1, (byte) 200);
+        rtcp.putInt(4, 3);
+        session.process(rtcp, 800);
+        Assert.assertEquals(3, session.getSources().size());
+
+        session.process(createPacket(2, 2, 320, 160), 1200);
+        Assert.assertNull(session.getSource(1));
+        Assert.assertNotNull(session.getSource(2));
+        Assert.assertNotNull(session.getSource(3));
+
+        // A source heard again after timing out starts over
+        session.process(createPacket(1, 1, 160, 160), 1200);
+        Assert.assertFalse(session.getSource(1).isValid());
+
+        try {
+            session.setSourceTimeout(0);
+            Assert.fail("Accepted a zero timeout");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /**
+     * Stands in for a connected channel, counting what is written to it
+     */
+    static class CountingChannel implements IceSocketChannel {
+
+        IceEventListener listener;
+        long packets;
+        long bytes;
+
+        @Override
+        public void addEventListener(IceEventListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void removeEventListener(IceEventListener listener) {
+            if (this.listener == listener) {
+                this.listener = null;
+            }
+        }
+
+        @Override
+        public PooledBuffer receive() {
+            return null;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            src.position(src.limit());
+            packets++;
+            bytes += length;
+            return length;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
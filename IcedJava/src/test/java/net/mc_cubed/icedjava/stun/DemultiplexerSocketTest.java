@@ -19,10 +19,14 @@
  */
 package net.mc_cubed.icedjava.stun;
 
+import java.net.BindException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import org.junit.Assert;
-import org.junit.Ignore;
 import org.junit.Test;
 
 /**
@@ -53,24 +57,154 @@ public class DemultiplexerSocketTest {
     }
 
     @Test
-    @Ignore
     public void testTCPSocket() throws Exception, Throwable {
-        System.out.println("socket");
-        DemultiplexerSocket instance1 = StunUtil.getDemultiplexerSocket(new InetSocketAddress(1234), TransportType.TCP, true, null);
-        DemultiplexerSocket instance2 = StunUtil.getDemultiplexerSocket(new InetSocketAddress(5678), TransportType.TCP, false, null);
+        System.out.println("tcpSocket");
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DemultiplexerSocket active = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 0), TransportType.TCP, true, null);
+        DemultiplexerSocket passive = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 5678), TransportType.TCP, false, null);
 
-        StunReply i1reply = instance1.doTest(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 5678)).get();
-        StunReply i2reply = instance2.doTest(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 1234)).get();
+        try {
+            Assert.assertEquals(TCPSocketType.ACTIVE, active.getTcpSocketType());
+            Assert.assertEquals(StunUtil.ACTIVE_TCP_PORT, active.getLocalPort());
+            Assert.assertEquals(TCPSocketType.PASSIVE, passive.getTcpSocketType());
+            Assert.assertEquals(5678, passive.getLocalPort());
+            // Media frames are routed past the STUN filters
+            Assert.assertNotNull(active.getDemultiplexingFilter());
+            Assert.assertSame(active, active.getDemultiplexingFilter().getHandler(MultiplexedProtocol.RTP));
 
-        instance1.close();
-        instance2.close();
+            // The active socket connects, from an ephemeral port
+            StunReply activeReply = active.doTest(new InetSocketAddress(loopback, 5678)).get();
+            Assert.assertTrue("Got wrong reply: " + activeReply, activeReply.isSuccess());
+            Assert.assertEquals("Got wrong reply: " + activeReply, "127.0.0.1", activeReply.getMappedAddress().getAddress().getHostAddress());
+            InetSocketAddress activeAddress = activeReply.getMappedAddress();
 
-        Assert.assertTrue("Got wrong reply: " + i1reply, i1reply.isSuccess());
-        Assert.assertTrue("Got wrong reply: " + i2reply, i2reply.isSuccess());
-        Assert.assertEquals("Got wrong reply: " + i1reply, i1reply.getMappedAddress().getAddress().getHostAddress(), "127.0.0.1");
-        Assert.assertEquals("Got wrong reply: " + i2reply, i2reply.getMappedAddress().getAddress().getHostAddress(), "127.0.0.1");
-        Assert.assertEquals("Got wrong reply: " + i1reply, i1reply.getMappedAddress().getPort(), 1234);
-        Assert.assertEquals("Got wrong reply: " + i2reply, i2reply.getMappedAddress().getPort(), 5678);
+            // The passive socket can only answer over the accepted connection
+            StunReply passiveReply = passive.doTest(activeAddress).get();
+            Assert.assertTrue("Got wrong reply: " + passiveReply, passiveReply.isSuccess());
+            Assert.assertEquals("Got wrong reply: " + passiveReply, new InetSocketAddress(loopback, 5678), passiveReply.getMappedAddress());
+
+            StunReply unknownReply = passive.doTest(new InetSocketAddress(loopback, 1234)).get();
+            Assert.assertFalse(unknownReply.isSuccess());
+
+            // Data goes both ways over the one connection
+            active.send(ByteBuffer.wrap(new byte[]{(byte) 0x80, 1, 2, 3}), new InetSocketAddress(loopback, 5678));
+            ByteBuffer received = ByteBuffer.allocate(1500);
+            SocketAddress from = receive(passive, received);
+            Assert.assertEquals(activeAddress, from);
+            Assert.assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x80, 1, 2, 3}), received);
+
+            passive.send(ByteBuffer.wrap(new byte[]{(byte) 0x80, 4, 5}), from);
+            received.clear();
+            Assert.assertEquals(new InetSocketAddress(loopback, 5678), receive(active, received));
+            Assert.assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x80, 4, 5}), received);
+        } finally {
+            active.close();
+            passive.close();
+        }
+    }
+
+    @Test
+    public void testSimultaneousOpenPort() throws Exception {
+        System.out.println("simultaneousOpenPort");
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DemultiplexerSocket passive = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 0), TransportType.TCP, false, null);
+        DemultiplexerSocket so = StunUtil.getStreamSocket(new InetSocketAddress(loopback, 0), TCPSocketType.SO,
+                null, new DefaultStunServerHandler());
+        try {
+            int port = so.getLocalPort();
+            Assert.assertTrue(port > 0);
+
+            // The advertised port is held until the socket is closed
+            Socket other = new Socket();
+            try {
+                other.bind(new InetSocketAddress(loopback, port));
+                Assert.fail("Bound the port a simultaneous-open socket advertised");
+            } catch (BindException ex) {
+            } finally {
+                other.close();
+            }
+
+            // and is the one its connections come from
+            StunReply reply = so.doTest(passive.getLocalSocketAddress()).get();
+            Assert.assertTrue("Got wrong reply: " + reply, reply.isSuccess());
+            Assert.assertEquals(new InetSocketAddress(loopback, port), reply.getMappedAddress());
+        } finally {
+            so.close();
+            passive.close();
+        }
+    }
+
+    @Test
+    public void testTcpSocketTypes() {
+        System.out.println("tcpSocketTypes");
+        Assert.assertEquals(TCPSocketType.ACTIVE, TCPSocketType.fromNetworkString("active"));
+        Assert.assertEquals(TCPSocketType.PASSIVE, TCPSocketType.fromNetworkString("passive"));
+        Assert.assertEquals(TCPSocketType.SO, TCPSocketType.fromNetworkString("so"));
+        Assert.assertEquals(TCPSocketType.ACTIVE, TCPSocketType.fromNetworkString("act"));
+
+        Assert.assertTrue(TCPSocketType.canConnect(TCPSocketType.ACTIVE, TCPSocketType.PASSIVE));
+        Assert.assertTrue(TCPSocketType.canConnect(TCPSocketType.PASSIVE, TCPSocketType.ACTIVE));
+        Assert.assertTrue(TCPSocketType.canConnect(TCPSocketType.SO, TCPSocketType.SO));
+        Assert.assertTrue(TCPSocketType.canConnect(TCPSocketType.PASSIVE, null));
+        Assert.assertFalse(TCPSocketType.canConnect(TCPSocketType.ACTIVE, TCPSocketType.ACTIVE));
+        Assert.assertFalse(TCPSocketType.canConnect(TCPSocketType.PASSIVE, TCPSocketType.PASSIVE));
+        Assert.assertFalse(TCPSocketType.canConnect(TCPSocketType.SO, TCPSocketType.PASSIVE));
+    }
+
+    /**
+     * Compare the STUN round trip over UDP with that over one reused TCP
+     * connection, on loopback
+     */
+    @Test
+    public void testLatency() throws Exception {
+        System.out.println("latency");
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        int transactions = 200;
+
+        DemultiplexerSocket udpClient = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 0), TransportType.UDP, false, null);
+        DemultiplexerSocket udpServer = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 0), TransportType.UDP, false, null);
+        DemultiplexerSocket tcpClient = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 0), TransportType.TCP, true, null);
+        DemultiplexerSocket tcpServer = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 0), TransportType.TCP, false, null);
+        try {
+            // The first TCP transaction pays for the connect, report it apart
+            long start = System.nanoTime();
+            Assert.assertTrue(tcpClient.doTest(tcpServer.getLocalSocketAddress()).get().isSuccess());
+            long connectMicros = (System.nanoTime() - start) / 1000;
+
+            long udpMicros = averageRoundTrip(udpClient, udpServer.getLocalSocketAddress(), transactions);
+            long tcpMicros = averageRoundTrip(tcpClient, tcpServer.getLocalSocketAddress(), transactions);
+
+            System.out.println("UDP: " + udpMicros + "us, TCP: " + tcpMicros
+                    + "us average over " + transactions + " transactions, first TCP transaction "
+                    + connectMicros + "us");
+        } finally {
+            udpClient.close();
+            udpServer.close();
+            tcpClient.close();
+            tcpServer.close();
+        }
+    }
+
+    static long averageRoundTrip(DemultiplexerSocket client, InetSocketAddress server, int transactions) throws Exception {
+        long total = 0;
+        for (int i = 0; i < transactions; i++) {
+            long start = System.nanoTime();
+            StunReply reply = client.doTest(server).get(5, TimeUnit.SECONDS);
+            total += System.nanoTime() - start;
+            Assert.assertTrue("Got wrong reply: " + reply, reply.isSuccess());
+        }
+        return total / transactions / 1000;
+    }
 
+    static SocketAddress receive(DemultiplexerSocket socket, ByteBuffer dst) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            SocketAddress from = socket.receive(dst);
+            if (from != null) {
+                return from;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("Nothing received on " + socket);
+        return null;
     }
 }
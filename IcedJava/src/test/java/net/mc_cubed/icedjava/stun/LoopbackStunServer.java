@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.nio.transport.UDPNIOServerConnection;
+
+/**
+ * An in-process STUN server for tests which must not depend on the public
+ * STUN servers.  Answers Binding requests with the DefaultStunServerHandler
+ * and counts the requests it sees.
+ *
+ * @author Charles Chappell
+ */
+public class LoopbackStunServer {
+
+    private final UDPNIOServerConnection connection;
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Bind a STUN server on an ephemeral port of the given address
+     */
+    public LoopbackStunServer(InetAddress address) throws IOException {
+        FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
+        filterChainBuilder.add(new TransportFilter());
+        filterChainBuilder.add(new ByteBufferGrizzlyProtocolFilter());
+        filterChainBuilder.add(new StunPacketProtocolFilter());
+        filterChainBuilder.add(new DefaultStunServerHandler() {
+
+            @Override
+            protected NextAction processPacket(StunPacket packet, SocketAddress senderAddress, FilterChainContext ctx) throws IOException {
+                requests.incrementAndGet();
+                return super.processPacket(packet, senderAddress, ctx);
+            }
+        });
+        connection = StunUtil.bindDatagramConnection(new InetSocketAddress(address, 0));
+        connection.setProcessor(filterChainBuilder.build());
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) connection.getLocalAddress();
+    }
+
+    /**
+     * @return number of STUN messages answered so far
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public void close() throws IOException {
+        connection.close();
+        StunUtil.getDatagramTransport().unbind(connection);
+    }
+}
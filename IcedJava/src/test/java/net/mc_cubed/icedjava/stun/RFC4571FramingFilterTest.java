@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks RFC 4571 deframing against random frame sizes and random
+ * fragmentation, both directly and over loopback TCP connections.  The
+ * number of frames sent in the loopback test can be raised with the
+ * icedjava.framing.frames system property.
+ *
+ * @author Charles Chappell
+ */
+public class RFC4571FramingFilterTest {
+
+    static final String PROP_FRAMES = "icedjava.framing.frames";
+    static final int DEFAULT_FRAMES = 20000;
+
+    @Test
+    public void testFuzz() {
+        System.out.println("fuzz");
+        Random random = new Random(4571);
+        for (int round = 0; round < 50; round++) {
+            List<byte[]> frames = new ArrayList<byte[]>();
+            for (int i = 0; i < 20; i++) {
+                // Mostly media sized frames, with a few at the extremes
+                int length;
+                switch (random.nextInt(4)) {
+                    case 0:
+                        length = random.nextInt(RFC4571FramingFilter.MAX_FRAME_LENGTH) + 1;
+                        break;
+                    case 1:
+                        length = random.nextInt(4) + 1;
+                        break;
+                    default:
+                        length = random.nextInt(1500) + 1;
+                }
+                byte[] frame = new byte[length];
+                random.nextBytes(frame);
+                frames.add(frame);
+            }
+            byte[] stream = frame(frames);
+
+            RFC4571FramingFilter.Deframer deframer = new RFC4571FramingFilter.Deframer();
+            List<byte[]> received = new ArrayList<byte[]>();
+            int offset = 0;
+            while (offset < stream.length) {
+                // Anything from a single byte to several frames per read
+                int chunk = Math.min(stream.length - offset, random.nextInt(3) == 0
+                        ? random.nextInt(4) + 1 : random.nextInt(70000) + 1);
+                ByteBuffer in = ByteBuffer.wrap(stream, offset, chunk).slice();
+                offset += chunk;
+                ByteBuffer frame;
+                while ((frame = deframer.next(in)) != null) {
+                    byte[] data = new byte[frame.remaining()];
+                    frame.get(data);
+                    received.add(data);
+                }
+                Assert.assertFalse(in.hasRemaining());
+            }
+
+            Assert.assertFalse(deframer.isPending());
+            Assert.assertEquals(frames.size(), received.size());
+            for (int i = 0; i < frames.size(); i++) {
+                Assert.assertArrayEquals("Frame " + i + " of round " + round, frames.get(i), received.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testWholeFramesAreSlices() {
+        System.out.println("wholeFramesAreSlices");
+        List<byte[]> frames = new ArrayList<byte[]>();
+        frames.add(new byte[]{(byte) 0x80, 1, 2});
+        frames.add(new byte[0]);
+        // Longer than a signed short can describe
+        byte[] large = new byte[40000];
+        new Random(1).nextBytes(large);
+        frames.add(large);
+        ByteBuffer in = ByteBuffer.wrap(frame(frames));
+
+        RFC4571FramingFilter.Deframer deframer = new RFC4571FramingFilter.Deframer();
+        ByteBuffer first = deframer.next(in);
+        Assert.assertSame(in.array(), first.array());
+        Assert.assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x80, 1, 2}), first);
+
+        // The empty frame is skipped
+        ByteBuffer second = deframer.next(in);
+        Assert.assertSame(in.array(), second.array());
+        Assert.assertEquals(ByteBuffer.wrap(large), second);
+        Assert.assertNull(deframer.next(in));
+        Assert.assertFalse(deframer.isPending());
+    }
+
+    @Test
+    public void testWriteDirectBuffer() throws IOException {
+        System.out.println("writeDirectBuffer");
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[]{(byte) 0x80, 1, 2});
+        direct.flip();
+
+        ByteBuffer framed = ByteBuffer.allocate(5);
+        framed.putShort((short) 3);
+        framed.put(direct.duplicate());
+        framed.flip();
+
+        RFC4571FramingFilter.Deframer deframer = new RFC4571FramingFilter.Deframer();
+        Assert.assertEquals(direct, deframer.next(framed));
+    }
+
+    /**
+     * Two connections into one passive socket, each writing frames in random
+     * pieces, must each be deframed in order and independently of the other.
+     */
+    @Test
+    public void testLoopbackThroughput() throws Exception {
+        int frameCount = Integer.getInteger(PROP_FRAMES, DEFAULT_FRAMES);
+        System.out.println("loopbackThroughput: " + frameCount + " frames");
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DemultiplexerSocket passive = StunUtil.getDemultiplexerSocket(new InetSocketAddress(loopback, 0), TransportType.TCP, false, null);
+        InetSocketAddress passiveAddress = new InetSocketAddress(loopback, passive.getLocalPort());
+
+        Socket[] clients = new Socket[]{new Socket(), new Socket()};
+        try {
+            final Random random = new Random(16);
+            List<byte[]> frames = new ArrayList<byte[]>();
+            for (int i = 0; i < frameCount; i++) {
+                byte[] frame = new byte[random.nextInt(1400) + 12];
+                random.nextBytes(frame);
+                // Looks like RTP, with the sequence number in the next four bytes
+                frame[0] = (byte) 0x80;
+                ByteBuffer.wrap(frame).putInt(1, i);
+                frames.add(frame);
+            }
+            byte[] stream = frame(frames);
+
+            List<Thread> writers = new ArrayList<Thread>();
+            for (Socket client : clients) {
+                client.setTcpNoDelay(true);
+                client.connect(passiveAddress);
+                final OutputStream out = client.getOutputStream();
+                final byte[] data = stream;
+                final long seed = random.nextLong();
+                writers.add(new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Random pieces = new Random(seed);
+                        try {
+                            int offset = 0;
+                            while (offset < data.length) {
+                                int chunk = Math.min(data.length - offset, pieces.nextInt(3000) + 1);
+                                out.write(data, offset, chunk);
+                                out.flush();
+                                offset += chunk;
+                            }
+                        } catch (IOException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                }));
+            }
+
+            long startTime = System.nanoTime();
+            for (Thread writer : writers) {
+                writer.start();
+            }
+
+            Map<SocketAddress, Integer> nextSequence = new HashMap<SocketAddress, Integer>();
+            ByteBuffer received = ByteBuffer.allocate(1500);
+            int total = frameCount * clients.length;
+            long deadline = System.currentTimeMillis() + 60000;
+            for (int i = 0; i < total; i++) {
+                received.clear();
+                SocketAddress from;
+                while ((from = passive.receive(received)) == null) {
+                    Assert.assertTrue("Only received " + i + " of " + total + " frames",
+                            System.currentTimeMillis() < deadline);
+                    Thread.sleep(1);
+                }
+                Integer sequence = nextSequence.get(from);
+                if (sequence == null) {
+                    sequence = 0;
+                }
+                Assert.assertEquals(ByteBuffer.wrap(frames.get(sequence)), received);
+                nextSequence.put(from, sequence + 1);
+            }
+            long elapsed = System.nanoTime() - startTime;
+
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            Assert.assertEquals(clients.length, nextSequence.size());
+            System.out.println("Frames per second: " + (total * 1000000000L / elapsed)
+                    + ", MB per second: " + (stream.length * (long) clients.length * 1000L / elapsed));
+        } finally {
+            for (Socket client : clients) {
+                client.close();
+            }
+            passive.close();
+        }
+    }
+
+    /**
+     * Concatenate frames with their RFC 4571 length headers
+     */
+    static byte[] frame(List<byte[]> frames) {
+        int length = 0;
+        for (byte[] frame : frames) {
+            length += RFC4571FramingFilter.HEADER_LENGTH + frame.length;
+        }
+        ByteBuffer stream = ByteBuffer.allocate(length);
+        for (byte[] frame : frames) {
+            stream.putShort((short) frame.length);
+            stream.put(frame);
+        }
+        return stream.array();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class RFC7983DemultiplexingFilterTest {
+
+    @Test
+    public void testClassifyRanges() {
+        System.out.println("classifyRanges");
+        for (int first = 0; first < 256; first++) {
+            MultiplexedProtocol expected;
+            if (first <= 3) {
+                expected = MultiplexedProtocol.STUN;
+            } else if (first >= 16 && first <= 19) {
+                expected = MultiplexedProtocol.ZRTP;
+            } else if (first >= 20 && first <= 63) {
+                expected = MultiplexedProtocol.DTLS;
+            } else if (first >= 64 && first <= 79) {
+                expected = MultiplexedProtocol.TURN_CHANNEL;
+            } else if (first >= 128 && first <= 191) {
+                expected = MultiplexedProtocol.RTP;
+            } else {
+                expected = MultiplexedProtocol.UNKNOWN;
+            }
+            Assert.assertEquals("First byte " + first, expected, MultiplexedProtocol.classify(first, 0));
+        }
+    }
+
+    @Test
+    public void testClassifyRtcp() {
+        System.out.println("classifyRtcp");
+        // Version 2, payload type 0 (PCMU) with and without the marker bit
+        Assert.assertEquals(MultiplexedProtocol.RTP, MultiplexedProtocol.classify(0x80, 0x00));
+        Assert.assertEquals(MultiplexedProtocol.RTP, MultiplexedProtocol.classify(0x80, 0x80));
+        // Sender report, receiver report and the edges of the RTCP range
+        Assert.assertEquals(MultiplexedProtocol.RTCP, MultiplexedProtocol.classify(0x80, 200));
+        Assert.assertEquals(MultiplexedProtocol.RTCP, MultiplexedProtocol.classify(0x81, 201));
+        Assert.assertEquals(MultiplexedProtocol.RTCP, MultiplexedProtocol.classify(0x80, 192));
+        Assert.assertEquals(MultiplexedProtocol.RTCP, MultiplexedProtocol.classify(0x80, 223));
+        Assert.assertEquals(MultiplexedProtocol.RTP, MultiplexedProtocol.classify(0x80, 224));
+        // Too short to tell
+        Assert.assertEquals(MultiplexedProtocol.UNKNOWN, MultiplexedProtocol.classify(0x80, -1));
+    }
+
+    @Test
+    public void testClassifyBuffer() {
+        System.out.println("classifyBuffer");
+        StunPacketImpl stun = new StunPacketImpl(MessageClass.REQUEST, MessageMethod.BINDING);
+        ByteBuffer stunBuffer = ByteBuffer.wrap(stun.getBytes());
+        Assert.assertEquals(MultiplexedProtocol.STUN, RFC7983DemultiplexingFilter.classify(stunBuffer));
+        Assert.assertEquals(0, stunBuffer.position());
+
+        ByteBuffer rtcp = ByteBuffer.wrap(new byte[]{0, 0, (byte) 0x80, (byte) 200, 0, 6});
+        rtcp.position(2);
+        Assert.assertEquals(MultiplexedProtocol.RTCP, RFC7983DemultiplexingFilter.classify(rtcp));
+        Assert.assertEquals(2, rtcp.position());
+
+        Assert.assertEquals(MultiplexedProtocol.UNKNOWN, RFC7983DemultiplexingFilter.classify(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void testHandleRead() throws IOException {
+        System.out.println("handleRead");
+        RecordingFilter media = new RecordingFilter();
+        RFC7983DemultiplexingFilter filter = new RFC7983DemultiplexingFilter(media);
+
+        // Media reaches the handler as a view of the received bytes
+        byte[] rtp = new byte[]{(byte) 0x80, 0, 0, 1};
+        Buffer received = Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, rtp);
+        FilterChainContext ctx = new FilterChainContext();
+        ctx.setMessage(received);
+        filter.handleRead(ctx);
+        Assert.assertNotNull(media.message);
+        Assert.assertEquals(rtp.length, media.message.remaining());
+        rtp[3] = 2;
+        Assert.assertEquals(2, media.message.get(media.message.position() + 3));
+
+        // Anything RFC 7983 leaves unassigned goes on down the chain
+        media.message = null;
+        ctx = new FilterChainContext();
+        ctx.setMessage(Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, new byte[]{'T', 'e', 's', 't'}));
+        Assert.assertSame(ctx.getInvokeAction(), filter.handleRead(ctx));
+        Assert.assertNull(media.message);
+
+        // unless the filter is told to drop it
+        filter.setDropUnassigned(true);
+        ctx = new FilterChainContext();
+        ctx.setMessage(Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, new byte[]{'T', 'e', 's', 't'}));
+        Assert.assertSame(ctx.getStopAction(), filter.handleRead(ctx));
+        Assert.assertNull(media.message);
+        filter.setDropUnassigned(false);
+
+        // STUN has no handler, so goes on down the chain
+        ctx = new FilterChainContext();
+        ctx.setMessage(Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER,
+                new StunPacketImpl(MessageClass.REQUEST, MessageMethod.BINDING).getBytes()));
+        Assert.assertSame(ctx.getInvokeAction(), filter.handleRead(ctx));
+        Assert.assertNull(media.message);
+    }
+
+    /**
+     * Keeps the last message handed to it
+     */
+    static class RecordingFilter extends BaseFilter {
+
+        ByteBuffer message;
+
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            message = (ByteBuffer) ctx.getMessage();
+            return ctx.getStopAction();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.DatagramStunSocket.StunReplyFuture;
+import org.glassfish.grizzly.CompletionHandler;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the completion handlers of STUN transaction futures
+ *
+ * @author Charles Chappell
+ */
+public class StunReplyFutureTest {
+
+    @Test
+    public void testCompletionHandler() throws Exception {
+        System.out.println("completionHandler");
+        StunReplyFuture future = new StunReplyFuture(new InetSocketAddress("127.0.0.1", 3478));
+        RecordingHandler handler = new RecordingHandler();
+        future.addCompletionHandler(handler);
+        Assert.assertEquals(0, handler.calls.get());
+
+        StunReply reply = new StunReplyImpl(new StunPacketImpl(MessageClass.SUCCESS, MessageMethod.BINDING));
+        future.setReply(reply);
+        Assert.assertEquals(1, handler.calls.get());
+        Assert.assertSame(reply, handler.reply.get());
+
+        // Only notified once
+        future.cancel(true);
+        Assert.assertEquals(1, handler.calls.get());
+
+        // Handlers added late are called straight away
+        RecordingHandler late = new RecordingHandler();
+        future.addCompletionHandler(late);
+        Assert.assertEquals(1, late.calls.get());
+        Assert.assertSame(reply, late.reply.get());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        System.out.println("timeout");
+        StunReplyFuture future = new StunReplyFuture(new InetSocketAddress("127.0.0.1", 3478));
+        RecordingHandler handler = new RecordingHandler();
+        future.addCompletionHandler(handler);
+        future.cancel(true);
+        Assert.assertEquals(1, handler.cancels.get());
+        Assert.assertEquals(0, handler.calls.get());
+    }
+
+    static class RecordingHandler implements CompletionHandler<StunReply> {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger cancels = new AtomicInteger();
+        final AtomicReference<StunReply> reply = new AtomicReference<StunReply>();
+
+        @Override
+        public void cancelled() {
+            cancels.incrementAndGet();
+        }
+
+        @Override
+        public void failed(Throwable throwable) {
+        }
+
+        @Override
+        public void completed(StunReply result) {
+            calls.incrementAndGet();
+            reply.set(result);
+        }
+
+        @Override
+        public void updated(StunReply result) {
+        }
+    }
+}
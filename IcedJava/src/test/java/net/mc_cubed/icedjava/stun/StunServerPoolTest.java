@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import net.mc_cubed.icedjava.stun.StunServerPool.ServerStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class StunServerPoolTest {
+
+    @After
+    public void tearDown() {
+        StunServerPool.clear();
+        StunServerPool.setServerList(null);
+    }
+
+    @Test
+    public void testMovingAverages() throws Exception {
+        System.out.println("movingAverages");
+        ServerStatus status = new ServerStatus(new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 3478));
+        // Never answered, so not handed out
+        Assert.assertFalse(status.isHealthy());
+
+        status.success(1000);
+        Assert.assertEquals(1000, status.getRoundTripMicros(), 0.1);
+        status.success(2000);
+        Assert.assertEquals(1250, status.getRoundTripMicros(), 0.1);
+        Assert.assertTrue(status.isHealthy());
+
+        status.failure();
+        Assert.assertEquals(0.25, status.getFailureRate(), 0.001);
+        Assert.assertEquals(1, status.getConsecutiveFailures());
+        Assert.assertTrue(status.isHealthy());
+        // Ranked by a snapshot, which later updates leave alone
+        StunServerPool.RankedServer ranked = status.snapshot();
+        Assert.assertTrue(ranked.failed);
+        Assert.assertEquals(1250, ranked.roundTripMicros, 0.1);
+
+        // Failing too often takes it out of the ranking
+        status.failure();
+        status.failure();
+        Assert.assertFalse(status.isHealthy());
+        Assert.assertNull(status.snapshot());
+        Assert.assertTrue(ranked.failed);
+
+        // And answering again brings it back
+        status.success(1000);
+        Assert.assertEquals(0, status.getConsecutiveFailures());
+        Assert.assertTrue(status.isHealthy());
+    }
+
+    @Test
+    public void testRankingAndFailover() throws Exception {
+        System.out.println("rankingAndFailover");
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        LoopbackStunServer first = new LoopbackStunServer(loopback);
+        LoopbackStunServer second = new LoopbackStunServer(loopback);
+        InetSocketAddress dead = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 3478);
+        try {
+            StunServerPool.setServerList(Arrays.asList(first.getAddress(), second.getAddress(), dead));
+            StunServerPool.clear();
+
+            InetSocketAddress server = StunServerPool.awaitServer(10000);
+            Assert.assertNotNull(server);
+
+            // Only the servers which answered are ranked
+            List<ServerStatus> ranking = StunServerPool.getRanking();
+            Assert.assertEquals(2, ranking.size());
+            Assert.assertEquals(server, ranking.get(0).getAddress());
+            Assert.assertTrue(ranking.get(0).getRoundTripMicros() <= ranking.get(1).getRoundTripMicros());
+            Assert.assertFalse(StunServerPool.getStatus(dead).isHealthy());
+
+            // A reported failure moves the next server up
+            StunServerPool.reportFailure(server);
+            InetSocketAddress next = StunServerPool.getServer();
+            Assert.assertNotNull(next);
+            Assert.assertFalse(server.equals(next));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.packet.attribute.Attribute;
+import net.mc_cubed.icedjava.packet.attribute.AttributeFactory;
+import net.mc_cubed.icedjava.packet.attribute.AttributeType;
+import net.mc_cubed.icedjava.packet.attribute.NonceAttribute;
+import net.mc_cubed.icedjava.packet.attribute.XORMappedAddressAttribute;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.MultiplexedProtocol;
+import net.mc_cubed.icedjava.stun.RFC7983DemultiplexingFilter;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.util.NumericUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class ChannelDataTest {
+
+    @Test
+    public void testEncodeDecode() {
+        System.out.println("encodeDecode");
+        byte[] data = new byte[]{(byte) 0x80, 0, 1, 2, 3, 4, 5};
+        ByteBuffer payload = ByteBuffer.wrap(data);
+        ByteBuffer message = ChannelData.encode(0x4001, payload);
+
+        // The payload is left as it was
+        Assert.assertEquals(0, payload.position());
+        Assert.assertEquals(ChannelData.HEADER_LENGTH + data.length, message.remaining());
+        Assert.assertEquals(MultiplexedProtocol.TURN_CHANNEL, RFC7983DemultiplexingFilter.classify(message));
+        Assert.assertTrue(ChannelData.isChannelData(message));
+        Assert.assertEquals(0x4001, ChannelData.getChannelNumber(message));
+        Assert.assertEquals(data.length, ChannelData.getLength(message));
+
+        ByteBuffer decoded = ChannelData.getPayload(message);
+        Assert.assertEquals(ByteBuffer.wrap(data), decoded);
+        Assert.assertEquals(0, message.position());
+
+        Assert.assertArrayEquals(message.array(), ChannelData.encode(0x4001, data));
+    }
+
+    @Test
+    public void testInvalid() {
+        System.out.println("invalid");
+        // Too short for a header
+        Assert.assertFalse(ChannelData.isChannelData(ByteBuffer.wrap(new byte[]{0x40, 0x00, 0x00})));
+        // Channel number out of range
+        Assert.assertFalse(ChannelData.isChannelData(ByteBuffer.wrap(new byte[]{0x50, 0x00, 0x00, 0x00})));
+        // Length longer than the packet
+        Assert.assertFalse(ChannelData.isChannelData(ByteBuffer.wrap(new byte[]{0x40, 0x00, 0x00, 0x05, 1, 2})));
+        // Trailing padding is allowed
+        Assert.assertTrue(ChannelData.isChannelData(ByteBuffer.wrap(new byte[]{0x40, 0x00, 0x00, 0x01, 1, 0, 0, 0})));
+
+        try {
+            ChannelData.encode(0x3fff, new byte[1]);
+            Assert.fail("Encoded an invalid channel number");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testTurnAttributes() throws Exception {
+        System.out.println("turnAttributes");
+        InetAddress peerAddress = InetAddress.getByName("198.51.100.7");
+        StunPacket request = StunUtil.createStunRequest(MessageClass.REQUEST, MessageMethod.CHANNELBIND);
+        request.getAttributes().add(AttributeFactory.createXORPeerAddressAttribute(
+                peerAddress, 50000, request.getTransactionId()));
+        request.getAttributes().add(AttributeFactory.createChannelNumberAttribute(0x4abc));
+        request.getAttributes().add(AttributeFactory.createLifetimeAttribute(600));
+        request.getAttributes().add(AttributeFactory.createNonceAttribute("f00d"));
+
+        byte[] bytes = request.getBytes();
+        List<Attribute> attributes = AttributeFactory.processIntoList(bytes, 0, 20, bytes.length - 20);
+        Assert.assertEquals(4, attributes.size());
+
+        XORMappedAddressAttribute peer = (XORMappedAddressAttribute) attributes.get(0);
+        Assert.assertEquals(AttributeType.XOR_PEER_ADDRESS, peer.getType());
+        Assert.assertEquals(peerAddress, peer.getAddress(request.getTransactionId()));
+        Assert.assertEquals(50000, peer.getPort());
+
+        byte[] channel = attributes.get(1).getData();
+        Assert.assertEquals(0x4abc, NumericUtils.toShort(channel));
+        Assert.assertEquals(600, NumericUtils.toInt(attributes.get(2).getData()));
+        Assert.assertEquals("f00d", ((NonceAttribute) attributes.get(3)).getValue());
+    }
+
+    @Test
+    public void testFraming() throws Exception {
+        System.out.println("framing");
+        TURNAllocation allocation = new TURNAllocation(null, new InetSocketAddress("127.0.0.1", 3478), null);
+        InetSocketAddress peer = new InetSocketAddress(InetAddress.getByName("198.51.100.7"), 50000);
+        byte[] data = new byte[]{(byte) 0x80, 0, 1, 2};
+
+        // Mark a channel bound, as a successful ChannelBind would
+        TURNAllocation.Binding binding = allocation.getBinding(peer);
+        Assert.assertEquals(ChannelData.MIN_CHANNEL, binding.channel);
+        // A peer keeps its channel, and the next peer gets the next one
+        Assert.assertSame(binding, allocation.getBinding(peer));
+        Assert.assertEquals(ChannelData.MIN_CHANNEL + 1, allocation.getBinding(
+                new InetSocketAddress(InetAddress.getByName("198.51.100.8"), 50000)).channel);
+        binding.bound = true;
+        Assert.assertEquals(binding.channel, allocation.getChannel(peer));
+
+        ByteBuffer message = allocation.frame(ByteBuffer.wrap(data), peer);
+        Assert.assertTrue(ChannelData.isChannelData(message));
+        Assert.assertEquals(binding.channel, ChannelData.getChannelNumber(message));
+        Assert.assertEquals(ByteBuffer.wrap(data), ChannelData.getPayload(message));
+
+        // A relayed STUN request keeps its identity, but encodes framed
+        StunPacket check = StunUtil.createStunRequest(MessageClass.REQUEST, MessageMethod.BINDING);
+        StunPacket relayed = allocation.new RelayedStunPacket(check, peer);
+        Assert.assertEquals(check.getId(), relayed.getId());
+        byte[] framed = relayed.getBytes();
+        Assert.assertEquals(MultiplexedProtocol.TURN_CHANNEL,
+                RFC7983DemultiplexingFilter.classify(ByteBuffer.wrap(framed)));
+        Assert.assertEquals(ByteBuffer.wrap(check.getBytes()),
+                ChannelData.getPayload(ByteBuffer.wrap(framed)));
+    }
+
+    @Test
+    public void testDataIndication() throws Exception {
+        System.out.println("dataIndication");
+        StunPacket indication = StunUtil.createStunRequest(MessageClass.INDICATION, MessageMethod.DATA);
+        indication.getAttributes().add(AttributeFactory.createXORPeerAddressAttribute(
+                InetAddress.getByName("198.51.100.7"), 50000, indication.getTransactionId()));
+        indication.getAttributes().add(AttributeFactory.createDataAttribute(new byte[]{(byte) 0x80, 0, 1, 2}));
+        Assert.assertTrue(TURNChannelDataFilter.isDataIndication(ByteBuffer.wrap(indication.getBytes())));
+
+        StunPacket send = StunUtil.createStunRequest(MessageClass.INDICATION, MessageMethod.SEND);
+        Assert.assertFalse(TURNChannelDataFilter.isDataIndication(ByteBuffer.wrap(send.getBytes())));
+        StunPacket binding = StunUtil.createStunRequest(MessageClass.REQUEST, MessageMethod.BINDING);
+        Assert.assertFalse(TURNChannelDataFilter.isDataIndication(ByteBuffer.wrap(binding.getBytes())));
+    }
+
+    @Test
+    public void testBindBackoff() throws Exception {
+        System.out.println("bindBackoff");
+        TURNAllocation allocation = new TURNAllocation(null, new InetSocketAddress("127.0.0.1", 3478), null);
+        TURNAllocation.Binding binding = allocation.getBinding(
+                new InetSocketAddress(InetAddress.getByName("198.51.100.7"), 50000));
+        long now = System.currentTimeMillis();
+
+        binding.refused(now);
+        Assert.assertEquals(now + TURNAllocation.BIND_RETRY_INTERVAL, binding.retryAt);
+        binding.refused(now);
+        Assert.assertEquals(now + 2 * TURNAllocation.BIND_RETRY_INTERVAL, binding.retryAt);
+        for (int i = 0; i < 20; i++) {
+            binding.refused(now);
+        }
+        Assert.assertEquals(now + TURNAllocation.MAX_BIND_RETRY_INTERVAL, binding.retryAt);
+
+        // Until the retry time, sending doesn't start another ChannelBind
+        allocation.bindInBackground(binding.peer);
+        Assert.assertFalse(binding.pending.get());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.stun.TransportType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class TURNServerAllocationTest {
+
+    static final InetSocketAddress client = new InetSocketAddress("127.0.0.1", 40000);
+    static final InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", TURNServer.DEFAULT_PORT);
+
+    static TURNServerAllocation createAllocation(TURNServer server) {
+        return new TURNServerAllocation(server,
+                new FiveTuple(client, serverAddress, TransportType.UDP), "user", 50000);
+    }
+
+    @Test
+    public void testFiveTuple() {
+        System.out.println("fiveTuple");
+        FiveTuple tuple = new FiveTuple(client, serverAddress, TransportType.UDP);
+        Assert.assertEquals(tuple, new FiveTuple(new InetSocketAddress("127.0.0.1", 40000),
+                serverAddress, TransportType.UDP));
+        Assert.assertEquals(tuple.hashCode(), new FiveTuple(new InetSocketAddress("127.0.0.1", 40000),
+                serverAddress, TransportType.UDP).hashCode());
+        Assert.assertFalse(tuple.equals(new FiveTuple(new InetSocketAddress("127.0.0.1", 40001),
+                serverAddress, TransportType.UDP)));
+        Assert.assertFalse(tuple.equals(new FiveTuple(client, serverAddress, TransportType.TCP)));
+    }
+
+    @Test
+    public void testPortPool() {
+        System.out.println("portPool");
+        RelayPortPool pool = new RelayPortPool(50000, 50003);
+        Assert.assertEquals(4, pool.size());
+
+        Set<Integer> ports = new HashSet<Integer>();
+        for (int i = 0; i < 4; i++) {
+            ports.add(pool.acquire());
+        }
+        Assert.assertEquals(4, ports.size());
+        Assert.assertEquals(-1, pool.acquire());
+
+        pool.release(50002);
+        // Ports from outside the range are ignored
+        pool.release(60000);
+        Assert.assertEquals(1, pool.available());
+        Assert.assertEquals(50002, pool.acquire());
+    }
+
+    @Test
+    public void testChannels() throws Exception {
+        System.out.println("channels");
+        TURNServerAllocation allocation = createAllocation(
+                new TURNServer(serverAddress, InetAddress.getByName("127.0.0.1"), 50000, 50010));
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.2", 6000);
+        InetSocketAddress otherPeer = new InetSocketAddress("127.0.0.3", 6000);
+        long now = System.currentTimeMillis();
+
+        Assert.assertFalse(allocation.permits(peer.getAddress(), now));
+        Assert.assertFalse(allocation.bindChannel(0x3FFF, peer, now));
+        Assert.assertTrue(allocation.bindChannel(0x4000, peer, now));
+        // Binding the channel installs a permission
+        Assert.assertTrue(allocation.permits(peer.getAddress(), now));
+        // Refreshing the same binding is allowed
+        Assert.assertTrue(allocation.bindChannel(0x4000, peer, now));
+        // The number and the peer can't be bound to anything else
+        Assert.assertFalse(allocation.bindChannel(0x4000, otherPeer, now));
+        Assert.assertFalse(allocation.bindChannel(0x4001, peer, now));
+
+        Assert.assertEquals(peer, allocation.getChannel(0x4000, now).peer);
+        Assert.assertEquals(0x4000, allocation.getChannel(peer, now).number);
+        Assert.assertNull(allocation.getChannel(0x4001, now));
+        Assert.assertNull(allocation.getChannel(otherPeer, now));
+
+        long later = now + TURNAllocation.CHANNEL_LIFETIME;
+        Assert.assertNull(allocation.getChannel(0x4000, later));
+        allocation.expire(later);
+        Assert.assertFalse(allocation.permits(peer.getAddress(), later));
+        // Once expired, the number is free again
+        Assert.assertTrue(allocation.bindChannel(0x4000, otherPeer, later));
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        System.out.println("quota");
+        TURNServer server = new TURNServer(serverAddress, InetAddress.getByName("127.0.0.1"), 50000, 50010);
+        server.setBandwidthQuota(1000);
+        TURNServerAllocation allocation = createAllocation(server);
+
+        Assert.assertTrue(allocation.consume(600));
+        Assert.assertFalse(allocation.consume(600));
+        Thread.sleep(700);
+        Assert.assertTrue(allocation.consume(600));
+
+        server.setBandwidthQuota(0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(allocation.consume(1500));
+        }
+    }
+
+    @Test
+    public void testAllocateRetransmission() throws Exception {
+        System.out.println("allocateRetransmission");
+        TURNServerAllocation allocation = createAllocation(
+                new TURNServer(serverAddress, InetAddress.getByName("127.0.0.1"), 50000, 50010));
+        StunPacket request = StunUtil.createStunRequest(MessageClass.REQUEST, MessageMethod.ALLOCATE);
+        Assert.assertNull(allocation.getAllocateResponse(request.getTransactionId()));
+
+        StunPacket response = StunUtil.createReplyPacket(request, MessageClass.SUCCESS);
+        allocation.setAllocateResponse(response);
+        // The same transaction gets the same answer, a new one doesn't
+        Assert.assertSame(response, allocation.getAllocateResponse(request.getTransactionId()));
+        StunPacket other = StunUtil.createStunRequest(MessageClass.REQUEST, MessageMethod.ALLOCATE);
+        Assert.assertNull(allocation.getAllocateResponse(other.getTransactionId()));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.turn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Relays RTP sized packets through an embedded TURN server on the loopback
+ * interface and reports how many packets a second it relays.  The number of
+ * allocations can be raised with the icedjava.turn.allocations system
+ * property, and the run length with icedjava.turn.seconds.
+ *
+ * @author Charles Chappell
+ */
+public class TURNServerLoadTest {
+
+    static final String PROP_ALLOCATIONS = "icedjava.turn.allocations";
+    static final String PROP_SECONDS = "icedjava.turn.seconds";
+    static final int DEFAULT_ALLOCATIONS = 20;
+    static final int DEFAULT_SECONDS = 5;
+    static final int PACKET_SIZE = 172;
+
+    @Test
+    public void testRelayThroughput() throws IOException, InterruptedException {
+        int allocationCount = Integer.getInteger(PROP_ALLOCATIONS, DEFAULT_ALLOCATIONS);
+        int seconds = Integer.getInteger(PROP_SECONDS, DEFAULT_SECONDS);
+        System.out.println("relayThroughput: " + allocationCount + " allocations");
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        TURNServer server = new TURNServer(new InetSocketAddress(loopback, 0), loopback,
+                52000, 52000 + allocationCount + 100);
+        server.start();
+
+        List<TURNAllocation> allocations = new ArrayList<TURNAllocation>();
+        List<DemultiplexerSocket> sockets = new ArrayList<DemultiplexerSocket>();
+        List<DemultiplexerSocket> peers = new ArrayList<DemultiplexerSocket>();
+        try {
+            for (int i = 0; i < allocationCount; i++) {
+                DemultiplexerSocket socket = StunUtil.getCustomStunPipeline(
+                        StunUtil.bindDatagramConnection(new InetSocketAddress(loopback, 0)));
+                DemultiplexerSocket peer = StunUtil.getCustomStunPipeline(
+                        StunUtil.bindDatagramConnection(new InetSocketAddress(loopback, 0)));
+                sockets.add(socket);
+                peers.add(peer);
+
+                TURNAllocation allocation = TURNAllocation.allocate(socket, server.getLocalSocketAddress(), null);
+                allocations.add(allocation);
+                Assert.assertTrue(allocation.bindChannel(peer.getLocalSocketAddress()) >= ChannelData.MIN_CHANNEL);
+            }
+            Assert.assertEquals(allocationCount, server.getAllocationCount());
+
+            byte[] payload = new byte[PACKET_SIZE];
+            payload[0] = (byte) 0x80;
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(2048);
+            long sent = 0;
+            long received = 0;
+            long startTime = System.nanoTime();
+            long endTime = startTime + seconds * 1000000000L;
+            while (System.nanoTime() < endTime) {
+                // Client to peer over a channel, then peer back to the client
+                for (int i = 0; i < allocationCount; i++) {
+                    allocations.get(i).send(ByteBuffer.wrap(payload), peers.get(i).getLocalSocketAddress());
+                    peers.get(i).send(ByteBuffer.wrap(payload), allocations.get(i).getRelayedAddress());
+                    sent += 2;
+                }
+                for (int i = 0; i < allocationCount; i++) {
+                    receiveBuffer.clear();
+                    while (peers.get(i).receive(receiveBuffer) != null) {
+                        received++;
+                        receiveBuffer.clear();
+                    }
+                    while (sockets.get(i).receive(receiveBuffer) != null) {
+                        received++;
+                        receiveBuffer.clear();
+                    }
+                }
+                // Keep the socket queues from running far ahead of the relay
+                if (sent - received > allocationCount * 64) {
+                    Thread.sleep(1);
+                }
+            }
+            double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
+
+            System.out.println("Sent " + sent + ", received " + received + " in " + elapsed + "s");
+            System.out.println("Relayed " + (long) (server.getPacketsRelayed() / elapsed) + " packets/s, "
+                    + (long) (server.getBytesRelayed() / elapsed) + " bytes/s, "
+                    + server.getPacketsDropped() + " dropped");
+            Assert.assertTrue("Nothing was relayed", server.getPacketsRelayed() > 0);
+        } finally {
+            for (TURNAllocation allocation : allocations) {
+                allocation.close();
+            }
+            for (DemultiplexerSocket socket : sockets) {
+                socket.close();
+            }
+            for (DemultiplexerSocket peer : peers) {
+                peer.close();
+            }
+            server.stop();
+        }
+    }
+}
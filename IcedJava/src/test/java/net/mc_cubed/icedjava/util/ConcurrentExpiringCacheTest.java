@@ -0,0 +1,239 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.util;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class ConcurrentExpiringCacheTest {
+
+    @Test
+    public void testTimingWheel() {
+        System.out.println("timingWheel");
+        long start = 1000000;
+        TimingWheel wheel = new TimingWheel(10, start);
+        final AtomicInteger fired = new AtomicInteger();
+        long[] delays = {0, 5, 10, 15, 630, 650, 41000, 3000000};
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[delays.length];
+        final long[] firedAt = new long[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            final int index = i;
+            timeouts[i] = new TimingWheel.Timeout() {
+
+                @Override
+                void expired(long now) {
+                    firedAt[index] = now;
+                    fired.incrementAndGet();
+                }
+            };
+            timeouts[i].deadline = start + delays[i];
+            wheel.schedule(timeouts[i]);
+        }
+        Assert.assertEquals(delays.length, wheel.getPending());
+
+        for (long now = start; now <= start + 3001000; now += 10) {
+            wheel.advance(now);
+        }
+        Assert.assertEquals(delays.length, fired.get());
+        Assert.assertEquals(0, wheel.getPending());
+        for (int i = 0; i < delays.length; i++) {
+            // Never early, and no later than a tick after the deadline
+            Assert.assertTrue("Timeout " + i + " fired early", firedAt[i] >= start + delays[i]);
+            Assert.assertTrue("Timeout " + i + " fired late", firedAt[i] <= start + delays[i] + 20);
+        }
+    }
+
+    @Test
+    public void testTimingWheelCancel() {
+        System.out.println("timingWheelCancel");
+        long start = 1000000;
+        TimingWheel wheel = new TimingWheel(10, start);
+        final AtomicInteger fired = new AtomicInteger();
+        // Three in the same slot, so the head, middle and tail are unlinked
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[3];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new TimingWheel.Timeout() {
+
+                @Override
+                void expired(long now) {
+                    fired.incrementAndGet();
+                }
+            };
+            timeouts[i].deadline = start + 100;
+            wheel.schedule(timeouts[i]);
+        }
+        wheel.cancel(timeouts[1]);
+        Assert.assertEquals(2, wheel.getPending());
+        wheel.cancel(timeouts[1]);
+        Assert.assertEquals(2, wheel.getPending());
+        wheel.cancel(timeouts[2]);
+        wheel.cancel(timeouts[0]);
+        Assert.assertEquals(0, wheel.getPending());
+
+        // A cancelled timeout can be scheduled again
+        wheel.schedule(timeouts[1]);
+        for (long now = start; now <= start + 200; now += 10) {
+            wheel.advance(now);
+        }
+        Assert.assertEquals(1, fired.get());
+        Assert.assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void testChurnLeavesWheel() {
+        System.out.println("churnLeavesWheel");
+        TimingWheel wheel = new TimingWheel(10, System.currentTimeMillis());
+        ConcurrentExpiringCache<Integer, Integer> cache =
+                new ConcurrentExpiringCache<Integer, Integer>(60000, 0, 0, wheel);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        Assert.assertEquals(1000, wheel.getPending());
+
+        // Removed entries come off the wheel rather than waiting out their TTL
+        for (int i = 0; i < 100000; i++) {
+            cache.remove(i % 1000);
+            cache.put(i % 1000, i);
+        }
+        Assert.assertEquals(1000, wheel.getPending());
+
+        // as do replaced ones
+        for (int i = 0; i < 1000; i++) {
+            cache.admit(i, i, 30000, 0);
+        }
+        Assert.assertEquals(1000, wheel.getPending());
+
+        cache.clear();
+        Assert.assertEquals(0, wheel.getPending());
+
+        // and evicted ones
+        ConcurrentExpiringCache<Integer, Integer> bounded =
+                new ConcurrentExpiringCache<Integer, Integer>(60000, 0, 100, wheel);
+        for (int i = 0; i < 10000; i++) {
+            bounded.put(i, i);
+        }
+        Assert.assertEquals(100, bounded.size());
+        Assert.assertEquals(100, wheel.getPending());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        System.out.println("expiry");
+        TimingWheel wheel = new TimingWheel(10, System.currentTimeMillis());
+        ConcurrentExpiringCache<String, String> cache =
+                new ConcurrentExpiringCache<String, String>(100, 0, 0, wheel);
+        cache.admit("a", "1");
+        cache.admit("b", "2");
+        cache.admit("c", "3", 0, 0);
+        Assert.assertEquals("1", cache.get("a"));
+
+        Thread.sleep(200);
+        // Expired entries are not returned, even before the wheel gets to them
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(1, cache.getExpirationCount());
+        Assert.assertEquals(2, cache.size());
+
+        wheel.advance(System.currentTimeMillis());
+        Assert.assertEquals(2, cache.getExpirationCount());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testIdleTimeout() throws InterruptedException {
+        System.out.println("idleTimeout");
+        TimingWheel wheel = new TimingWheel(10, System.currentTimeMillis());
+        ConcurrentExpiringCache<String, String> cache =
+                new ConcurrentExpiringCache<String, String>(0, 150, 0, wheel);
+        cache.admit("busy", "1");
+        cache.admit("idle", "2");
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(50);
+            Assert.assertEquals("1", cache.get("busy"));
+            wheel.advance(System.currentTimeMillis());
+        }
+        Assert.assertTrue(cache.containsKey("busy"));
+        Assert.assertFalse(cache.containsKey("idle"));
+        Assert.assertEquals(1, cache.getExpirationCount());
+    }
+
+    @Test
+    public void testSizeBound() {
+        System.out.println("sizeBound");
+        ConcurrentExpiringCache<Integer, Integer> cache =
+                new ConcurrentExpiringCache<Integer, Integer>(0, 0, 3);
+        cache.admit(1, 1);
+        cache.admit(2, 2);
+        cache.admit(3, 3);
+        // Touch 1 so that 2 is the least recently used
+        Assert.assertEquals(Integer.valueOf(1), cache.get(1));
+        cache.admit(4, 4);
+        Assert.assertEquals(3, cache.size());
+        Assert.assertNull(cache.get(2));
+        Assert.assertEquals(Integer.valueOf(1), cache.get(1));
+        Assert.assertEquals(1, cache.getEvictionCount());
+
+        // Replacing an entry doesn't count against the bound
+        Assert.assertEquals(Integer.valueOf(4), cache.admit(4, 40));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testStatistics() {
+        System.out.println("statistics");
+        ConcurrentExpiringCache<String, String> cache = new ConcurrentExpiringCache<String, String>();
+        Assert.assertEquals(1.0, cache.getHitRate(), 0.0);
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(0.75, cache.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testEntrySet() {
+        System.out.println("entrySet");
+        ConcurrentExpiringCache<String, String> cache = new ConcurrentExpiringCache<String, String>();
+        cache.put("a", "1");
+        cache.put("b", "2");
+        int count = 0;
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+            Assert.assertEquals(cache.get(entry.getKey()), entry.getValue());
+            count++;
+        }
+        Assert.assertEquals(2, count);
+        Assert.assertTrue(cache.containsValue("2"));
+
+        cache.values().remove("1");
+        Assert.assertFalse(cache.containsKey("a"));
+        cache.clear();
+        Assert.assertTrue(cache.isEmpty());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.util;
+
+import java.util.Iterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Charles Chappell
+ */
+public class CopyOnWriteWeakSetTest {
+
+    @Test
+    public void testAddRemove() {
+        System.out.println("addRemove");
+        CopyOnWriteWeakSet<String> set = new CopyOnWriteWeakSet<String>();
+        String a = new String("a");
+        String equalToA = new String("a");
+        Assert.assertTrue(set.add(a));
+        Assert.assertFalse(set.add(a));
+        // Elements are compared by identity, not equality
+        Assert.assertTrue(set.add(equalToA));
+        Assert.assertEquals(2, set.size());
+        Assert.assertTrue(set.contains(a));
+
+        Assert.assertTrue(set.remove(a));
+        Assert.assertFalse(set.remove(a));
+        Assert.assertFalse(set.contains(a));
+        Assert.assertTrue(set.contains(equalToA));
+        set.clear();
+        Assert.assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testSnapshotUnchanged() {
+        System.out.println("snapshotUnchanged");
+        CopyOnWriteWeakSet<String> set = new CopyOnWriteWeakSet<String>();
+        String a = "a";
+        String b = "b";
+        set.add(a);
+        CopyOnWriteWeakSet.Snapshot<String> before = set.getSnapshot();
+        Assert.assertSame(before, set.getSnapshot());
+
+        Iterator<String> it = set.iterator();
+        set.add(b);
+        set.remove(a);
+        // Readers keep what they started with
+        Assert.assertEquals(1, before.size());
+        Assert.assertSame(a, before.get(0));
+        Assert.assertTrue(it.hasNext());
+        Assert.assertSame(a, it.next());
+        Assert.assertFalse(it.hasNext());
+
+        Assert.assertSame(b, set.getSnapshot().get(0));
+    }
+
+    @Test
+    public void testCollected() throws InterruptedException {
+        System.out.println("collected");
+        CopyOnWriteWeakSet<Object> set = new CopyOnWriteWeakSet<Object>();
+        Object kept = new Object();
+        set.add(kept);
+        set.add(new Object());
+
+        for (int i = 0; i < 50 && set.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(1, set.size());
+        Assert.assertSame(kept, set.getSnapshot().get(0));
+    }
+}
@@ -1,7 +1,5 @@
 package net.mc_cubed.msrp;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.URI;
@@ -73,51 +71,7 @@ class MsrpConnectionImpl implements MsrpConnection {
 
     @Override
     public boolean sendMessage(MsrpRequest message) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dataOut = new DataOutputStream(baos);
-
-        // Write the first line of the MSRP message
-        dataOut.writeBytes(MsrpUtil.MSRP_MAGIC);
-        dataOut.writeByte(0x20);
-
-        dataOut.writeBytes(message.getTransactionId());
-        dataOut.writeByte(0x20);
-
-        dataOut.writeBytes(message.getRequestName());
-        dataOut.writeBytes("\n");
-
-        /**
-         *  Write out the headers
-         */
-        dataOut.writeBytes(MsrpRequest.HEADER_TO);
-        dataOut.writeByte(0x20);
-        dataOut.writeBytes(message.getToPath().toString());
-        dataOut.writeBytes("\n");
-        
-        dataOut.writeBytes(MsrpRequest.HEADER_FROM);
-        dataOut.writeByte(0x20);
-        dataOut.writeBytes(message.getFromPath().toString());
-        dataOut.writeBytes("\n");
-
-        dataOut.writeBytes(MsrpRequest.HEADER_MESSAGE_ID);
-        dataOut.writeByte(0x20);
-        dataOut.writeBytes(Long.toString(message.getMessageId()));
-        dataOut.writeBytes("\n");
-
-        // TODO: Chunking headers here
-
-        dataOut.writeBytes(MsrpRequest.HEADER_CONTENT_TYPE);
-        dataOut.writeByte(0x20);
-        dataOut.writeBytes(message.getContentType());
-        dataOut.writeBytes("\n");
-
-        dataOut.writeBytes("\n");
-        dataOut.write(message.getContent());
-        dataOut.writeBytes("------".concat(message.getTransactionId()).concat("$"));
-        dataOut.writeBytes("\n");
-        dataOut.close();
-
-        baos.writeTo(sock.getOutputStream());
+        sock.getOutputStream().write(MsrpUtil.encodeRequest(message));
 
         return true;
     }
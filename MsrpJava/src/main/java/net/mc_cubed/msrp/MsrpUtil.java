@@ -1,6 +1,9 @@
 package net.mc_cubed.msrp;
 
 import org.apache.commons.codec.binary.Base64;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.LinkedList;
 import java.util.List;
@@ -121,4 +124,59 @@ public class MsrpUtil {
 
     public static final String MSRP_MAGIC = "MSRP";
 
+    /**
+     * Serialize an MSRP request, RFC 4975 Section 7.1
+     *
+     * @param message the request to serialize
+     * @return the bytes to write to the connection
+     * @throws IOException
+     */
+    public static byte[] encodeRequest(MsrpRequest message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(baos);
+
+        // Write the first line of the MSRP message
+        dataOut.writeBytes(MSRP_MAGIC);
+        dataOut.writeByte(0x20);
+
+        dataOut.writeBytes(message.getTransactionId());
+        dataOut.writeByte(0x20);
+
+        dataOut.writeBytes(message.getRequestName());
+        dataOut.writeBytes("\n");
+
+        /**
+         *  Write out the headers
+         */
+        dataOut.writeBytes(MsrpRequest.HEADER_TO);
+        dataOut.writeByte(0x20);
+        dataOut.writeBytes(message.getToPath().toString());
+        dataOut.writeBytes("\n");
+        
+        dataOut.writeBytes(MsrpRequest.HEADER_FROM);
+        dataOut.writeByte(0x20);
+        dataOut.writeBytes(message.getFromPath().toString());
+        dataOut.writeBytes("\n");
+
+        dataOut.writeBytes(MsrpRequest.HEADER_MESSAGE_ID);
+        dataOut.writeByte(0x20);
+        dataOut.writeBytes(Long.toString(message.getMessageId()));
+        dataOut.writeBytes("\n");
+
+        // TODO: Chunking headers here
+
+        dataOut.writeBytes(MsrpRequest.HEADER_CONTENT_TYPE);
+        dataOut.writeByte(0x20);
+        dataOut.writeBytes(message.getContentType());
+        dataOut.writeBytes("\n");
+
+        dataOut.writeBytes("\n");
+        dataOut.write(message.getContent());
+        dataOut.writeBytes("------".concat(message.getTransactionId()).concat("$"));
+        dataOut.writeBytes("\n");
+        dataOut.close();
+
+        return baos.toByteArray();
+    }
+
 }
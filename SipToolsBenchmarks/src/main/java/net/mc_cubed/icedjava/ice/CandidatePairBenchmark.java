@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.mc_cubed.icedjava.ice.Candidate.CandidateType;
+import net.mc_cubed.icedjava.stun.DemultiplexerSocket;
+import net.mc_cubed.icedjava.stun.StunUtil;
+import net.mc_cubed.icedjava.stun.TransportType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forming the check list of a media stream from its local and remote
+ * candidates.  Half of each side's candidates are server reflexive, so the
+ * replacement of local candidates by their base and the removal of the
+ * duplicates this produces are both exercised.  The local host candidates
+ * are bound on loopback, so no network access is needed.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CandidatePairBenchmark {
+
+    @Param({"4", "16", "32"})
+    int candidates;
+    List<DemultiplexerSocket> sockets;
+    List<LocalCandidate> locals;
+    List<RemoteCandidate> remotes;
+
+    @Setup
+    public void setup() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        sockets = new ArrayList<DemultiplexerSocket>();
+        locals = new ArrayList<LocalCandidate>();
+        remotes = new ArrayList<RemoteCandidate>();
+        for (int i = 0; i < candidates / 2; i++) {
+            DemultiplexerSocket socket = StunUtil.getDemultiplexerSocket(
+                    new InetSocketAddress(loopback, 0), TransportType.UDP, false, null);
+            sockets.add(socket);
+            LocalCandidate host = new LocalCandidate(null, null, CandidateType.LOCAL, socket, (short) 1);
+            host.computePriority(65535 - i);
+            LocalCandidate reflexive = new LocalCandidate(null, null, CandidateType.SERVER_REFLEXIVE,
+                    InetAddress.getByName("203.0.113." + (i + 1)), 50000 + i, host);
+            reflexive.computePriority(65535 - i);
+            locals.add(host);
+            locals.add(reflexive);
+
+            RemoteCandidate remoteHost = new RemoteCandidate(CandidateType.LOCAL,
+                    InetAddress.getByName("192.168.1." + (i + 1)), 40000 + i, (short) 1,
+                    TransportType.UDP, String.valueOf(i));
+            remoteHost.computePriority(65535 - i);
+            RemoteCandidate remoteReflexive = new RemoteCandidate(CandidateType.SERVER_REFLEXIVE,
+                    InetAddress.getByName("198.51.100." + (i + 1)), 60000 + i, (short) 1,
+                    TransportType.UDP, String.valueOf(candidates + i));
+            remoteReflexive.computePriority(65535 - i);
+            remotes.add(remoteHost);
+            remotes.add(remoteReflexive);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (DemultiplexerSocket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public List<CandidatePair> getPairs() {
+        return CandidatePair.getPairs(locals, remotes, true);
+    }
+}
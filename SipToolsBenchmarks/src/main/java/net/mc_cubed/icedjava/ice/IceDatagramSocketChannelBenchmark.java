@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.ice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import net.mc_cubed.icedjava.stun.StunSocketChannel;
+import net.mc_cubed.icedjava.stun.TransportType;
+import net.mc_cubed.icedjava.stun.event.DemultiplexedBytesAvailableEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The media receive path of IceDatagramSocketChannel: one RTP sized datagram
+ * delivered by the socket below and taken off the channel again, either
+ * copied out with read() or borrowed with receive().  Run it with -prof gc,
+ * whose gc.alloc.rate.norm is the number of bytes allocated per packet.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IceDatagramSocketChannelBenchmark {
+
+    static final int RTP_PACKET_SIZE = 172;
+    IceDatagramSocketChannel channel;
+    FakeStunChannel source;
+    ByteBuffer dst;
+
+    @Setup
+    public void setup() throws IOException {
+        channel = new IceDatagramSocketChannel(null, null, (short) 1);
+        source = new FakeStunChannel();
+        dst = ByteBuffer.allocate(1500);
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        channel.stunEvent(source.event);
+        dst.clear();
+        return channel.read(dst);
+    }
+
+    @Benchmark
+    public int receive() {
+        channel.stunEvent(source.event);
+        PooledBuffer buffer = channel.receive();
+        int length = buffer.getBuffer().remaining();
+        buffer.release();
+        return length;
+    }
+
+    /**
+     * Stands in for a demultiplexer socket, producing the same RTP sized
+     * datagram on every receive.
+     */
+    static class FakeStunChannel implements StunSocketChannel {
+
+        final byte[] payload = new byte[RTP_PACKET_SIZE];
+        final InetSocketAddress address;
+        final DemultiplexedBytesAvailableEvent event = new DemultiplexedBytesAvailableEvent() {
+
+            @Override
+            public StunSocketChannel getChannel() {
+                return FakeStunChannel.this;
+            }
+        };
+
+        FakeStunChannel() throws IOException {
+            address = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 5004);
+            payload[0] = (byte) 0x80;
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer dst) {
+            dst.put(payload);
+            dst.flip();
+            return address;
+        }
+
+        @Override
+        public int send(ByteBuffer src, SocketAddress target) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public TransportType getTransportType() {
+            return TransportType.UDP;
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return 0;
+        }
+
+        @Override
+        public InetSocketAddress getLocalSocketAddress() {
+            return null;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.packet.attribute;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The MESSAGE-INTEGRITY and FINGERPRINT computations over a connectivity
+ * check sized message, on their own, and the long term credential key
+ * derivation which precedes each integrity check.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntegrityBenchmark {
+
+    byte[] message;
+    byte[] credentials;
+    IntegrityAttributeImpl integrity;
+    FingerprintAttributeImpl fingerprint;
+
+    @Setup
+    public void setup() {
+        // A Binding request up to its MESSAGE-INTEGRITY attribute
+        message = new byte[76];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) (i * 31);
+        }
+        credentials = IntegrityAttributeImpl.computeMD5("8hhY:9uB6:icedjava:asd88fgpdd777uzjYhagZg");
+        integrity = new IntegrityAttributeImpl(credentials);
+        integrity.computeHash(message, 0, message.length);
+        fingerprint = new FingerprintAttributeImpl();
+    }
+
+    @Benchmark
+    public byte[] computeIntegrity() {
+        integrity.computeHash(message, 0, message.length);
+        return integrity.getData();
+    }
+
+    @Benchmark
+    public boolean verifyIntegrity() {
+        return integrity.verifyHash(credentials, message, 0, message.length);
+    }
+
+    @Benchmark
+    public boolean computeFingerprint() {
+        fingerprint.computeHash(message, 0, message.length);
+        return fingerprint.isValid();
+    }
+
+    @Benchmark
+    public byte[] deriveCredentials() {
+        return IntegrityAttributeImpl.computeMD5("8hhY:9uB6:icedjava:asd88fgpdd777uzjYhagZg");
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import net.mc_cubed.icedjava.ice.IceSocketChannel;
+import net.mc_cubed.icedjava.ice.PooledBuffer;
+import net.mc_cubed.icedjava.ice.event.IceEventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RTP packets per second on one core: parsing the fixed header, accounting
+ * packets to their synchronization source, and relaying them from one session
+ * to another over a UDP socket pair on loopback.  Each source's packets are
+ * kept in sequence, so none are discarded.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTPSessionBenchmark {
+
+    static final int PAYLOAD_LENGTH = 160;
+    @Param({"1", "64"})
+    int sources;
+    ByteBuffer[] packets;
+    int[] sequence;
+    int next;
+    RTPPacket view;
+    RTPSession demultiplexer;
+    RTPSession relay;
+    RTPSession receiver;
+    DatagramChannel sendChannel;
+    DatagramChannel receiveChannel;
+    ByteBuffer received;
+
+    @Setup
+    public void setup() throws IOException {
+        packets = new ByteBuffer[sources];
+        sequence = new int[sources];
+        for (int i = 0; i < sources; i++) {
+            ByteBuffer packet = ByteBuffer.allocate(RTPPacket.FIXED_HEADER_LENGTH + PAYLOAD_LENGTH);
+            packet.put(0, (byte) 0x80);
+            packet.putInt(8, 0x10000 + i);
+            packets[i] = packet;
+        }
+        view = new RTPPacket();
+        demultiplexer = new RTPSession(new LoopbackChannel(null));
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        receiveChannel = DatagramChannel.open();
+        receiveChannel.socket().bind(new InetSocketAddress(loopback, 0));
+        sendChannel = DatagramChannel.open();
+        sendChannel.connect(receiveChannel.socket().getLocalSocketAddress());
+        received = ByteBuffer.allocate(1500);
+        relay = new RTPSession(new LoopbackChannel(null));
+        relay.setRelayChannel(new LoopbackChannel(sendChannel));
+        receiver = new RTPSession(new LoopbackChannel(null));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sendChannel.close();
+        receiveChannel.close();
+    }
+
+    /**
+     * @return the next source's next packet, in sequence
+     */
+    ByteBuffer nextPacket() {
+        int source = next;
+        next = (source + 1 == sources) ? 0 : source + 1;
+        ByteBuffer packet = packets[source];
+        int seq = sequence[source]++;
+        packet.putShort(2, (short) seq);
+        packet.putInt(4, seq * PAYLOAD_LENGTH);
+        return packet;
+    }
+
+    @Benchmark
+    public int parseHeader() {
+        RTPPacket packet = view.wrap(nextPacket());
+        return packet.isValid() ? packet.getSsrc() ^ packet.getSequenceNumber() : 0;
+    }
+
+    @Benchmark
+    public void demultiplex() {
+        demultiplexer.process(nextPacket(), 0);
+    }
+
+    @Benchmark
+    public void relayLoopback() throws IOException {
+        relay.process(nextPacket(), 0);
+        received.clear();
+        receiveChannel.receive(received);
+        received.flip();
+        receiver.process(received, 0);
+    }
+
+    /**
+     * Writes to a connected datagram channel, or nowhere, and never has
+     * anything to read
+     */
+    static class LoopbackChannel implements IceSocketChannel {
+
+        private final DatagramChannel channel;
+
+        LoopbackChannel(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void addEventListener(IceEventListener listener) {
+        }
+
+        @Override
+        public void removeEventListener(IceEventListener listener) {
+        }
+
+        @Override
+        public PooledBuffer receive() {
+            return null;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (channel == null) {
+                int length = src.remaining();
+                src.position(src.limit());
+                return length;
+            }
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel == null || channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.stun;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import net.mc_cubed.icedjava.packet.StunPacket;
+import net.mc_cubed.icedjava.packet.attribute.Attribute;
+import net.mc_cubed.icedjava.packet.attribute.AttributeFactory;
+import net.mc_cubed.icedjava.packet.header.MessageClass;
+import net.mc_cubed.icedjava.packet.header.MessageHeader;
+import net.mc_cubed.icedjava.packet.header.MessageMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the STUN messages exchanged during ICE
+ * connectivity checks: a Binding request carrying USERNAME, PRIORITY,
+ * ICE-CONTROLLING, MESSAGE-INTEGRITY and FINGERPRINT, and its success
+ * response.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StunPacketBenchmark {
+
+    static final String USERNAME = "8hhY:9uB6";
+    static final String REALM = "icedjava";
+    static final String PASSWORD = "asd88fgpdd777uzjYhagZg";
+    byte[] transactionId;
+    InetAddress mappedAddress;
+    byte[] request;
+    byte[] response;
+
+    @Setup
+    public void setup() throws Exception {
+        // Transaction IDs carry the magic cookie, so take a generated one
+        transactionId = new StunPacketImpl(MessageClass.REQUEST, MessageMethod.BINDING).getTransactionId();
+        mappedAddress = InetAddress.getByName("203.0.113.5");
+        request = encodeRequest();
+        response = encodeResponse();
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() {
+        StunPacket packet = new StunPacketImpl(MessageClass.REQUEST, MessageMethod.BINDING, transactionId);
+        packet.getAttributes().add(AttributeFactory.createUsernameAttribute(USERNAME));
+        packet.getAttributes().add(AttributeFactory.createPriorityAttribute(1853817087));
+        packet.getAttributes().add(AttributeFactory.createIceControllingAttribute(0x0123456789abcdefL));
+        packet.getAttributes().add(AttributeFactory.createRealmAttribute(REALM));
+        packet.getAttributes().add(AttributeFactory.createIntegrityAttribute(USERNAME, REALM, PASSWORD));
+        packet.getAttributes().add(AttributeFactory.createFingerprintAttribute());
+        return packet.getBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() {
+        StunPacket packet = new StunPacketImpl(MessageClass.SUCCESS, MessageMethod.BINDING, transactionId);
+        packet.getAttributes().add(AttributeFactory.createXORMappedAddressAttribute(mappedAddress, 50000, transactionId));
+        packet.getAttributes().add(AttributeFactory.createFingerprintAttribute());
+        return packet.getBytes();
+    }
+
+    @Benchmark
+    public StunPacket decodeRequest() {
+        return new StunPacketImpl(request, 0, request.length);
+    }
+
+    @Benchmark
+    public StunPacket decodeResponse() {
+        return new StunPacketImpl(response, 0, response.length);
+    }
+
+    /**
+     * The check every datagram goes through before it is decoded
+     */
+    @Benchmark
+    public boolean classify() {
+        return MessageHeader.isRFC5389StunPacket(request, 0, request.length);
+    }
+
+    @Benchmark
+    public Attribute createXORMappedAddress() {
+        return AttributeFactory.createXORMappedAddressAttribute(mappedAddress, 50000, transactionId);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 Charles Chappell.
+ *
+ * This file is part of IcedJava.
+ *
+ * IcedJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * IcedJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with IcedJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.icedjava.util;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Admission, lookup and removal on an ExpiringCache or a
+ * ConcurrentExpiringCache holding as many entries as a busy STUN server keeps
+ * transactions for.  Both are driven through Map, whose get, put and remove
+ * are their recover, admit and discard.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpiringCacheBenchmark {
+
+    @Param({"ExpiringCache", "ConcurrentExpiringCache"})
+    String impl;
+    @Param({"1000", "100000"})
+    int size;
+    Map<String, Object> cache;
+    String[] keys;
+    Object value;
+    int next;
+
+    @Setup
+    public void setup() {
+        if (impl.equals("ConcurrentExpiringCache")) {
+            cache = new ConcurrentExpiringCache<String, Object>();
+        } else {
+            cache = new ExpiringCache<String, Object>();
+        }
+        keys = new String[size];
+        value = new Object();
+        for (int i = 0; i < size; i++) {
+            keys[i] = "txid" + i;
+            cache.put(keys[i], value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (cache instanceof ExpiringCache) {
+            ExpiringCache<String, Object> old = (ExpiringCache<String, Object>) cache;
+            if (old.cacheManager != null) {
+                old.cacheManager.cancel();
+            }
+        } else {
+            // Takes the entries off the shared timing wheel
+            cache.clear();
+        }
+    }
+
+    @Benchmark
+    public Object admit() {
+        return cache.put(nextKey(), value);
+    }
+
+    @Benchmark
+    public Object recover() {
+        return cache.get(nextKey());
+    }
+
+    /**
+     * Discard an entry and put it back, so the cache keeps its size
+     */
+    @Benchmark
+    public Object discardAndAdmit() {
+        String key = nextKey();
+        cache.remove(key);
+        return cache.put(key, value);
+    }
+
+    String nextKey() {
+        String key = keys[next];
+        next = (next + 1) % keys.length;
+        return key;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Charles Chappell.
+ *
+ * This file is part of MsrpJava.
+ *
+ * MsrpJava is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * MsrpJava is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with MsrpJava.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.mc_cubed.msrp;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of MSRP SEND requests, from a short chat message up to a
+ * chunk sized body.
+ *
+ * @author Charles Chappell
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MsrpMessageBenchmark {
+
+    @Param({"16", "1024", "16384"})
+    int contentLength;
+    MsrpMessage message;
+
+    @Setup
+    public void setup() {
+        StringBuilder content = new StringBuilder(contentLength);
+        for (int i = 0; i < contentLength; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        message = new MsrpMessage(URI.create("msrp://192.168.1.10:2855/iau39soe2843z;tcp"),
+                URI.create("msrp://203.0.113.5:2855/9di4eae923wzd;tcp"),
+                "text/plain", content.toString(), 1);
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() throws IOException {
+        return MsrpUtil.encodeRequest(message);
+    }
+}